@@ -55,6 +55,11 @@ public class Schema {
    */
   private final Map<Integer, Integer> columnsById;
 
+  /**
+   * Mapping of column index to column ID, or null if the schema does not have assigned column IDs.
+   */
+  private final int[] columnIdsByIndex;
+
   /**
    * Mapping of column index to backing byte array offset.
    */
@@ -99,6 +104,7 @@ public class Schema {
     this.columnOffsets = new int[columns.size()];
     this.columnsByName = new HashMap<>(columns.size());
     this.columnsById = hasColumnIds ? new HashMap<Integer, Integer>(columnIds.size()) : null;
+    this.columnIdsByIndex = hasColumnIds ? new int[columnIds.size()] : null;
     int offset = 0;
     boolean hasNulls = false;
     // pre-compute a few counts and offsets
@@ -124,6 +130,7 @@ public class Schema {
           throw new IllegalArgumentException(
               String.format("Column IDs must be unique: %s", columnIds));
         }
+        this.columnIdsByIndex[index] = columnIds.get(index);
       }
     }
 
@@ -203,6 +210,17 @@ public class Schema {
     return index;
   }
 
+  /**
+   * Get the ID of the column at the provided index.
+   * This method is not part of the stable API.
+   * @param idx the column's index
+   * @return the column id of the column.
+   */
+  public int getColumnId(int idx) {
+    if (!hasColumnIds()) throw new IllegalStateException("Schema does not have Column IDs");
+    return this.columnIdsByIndex[idx];
+  }
+
   /**
    * Get the column associated with the specified name
    * @param columnName column's name
@@ -16,6 +16,7 @@
 // under the License.
 package org.kududb.client;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -44,7 +45,8 @@ public abstract class AbstractKuduScannerBuilder
   Common.OrderMode orderMode = Common.OrderMode.UNORDERED;
   int batchSizeBytes = 1024*1024;
   long limit = Long.MAX_VALUE;
-  boolean prefetching = false;
+  int prefetchDepth = 0;
+  long prefetchMaxBytes = -1;
   boolean cacheBlocks = true;
   long htTimestamp = AsyncKuduClient.NO_TIMESTAMP;
   byte[] lowerBoundPrimaryKey = AsyncKuduClient.EMPTY_ARRAY;
@@ -195,13 +197,38 @@ public abstract class AbstractKuduScannerBuilder
   /**
    * Enables prefetching of rows for the scanner, i.e. whether to send a request for more data
    * to the server immediately after we receive a response (instead of waiting for the user
-   * to call {@code  nextRows()}). Disabled by default.
-   * NOTE: This is risky until KUDU-1260 is resolved.
+   * to call {@code  nextRows()}). Disabled by default. Same as a prefetch depth of 1 when
+   * enabled, see {@link #prefetchDepth(int)}.
    * @param prefetching a boolean that indicates if the scanner should prefetch rows
    * @return this instance
    */
   public S prefetching(boolean prefetching) {
-    this.prefetching = prefetching;
+    this.prefetchDepth = prefetching ? 1 : 0;
+    return (S) this;
+  }
+
+  /**
+   * Sets how many responses the scanner can prefetch ahead of {@code nextRows()}. The responses
+   * are fetched one after the other, a request for more rows being sent as soon as the previous
+   * one completes until that many responses are buffered, also moving on to the next tablets.
+   * 0 by default, which disables prefetching.
+   * @param prefetchDepth a non-negative number of responses
+   * @return this instance
+   */
+  public S prefetchDepth(int prefetchDepth) {
+    this.prefetchDepth = prefetchDepth;
+    return (S) this;
+  }
+
+  /**
+   * Sets how many bytes of rows the scanner can buffer when prefetching, the scanner stops
+   * prefetching once it holds that many bytes even if it's below the prefetch depth. By default
+   * it's the prefetch depth multiplied by the batch size.
+   * @param prefetchMaxBytes a strictly positive number of bytes
+   * @return this instance
+   */
+  public S prefetchMaxBytes(long prefetchMaxBytes) {
+    this.prefetchMaxBytes = prefetchMaxBytes;
     return (S) this;
   }
 
@@ -334,5 +361,43 @@ public abstract class AbstractKuduScannerBuilder
     return (S) this;
   }
 
+  /**
+   * Creates a scanner for each of the tablets that the scan covers, in partition key order,
+   * blocking while the tablets are looked up. The partition key bounds cannot be set.
+   * @return a scanner per tablet
+   */
+  List<AsyncKuduScanner> newTabletScanners() {
+    if (lowerBoundPartitionKey != AsyncKuduClient.EMPTY_ARRAY ||
+        upperBoundPartitionKey != AsyncKuduClient.EMPTY_ARRAY) {
+      throw new IllegalArgumentException(
+          "Partition key bounds may not be set when scanning each tablet separately");
+    }
+    List<LocatedTablet> tablets;
+    try {
+      if (table.getPartitionSchema().isSimpleRangePartitioning()) {
+        // Same as KuduScanTokenBuilder, until there's proper partition pruning.
+        tablets = client.syncLocateTable(table,
+            lowerBoundPrimaryKey.length == 0 ? null : lowerBoundPrimaryKey,
+            upperBoundPrimaryKey.length == 0 ? null : upperBoundPrimaryKey,
+            scanRequestTimeout);
+      } else {
+        tablets = client.syncLocateTable(table, null, null, scanRequestTimeout);
+      }
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+    List<AsyncKuduScanner> scanners = new ArrayList<>(tablets.size());
+    for (LocatedTablet tablet : tablets) {
+      scanners.add(new AsyncKuduScanner(
+          client, table, projectedColumnNames, projectedColumnIndexes, readMode, orderMode,
+          scanRequestTimeout, predicates, limit, cacheBlocks,
+          prefetchDepth, prefetchMaxBytes, lowerBoundPrimaryKey, upperBoundPrimaryKey,
+          tablet.getPartition().getPartitionKeyStart(),
+          tablet.getPartition().getPartitionKeyEnd(),
+          htTimestamp, batchSizeBytes));
+    }
+    return scanners;
+  }
+
   public abstract T build();
 }
@@ -67,6 +67,8 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.concurrent.GuardedBy;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
@@ -84,6 +86,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
@@ -137,6 +140,8 @@ public class AsyncKuduClient implements AutoCloseable {
   public static final long DEFAULT_SOCKET_READ_TIMEOUT_MS = 10000;
   private static final long MAX_RPC_ATTEMPTS = 100;
 
+  private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
   private final ClientSocketChannelFactory channelFactory;
 
   /**
@@ -155,6 +160,13 @@ public class AsyncKuduClient implements AutoCloseable {
   private final ConcurrentHashMap<String, ConcurrentSkipListMap<byte[],
       RemoteTablet>> tabletsCache = new ConcurrentHashMap<>();
 
+  /**
+   * Routing tables of the hash partitioned tables, keyed by table ID. An entry is built from
+   * tabletsCache on the first lookup, and removed when the table's cached tablets change.
+   */
+  private final ConcurrentHashMap<String, TabletRoutingTable> routingTables =
+      new ConcurrentHashMap<>();
+
   /**
    * Maps a tablet ID to the RemoteTablet that knows where all the replicas are served.
    */
@@ -241,6 +253,16 @@ public class AsyncKuduClient implements AutoCloseable {
 
   private final boolean statisticsDisabled;
 
+  // Encodes batches before they're sent, null if they're encoded by the thread that sends them.
+  private final Executor encoderExecutor;
+
+  // Limits the write batches in flight per tablet server, null if there's no limit.
+  private final WriteScheduler writeScheduler;
+
+  // Write rate limits by table name, see setTableWriteRateLimit().
+  private final ConcurrentHashMap<String, WriteRateLimiter> tableWriteRateLimiters =
+      new ConcurrentHashMap<>();
+
   private volatile boolean closed;
 
   private AsyncKuduClient(AsyncKuduClientBuilder b) {
@@ -253,6 +275,9 @@ public class AsyncKuduClient implements AutoCloseable {
     this.defaultSocketReadTimeoutMs = b.defaultSocketReadTimeoutMs;
     this.statisticsDisabled = b.statisticsDisabled;
     statistics = statisticsDisabled ? null : new Statistics();
+    this.encoderExecutor = b.encoderExecutor;
+    this.writeScheduler = b.maxInFlightWriteBatchesPerServer == 0 ?
+        null : new WriteScheduler(b.maxInFlightWriteBatchesPerServer);
     this.timer = b.timer;
   }
 
@@ -540,6 +565,25 @@ public class AsyncKuduClient implements AutoCloseable {
     return !statisticsDisabled;
   }
 
+  /**
+   * Limits how many rows and bytes per second all the sessions of this client can write to a
+   * table. Batches that go over the limit are delayed before being sent, see
+   * {@link Statistics.Statistic#THROTTLED_BATCHES}. This applies on top of the sessions' own
+   * limits, see {@link SessionConfiguration#setWriteRateLimit(long, long)}, and can be changed at
+   * any time.
+   * @param tableName the table's name
+   * @param rowsPerSecond maximum number of rows per second, 0 for no limit
+   * @param bytesPerSecond maximum number of bytes of encoded rows per second, 0 for no limit
+   * @throws IllegalArgumentException if a limit is negative
+   */
+  public void setTableWriteRateLimit(String tableName, long rowsPerSecond, long bytesPerSecond) {
+    if (rowsPerSecond == 0 && bytesPerSecond == 0) {
+      tableWriteRateLimiters.remove(tableName);
+    } else {
+      tableWriteRateLimiters.put(tableName, new WriteRateLimiter(rowsPerSecond, bytesPerSecond));
+    }
+  }
+
   /**
    * Get the statistics object of this client.
    *
@@ -585,6 +629,39 @@ public class AsyncKuduClient implements AutoCloseable {
         });
   }
 
+  /**
+   * Creates a new {@link KuduBulkWriter.KuduBulkWriterBuilder} for a particular table.
+   * @param table the table to load
+   * @return a new bulk writer builder for this table
+   */
+  public KuduBulkWriter.KuduBulkWriterBuilder newBulkWriterBuilder(KuduTable table) {
+    checkIsClosed();
+    return new KuduBulkWriter.KuduBulkWriterBuilder(this, table);
+  }
+
+  /**
+   * Creates a new {@link KuduParallelScanner.KuduParallelScannerBuilder} for a particular table.
+   * Building the scanner looks up the table's tablets, blocking until they're found.
+   * @param table the table to scan
+   * @return a new parallel scanner builder for this table
+   */
+  public KuduParallelScanner.KuduParallelScannerBuilder newParallelScannerBuilder(
+      KuduTable table) {
+    checkIsClosed();
+    return new KuduParallelScanner.KuduParallelScannerBuilder(this, table);
+  }
+
+  /**
+   * Creates a new {@link KuduMergeScanner.KuduMergeScannerBuilder} for a particular table.
+   * Building the scanner looks up the table's tablets, blocking until they're found.
+   * @param table the table to scan
+   * @return a new merge scanner builder for this table
+   */
+  public KuduMergeScanner.KuduMergeScannerBuilder newMergeScannerBuilder(KuduTable table) {
+    checkIsClosed();
+    return new KuduMergeScanner.KuduMergeScannerBuilder(this, table);
+  }
+
   /**
    * Create a new session for interacting with the cluster.
    * User is responsible for destroying the session object.
@@ -664,6 +741,197 @@ public class AsyncKuduClient implements AutoCloseable {
     return d;
   }
 
+  /**
+   * Sends a batch of operations to its tablet. The batch is first delayed if it goes over the
+   * write rate limits of its session or table, then it waits for its tablet server if the client
+   * limits the batches in flight per server. Neither wait goes past the batch's deadline: a batch
+   * that would be delayed beyond it fails right away, and one that's still waiting for its server
+   * at its deadline is taken out of the queue and fails. If the client has an encoder executor, the
+   * operations are encoded by one of its threads, which then sends the batch. Otherwise this
+   * is the same as {@link #sendRpcToTablet(KuduRpc)}.
+   * @param batch the batch to send
+   * @return a {@code Deferred} which will contain the response
+   */
+  Deferred<BatchResponse> sendBatchToTablet(final Batch batch) {
+    // Taken now since the batch can complete, and drop its Deferred, before this returns.
+    final Deferred<BatchResponse> d = batch.getDeferred();
+    long delayNanos = reserveWriteRate(batch);
+    if (delayNanos > 0) {
+      long delayMs = Math.max(1, TimeUnit.NANOSECONDS.toMillis(delayNanos));
+      if (batch.deadlineTracker.wouldSleepingTimeout(delayMs)) {
+        // The batch won't be sent, so the batches behind it don't have to wait for it.
+        refundWriteRate(batch);
+        tooManyAttemptsOrTimeout(batch, null);
+        return d;
+      }
+      updateWriteStatistics(batch, Statistics.Statistic.THROTTLED_BATCHES, 1);
+      updateWriteStatistics(batch, Statistics.Statistic.THROTTLE_TIME_NANOS, delayNanos);
+      final class ThrottledBatchTimer implements TimerTask {
+        public void run(final Timeout timeout) {
+          scheduleBatch(batch);
+        }
+      }
+      newTimeout(new ThrottledBatchTimer(), delayMs);
+      return d;
+    }
+    scheduleBatch(batch);
+    return d;
+  }
+
+  /**
+   * Takes the tokens of a batch from the rate limiters of its session and table.
+   * @param batch the batch to send
+   * @return how many nanoseconds the batch has to wait, 0 if it can be sent right away
+   */
+  private long reserveWriteRate(Batch batch) {
+    long delayNanos = 0;
+    WriteRateLimiter sessionLimiter =
+        batch.tenant == null ? null : batch.tenant.getRateLimiter();
+    if (sessionLimiter != null) {
+      delayNanos = sessionLimiter.reserve(batch.ops.size(), batch.bufferedBytes);
+    }
+    WriteRateLimiter tableLimiter = getTableWriteRateLimiter(batch);
+    if (tableLimiter != null) {
+      delayNanos = Math.max(delayNanos,
+          tableLimiter.reserve(batch.ops.size(), batch.bufferedBytes));
+    }
+    return delayNanos;
+  }
+
+  /**
+   * Gives back the tokens a batch took with {@link #reserveWriteRate(Batch)}.
+   * @param batch the batch that won't be sent
+   */
+  private void refundWriteRate(Batch batch) {
+    WriteRateLimiter sessionLimiter =
+        batch.tenant == null ? null : batch.tenant.getRateLimiter();
+    if (sessionLimiter != null) {
+      sessionLimiter.refund(batch.ops.size(), batch.bufferedBytes);
+    }
+    WriteRateLimiter tableLimiter = getTableWriteRateLimiter(batch);
+    if (tableLimiter != null) {
+      tableLimiter.refund(batch.ops.size(), batch.bufferedBytes);
+    }
+  }
+
+  private WriteRateLimiter getTableWriteRateLimiter(Batch batch) {
+    if (tableWriteRateLimiters.isEmpty()) {
+      return null;
+    }
+    return tableWriteRateLimiters.get(batch.getTable().getName());
+  }
+
+  /**
+   * Sends a batch unless its tablet server already has too many batches in flight, in which case
+   * it's queued and sent once it's its turn.
+   * @param batch the batch to send
+   */
+  private void scheduleBatch(final Batch batch) {
+    if (writeScheduler != null) {
+      // Batches whose leader isn't known aren't held back, they'll look it up.
+      TabletClient server = clientFor(getTablet(batch.getTable().getTableId(),
+          batch.partitionKey()));
+      if (server != null) {
+        final String uuid = server.getUuid();
+        if (!writeScheduler.tryAcquire(uuid, batch)) {
+          updateWriteStatistics(batch, Statistics.Statistic.SERVER_QUEUED_BATCHES, 1);
+          if (batch.deadlineTracker.hasDeadline()) {
+            final class QueuedBatchTimer implements TimerTask {
+              public void run(final Timeout timeout) {
+                // Does nothing if the batch was already handed its server's slot.
+                if (writeScheduler.remove(uuid, batch)) {
+                  tooManyAttemptsOrTimeout(batch, null);
+                }
+              }
+            }
+            newTimeout(new QueuedBatchTimer(),
+                Math.max(1, batch.deadlineTracker.getMillisBeforeDeadline()));
+          }
+          return;
+        }
+        batch.getDeferred().addBoth(new ReleaseServerSlot<BatchResponse>(uuid));
+      }
+    }
+    encodeAndSendBatchAsync(batch);
+  }
+
+  /**
+   * Lets the next batch waiting for a tablet server be sent once a batch is done.
+   */
+  private final class ReleaseServerSlot<T> implements Callback<T, T> {
+    final String uuid;
+    ReleaseServerSlot(String uuid) {
+      this.uuid = uuid;
+    }
+    public T call(final T arg) {
+      Batch next = writeScheduler.release(uuid);
+      if (next != null) {
+        next.getDeferred().addBoth(new ReleaseServerSlot<BatchResponse>(uuid));
+        encodeAndSendBatchAsync(next);
+      }
+      return arg;
+    }
+    public String toString() {
+      return "release tablet server write slot";
+    }
+  }
+
+  private void updateWriteStatistics(Batch batch, Statistics.Statistic statistic, long count) {
+    if (statistics == null) {
+      return;
+    }
+    RemoteTablet tablet = getTablet(batch.getTable().getTableId(), batch.partitionKey());
+    if (tablet != null) {
+      statistics.getTabletStatistics(batch.getTable().getName(), tablet.getTabletId())
+          .incrementStatistic(statistic, count);
+    }
+  }
+
+  /**
+   * Encodes the batch on the encoder executor if there's one, then sends it.
+   * @param batch the batch to send
+   */
+  private void encodeAndSendBatchAsync(final Batch batch) {
+    if (encoderExecutor == null) {
+      sendRpcToTablet(batch);
+      return;
+    }
+    final long queuedNanos = System.nanoTime();
+    try {
+      encoderExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          batch.encodeQueueNanos = System.nanoTime() - queuedNanos;
+          encodeAndSendBatch(batch);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // The executor is saturated or shut down, encode it ourselves rather than failing it.
+      LOG.debug("Encoder executor rejected {}, encoding it inline", batch, e);
+      encodeAndSendBatch(batch);
+    }
+  }
+
+  private void encodeAndSendBatch(Batch batch) {
+    // Checked every time since measuring the CPU time of threads can be disabled at runtime.
+    boolean measureCpu = THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported() &&
+        THREAD_MX_BEAN.isThreadCpuTimeEnabled();
+    long startNanos = measureCpu ? THREAD_MX_BEAN.getCurrentThreadCpuTime() : System.nanoTime();
+    try {
+      batch.encode();
+    } catch (RuntimeException e) {
+      LOG.error("Couldn't encode {}", batch, e);
+      batch.errback(e);
+      return;
+    }
+    if (measureCpu) {
+      batch.encodeCpuNanos = THREAD_MX_BEAN.getCurrentThreadCpuTime() - startNanos;
+    } else {
+      batch.encodeWallNanos = System.nanoTime() - startNanos;
+    }
+    sendRpcToTablet(batch);
+  }
+
   /**
    * Sends the provided {@link KuduRpc} to the tablet server hosting the leader
    * of the tablet identified by the RPC's table and partition key.
@@ -971,7 +1239,9 @@ public class AsyncKuduClient implements AutoCloseable {
    */
   @VisibleForTesting
   void emptyTabletsCacheForTable(String tableId) {
+    // The tablets cache goes first, getTabletForRow() relies on it.
     tabletsCache.remove(tableId);
+    routingTables.remove(tableId);
     Set<Map.Entry<Slice, RemoteTablet>> tablets = tablet2client.entrySet();
     for (Map.Entry<Slice, RemoteTablet> entry : tablets) {
       if (entry.getValue().getTableId().equals(tableId)) {
@@ -1342,6 +1612,8 @@ public class AsyncKuduClient implements AutoCloseable {
       // Even if two clients were racing in this method they are putting the same RemoteTablet
       // with the same start key in the CSLM in the end
       tablets.put(rt.getPartition().getPartitionKeyStart(), rt);
+      // The routing table is rebuilt on the next lookup to include the new tablet.
+      routingTables.remove(tableId);
     }
   }
 
@@ -1390,6 +1662,54 @@ public class AsyncKuduClient implements AutoCloseable {
     return tabletPair.getValue();
   }
 
+  /**
+   * Gives the tablet that a row belongs to. This is equivalent to calling
+   * {@link #getTablet(String, byte[])} with the row's partition key, but for tables that are hash
+   * partitioned with a single range partition the tablet is found from the row's hash buckets
+   * alone, see {@link TabletRoutingTable}.
+   * @param table the row's table
+   * @param row the row to route, its primary key must be set
+   * @return the tablet or null if it isn't cached
+   */
+  RemoteTablet getTabletForRow(KuduTable table, PartialRow row) {
+    String tableId = table.getTableId();
+    PartitionSchema partitionSchema = table.getPartitionSchema();
+    if (!partitionSchema.getHashBucketSchemas().isEmpty()) {
+      TabletRoutingTable routingTable = routingTables.get(tableId);
+      if (routingTable == null) {
+        ConcurrentSkipListMap<byte[], RemoteTablet> tablets = tabletsCache.get(tableId);
+        if (tablets == null) {
+          return null;
+        }
+        routingTable = TabletRoutingTable.build(partitionSchema, tablets.values());
+        routingTables.put(tableId, routingTable);
+        // The table's tablets cache may have been emptied while we were building, in which case
+        // emptyTabletsCacheForTable() could have removed the routing table before we put ours.
+        // It removes the tablets cache first, so checking it after the put is enough to not
+        // leave a routing table around that still points to the dropped tablets.
+        if (tabletsCache.get(tableId) != tablets) {
+          routingTables.remove(tableId, routingTable);
+          return getTablet(tableId, partitionSchema.encodePartitionKey(row));
+        }
+      }
+      if (routingTable.isRoutable()) {
+        RemoteTablet tablet =
+            routingTable.getTablet(KeyEncoder.get().getHashBucketsIndex(row, partitionSchema));
+        if (tablet != null) {
+          return tablet;
+        }
+        // The tablet may have been discovered while the routing table was being built, in which
+        // case it's only in the tablets cache and the routing table needs to be rebuilt.
+        tablet = getTablet(tableId, partitionSchema.encodePartitionKey(row));
+        if (tablet != null) {
+          routingTables.remove(tableId, routingTable);
+        }
+        return tablet;
+      }
+    }
+    return getTablet(tableId, partitionSchema.encodePartitionKey(row));
+  }
+
   /**
    * Retrieve the master registration (see {@link GetMasterRegistrationResponse}
    * for a replica.
@@ -2159,6 +2479,8 @@ public class AsyncKuduClient implements AutoCloseable {
     private int bossCount = DEFAULT_BOSS_COUNT;
     private int workerCount = DEFAULT_WORKER_COUNT;
     private boolean statisticsDisabled = false;
+    private Executor encoderExecutor;
+    private int maxInFlightWriteBatchesPerServer = 0;
 
     /**
      * Creates a new builder for a client that will connect to the specified masters.
@@ -2305,6 +2627,40 @@ public class AsyncKuduClient implements AutoCloseable {
       return this;
     }
 
+    /**
+     * Set the executor which will be used to encode the batches of operations written by sessions.
+     * Optional.
+     * If not provided, batches are encoded by the thread that flushes them, which is often the
+     * application's thread or one of the Netty workers. Using an executor with several threads
+     * lets the batches of different tablets be encoded in parallel. If the executor rejects a
+     * batch, it is encoded by the flushing thread instead.
+     * The executor isn't shut down when the client is closed.
+     * @param encoderExecutor the executor to encode batches with
+     * @return this builder
+     */
+    public AsyncKuduClientBuilder encoderExecutor(Executor encoderExecutor) {
+      this.encoderExecutor = encoderExecutor;
+      return this;
+    }
+
+    /**
+     * Set how many write batches can be in flight to the same tablet server, across all the
+     * sessions of the client. Once a server has that many batches in flight, the next ones wait
+     * and are sent in weighted round-robin between the sessions, so that a session writing a lot
+     * cannot starve the others, see {@link SessionConfiguration#setWriteWeight(int)}.
+     * Optional.
+     * If not provided, or if 0, there's no limit and batches are sent as soon as they're flushed.
+     * @param maxInFlightWriteBatchesPerServer a number of batches, 0 for no limit
+     * @return this builder
+     */
+    public AsyncKuduClientBuilder maxInFlightWriteBatchesPerServer(
+        int maxInFlightWriteBatchesPerServer) {
+      Preconditions.checkArgument(maxInFlightWriteBatchesPerServer >= 0,
+          "The number of batches cannot be negative");
+      this.maxInFlightWriteBatchesPerServer = maxInFlightWriteBatchesPerServer;
+      return this;
+    }
+
     /**
      * Creates a new client that connects to the masters.
      * Doesn't block and won't throw an exception if the masters don't exist.
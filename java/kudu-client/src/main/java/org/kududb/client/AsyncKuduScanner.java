@@ -41,11 +41,13 @@ import org.kududb.util.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.concurrent.GuardedBy;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static org.kududb.tserver.Tserver.NewScanRequestPB;
@@ -180,7 +182,15 @@ public final class AsyncKuduScanner {
    */
   private final byte[] endPrimaryKey;
 
-  private final boolean prefetching;
+  /**
+   * How many responses can be fetched ahead of {@link #nextRows()}, 0 if not prefetching.
+   */
+  private final int prefetchDepth;
+
+  /**
+   * How many bytes of rows can be buffered when prefetching.
+   */
+  private final long prefetchMaxBytes;
 
   private final boolean cacheBlocks;
 
@@ -222,7 +232,43 @@ public final class AsyncKuduScanner {
    */
   private int sequenceId;
 
-  private Deferred<RowResultIterator> prefetcherDeferred;
+  /**
+   * When prefetching, the responses that were fetched but not yet returned by
+   * {@link #nextRows()}: RowResultIterators or Exceptions.
+   */
+  @GuardedBy("this")
+  private final ArrayDeque<Object> prefetched = new ArrayDeque<>();
+
+  @GuardedBy("this")
+  private long prefetchedBytes = 0;
+
+  /**
+   * If there's a request for more rows in flight when prefetching. Only one request is sent at
+   * a time since the tablet server expects them in sequence.
+   */
+  @GuardedBy("this")
+  private boolean fetching = false;
+
+  /**
+   * If the last prefetched response is an error, in which case the scanner doesn't fetch more
+   * rows until the error is returned.
+   */
+  @GuardedBy("this")
+  private boolean prefetchFailed = false;
+
+  /**
+   * Returned by {@link #nextRows()} when nothing was prefetched yet, completed by the request
+   * in flight.
+   */
+  @GuardedBy("this")
+  private Deferred<RowResultIterator> waitingForRows;
+
+  /**
+   * Set when the scanner is closed while a request is in flight, completed once the scanner is
+   * closed after that request.
+   */
+  @GuardedBy("this")
+  private Deferred<RowResultIterator> closeAfterFetch;
 
   private boolean inFirstTablet = true;
 
@@ -234,7 +280,7 @@ public final class AsyncKuduScanner {
                    List<Integer> projectedIndexes, ReadMode readMode, Common.OrderMode orderMode,
                    long scanRequestTimeout,
                    Map<String, KuduPredicate> predicates, long limit,
-                   boolean cacheBlocks, boolean prefetching,
+                   boolean cacheBlocks, int prefetchDepth, long prefetchMaxBytes,
                    byte[] startPrimaryKey, byte[] endPrimaryKey,
                    byte[] startPartitionKey, byte[] endPartitionKey,
                    long htTimestamp, int batchSizeBytes) {
@@ -242,6 +288,10 @@ public final class AsyncKuduScanner {
         "got %s", batchSizeBytes);
     checkArgument(limit > 0, "Need a strictly positive number for the limit, " +
         "got %s", limit);
+    checkArgument(prefetchDepth >= 0, "Need a non-negative prefetch depth, got %s",
+        prefetchDepth);
+    checkArgument(prefetchMaxBytes > 0 || prefetchMaxBytes == -1, "Need a strictly positive " +
+        "number of bytes to prefetch, got %s", prefetchMaxBytes);
     if (htTimestamp != AsyncKuduClient.NO_TIMESTAMP) {
       checkArgument(htTimestamp >= 0, "Need non-negative number for the scan, " +
           " timestamp got %s", htTimestamp);
@@ -261,7 +311,9 @@ public final class AsyncKuduScanner {
     this.predicates = predicates;
     this.limit = limit;
     this.cacheBlocks = cacheBlocks;
-    this.prefetching = prefetching;
+    this.prefetchDepth = prefetchDepth;
+    this.prefetchMaxBytes = prefetchMaxBytes == -1 ?
+        (long) prefetchDepth * batchSizeBytes : prefetchMaxBytes;
     this.startPrimaryKey = startPrimaryKey;
     this.endPrimaryKey = endPrimaryKey;
     this.htTimestamp = htTimestamp;
@@ -364,11 +416,25 @@ public final class AsyncKuduScanner {
   }
 
   /**
-   * Tells if the last rpc returned that there might be more rows to scan.
+   * Tells if the last rpc returned that there might be more rows to scan, or if there are
+   * prefetched rows left to return.
    * @return true if there might be more data to scan, else false
    */
   public boolean hasMoreRows() {
-    return this.hasMore;
+    if (prefetchDepth == 0) {
+      return this.hasMore;
+    }
+    synchronized (this) {
+      return this.hasMore || fetching || !prefetched.isEmpty();
+    }
+  }
+
+  /**
+   * Returns how many responses this scanner can prefetch ahead of {@link #nextRows()}.
+   * @return the prefetch depth, 0 if not prefetching
+   */
+  public int getPrefetchDepth() {
+    return this.prefetchDepth;
   }
 
   /**
@@ -422,6 +488,17 @@ public final class AsyncKuduScanner {
    * @return a deferred list of rows.
    */
   public Deferred<RowResultIterator> nextRows() {
+    if (prefetchDepth > 0) {
+      return nextPrefetchedRows();
+    }
+    return fetchNextRows();
+  }
+
+  /**
+   * Sends a request for the next rows, opening the scanner on the next tablet if the previous
+   * one was fully scanned.
+   */
+  private Deferred<RowResultIterator> fetchNextRows() {
     if (closed) {  // We're already done scanning.
       return Deferred.fromResult(null);
     } else if (tablet == null) {
@@ -447,30 +524,99 @@ public final class AsyncKuduScanner {
               return "scanner opened";
             }
           });
-    } else if (prefetching && prefetcherDeferred != null) {
-      // TODO KUDU-1260 - Check if this works and add a test
-      prefetcherDeferred.chain(new Deferred<RowResultIterator>().addCallback(prefetch));
-      return prefetcherDeferred;
     }
-    final Deferred<RowResultIterator> d =
-        client.scanNextRows(this).addCallbacks(got_next_row, nextRowErrback());
-    if (prefetching) {
-      d.chain(new Deferred<RowResultIterator>().addCallback(prefetch));
+    return client.scanNextRows(this).addCallbacks(got_next_row, nextRowErrback());
+  }
+
+  /**
+   * Returns the oldest prefetched response, or a Deferred that the request in flight will
+   * complete if there's none, and prefetches more rows if there's room for them.
+   */
+  private Deferred<RowResultIterator> nextPrefetchedRows() {
+    Deferred<RowResultIterator> d;
+    synchronized (this) {
+      Object result = prefetched.poll();
+      if (result instanceof Exception) {
+        prefetchFailed = false;
+        d = Deferred.fromError((Exception) result);
+      } else if (result != null) {
+        RowResultIterator rows = (RowResultIterator) result;
+        prefetchedBytes -= rows.getDataSizeBytes();
+        d = Deferred.fromResult(rows);
+      } else if (fetching || (hasMore && !closed)) {
+        waitingForRows = new Deferred<>();
+        d = waitingForRows;
+      } else {
+        return Deferred.fromResult(null);
+      }
     }
+    prefetch();
     return d;
   }
 
-  private final Callback<RowResultIterator, RowResultIterator> prefetch =
-      new Callback<RowResultIterator, RowResultIterator>() {
-    @Override
-    public RowResultIterator call(RowResultIterator arg) throws Exception {
-      if (hasMoreRows()) {
-        prefetcherDeferred = client.scanNextRows(AsyncKuduScanner.this).addCallbacks
-            (got_next_row, nextRowErrback());
+  /**
+   * Sends a request for more rows unless one is in flight or the prefetched responses are
+   * already over the prefetch depth or bytes.
+   */
+  private void prefetch() {
+    synchronized (this) {
+      if (fetching || prefetchFailed || closeAfterFetch != null || closed || !hasMore ||
+          prefetched.size() >= prefetchDepth || prefetchedBytes >= prefetchMaxBytes) {
+        return;
       }
+      fetching = true;
+    }
+    fetchNextRows().addBoth(new PrefetchCallback<RowResultIterator>());
+  }
+
+  /**
+   * Hands a fetched response, or error, to whoever waits for it or buffers it, then either
+   * keeps prefetching or closes the scanner if it was closed while the request was in flight.
+   */
+  private void onFetched(Object result) {
+    Deferred<RowResultIterator> waiting;
+    Deferred<RowResultIterator> pendingClose;
+    synchronized (this) {
+      fetching = false;
+      waiting = waitingForRows;
+      waitingForRows = null;
+      pendingClose = closeAfterFetch;
+      closeAfterFetch = null;
+      // The last response of the scan can be null, hasMoreRows() tells that there's nothing left.
+      if (waiting == null && pendingClose == null && result != null) {
+        prefetched.add(result);
+        if (result instanceof Exception) {
+          prefetchFailed = true;
+        } else {
+          prefetchedBytes += ((RowResultIterator) result).getDataSizeBytes();
+        }
+      }
+    }
+    if (waiting != null) {
+      waiting.callback(result);
+    }
+    if (pendingClose != null) {
+      closeScanner().chain(pendingClose);
+    } else if (!(result instanceof Exception)) {
+      prefetch();
+    }
+  }
+
+  /**
+   * Callback and errback for the prefetched responses.
+   */
+  private final class PrefetchCallback<T> implements Callback<Object, T> {
+    @Override
+    public Object call(T arg) {
+      onFetched(arg);
       return null;
     }
-  };
+
+    @Override
+    public String toString() {
+      return "prefetch";
+    }
+  }
 
   /**
    * Singleton callback to handle responses of "next" RPCs.
@@ -542,6 +688,24 @@ public final class AsyncKuduScanner {
    * in the scanner, or an Exception.
    */
   public Deferred<RowResultIterator> close() {
+    if (prefetchDepth > 0) {
+      synchronized (this) {
+        prefetched.clear();
+        prefetchedBytes = 0;
+        prefetchFailed = false;
+        if (fetching) {
+          // Closing now would race with the request in flight.
+          if (closeAfterFetch == null) {
+            closeAfterFetch = new Deferred<>();
+          }
+          return closeAfterFetch;
+        }
+      }
+    }
+    return closeScanner();
+  }
+
+  private Deferred<RowResultIterator> closeScanner() {
     if (closed) {
       return Deferred.fromResult(null);
     }
@@ -849,7 +1013,7 @@ public final class AsyncKuduScanner {
       return new AsyncKuduScanner(
           client, table, projectedColumnNames, projectedColumnIndexes, readMode, orderMode,
           scanRequestTimeout, predicates, limit, cacheBlocks,
-          prefetching, lowerBoundPrimaryKey, upperBoundPrimaryKey,
+          prefetchDepth, prefetchMaxBytes, lowerBoundPrimaryKey, upperBoundPrimaryKey,
           lowerBoundPartitionKey, upperBoundPartitionKey,
           htTimestamp, batchSizeBytes);
     }
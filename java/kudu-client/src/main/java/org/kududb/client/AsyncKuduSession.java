@@ -19,12 +19,12 @@ package org.kududb.client;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Range;
-import com.google.common.collect.Sets;
 import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
 import org.kududb.annotations.InterfaceAudience;
 import org.kududb.annotations.InterfaceStability;
 import org.kududb.master.Master;
+import org.kududb.tserver.Tserver;
 import org.kududb.util.Slice;
 import org.jboss.netty.util.Timeout;
 import org.jboss.netty.util.TimerTask;
@@ -32,7 +32,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.concurrent.GuardedBy;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.kududb.client.ExternalConsistencyMode.CLIENT_PROPAGATED;
 
@@ -57,7 +64,9 @@ import static org.kududb.client.ExternalConsistencyMode.CLIENT_PROPAGATED;
  * transaction. Meanwhile another concurrent Session object can safely run
  * non-transactional work or other transactions without interfering.<p>
  *
- * Therefore, this class is <b>not</b> thread-safe.<p>
+ * Therefore, this class is <b>not</b> thread-safe, with the exception of {@link #apply},
+ * {@link #flush} and {@link #hasPendingOperations} that can be called concurrently from
+ * multiple threads once the session is configured.<p>
  *
  * Additionally, there is a guarantee that writes from different sessions do not
  * get batched together into the same RPCs -- this means that latency-sensitive
@@ -84,49 +93,84 @@ public class AsyncKuduSession implements SessionConfiguration {
 
   public static final Logger LOG = LoggerFactory.getLogger(AsyncKuduSession.class);
   private static final Range<Float> PERCENTAGE_RANGE = Range.closed(0.0f, 1.0f);
+  // The session's flusher doesn't run more often than this, which is also the tick duration of the
+  // client's timer.
+  private static final long MIN_FLUSHER_TICK_MS = 20;
+  // How long to wait before trying to replay a spooled batch again.
+  private static final long SPOOL_RETRY_DELAY_MS = 1000;
+  // Encoded size of the batches applyColumnar() sends when the mutation buffer isn't bounded by
+  // bytes, well under the RPC size the tablet servers accept.
+  private static final long MAX_COLUMNAR_BATCH_BYTES = 8 * 1024 * 1024;
 
   private final AsyncKuduClient client;
   private final Random randomizer = new Random();
   private final ErrorCollector errorCollector;
   private int interval = 1000;
-  private int mutationBufferSpace = 1000; // TODO express this in terms of data size.
+  private int mutationBufferSpace = 1000;
+  // When positive, the buffers are limited by the encoded size of their rows instead of by
+  // mutationBufferSpace.
+  private long mutationBufferSpaceBytes = 0;
   private float mutationBufferLowWatermarkPercentage = 0.5f;
   private int mutationBufferLowWatermark;
+  private long mutationBufferLowWatermarkBytes;
+  private int maxInFlightBatchesPerTablet = 1;
+  private boolean encodeOnApply = false;
+  private boolean adaptiveFlushing = false;
+  private boolean coalesceMutations = false;
+  private boolean sortByPrimaryKey = false;
+  private boolean perBatchCompletion = false;
+  // Only set when blocking backpressure is enabled, see setBlockingBackpressure().
+  private WritePermits writePermits;
+  // Only set when batches can be spooled, see setWriteSpool().
+  private WriteSpool spool;
+  // Holds the write rate limit and weight of this session's batches.
+  private final WriteScheduler.Tenant tenant = new WriteScheduler.Tenant();
   private FlushMode flushMode;
   private ExternalConsistencyMode consistencyMode;
   private long timeoutMs;
 
   // We assign a number to each operation that we batch, so that the batch can sort itself before
   // being sent to the server. We never reset this number.
-  private long nextSequenceNumber = 0;
+  private final AtomicLong nextSequenceNumber = new AtomicLong();
 
   /**
-   * The following two maps are to be handled together when batching is enabled. The first one is
-   * where the batching happens, the second one is where we keep track of what's been sent but
-   * hasn't come back yet. A batch cannot be in both maps at the same time. A batch cannot be
-   * added to the in flight map if there's already another batch for the same tablet. If this
-   * happens, and the batch in the first map is full, then we fail fast and send it back to the
-   * client.
-   * The second map stores Deferreds because KuduRpc.callback clears out the Deferred it contains
-   * (as a way to reset the RPC), so we want to store the Deferred that's with the RPC that's
-   * sent out.
+   * The buffers of all the tablets this session wrote to. Entries are never removed, so that
+   * apply() can find a tablet's buffer without locking anything but that buffer.
    */
-  @GuardedBy("this")
-  private final Map<Slice, Batch> operations = new HashMap<>();
+  private final ConcurrentHashMap<Slice, TabletBuffer> tabletBuffers = new ConcurrentHashMap<>();
 
-  @GuardedBy("this")
-  private final Map<Slice, Deferred<BatchResponse>> operationsInFlight = new HashMap<>();
+  /**
+   * The buffers that have a batch, which is all the SessionFlusherTask has to look at: a session
+   * can accumulate many tablet buffers over its lifetime, but only few of them at any given time
+   * have something buffered. A buffer is added and removed while holding its lock, at the same
+   * time as its batch is set and cleared.
+   */
+  private final Set<TabletBuffer> buffersWithBatch =
+      Collections.newSetFromMap(new ConcurrentHashMap<TabletBuffer, Boolean>());
 
   /**
    * This Set is used when not in AUTO_FLUSH_SYNC mode in order to keep track of the operations
-   * that are looking up their tablet, meaning that they aren't in any of the maps above. This is
-   * not expected to grow a lot except when a client starts and only for a short amount of time.
+   * that are looking up their tablet, meaning that they aren't in any of the tablet buffers. This
+   * is not expected to grow a lot except when a client starts and only for a short amount of time.
+   * Operation doesn't override equals() so this set compares the operations by identity.
    */
-  @GuardedBy("this")
-  private final Set<Operation> operationsInLookup = Sets.newIdentityHashSet();
+  private final Set<Operation> operationsInLookup =
+      Collections.newSetFromMap(new ConcurrentHashMap<Operation, Boolean>());
   // Only populated when we're waiting to flush and there are operations in lookup
+  @GuardedBy("operationsInLookup")
   private Deferred<Void> lookupsDone;
 
+  /**
+   * True when a SessionFlusherTask is scheduled. A single task checks the buffers of all the
+   * tablets, and only when some of them have a batch.
+   */
+  private final AtomicBoolean flusherScheduled = new AtomicBoolean();
+
+  /**
+   * The tables of the batches that were spooled, by name, so that they can be replayed.
+   */
+  private final ConcurrentHashMap<String, KuduTable> spoolTables = new ConcurrentHashMap<>();
+
   /**
    * Tracks whether the session has been closed.
    */
@@ -180,6 +224,112 @@ public class AsyncKuduSession implements SessionConfiguration {
     setMutationBufferLowWatermark(mutationBufferLowWatermarkPercentage);
   }
 
+  @Override
+  public void setMutationBufferSpaceBytes(long size) {
+    if (hasPendingOperations()) {
+      throw new IllegalArgumentException("Cannot change the buffer" +
+          " size when operations are buffered");
+    } else if (size < 0) {
+      throw new IllegalArgumentException("The buffer size in bytes cannot be negative");
+    }
+    this.mutationBufferSpaceBytes = size;
+    // Reset the low watermark, using the same percentage as before.
+    setMutationBufferLowWatermark(mutationBufferLowWatermarkPercentage);
+  }
+
+  @Override
+  public void setMaxInFlightBatchesPerTablet(int maxInFlightBatches) {
+    if (hasPendingOperations()) {
+      throw new IllegalArgumentException("Cannot change the number of batches in flight" +
+          " when operations are buffered");
+    } else if (maxInFlightBatches < 1) {
+      throw new IllegalArgumentException("There must be at least one batch in flight per tablet");
+    }
+    this.maxInFlightBatchesPerTablet = maxInFlightBatches;
+  }
+
+  @Override
+  public boolean isEncodeOnApply() {
+    return encodeOnApply;
+  }
+
+  @Override
+  public void setEncodeOnApply(boolean encodeOnApply) {
+    if (hasPendingOperations()) {
+      throw new IllegalArgumentException("Cannot change when operations are encoded" +
+          " when operations are buffered");
+    } else if (encodeOnApply && coalesceMutations) {
+      throw new IllegalArgumentException("Cannot encode operations on apply" +
+          " while coalescing mutations");
+    } else if (encodeOnApply && sortByPrimaryKey) {
+      throw new IllegalArgumentException("Cannot encode operations on apply" +
+          " while sorting them by primary key");
+    }
+    this.encodeOnApply = encodeOnApply;
+  }
+
+  @Override
+  public boolean isSortByPrimaryKey() {
+    return sortByPrimaryKey;
+  }
+
+  @Override
+  public void setSortByPrimaryKey(boolean sortByPrimaryKey) {
+    if (hasPendingOperations()) {
+      throw new IllegalArgumentException("Cannot change the order of the operations" +
+          " when operations are buffered");
+    } else if (sortByPrimaryKey && encodeOnApply) {
+      throw new IllegalArgumentException("Cannot sort operations by primary key" +
+          " while encoding them on apply");
+    }
+    this.sortByPrimaryKey = sortByPrimaryKey;
+  }
+
+  @Override
+  public boolean isCoalesceMutations() {
+    return coalesceMutations;
+  }
+
+  @Override
+  public void setCoalesceMutations(boolean coalesceMutations) {
+    if (hasPendingOperations()) {
+      throw new IllegalArgumentException("Cannot change how mutations are batched" +
+          " when operations are buffered");
+    } else if (coalesceMutations && encodeOnApply) {
+      throw new IllegalArgumentException("Cannot coalesce mutations" +
+          " while encoding operations on apply");
+    }
+    this.coalesceMutations = coalesceMutations;
+  }
+
+  @Override
+  public boolean isPerBatchCompletion() {
+    return perBatchCompletion;
+  }
+
+  @Override
+  public void setPerBatchCompletion(boolean perBatchCompletion) {
+    if (hasPendingOperations()) {
+      throw new IllegalArgumentException("Cannot change how operations are completed" +
+          " when operations are buffered");
+    }
+    this.perBatchCompletion = perBatchCompletion;
+  }
+
+  @Override
+  public boolean isAdaptiveFlushing() {
+    return adaptiveFlushing;
+  }
+
+  @Override
+  public void setAdaptiveFlushing(boolean adaptiveFlushing) {
+    if (hasPendingOperations()) {
+      throw new IllegalArgumentException("Cannot change how batches are flushed" +
+          " when operations are buffered");
+    }
+    this.adaptiveFlushing = adaptiveFlushing;
+  }
+
   @Override
   public void setMutationBufferLowWatermark(float mutationBufferLowWatermarkPercentage) {
     if (hasPendingOperations()) {
@@ -191,6 +341,154 @@ public class AsyncKuduSession implements SessionConfiguration {
     this.mutationBufferLowWatermarkPercentage = mutationBufferLowWatermarkPercentage;
     this.mutationBufferLowWatermark =
         (int)(this.mutationBufferLowWatermarkPercentage * mutationBufferSpace);
+    this.mutationBufferLowWatermarkBytes =
+        (long)(this.mutationBufferLowWatermarkPercentage * mutationBufferSpaceBytes);
+  }
+
+  @Override
+  public boolean isBlockingBackpressure() {
+    return writePermits != null;
+  }
+
+  @Override
+  public void setBlockingBackpressure(int maxPendingOperations, long maxPendingBytes) {
+    if (hasPendingOperations()) {
+      throw new IllegalArgumentException("Cannot change the backpressure" +
+          " when operations are buffered");
+    } else if (maxPendingOperations < 0 || maxPendingBytes < 0) {
+      throw new IllegalArgumentException("The pending operations limits cannot be negative");
+    } else if ((maxPendingOperations > 0 || maxPendingBytes > 0) && spool != null) {
+      throw new IllegalArgumentException("Cannot use blocking backpressure with a write spool");
+    }
+    if (maxPendingOperations == 0 && maxPendingBytes == 0) {
+      this.writePermits = null;
+    } else {
+      this.writePermits = new WritePermits(maxPendingOperations, maxPendingBytes);
+    }
+  }
+
+  @Override
+  public String getWriteSpoolDirectory() {
+    return spool == null ? null : spool.getDirectory().getPath();
+  }
+
+  @Override
+  public void setWriteSpool(String directory, long maxDiskBytes) {
+    if (hasPendingOperations()) {
+      throw new IllegalArgumentException("Cannot change the write spool" +
+          " when operations are buffered");
+    } else if (directory != null && writePermits != null) {
+      throw new IllegalArgumentException("Cannot use a write spool with blocking backpressure");
+    } else if (directory != null && maxDiskBytes <= 0) {
+      throw new IllegalArgumentException("The write spool's disk space must be positive");
+    }
+    if (spool != null) {
+      spool.close();
+      spool = null;
+    }
+    if (directory == null) {
+      return;
+    }
+    WriteSpool newSpool;
+    try {
+      newSpool = WriteSpool.open(new File(directory), maxDiskBytes,
+          WriteSpool.DEFAULT_SEGMENT_SIZE_BYTES);
+    } catch (IOException e) {
+      throw new NonRecoverableException("Cannot use " + directory + " as a write spool", e);
+    }
+    spool = newSpool;
+    // What a previous session left in the spool is replayed before anything else is sent.
+    Set<TabletBuffer> buffers = new LinkedHashSet<>();
+    for (WriteSpool.Record record : newSpool.takeRecoveredRecords()) {
+      TabletBuffer buffer = getTabletBuffer(record.tabletId);
+      synchronized (buffer) {
+        buffer.spooled.add(new SpooledEntry(record));
+      }
+      buffers.add(buffer);
+    }
+    for (TabletBuffer buffer : buffers) {
+      replaySpooled(buffer);
+    }
+  }
+
+  /**
+   * Tells if buffered operations are only completed through their batch, which is the case with
+   * manual and background flushing when per-batch completion is enabled.
+   */
+  private boolean completesPerBatch() {
+    return perBatchCompletion && flushMode != FlushMode.AUTO_FLUSH_SYNC;
+  }
+
+  /**
+   * Tells if batches that cannot be sent are written to the spool, which is only the case with
+   * background flushing when a write spool is set.
+   */
+  private boolean usesSpool() {
+    return spool != null && flushMode == FlushMode.AUTO_FLUSH_BACKGROUND;
+  }
+
+  /**
+   * Tells if applied operations have to acquire write permits, which is only the case with
+   * background flushing when blocking backpressure is enabled.
+   */
+  private boolean usesWritePermits() {
+    return writePermits != null && flushMode == FlushMode.AUTO_FLUSH_BACKGROUND;
+  }
+
+  /**
+   * Acquires the write permits of an operation ahead of applying it, so that the caller can wait
+   * for them. Used by {@link KuduSession} to block the calling thread.
+   * @param operation the operation that's going to be applied
+   * @return null if the operation doesn't need permits or if they were acquired right away, else a
+   * Deferred that's called back once they are acquired
+   */
+  Deferred<Void> acquireWritePermit(Operation operation) {
+    if (!usesWritePermits() || operation.holdsWritePermit) {
+      return null;
+    }
+    operation.holdsWritePermit = true;
+    return writePermits.acquire(operation.getEncodedSizeBytes());
+  }
+
+  /**
+   * Gives back the permits of an operation that stopped waiting on the Deferred returned by
+   * {@link #acquireWritePermit(Operation)}, whether they were acquired or not.
+   * @param operation the operation that won't be applied
+   * @param permit the Deferred it was waiting on
+   */
+  void cancelWritePermit(Operation operation, Deferred<Void> permit) {
+    operation.holdsWritePermit = false;
+    writePermits.cancel(permit, operation.getEncodedSizeBytes());
+  }
+
+  /**
+   * Gives back the permits of an operation that won't make it to a batch.
+   * @param operation an operation that failed before being buffered
+   */
+  private void releaseWritePermit(Operation operation) {
+    if (operation.holdsWritePermit) {
+      operation.holdsWritePermit = false;
+      writePermits.release(1, operation.getEncodedSizeBytes());
+    }
+  }
+
+  /**
+   * Returns the encoded size of the operations that are buffered but not yet flushed. This adds
+   * up the tablets' batches rather than keeping a session-wide count, which every apply() would
+   * have to update.
+   * @return a number of bytes
+   */
+  @VisibleForTesting
+  long getBufferedBytes() {
+    long bytes = 0;
+    for (TabletBuffer buffer : buffersWithBatch) {
+      synchronized (buffer) {
+        if (buffer.batch != null) {
+          bytes += buffer.batch.bufferedBytes;
+        }
+      }
+    }
+    return bytes;
   }
 
   /**
@@ -242,6 +540,51 @@ public class AsyncKuduSession implements SessionConfiguration {
     return errorCollector.getErrors();
   }
 
+  @Override
+  public long getWriteRateLimitRowsPerSecond() {
+    WriteRateLimiter rateLimiter = tenant.getRateLimiter();
+    return rateLimiter == null ? 0 : rateLimiter.getRowsPerSecond();
+  }
+
+  @Override
+  public long getWriteRateLimitBytesPerSecond() {
+    WriteRateLimiter rateLimiter = tenant.getRateLimiter();
+    return rateLimiter == null ? 0 : rateLimiter.getBytesPerSecond();
+  }
+
+  @Override
+  public void setWriteRateLimit(long rowsPerSecond, long bytesPerSecond) {
+    if (rowsPerSecond == 0 && bytesPerSecond == 0) {
+      tenant.setRateLimiter(null);
+    } else {
+      tenant.setRateLimiter(new WriteRateLimiter(rowsPerSecond, bytesPerSecond));
+    }
+  }
+
+  @Override
+  public int getWriteWeight() {
+    return tenant.getWeight();
+  }
+
+  @Override
+  public void setWriteWeight(int weight) {
+    tenant.setWeight(weight);
+  }
+
+  @Override
+  public boolean isAggregateErrors() {
+    return errorCollector.isAggregating();
+  }
+
+  @Override
+  public void setAggregateErrors(boolean aggregateErrors) {
+    if (hasPendingOperations()) {
+      throw new IllegalArgumentException("Cannot change how errors are collected" +
+          " when operations are buffered");
+    }
+    errorCollector.setAggregating(aggregateErrors);
+  }
+
   /**
    * Flushes the buffered operations and marks this sessions as closed.
    * See the javadoc on {@link #flush()} on how to deal with exceptions coming out of this method.
@@ -252,6 +595,9 @@ public class AsyncKuduSession implements SessionConfiguration {
     if (!closed) {
       closed = true;
       client.removeSession(this);
+      if (spool != null) {
+        return flush().addCallback(new CloseSpoolCB());
+      }
       return flush();
     } else {
       // Deferred#fromResult(T) is invariant on T, so the cast is necessary.
@@ -266,7 +612,7 @@ public class AsyncKuduSession implements SessionConfiguration {
    */
   public Deferred<List<OperationResponse>> flush() {
     LOG.trace("Flushing all tablets");
-    synchronized (this) {
+    synchronized (operationsInLookup) {
       if (!operationsInLookup.isEmpty()) {
         lookupsDone = new Deferred<>();
         return lookupsDone
@@ -277,6 +623,24 @@ public class AsyncKuduSession implements SessionConfiguration {
     return flushAllBatches().addCallbackDeferring(new ConvertBatchToListOfResponsesCB());
   }
 
+  /**
+   * Releases the spool's directory once the session is closed and all of its spooled batches
+   * were replayed. If some are left, the last one to be replayed does it.
+   */
+  class CloseSpoolCB implements
+      Callback<List<OperationResponse>, List<OperationResponse>> {
+    @Override
+    public List<OperationResponse> call(List<OperationResponse> responses) {
+      closeSpoolIfDrained();
+      return responses;
+    }
+
+    @Override
+    public String toString() {
+      return "close the write spool";
+    }
+  }
+
   class OperationsInLookupDoneCB implements
       Callback<Deferred<ArrayList<BatchResponse>>, Void> {
     @Override
@@ -327,26 +691,81 @@ public class AsyncKuduSession implements SessionConfiguration {
   }
 
   /**
-   * This will flush all the batches but not the operations that are currently in lookup.
+   * This will flush all the batches but not the operations that are currently in lookup. The
+   * returned Deferred also waits on the batches that were already in flight, but doesn't carry
+   * their responses since those were given back when they were flushed.
    */
   private Deferred<ArrayList<BatchResponse>> flushAllBatches() {
-    Map<Slice, Batch> copyOfOps;
-    final List<Deferred<BatchResponse>> d = new ArrayList<>(operations.size());
-    synchronized (this) {
-      copyOfOps = new HashMap<>(operations);
+    Map<TabletBuffer, Batch> copyOfOps = new HashMap<>();
+    List<Deferred<BatchResponse>> inFlight = new ArrayList<>();
+    for (TabletBuffer buffer : tabletBuffers.values()) {
+      synchronized (buffer) {
+        if (buffer.batch != null) {
+          copyOfOps.put(buffer, buffer.batch);
+        }
+        inFlight.addAll(buffer.inFlight.values());
+        for (SpooledEntry entry : buffer.spooled) {
+          // Being written to the spool, or waiting to be sent from memory.
+          if (entry.batch != null) {
+            inFlight.add(entry.batch.getDeferred());
+          }
+        }
+      }
     }
-    for (Map.Entry<Slice, Batch> entry : copyOfOps.entrySet()) {
+    final List<Deferred<BatchResponse>> d = new ArrayList<>(copyOfOps.size() + inFlight.size());
+    for (Map.Entry<TabletBuffer, Batch> entry : copyOfOps.entrySet()) {
       d.add(flushTablet(entry.getKey(), entry.getValue()));
     }
+    for (Deferred<BatchResponse> batchDeferred : inFlight) {
+      d.add(getBatchDoneDeferred(batchDeferred));
+    }
     return Deferred.group(d);
   }
 
+  /**
+   * Creates a Deferred that's called back with null once the given batch completes, successfully
+   * or not.
+   * @param batchDeferred the Deferred of a batch that's in flight
+   * @return a Deferred that never carries an error
+   */
+  private static Deferred<BatchResponse> getBatchDoneDeferred(
+      Deferred<BatchResponse> batchDeferred) {
+    final Deferred<BatchResponse> d = new Deferred<>();
+    batchDeferred.addCallbacks(new Callback<BatchResponse, BatchResponse>() {
+      @Override
+      public BatchResponse call(BatchResponse response) throws Exception {
+        d.callback(null);
+        return response;
+      }
+    }, new Callback<Exception, Exception>() {
+      @Override
+      public Exception call(Exception e) throws Exception {
+        d.callback(null);
+        return e;
+      }
+    });
+    return d;
+  }
+
   @Override
   public boolean hasPendingOperations() {
-    synchronized (this) {
-      return !this.operations.isEmpty() || !this.operationsInFlight.isEmpty() ||
-          !this.operationsInLookup.isEmpty();
+    // Operations hold their permits from before they're looked up until their batch completes.
+    if (writePermits != null && writePermits.isInUse()) {
+      return true;
+    }
+    // Operations are added to their tablet's buffer before being removed from this set, so
+    // checking it first means we can't miss one.
+    if (!operationsInLookup.isEmpty()) {
+      return true;
+    }
+    for (TabletBuffer buffer : tabletBuffers.values()) {
+      synchronized (buffer) {
+        if (buffer.batch != null || !buffer.inFlight.isEmpty() || !buffer.spooled.isEmpty()) {
+          return true;
+        }
+      }
     }
+    return false;
   }
 
   /**
@@ -355,15 +774,30 @@ public class AsyncKuduSession implements SessionConfiguration {
    * of flush mode, however, Apply may begin to perform processing in the background
    * for the call (e.g looking up the tablet, etc).
    * @param operation operation to apply
-   * @return a Deferred to track this operation
+   * @return a Deferred to track this operation, or null when the operation is buffered with
+   * {@link #setPerBatchCompletion(boolean)} enabled
    */
   public Deferred<OperationResponse> apply(final Operation operation) {
     if (operation == null) {
       throw new NullPointerException("Cannot apply a null operation");
     }
+    Deferred<OperationResponse> d = applyOperation(operation);
+    return completesPerBatch() ? null : d;
+  }
 
+  /**
+   * Does the work of {@link #apply(Operation)}, it's also called when the operation is retried.
+   * @param operation operation to apply
+   * @return a Deferred to track this operation
+   */
+  private Deferred<OperationResponse> applyOperation(final Operation operation) {
     if (AsyncKuduClient.cannotRetryRequest(operation)) {
-      return AsyncKuduClient.tooManyAttemptsOrTimeout(operation, null);
+      releaseWritePermit(operation);
+      Deferred<OperationResponse> d = AsyncKuduClient.tooManyAttemptsOrTimeout(operation, null);
+      if (completesPerBatch()) {
+        d.addErrback(new RecordRowErrorErrback(operation));
+      }
+      return d;
     }
 
     // This can be called multiple times but it's fine, we don't allow "thawing".
@@ -380,16 +814,24 @@ public class AsyncKuduSession implements SessionConfiguration {
     }
 
     // We need this protection because apply() can be called multiple times for the same operations
-    // due to retries, but we only want to set the sequence number once. Since a session isn't
-    // thread-safe, it means that we'll always set the sequence number from the user's thread, and
-    // we'll read later from other threads.
+    // due to retries, but we only want to set the sequence number once. The first call always
+    // comes from the user's thread, and we'll read it later from other threads.
     if (operation.getSequenceNumber() == -1) {
-      operation.setSequenceNumber(nextSequenceNumber++);
+      operation.setSequenceNumber(nextSequenceNumber.getAndIncrement());
+    }
+
+    if (usesWritePermits() && !operation.holdsWritePermit) {
+      operation.holdsWritePermit = true;
+      Deferred<Void> permit = writePermits.acquire(operation.getEncodedSizeBytes());
+      if (permit != null) {
+        // Comes back here once the operations that were applied before this one made room.
+        return permit.addCallbackDeferring(new WritePermitAcquiredCB(operation));
+      }
     }
 
     String tableId = operation.getTable().getTableId();
-    byte[] partitionKey = operation.partitionKey();
-    AsyncKuduClient.RemoteTablet tablet = client.getTablet(tableId, partitionKey);
+    AsyncKuduClient.RemoteTablet tablet =
+        client.getTabletForRow(operation.getTable(), operation.getRow());
     // We go straight to the buffer if we know the tabletSlice
     if (tablet != null) {
       operation.setTablet(tablet);
@@ -397,9 +839,7 @@ public class AsyncKuduSession implements SessionConfiguration {
       return addToBuffer(tablet.getTabletId(), operation);
     }
 
-    synchronized (this) {
-      operationsInLookup.add(operation);
-    }
+    operationsInLookup.add(operation);
     // TODO starts looking a lot like sendRpcToTablet
     operation.attempt++;
     if (client.isTableNotServed(tableId)) {
@@ -410,12 +850,213 @@ public class AsyncKuduSession implements SessionConfiguration {
     }
 
     Deferred<Master.GetTableLocationsResponsePB> d =
-        client.locateTablet(operation.getTable(), partitionKey);
+        client.locateTablet(operation.getTable(), operation.partitionKey());
     d.addErrback(getOpInLookupErrback(operation));
     return d.addCallbackDeferring(
         new TabletLookupCB<Master.GetTableLocationsResponsePB>(operation));
   }
 
+  /**
+   * Inserts all the rows of a columnar block. Unlike {@link #apply(Operation)}, the rows don't go
+   * through this session's buffers: they are sent right away whatever the flush mode is, and
+   * {@link #flush()} doesn't wait for them. Each tablet's rows are split in batches that hold at
+   * most {@link #setMutationBufferSpace(int)} rows, and at most
+   * {@link #setMutationBufferSpaceBytes(long)} bytes when that's set. A tablet's batches are sent
+   * one after the other, the tablets in parallel. The session's timeout, external consistency
+   * mode and {@link #setIgnoreAllDuplicateRows(boolean)} setting apply to these batches.
+   *
+   * Errors for individual rows are reported in the response with the row's index in the block.
+   * If a whole batch fails, the Deferred is called back with a DeferredGroupException, the
+   * tablet's next batches aren't sent, and the rows of the other batches may have been inserted.
+   * @param table the table to insert into
+   * @param block the rows to insert, it must not be modified until the Deferred is called back
+   * @return a Deferred to track the insertion of the rows
+   * @throws IllegalArgumentException if the block doesn't match the table, see
+   * {@link ColumnarRowBlock}
+   */
+  public Deferred<ColumnarWriteResponse> applyColumnar(KuduTable table, ColumnarRowBlock block) {
+    block.checkCanApplyTo(table);
+    if (block.getRowCount() == 0) {
+      return Deferred.fromResult(
+          new ColumnarWriteResponse(0, Collections.<ColumnarRowError>emptyList()));
+    }
+
+    // The same PartialRow is reused to compute the partition key of every row.
+    PartialRow keyRow = table.getSchema().newPartialRow();
+    byte[][] partitionKeys = new byte[block.getRowCount()][];
+    for (int row = 0; row < partitionKeys.length; row++) {
+      block.copyKeyTo(row, keyRow);
+      partitionKeys[row] = table.getPartitionSchema().encodePartitionKey(keyRow);
+    }
+    return new ColumnarBlockRouter(table, block, partitionKeys).route(-1);
+  }
+
+  /**
+   * Finds the tablet of every row of a columnar block, then sends the rows. When a row's tablet
+   * isn't known it's looked up, and the search resumes from that row once the lookup is done.
+   * The lookups happen one after the other, so this class doesn't need to be synchronized.
+   */
+  private final class ColumnarBlockRouter {
+    private final KuduTable table;
+    private final ColumnarRowBlock block;
+    private final byte[][] partitionKeys;
+    private final Map<Slice, Integer> tabletIndexes = new HashMap<>();
+    // Index in tabletIndexes of the tablet of each row whose tablet was found.
+    private final int[] tabletOfRow;
+    private final int[] rowsPerTablet;
+    // The first row whose tablet wasn't found yet.
+    private int nextRow = 0;
+
+    ColumnarBlockRouter(KuduTable table, ColumnarRowBlock block, byte[][] partitionKeys) {
+      this.table = table;
+      this.block = block;
+      this.partitionKeys = partitionKeys;
+      this.tabletOfRow = new int[partitionKeys.length];
+      this.rowsPerTablet = new int[partitionKeys.length];
+    }
+
+    /**
+     * Finds the tablets of the rows that are left and sends the block once they're all known.
+     * @param rowLookedUp the row whose tablet was just looked up, or -1
+     * @return a Deferred that gathers the responses of all the batches
+     */
+    Deferred<ColumnarWriteResponse> route(int rowLookedUp) {
+      String tableId = table.getTableId();
+      for (; nextRow < partitionKeys.length; nextRow++) {
+        AsyncKuduClient.RemoteTablet tablet = client.getTablet(tableId, partitionKeys[nextRow]);
+        if (tablet == null) {
+          if (nextRow == rowLookedUp) {
+            return Deferred.fromError(new NonRecoverableException("Cannot find a tablet for row " +
+                nextRow + " of the block in table " + table.getName()));
+          }
+          final int lookedUp = nextRow;
+          final class ColumnarLookupCB implements
+              Callback<Deferred<ColumnarWriteResponse>, Master.GetTableLocationsResponsePB> {
+            public Deferred<ColumnarWriteResponse> call(Master.GetTableLocationsResponsePB resp) {
+              return route(lookedUp);
+            }
+
+            public String toString() {
+              return "send columnar block after lookup";
+            }
+          }
+          return client.locateTablet(table, partitionKeys[nextRow])
+              .addCallbackDeferring(new ColumnarLookupCB());
+        }
+        Integer tabletIndex = tabletIndexes.get(tablet.getTabletId());
+        if (tabletIndex == null) {
+          tabletIndex = tabletIndexes.size();
+          tabletIndexes.put(tablet.getTabletId(), tabletIndex);
+        }
+        tabletOfRow[nextRow] = tabletIndex;
+        rowsPerTablet[tabletIndex]++;
+      }
+      return send();
+    }
+
+    private Deferred<ColumnarWriteResponse> send() {
+      // The rows keep their order within each tablet, so that a key that appears more than once
+      // in the block is inserted in the same order as in the block.
+      int[][] rowIndexes = new int[tabletIndexes.size()][];
+      int[] added = new int[tabletIndexes.size()];
+      for (int row = 0; row < partitionKeys.length; row++) {
+        int tabletIndex = tabletOfRow[row];
+        if (rowIndexes[tabletIndex] == null) {
+          rowIndexes[tabletIndex] = new int[rowsPerTablet[tabletIndex]];
+        }
+        rowIndexes[tabletIndex][added[tabletIndex]++] = row;
+      }
+
+      int fixedSizeBytes = block.getFixedEncodedSizeBytes();
+      long maxBatchBytes = mutationBufferSpaceBytes > 0 ?
+          mutationBufferSpaceBytes : MAX_COLUMNAR_BATCH_BYTES;
+      List<Deferred<ColumnarWriteResponse>> responses = new ArrayList<>(rowIndexes.length);
+      for (int[] rows : rowIndexes) {
+        ColumnarTabletBatches batches = new ColumnarTabletBatches(table, block, partitionKeys);
+        int batchStart = 0;
+        long batchBytes = 0;
+        for (int i = 0; i < rows.length; i++) {
+          long rowBytes = block.getEncodedSizeBytes(rows[i], fixedSizeBytes);
+          // A batch always gets at least one row, however big it is.
+          if (i > batchStart &&
+              (i - batchStart == mutationBufferSpace || batchBytes + rowBytes > maxBatchBytes)) {
+            batches.add(Arrays.copyOfRange(rows, batchStart, i));
+            batchStart = i;
+            batchBytes = 0;
+          }
+          batchBytes += rowBytes;
+        }
+        batches.add(batchStart == 0 ? rows : Arrays.copyOfRange(rows, batchStart, rows.length));
+        responses.add(batches.sendNext());
+      }
+
+      final class CombineResponsesCB implements
+          Callback<ColumnarWriteResponse, ArrayList<ColumnarWriteResponse>> {
+        public ColumnarWriteResponse call(ArrayList<ColumnarWriteResponse> tabletResponses) {
+          return ColumnarWriteResponse.combine(tabletResponses);
+        }
+
+        public String toString() {
+          return "combine columnar batch responses";
+        }
+      }
+      return Deferred.group(responses).addCallback(new CombineResponsesCB());
+    }
+  }
+
+  /**
+   * Sends the batches of a columnar block's rows that go to the same tablet one after the other,
+   * and gathers their responses. The next batch isn't sent if one fails.
+   */
+  private final class ColumnarTabletBatches implements
+      Callback<Deferred<ColumnarWriteResponse>, ColumnarWriteResponse> {
+    private final KuduTable table;
+    private final ColumnarRowBlock block;
+    private final byte[][] partitionKeys;
+    // The row indexes of each batch.
+    private final List<int[]> batches = new ArrayList<>();
+    private final List<ColumnarWriteResponse> responses = new ArrayList<>();
+    private int nextBatch = 0;
+
+    ColumnarTabletBatches(KuduTable table, ColumnarRowBlock block, byte[][] partitionKeys) {
+      this.table = table;
+      this.block = block;
+      this.partitionKeys = partitionKeys;
+    }
+
+    void add(int[] rows) {
+      batches.add(rows);
+    }
+
+    Deferred<ColumnarWriteResponse> sendNext() {
+      int[] rows = batches.get(nextBatch++);
+      ColumnarBatch batch = new ColumnarBatch(table, block, rows, partitionKeys[rows[0]],
+          ignoreAllDuplicateRows);
+      if (timeoutMs != 0) {
+        batch.setTimeoutMillis(timeoutMs);
+      }
+      batch.setExternalConsistencyMode(consistencyMode);
+      return client.sendRpcToTablet(batch).addCallbackDeferring(this);
+    }
+
+    @Override
+    public Deferred<ColumnarWriteResponse> call(ColumnarWriteResponse response) {
+      if (response.getWriteTimestamp() != 0) {
+        client.updateLastPropagatedTimestamp(response.getWriteTimestamp());
+      }
+      responses.add(response);
+      if (nextBatch < batches.size()) {
+        return sendNext();
+      }
+      return Deferred.fromResult(ColumnarWriteResponse.combine(responses));
+    }
+
+    @Override
+    public String toString() {
+      return "columnar batch response";
+    }
+  }
+
   /**
    * This errback is different from the one in AsyncKuduClient because we need to be able to remove
    * the operation from operationsInLookup if whatever master query we issue throws an Exception.
@@ -427,29 +1068,87 @@ public class AsyncKuduSession implements SessionConfiguration {
       @Override
       public Exception call(Exception e) throws Exception {
         // TODO maybe we can retry it?
-        synchronized (this) {
-          operationsInLookup.remove(operation);
+        if (operationsInLookup.remove(operation)) {
+          notifyIfLookupsDone();
         }
+        releaseWritePermit(operation);
         operation.errback(e);
+        if (completesPerBatch()) {
+          errorCollector.addError(newRowError(operation, e));
+        }
         return e;
       }
     };
   }
 
-  final class TabletLookupCB<D> implements Callback<Deferred<OperationResponse>, D> {
+  /**
+   * Creates the row error of an operation that failed before being sent, only used with
+   * per-batch completion since nobody gets the operation's Deferred.
+   */
+  private static RowError newRowError(Operation operation, Exception e) {
+    return new RowError(
+        Status.RuntimeError(e.getMessage() == null ? e.toString() : e.getMessage()),
+        operation, null);
+  }
+
+  /**
+   * Records the failure of an operation that couldn't be retried, see
+   * {@link #newRowError(Operation, Exception)}.
+   */
+  final class RecordRowErrorErrback implements Callback<Exception, Exception> {
     final Operation operation;
-    TabletLookupCB(Operation operation) {
+    RecordRowErrorErrback(Operation operation) {
       this.operation = operation;
     }
-    public Deferred<OperationResponse> call(final D arg) {
-      return handleOperationInLookup(operation);
+    public Exception call(final Exception e) {
+      errorCollector.addError(newRowError(operation, e));
+      return e;
     }
     public String toString() {
-      return "retry RPC after lookup";
+      return "record row error of an operation that cannot be retried";
     }
   }
 
-  // This method takes an Object since we use it for both callback and errback.
+  final class TabletLookupCB<D> implements Callback<Deferred<OperationResponse>, D> {
+    final Operation operation;
+    TabletLookupCB(Operation operation) {
+      this.operation = operation;
+    }
+    public Deferred<OperationResponse> call(final D arg) {
+      return handleOperationInLookup(operation);
+    }
+    public String toString() {
+      return "retry RPC after lookup";
+    }
+  }
+
+  final class WritePermitAcquiredCB implements Callback<Deferred<OperationResponse>, Void> {
+    final Operation operation;
+    WritePermitAcquiredCB(Operation operation) {
+      this.operation = operation;
+    }
+    public Deferred<OperationResponse> call(final Void arg) {
+      return applyOperation(operation);
+    }
+    public String toString() {
+      return "apply RPC after acquiring its write permits";
+    }
+  }
+
+  final class BatchDoneRetryCB implements Callback<Deferred<OperationResponse>, BatchResponse> {
+    final Operation operation;
+    BatchDoneRetryCB(Operation operation) {
+      this.operation = operation;
+    }
+    public Deferred<OperationResponse> call(final BatchResponse ignored) {
+      return handleOperationInLookup(operation);
+    }
+    public String toString() {
+      return "retry RPC after waiting for a batch in flight";
+    }
+  }
+
+  // This method takes an Object since we use it for both callback and errback.
   // The actual type doesn't matter, we just want to be called back in order to retry.
   Callback<Deferred<OperationResponse>, Object>
   getRetryOpInLookupCB(final Operation operation) {
@@ -467,112 +1166,351 @@ public class AsyncKuduSession implements SessionConfiguration {
 
   private Deferred<OperationResponse> handleOperationInLookup(Operation operation) {
     try {
-      return apply(operation); // Retry the RPC.
+      return applyOperation(operation); // Retry the RPC.
     } catch (PleaseThrottleException pte) {
       return pte.getDeferred().addBothDeferring(getRetryOpInLookupCB(operation));
     }
   }
 
+  /**
+   * Calls back the Deferred a flush is waiting on if the last operation that was looking up its
+   * tablet just left 'operationsInLookup'.
+   * This must not be called while holding a tablet buffer's lock since it may end up flushing.
+   */
+  private void notifyIfLookupsDone() {
+    Deferred<Void> lookupsDoneCopy = null;
+    synchronized (operationsInLookup) {
+      if (lookupsDone != null && operationsInLookup.isEmpty()) {
+        lookupsDoneCopy = lookupsDone;
+        lookupsDone = null;
+      }
+    }
+    if (lookupsDoneCopy != null) {
+      lookupsDoneCopy.callback(null);
+    }
+  }
+
+  /**
+   * Gets the buffer of the given tablet, creating it if needed.
+   * @param tablet the tablet's ID
+   * @return the tablet's buffer
+   */
+  private TabletBuffer getTabletBuffer(Slice tablet) {
+    TabletBuffer buffer = tabletBuffers.get(tablet);
+    if (buffer == null) {
+      TabletBuffer newBuffer = new TabletBuffer(tablet);
+      buffer = tabletBuffers.putIfAbsent(tablet, newBuffer);
+      if (buffer == null) {
+        buffer = newBuffer;
+      }
+    }
+    return buffer;
+  }
+
   /**
    * For manual and background flushing, this will batch the given operation
    * with the others, if any, for the specified tablet.
+   * Only the tablet's buffer is locked, and only once when the current batch isn't full.
    * @param tablet tablet used to for batching
    * @param operation operation to batch
-   * @return Defered to track the operation
+   * @return Defered to track the operation, null with per-batch completion
    */
   private Deferred<OperationResponse> addToBuffer(Slice tablet, Operation operation) {
-    boolean scheduleFlush = false;
-    boolean batchIsFull = false;
-    Batch batch;
-
-    // First check if we need to flush the current batch.
-    synchronized (this) {
-      batch = operations.get(tablet);
-      if (batch != null && batch.ops.size() + 1 > mutationBufferSpace) {
+    long operationBytes = operation.getEncodedSizeBytes();
+    // Only needed to coalesce mutations.
+    byte[] primaryKey = coalesceMutations ? operation.getRow().encodePrimaryKey() : null;
+    // Only needed to order batches when more than one can be in flight. Hashed in the thread's
+    // scratch array when the key itself isn't needed, which gives the same hash.
+    int keyHash = 0;
+    if (maxInFlightBatchesPerTablet > 1) {
+      keyHash = primaryKey != null ? Arrays.hashCode(primaryKey) :
+          KeyEncoder.get().hashPrimaryKey(operation.getRow());
+    }
+    TabletBuffer buffer = getTabletBuffer(tablet);
+    boolean wasLookingUpTablet = false;
+    Batch fullBatch = null;
+    // Only set when the tablet's full batch has to be written to the spool.
+    SpooledEntry spooledEntry = null;
+    // Only set when the operation has to wait while using write permits.
+    Deferred<BatchResponse> toWaitFor = null;
+
+    synchronized (buffer) {
+      Batch batch = buffer.batch;
+      if (batch == null || !isOverHighWatermark(batch, operationBytes)) {
+        wasLookingUpTablet = addToBatch(buffer, operation, operationBytes, primaryKey, keyHash);
+      } else {
+        // We need to flush the current batch first.
         if (flushMode == FlushMode.MANUAL_FLUSH) {
           throw new NonRecoverableException("MANUAL_FLUSH is enabled but the buffer is too big");
         }
-        if (operationsInFlight.containsKey(tablet)) {
-          // There's is already another batch in flight for this tablet.
+        Deferred<BatchResponse> oldestInFlight = getOldestInFlightIfWindowFull(buffer);
+        if (oldestInFlight != null) {
+          // There are already too many batches in flight for this tablet.
           // We cannot continue here, we have to send this back to the client.
           // This is our high watermark.
-          throw new PleaseThrottleException("The RPC cannot be buffered because the current " +
-              "buffer is full and the previous buffer hasn't been flushed yet", null,
-              operation, operationsInFlight.get(tablet));
+          spooledEntry = usesSpool() ? spoolBatch(buffer, batch) : null;
+          if (spooledEntry != null) {
+            wasLookingUpTablet = addToBatch(buffer, operation, operationBytes, primaryKey,
+                keyHash);
+          } else if (!usesWritePermits()) {
+            throw new PleaseThrottleException("The RPC cannot be buffered because the current " +
+                "buffer is full and the previous buffer hasn't been flushed yet", null,
+                operation, oldestInFlight);
+          } else {
+            toWaitFor = oldestInFlight;
+          }
+        } else {
+          fullBatch = batch;
         }
-        batchIsFull = true;
       }
     }
 
-    // We're doing this out of the synchronized block because flushTablet can take some time
-    // encoding all the data.
-    if (batchIsFull) {
-      flushTablet(tablet, batch);
+    if (fullBatch != null) {
+      // We're doing this out of the synchronized block because flushTablet can take some time
+      // encoding all the data.
+      flushTablet(buffer, fullBatch);
+
+      synchronized (buffer) {
+        // We need to get the batch again since we went out of the synchronized block. We can get
+        // a new one, the same one, or null.
+        Batch batch = buffer.batch;
+        if (batch != null && isOverHighWatermark(batch, operationBytes)) {
+          // The full batch couldn't be sent because it has to wait for an older batch that may
+          // contain some of the same rows.
+          spooledEntry = usesSpool() ? spoolBatch(buffer, batch) : null;
+          if (spooledEntry != null) {
+            wasLookingUpTablet = addToBatch(buffer, operation, operationBytes, primaryKey,
+                keyHash);
+          } else if (!usesWritePermits()) {
+            throw new PleaseThrottleException("The RPC cannot be buffered because the current " +
+                "buffer is full and has to wait for a previous buffer to be flushed", null,
+                operation, batch.getDeferred());
+          } else {
+            toWaitFor = batch.getDeferred();
+          }
+        } else {
+          wasLookingUpTablet = addToBatch(buffer, operation, operationBytes, primaryKey, keyHash);
+        }
+      }
     }
 
-    Deferred<Void> lookupsDoneCopy = null;
-    synchronized (this) {
-      // We need to get the batch again since we went out of the synchronized block. We can get a
-      // new one, the same one, or null.
-      batch = operations.get(tablet);
-
-      if (mutationBufferLowWatermark < mutationBufferSpace && // look if it's enabled
-          batch != null && // and if we have a batch
-          operationsInFlight.containsKey(tablet) && // and if there's another batch outstanding
-          batch.ops.size() + 1 > mutationBufferLowWatermark) { // and if we'll be over the mark
-
-        // This is our low watermark, we throw PleaseThrottleException before hitting the high
-        // mark. As we get fuller past the watermark it becomes likelier to trigger it.
-        int randomWatermark = batch.ops.size() + 1 + randomizer.nextInt(mutationBufferSpace -
-            mutationBufferLowWatermark);
-        if (randomWatermark > mutationBufferSpace) {
-          throw new PleaseThrottleException("The previous buffer hasn't been flushed and the " +
-              "current one is over the low watermark, please retry later", null, operation,
-              operationsInFlight.get(tablet));
-        }
-      }
-      if (batch == null) {
-        // We found a tablet that needs batching, this is the only place where
-        // we schedule a flush.
-        batch = new Batch(operation.getTable(), ignoreAllDuplicateRows);
-        batch.setExternalConsistencyMode(this.consistencyMode);
-        Batch oldBatch = operations.put(tablet, batch);
-        assert (oldBatch == null);
-        addBatchCallbacks(batch);
-        scheduleFlush = true;
-      }
-      batch.ops.add(operation);
-      if (!operationsInLookup.isEmpty()) {
+    if (spooledEntry != null) {
+      writeSpooledBatch(buffer, spooledEntry);
+    }
 
-        boolean operationWasLookingUpTablet = operationsInLookup.remove(operation);
-        if (operationWasLookingUpTablet) {
-          // We know that the operation we just added was in the 'operationsInLookup' list so we're
-          // very likely adding it out of order from a different thread.
-          // We'll need to sort the whole list later.
-          batch.needsSorting = true;
-        }
+    if (toWaitFor != null) {
+      // The operation keeps its permits and is applied again once the batch it's waiting on is
+      // done. This is done outside of the synchronized block since the batch may already be done.
+      return getBatchDoneDeferred(toWaitFor).addCallbackDeferring(
+          new BatchDoneRetryCB(operation));
+    }
+
+    // We do this outside of the synchronized block because we might end up calling flushTablet.
+    if (wasLookingUpTablet) {
+      notifyIfLookupsDone();
+    }
+
+    // Get here if we accumulated an insert, regardless of if it scheduled
+    // a flush. With per-batch completion nobody waits on the operation, so we don't even create
+    // its Deferred.
+    return completesPerBatch() ? null : operation.getDeferred();
+  }
+
+  /**
+   * Adds the operation to the tablet's current batch, creating the batch if needed.
+   * @param buffer the tablet's buffer
+   * @param operation operation to batch
+   * @param operationBytes encoded size of the operation
+   * @param primaryKey the operation's encoded primary key, only set when coalescing mutations
+   * @param keyHash hash of the operation's primary key, only used with more than one batch in
+   *                flight per tablet
+   * @return true if the operation was looking up its tablet
+   * @throws PleaseThrottleException if the batch is over the low watermark while the tablet
+   * can't accept another batch
+   */
+  @GuardedBy("buffer")
+  private boolean addToBatch(TabletBuffer buffer, Operation operation, long operationBytes,
+                             byte[] primaryKey, int keyHash) {
+    boolean scheduleFlush = false;
+    Batch batch = buffer.batch;
+    Deferred<BatchResponse> oldestInFlight;
+    if (batch != null && // if we have a batch
+        !usesWritePermits() && // and if we don't block on permits instead
+        !usesSpool() && // nor spool the full batches
+        // and if there are too many batches outstanding
+        (oldestInFlight = getOldestInFlightIfWindowFull(buffer)) != null &&
+        isOverRandomLowWatermark(batch, operationBytes)) { // and if we'll be over the mark
+      throw new PleaseThrottleException("The previous buffer hasn't been flushed and the " +
+          "current one is over the low watermark, please retry later", null, operation,
+          oldestInFlight);
+    }
+    if (batch == null) {
+      // We found a tablet that needs batching, this is the only place where
+      // we schedule a flush.
+      batch = new Batch(operation.getTable(), ignoreAllDuplicateRows);
+      batch.setExternalConsistencyMode(this.consistencyMode);
+      if (maxInFlightBatchesPerTablet > 1) {
+        batch.trackKeyHashes();
+      }
+      if (encodeOnApply) {
+        batch.encodeOnAdd();
+      }
+      if (coalesceMutations) {
+        batch.coalescingIndex = new HashMap<>();
+      }
+      batch.sortByPrimaryKey = sortByPrimaryKey;
+      batch.perBatchCompletion = perBatchCompletion;
+      batch.tenant = tenant;
+      buffer.batch = batch;
+      buffersWithBatch.add(buffer);
+      addBatchCallbacks(batch);
+      scheduleFlush = true;
+    }
+    long addedBytes = operationBytes;
+    if (batch.coalescingIndex == null) {
+      batch.add(operation);
+    } else {
+      addedBytes = addOrCoalesceOperation(batch, operation, operationBytes, primaryKey);
+    }
+    batch.bufferedBytes += addedBytes;
+    if (operation.holdsWritePermit) {
+      // The batch gives the permits back once it completes.
+      operation.holdsWritePermit = false;
+      batch.permitOperations++;
+      batch.permitBytes += operationBytes;
+    }
+    batch.addKeyHash(keyHash);
+
+    // The operation must be in the batch before it leaves this set, see hasPendingOperations().
+    boolean operationWasLookingUpTablet =
+        !operationsInLookup.isEmpty() && operationsInLookup.remove(operation);
+    if (operationWasLookingUpTablet) {
+      // We know that the operation we just added was in the 'operationsInLookup' list so we're
+      // very likely adding it out of order from a different thread.
+      // We'll need to sort the whole list later.
+      batch.needsSorting = true;
+    }
+
+    if (flushMode == FlushMode.AUTO_FLUSH_BACKGROUND && scheduleFlush) {
+      // Accumulated a first insert but we're not in manual mode,
+      // make sure the flusher will look at this batch.
+      batch.createdNanos = System.nanoTime();
+      scheduleFlusher(adaptiveFlushing ? MIN_FLUSHER_TICK_MS : interval);
+    }
+    return operationWasLookingUpTablet;
+  }
 
-        if (lookupsDone != null && operationsInLookup.isEmpty()) {
-          lookupsDoneCopy = lookupsDone;
-          lookupsDone = null;
+  /**
+   * Merges the operation into the batch's latest operation on the same row if possible, see
+   * {@link Operation#coalesce(Operation, Operation)}, else adds it to the batch.
+   * Operations are only merged when they can't end up in a different order once the batch is
+   * sorted, meaning that no operation was added out of order and none is looking up its tablet.
+   * @param batch the tablet's current batch
+   * @param operation operation to batch
+   * @param operationBytes encoded size of the operation
+   * @param primaryKey the operation's encoded primary key
+   * @return by how many bytes the batch's encoded size changed, which may be negative
+   */
+  @GuardedBy("buffer")
+  private long addOrCoalesceOperation(Batch batch, Operation operation, long operationBytes,
+                                      byte[] primaryKey) {
+    Slice key = new Slice(primaryKey);
+    Integer index = batch.coalescingIndex.get(key);
+    if (index != null && !batch.needsSorting && operationsInLookup.isEmpty()) {
+      Operation previous = batch.ops.get(index);
+      if (previous.getSequenceNumber() < operation.getSequenceNumber()) {
+        Operation coalesced = Operation.coalesce(previous, operation);
+        if (coalesced != null) {
+          batch.ops.set(index, coalesced);
+          return coalesced.getEncodedSizeBytes() - previous.getEncodedSizeBytes();
         }
       }
-      if (flushMode == FlushMode.AUTO_FLUSH_BACKGROUND && scheduleFlush) {
-        // Accumulated a first insert but we're not in manual mode,
-        // schedule the flush.
-        LOG.trace("Scheduling a flush");
-        scheduleNextPeriodicFlush(tablet, batch);
+    }
+    batch.coalescingIndex.put(key, batch.ops.size());
+    batch.add(operation);
+    return operationBytes;
+  }
+
+  /**
+   * Gets the oldest batch in flight for the tablet if no other batch can be sent to it right now.
+   * @param buffer the tablet's buffer
+   * @return the Deferred of the oldest batch in flight, or null if there's room for another batch
+   */
+  @GuardedBy("buffer")
+  private Deferred<BatchResponse> getOldestInFlightIfWindowFull(TabletBuffer buffer) {
+    if (buffer.inFlight.size() < maxInFlightBatchesPerTablet) {
+      return null;
+    }
+    return buffer.inFlight.values().iterator().next();
+  }
+
+  /**
+   * Finds the batch in flight that the given batch has to wait for before it can be sent to the
+   * tablet. That's the oldest one if the window is full, else the newest one that may contain some
+   * of the same rows.
+   * @param buffer the tablet's buffer
+   * @param batch the batch to send
+   * @return the Deferred of the batch to wait for, or null if the batch can be sent right now
+   */
+  @GuardedBy("buffer")
+  private Deferred<BatchResponse> getInFlightBatchToWaitFor(TabletBuffer buffer, Batch batch) {
+    Deferred<BatchResponse> oldestInFlight = getOldestInFlightIfWindowFull(buffer);
+    if (oldestInFlight != null) {
+      return oldestInFlight;
+    }
+    Deferred<BatchResponse> toWaitFor = null;
+    for (Map.Entry<Batch, Deferred<BatchResponse>> entry : buffer.inFlight.entrySet()) {
+      if (batch.mayOverlap(entry.getKey())) {
+        toWaitFor = entry.getValue();
       }
     }
+    return toWaitFor;
+  }
 
-    // We do this outside of the synchronized block because we might end up calling flushTablet.
-    if (lookupsDoneCopy != null) {
-      lookupsDoneCopy.callback(null);
+  /**
+   * Tells if adding an operation to the batch would go over the high watermark, which is either
+   * expressed in bytes or in number of operations depending on the configuration.
+   * Must be called while holding the lock of the batch's tablet buffer.
+   * @param batch the batch the operation would be added to
+   * @param operationBytes encoded size of the operation
+   * @return true if the batch has to be flushed before the operation can be added
+   */
+  private boolean isOverHighWatermark(Batch batch, long operationBytes) {
+    if (mutationBufferSpaceBytes > 0) {
+      // A batch always accepts at least one operation, however big it is.
+      return !batch.ops.isEmpty() &&
+          batch.bufferedBytes + operationBytes > mutationBufferSpaceBytes;
     }
+    return batch.ops.size() + 1 > mutationBufferSpace;
+  }
 
-    // Get here if we accumulated an insert, regardless of if it scheduled
-    // a flush.
-    return operation.getDeferred();
+  /**
+   * This is our low watermark, we throw PleaseThrottleException before hitting the high
+   * mark. As we get fuller past the watermark it becomes likelier to trigger it.
+   * Must be called while holding the lock of the batch's tablet buffer.
+   * @param batch the batch the operation would be added to
+   * @param operationBytes encoded size of the operation
+   * @return true if the operation should be sent back to the user
+   */
+  private boolean isOverRandomLowWatermark(Batch batch, long operationBytes) {
+    if (mutationBufferSpaceBytes > 0) {
+      long newBufferedBytes = batch.bufferedBytes + operationBytes;
+      if (mutationBufferLowWatermarkBytes >= mutationBufferSpaceBytes || // look if it's enabled
+          newBufferedBytes <= mutationBufferLowWatermarkBytes) { // and if we'll be over the mark
+        return false;
+      }
+      long randomWatermark = newBufferedBytes + (long) (randomizer.nextDouble() *
+          (mutationBufferSpaceBytes - mutationBufferLowWatermarkBytes));
+      return randomWatermark > mutationBufferSpaceBytes;
+    }
+
+    if (mutationBufferLowWatermark >= mutationBufferSpace || // look if it's enabled
+        batch.ops.size() + 1 <= mutationBufferLowWatermark) { // and if we'll be over the mark
+      return false;
+    }
+    int randomWatermark = batch.ops.size() + 1 + randomizer.nextInt(mutationBufferSpace -
+        mutationBufferLowWatermark);
+    return randomWatermark > mutationBufferSpace;
   }
 
   /**
@@ -588,10 +1526,18 @@ public class AsyncKuduSession implements SessionConfiguration {
           AsyncKuduSession.this.client.updateLastPropagatedTimestamp(response.getWriteTimestamp());
         }
 
+        if (request.perBatchCompletion) {
+          completeBatchOperations(request, response);
+          return response;
+        }
+
         // Send individualized responses to all the operations in this batch.
         for (OperationResponse operationResponse : response.getIndividualResponses()) {
-          operationResponse.getOperation().callback(operationResponse);
-          if (flushMode == FlushMode.AUTO_FLUSH_BACKGROUND && operationResponse.hasRowError()) {
+          Operation operation = operationResponse.getOperation();
+          operation.callback(operationResponse);
+          // Pooled operations aren't recycled here since the response, which flush() also
+          // returns, refers to the operation. The caller recycles them once it's done.
+          if (operationResponse.hasRowError() && flushMode == FlushMode.AUTO_FLUSH_BACKGROUND) {
             errorCollector.addError(operationResponse.getRowError());
           }
         }
@@ -605,12 +1551,27 @@ public class AsyncKuduSession implements SessionConfiguration {
       }
     }
 
-    final class BatchErrCallback implements Callback<Exception, Exception> {
+    final class BatchErrCallback implements Callback<Object, Exception> {
       @Override
-      public Exception call(Exception e) throws Exception {
+      public Object call(Exception e) throws Exception {
+        if (request.perBatchCompletion) {
+          // The batch's failure becomes a row error for each of its operations.
+          BatchResponse response = BatchResponse.fromBatchFailure(
+              request.deadlineTracker.getElapsedMillis(), request.ops, e);
+          completeBatchOperations(request, response);
+          return response;
+        }
+
         // Send the same exception to all the operations.
         for (int i = 0; i < request.ops.size(); i++) {
-          request.ops.get(i).errback(e);
+          Operation operation = request.ops.get(i);
+          if (operation.coalescedOperations == null) {
+            operation.errback(e);
+          } else {
+            for (Operation coalesced : operation.coalescedOperations) {
+              coalesced.errback(e);
+            }
+          }
         }
         return e;
       }
@@ -625,33 +1586,105 @@ public class AsyncKuduSession implements SessionConfiguration {
   }
 
   /**
-   * Schedules the next periodic flush of buffered edits.
+   * Completes the operations of a batch when per-batch completion is enabled: their Deferreds
+   * aren't called back, the row errors are collected whatever the flush mode is, and the pooled
+   * operations that didn't fail are recycled.
+   * @param batch the batch that's done
+   * @param response its response, which only has individual responses for the failed operations
+   */
+  private void completeBatchOperations(Batch batch, BatchResponse response) {
+    List<OperationResponse> failed = response.getIndividualResponses();
+    Set<Operation> failedOperations = null;
+    if (!failed.isEmpty()) {
+      failedOperations = Collections.newSetFromMap(new IdentityHashMap<Operation, Boolean>());
+      for (OperationResponse operationResponse : failed) {
+        failedOperations.add(operationResponse.getOperation());
+        errorCollector.addError(operationResponse.getRowError());
+      }
+    }
+    for (int i = 0; i < batch.ops.size(); i++) {
+      Operation operation = batch.ops.get(i);
+      if (operation.coalescedOperations == null) {
+        recycleIfSucceeded(operation, failedOperations);
+      } else {
+        for (Operation coalesced : operation.coalescedOperations) {
+          recycleIfSucceeded(coalesced, failedOperations);
+        }
+      }
+    }
+  }
+
+  /**
+   * Gives a pooled operation back to its pool, unless a row error still refers to it.
+   * @param operation the operation
+   * @param failedOperations the operations that have a row error, null if there are none
+   */
+  private static void recycleIfSucceeded(Operation operation, Set<Operation> failedOperations) {
+    if (operation.pool != null &&
+        (failedOperations == null || !failedOperations.contains(operation))) {
+      operation.pool.recycle(operation);
+    }
+  }
+
+  /**
+   * Schedules the session's flusher, unless it's already scheduled.
+   * @param delayMs how long to wait before running it
+   */
+  private void scheduleFlusher(long delayMs) {
+    if (flusherScheduled.compareAndSet(false, true)) {
+      LOG.trace("Scheduling a flush");
+      client.newTimeout(new SessionFlusherTask(), Math.max(delayMs, MIN_FLUSHER_TICK_MS));
+    }
+  }
+
+  /**
+   * Gets how long a tablet's batch is kept in the buffer before the flusher sends it. That's the
+   * flush interval, unless adaptive flushing is enabled.
+   * @param buffer the tablet's buffer
+   * @return a number of nanoseconds
+   */
+  @GuardedBy("buffer")
+  private long getLingerNanos(TabletBuffer buffer) {
+    return adaptiveFlushing ? buffer.lingerNanos : TimeUnit.MILLISECONDS.toNanos(interval);
+  }
+
+  /**
+   * Tells if a tablet's batch has been buffered long enough and can be sent right now.
+   * @param buffer the tablet's buffer
+   * @param batch the tablet's current batch
+   * @param now the current time, from System.nanoTime()
+   * @return true if the batch should be flushed
    */
-  private void scheduleNextPeriodicFlush(Slice tablet, Batch batch) {
-    client.newTimeout(new FlusherTask(tablet, batch), interval);
+  @GuardedBy("buffer")
+  private boolean isDueForFlush(TabletBuffer buffer, Batch batch, long now) {
+    return now - batch.createdNanos >= getLingerNanos(buffer) &&
+        getInFlightBatchToWaitFor(buffer, batch) == null;
   }
 
   /**
    * Flushes the edits for the given tablet. It will also check that the Batch we're flushing is
-   * the one that was requested. This is mostly done so that the FlusherTask doesn't trigger
+   * the one that was requested. This is mostly done so that the SessionFlusherTask doesn't trigger
    * lots of small flushes under a write-heavy scenario where we're able to fill a Batch multiple
    * times per interval.
    *
-   * Also, if there's already a Batch in flight for the given tablet,
-   * the flush will be delayed and the returned Deferred will be chained to it.
+   * Also, if there are already too many Batches in flight for the given tablet, or if one of them
+   * may contain the same rows, the flush will be delayed and the returned Deferred will be
+   * chained to it.
    *
    * This method should not be called within a synchronized block because we can spend a lot of
    * time encoding the batch.
    */
-  private Deferred<BatchResponse> flushTablet(Slice tablet, Batch expectedBatch) {
+  private Deferred<BatchResponse> flushTablet(TabletBuffer buffer, Batch expectedBatch) {
     assert (expectedBatch != null);
-    assert (!Thread.holdsLock(this));
-    Batch batch;
-    synchronized (this) {
+    assert (!Thread.holdsLock(buffer));
+    Batch batch = null;
+    SpooledEntry spooledEntry = null;
+    synchronized (buffer) {
       // Check this first, no need to wait after anyone if the batch we were supposed to flush
       // was already flushed.
-      if (operations.get(tablet) != expectedBatch) {
-        LOG.trace("Had to flush a tablet but it was already flushed: " + Bytes.getString(tablet));
+      if (buffer.batch != expectedBatch) {
+        LOG.trace("Had to flush a tablet but it was already flushed: " +
+            Bytes.getString(buffer.tablet));
         // It is OK to return null here, since we currently do not use the returned value
         // when doing background flush or auto flushing when buffer is full.
         // The returned value is used when doing manual flush, but it will not run into this
@@ -659,50 +1692,74 @@ public class AsyncKuduSession implements SessionConfiguration {
         return Deferred.fromResult(null);
       }
 
-      if (operationsInFlight.containsKey(tablet)) {
-        if (LOG.isTraceEnabled()) {
-          LOG.trace("Tablet " + Bytes.getString(tablet)
-              + " is already in flight, attaching a callback to retry "
-              + expectedBatch.toDebugString() + " later.");
+      if (!buffer.spooled.isEmpty()) {
+        // The tablet's older batches are in the spool, this one has to be written after them.
+        spooledEntry = spoolBatch(buffer, expectedBatch);
+        if (spooledEntry == null) {
+          // The spool is full, the batch is sent once the spooled batches were replayed.
+          return expectedBatch.getDeferred();
+        }
+      } else {
+        Deferred<BatchResponse> toWaitFor = getInFlightBatchToWaitFor(buffer, expectedBatch);
+        if (toWaitFor != null) {
+          if (LOG.isTraceEnabled()) {
+            LOG.trace("Tablet " + Bytes.getString(buffer.tablet)
+                + " is already in flight, attaching a callback to retry "
+                + expectedBatch.toDebugString() + " later.");
+          }
+          // No matter previous batch get error or not, we still have to flush this batch.
+          FlushRetryCallback retryCallback = new FlushRetryCallback(buffer, expectedBatch);
+          FlushRetryErrback retryErrback = new FlushRetryErrback(buffer, expectedBatch);
+          // Note that if we do manual flushing multiple times when previous batch is still
+          // inflight, we may add the same callback multiple times, later retry of flushTablet will
+          // return null immediately. Since it is an illegal use case, we do not handle this
+          // currently.
+          toWaitFor.addCallbacks(retryCallback, retryErrback);
+          return expectedBatch.getDeferred();
         }
-        // No matter previous batch get error or not, we still have to flush this batch.
-        FlushRetryCallback retryCallback = new FlushRetryCallback(tablet, operations.get(tablet));
-        FlushRetryErrback retryErrback = new FlushRetryErrback(tablet, operations.get(tablet));
-        // Note that if we do manual flushing multiple times when previous batch is still inflight,
-        // we may add the same callback multiple times, later retry of flushTablet will return null
-        // immediately. Since it is an illegal use case, we do not handle this currently.
-        operationsInFlight.get(tablet).addCallbacks(retryCallback, retryErrback);
-        return expectedBatch.getDeferred();
-      }
 
-      batch = operations.remove(tablet);
-      if (batch == null) {
-        LOG.trace("Had to flush a tablet but there was nothing to flush: " +
-            Bytes.getString(tablet));
-        return Deferred.fromResult(null);
-      }
-      Deferred<BatchResponse> batchDeferred = batch.getDeferred();
-      batchDeferred.addCallbacks(getOpInFlightCallback(tablet), getOpInFlightErrback(tablet));
-      Deferred<BatchResponse> oldBatch = operationsInFlight.put(tablet, batchDeferred);
-      assert (oldBatch == null);
-      if (timeoutMs != 0) {
-        batch.deadlineTracker.reset();
-        batch.setTimeoutMillis(timeoutMs);
+        batch = buffer.batch;
+        buffer.batch = null;
+        buffersWithBatch.remove(buffer);
+        markInFlight(buffer, batch);
       }
     }
-    return client.sendRpcToTablet(batch);
+    if (spooledEntry != null) {
+      return writeSpooledBatch(buffer, spooledEntry);
+    }
+    // The batch is detached, its rows only have to stay around in their encoded form.
+    batch.releaseRowValues();
+    return client.sendBatchToTablet(batch);
   }
 
+  /**
+   * Adds a batch that's about to be sent to the tablet's batches in flight.
+   * @param buffer the tablet's buffer
+   * @param batch a batch that's not in the tablet's buffer anymore
+   */
+  @GuardedBy("buffer")
+  private void markInFlight(TabletBuffer buffer, Batch batch) {
+    batch.sentNanos = System.nanoTime();
+    Deferred<BatchResponse> batchDeferred = batch.getDeferred();
+    batchDeferred.addCallbacks(getOpInFlightCallback(buffer, batch),
+        getOpInFlightErrback(buffer, batch));
+    Deferred<BatchResponse> oldBatch = buffer.inFlight.put(batch, batchDeferred);
+    assert (oldBatch == null);
+    if (timeoutMs != 0) {
+      batch.deadlineTracker.reset();
+      batch.setTimeoutMillis(timeoutMs);
+    }
+  }
 
   /**
    * Simple callback so that we try to flush this tablet again if we were waiting on the previous
    * Batch to finish.
    */
   class FlushRetryCallback implements Callback<BatchResponse, BatchResponse> {
-    private final Slice tablet;
+    private final TabletBuffer buffer;
     private final Batch expectedBatch;
-    public FlushRetryCallback(Slice tablet, Batch expectedBatch) {
-      this.tablet = tablet;
+    public FlushRetryCallback(TabletBuffer buffer, Batch expectedBatch) {
+      this.buffer = buffer;
       this.expectedBatch = expectedBatch;
     }
 
@@ -711,14 +1768,14 @@ public class AsyncKuduSession implements SessionConfiguration {
       if (LOG.isTraceEnabled()) {
         LOG.trace("Previous batch in flight is done. " + toString());
       }
-      flushTablet(tablet, expectedBatch);
+      flushTablet(buffer, expectedBatch);
       return o;
     }
 
     @Override
     public String toString() {
-      return String.format("FlushRetryCallback: retry flush tablet %s %s", Bytes.getString(tablet),
-          expectedBatch.toDebugString());
+      return String.format("FlushRetryCallback: retry flush tablet %s %s",
+          Bytes.getString(buffer.tablet), expectedBatch.toDebugString());
     }
   }
 
@@ -726,10 +1783,10 @@ public class AsyncKuduSession implements SessionConfiguration {
    * Same callback as above FlushRetryCallback, for the case that previous batch has error.
    */
   class FlushRetryErrback implements Callback<Exception, Exception> {
-    private final Slice tablet;
+    private final TabletBuffer buffer;
     private final Batch expectedBatch;
-    public FlushRetryErrback(Slice tablet, Batch expectedBatch) {
-      this.tablet = tablet;
+    public FlushRetryErrback(TabletBuffer buffer, Batch expectedBatch) {
+      this.buffer = buffer;
       this.expectedBatch = expectedBatch;
     }
 
@@ -738,88 +1795,609 @@ public class AsyncKuduSession implements SessionConfiguration {
       if (LOG.isTraceEnabled()) {
         LOG.trace("Previous batch ended with an error. " + toString());
       }
-      flushTablet(tablet, expectedBatch);
+      flushTablet(buffer, expectedBatch);
       return e;
     }
 
     @Override
     public String toString() {
-      return String.format("FlushRetryErrback: retry flush tablet %s %s", Bytes.getString(tablet),
-          expectedBatch.toDebugString());
+      return String.format("FlushRetryErrback: retry flush tablet %s %s",
+          Bytes.getString(buffer.tablet), expectedBatch.toDebugString());
     }
   }
 
   /**
-   * Simple callback that removes the tablet from the in flight operations map once it completed.
+   * Simple callback that removes the batch from the in flight operations map once it completed.
    */
   private Callback<BatchResponse, BatchResponse>
-      getOpInFlightCallback(final Slice tablet) {
+      getOpInFlightCallback(final TabletBuffer buffer, final Batch batch) {
     return new Callback<BatchResponse, BatchResponse>() {
       @Override
       public BatchResponse call(BatchResponse o) throws Exception {
-        tabletInFlightDone(tablet);
+        tabletInFlightDone(buffer, batch);
         return o;
       }
 
       @Override
       public String toString() {
-        return "callback: mark tablet " + Bytes.getString(tablet) + " inflight done";
+        return "callback: mark tablet " + Bytes.getString(buffer.tablet) + " inflight done";
       }
     };
   }
 
   /**
    * We need a separate callback for errors since the generics are different. We still remove the
-   * tablet from the in flight operations since there's nothing we can do about it,
+   * batch from the in flight operations since there's nothing we can do about it,
    * and by returning the Exception we will bubble it up to the user.
    */
-  private Callback<Exception, Exception> getOpInFlightErrback(final Slice tablet) {
+  private Callback<Exception, Exception> getOpInFlightErrback(final TabletBuffer buffer,
+                                                              final Batch batch) {
     return new Callback<Exception, Exception>() {
       @Override
       public Exception call(Exception e) throws Exception {
-        tabletInFlightDone(tablet);
+        tabletInFlightDone(buffer, batch);
         return e;
       }
 
       @Override
       public String toString() {
-        return "errback: mark tablet " + Bytes.getString(tablet) + " inflight done";
+        return "errback: mark tablet " + Bytes.getString(buffer.tablet) + " inflight done";
       }
     };
   }
 
-  private void tabletInFlightDone(Slice tablet) {
-    synchronized (AsyncKuduSession.this) {
-      LOG.trace("Unmarking this tablet as in flight: " + Bytes.getString(tablet));
-      operationsInFlight.remove(tablet);
+  private void tabletInFlightDone(TabletBuffer buffer, Batch batch) {
+    Batch nextBatch = null;
+    synchronized (buffer) {
+      LOG.trace("Unmarking this tablet as in flight: " + Bytes.getString(buffer.tablet));
+      buffer.inFlight.remove(batch);
+      if (flushMode == FlushMode.AUTO_FLUSH_BACKGROUND && buffer.batch != null) {
+        if (adaptiveFlushing) {
+          updateAdaptiveLinger(buffer, System.nanoTime() - batch.sentNanos);
+          // Like Nagle's algorithm, what accumulated while the tablet was busy is sent as soon as
+          // the tablet can take it.
+          if (getInFlightBatchToWaitFor(buffer, buffer.batch) == null) {
+            nextBatch = buffer.batch;
+          }
+        } else if (isDueForFlush(buffer, buffer.batch, System.nanoTime())) {
+          // The flusher skipped this batch because it had to wait for this one.
+          nextBatch = buffer.batch;
+        }
+      }
+    }
+    batch.releaseEncodedOperations();
+    // Done outside of the synchronized block since it may apply waiting operations.
+    if (batch.permitOperations > 0) {
+      writePermits.release(batch.permitOperations, batch.permitBytes);
+    }
+    if (nextBatch != null) {
+      flushTablet(buffer, nextBatch);
+    }
+    if (spool != null) {
+      replaySpooled(buffer);
     }
   }
 
   /**
-   * A FlusherTask is created for each scheduled flush per tabletSlice.
+   * Takes the tablet's current batch out of its buffer to write it to the spool instead of
+   * sending it. The batch is queued after the tablet's other spooled batches, so that its rows
+   * are still written in order, but it's only written by writeSpooledBatch() which must be called
+   * outside of the synchronized block: encoding the batch and waiting for the disk would
+   * otherwise hold up everyone writing to the tablet.
+   * @param buffer the tablet's buffer
+   * @param batch the tablet's current batch
+   * @return the batch's entry in the tablet's spool queue, or null if the spool is full
    */
-  class FlusherTask implements TimerTask {
-    final Slice tabletSlice;
-    final Batch expectedBatch;
+  @GuardedBy("buffer")
+  private SpooledEntry spoolBatch(TabletBuffer buffer, Batch batch) {
+    assert (buffer.batch == batch);
+    if (!spool.hasRoomFor(batch.bufferedBytes)) {
+      LOG.debug("The write spool is full, cannot spool {}", batch.toDebugString());
+      return null;
+    }
+    buffer.batch = null;
+    buffersWithBatch.remove(buffer);
+    SpooledEntry entry = new SpooledEntry(batch);
+    buffer.spooled.add(entry);
+    spoolTables.putIfAbsent(batch.getTable().getName(), batch.getTable());
+    return entry;
+  }
 
-    FlusherTask(Slice tabletSlice, Batch expectedBatch) {
-      this.tabletSlice = tabletSlice;
-      this.expectedBatch = expectedBatch;
+  /**
+   * Writes a batch that was taken out of its tablet's buffer by spoolBatch() to the spool, then
+   * calls back its operations as if it had been sent and starts replaying the tablet's spooled
+   * batches if it can. The callback only means that the operations are durably queued: the rows
+   * that fail once they're replayed are reported through the pending errors, see
+   * {@link #reportSpooledErrors}. If the batch cannot be written after all, for example because
+   * other tablets filled the spool in the meantime, it keeps its place in the tablet's spool
+   * queue and is sent from memory once its turn comes, its operations being called back once
+   * it completes.
+   * @param buffer the tablet's buffer
+   * @param entry the batch's entry in the tablet's spool queue
+   * @return the batch's Deferred
+   */
+  private Deferred<BatchResponse> writeSpooledBatch(TabletBuffer buffer, SpooledEntry entry) {
+    assert (!Thread.holdsLock(buffer));
+    Batch batch;
+    synchronized (buffer) {
+      batch = entry.batch;
+    }
+    Deferred<BatchResponse> d = batch.getDeferred();
+    WriteSpool currentSpool = spool;
+    WriteSpool.Record record = null;
+    if (currentSpool != null) {
+      try {
+        batch.encode();
+        record = currentSpool.append(batch.getTable().getName(), batch.getTable().getSchema(),
+            buffer.tablet, batch.partitionKey(), batch.ignoreAllDuplicateRows, batch.ops.size(),
+            batch.getEncodedOperations());
+        if (record != null) {
+          currentSpool.sync(record);
+        }
+      } catch (IOException | RuntimeException e) {
+        LOG.warn("Couldn't write " + batch.toDebugString() + " to the write spool", e);
+        if (record != null) {
+          // It's sent from memory, it must not be replayed by the next spool.
+          currentSpool.markReplayed(record);
+          record = null;
+        }
+      }
+    }
+    synchronized (buffer) {
+      if (record != null) {
+        entry.record = record;
+        entry.batch = null;
+      } else {
+        entry.notSpooled = true;
+      }
+    }
+    if (record == null) {
+      LOG.debug("Couldn't spool {}, it will be sent from memory", batch.toDebugString());
+      replaySpooled(buffer);
+      return d;
+    }
+    batch.releaseEncodedOperations();
+    if (client.isStatisticsEnabled()) {
+      Statistics.TabletStatistics tabletStatistics = client.getStatistics()
+          .getTabletStatistics(batch.getTable().getName(), buffer.tablet);
+      tabletStatistics.incrementStatistic(Statistics.Statistic.SPOOLED_OPS, batch.ops.size());
+      tabletStatistics.incrementStatistic(Statistics.Statistic.SPOOLED_BYTES,
+          batch.bufferedBytes);
+    }
+    // The rows aren't written yet, so there's no tablet server nor write timestamp.
+    batch.callback(new BatchResponse(batch.deadlineTracker.getElapsedMillis(), null, 0,
+        Collections.<Tserver.WriteResponsePB.PerRowErrorPB>emptyList(), batch.ops,
+        batch.perBatchCompletion));
+    replaySpooled(buffer);
+    return d;
+  }
+
+  /**
+   * Sends the oldest batch the tablet has in the spool, unless it's already being replayed or
+   * batches that were sent before it are still in flight.
+   * @param buffer the tablet's buffer
+   */
+  private void replaySpooled(TabletBuffer buffer) {
+    boolean dropped = false;
+    while (true) {
+      WriteSpool.Record record;
+      Batch notSpooled = null;
+      synchronized (buffer) {
+        if (buffer.replayingSpool || buffer.spooled.isEmpty() || !buffer.inFlight.isEmpty()) {
+          break;
+        }
+        SpooledEntry entry = buffer.spooled.peek();
+        record = entry.record;
+        if (entry.notSpooled) {
+          // Its turn came, it's sent like any other batch.
+          buffer.spooled.poll();
+          notSpooled = entry.batch;
+          markInFlight(buffer, notSpooled);
+        } else if (record == null) {
+          // Still being written, this is called again once it's done.
+          break;
+        } else {
+          buffer.replayingSpool = true;
+        }
+      }
+      if (notSpooled != null) {
+        client.sendBatchToTablet(notSpooled);
+        dropped = true;
+        break;
+      }
+      KuduTable table = spoolTables.get(record.tableName);
+      if (table == null) {
+        // The batch was spooled by a previous session.
+        client.openTable(record.tableName).addCallbacks(new OpenSpoolTableCB(buffer, record),
+            new SpoolReplayErrback(buffer, record));
+        break;
+      }
+      if (record.matchesSchema(table.getSchema())) {
+        sendSpooled(buffer, record, table);
+        break;
+      }
+      // Dropped here rather than with dropSpooled(), which would recurse for every batch of the
+      // tablet that was spooled before the table was altered.
+      reportDroppedSpooled(record, new NonRecoverableException("The schema of table " +
+          record.tableName + " changed since " + record + " was spooled"));
+      dropped = true;
+      Batch nextBatch = forgetSpooled(buffer, record);
+      if (nextBatch != null) {
+        flushTablet(buffer, nextBatch);
+        break;
+      }
+    }
+    if (dropped) {
+      closeSpoolIfDrained();
+    }
+  }
+
+  private void sendSpooled(TabletBuffer buffer, WriteSpool.Record record, KuduTable table) {
+    SpooledBatch rpc = new SpooledBatch(table, spool, record);
+    rpc.setExternalConsistencyMode(consistencyMode);
+    if (timeoutMs != 0) {
+      rpc.setTimeoutMillis(timeoutMs);
+    }
+    client.sendRpcToTablet(rpc).addCallbacks(new SpoolReplayCB(buffer, record),
+        new SpoolReplayErrback(buffer, record));
+  }
+
+  /**
+   * Removes a spooled batch from the spool once it was replayed or dropped.
+   * @param buffer the tablet's buffer
+   * @param record the batch that's done
+   * @return the tablet's current batch if it can be sent now that the tablet has nothing left in
+   * the spool, else null
+   */
+  private Batch forgetSpooled(TabletBuffer buffer, WriteSpool.Record record) {
+    Batch nextBatch = null;
+    synchronized (buffer) {
+      SpooledEntry entry = buffer.spooled.poll();
+      assert (entry.record == record);
+      buffer.replayingSpool = false;
+      if (buffer.spooled.isEmpty() && buffer.batch != null &&
+          flushMode == FlushMode.AUTO_FLUSH_BACKGROUND) {
+        nextBatch = buffer.batch;
+      }
+    }
+    spool.markReplayed(record);
+    return nextBatch;
+  }
+
+  /**
+   * Forgets about a spooled batch once it was replayed or dropped, then replays the tablet's next
+   * one. Once the tablet has nothing left in the spool, its current batch is sent instead.
+   * @param buffer the tablet's buffer
+   * @param record the batch that's done
+   */
+  private void finishSpooled(TabletBuffer buffer, WriteSpool.Record record) {
+    Batch nextBatch = forgetSpooled(buffer, record);
+    if (nextBatch != null) {
+      flushTablet(buffer, nextBatch);
+    } else {
+      replaySpooled(buffer);
+    }
+    closeSpoolIfDrained();
+  }
+
+  /**
+   * Gives up on a spooled batch that cannot be replayed, reporting all of its rows as failed.
+   * @param buffer the tablet's buffer
+   * @param record the batch to drop
+   * @param e why the batch cannot be replayed
+   */
+  private void dropSpooled(TabletBuffer buffer, WriteSpool.Record record, Exception e) {
+    reportDroppedSpooled(record, e);
+    finishSpooled(buffer, record);
+  }
+
+  /**
+   * Reports all the rows of a spooled batch that cannot be replayed as failed.
+   * @param record the batch that's dropped
+   * @param e why the batch cannot be replayed
+   */
+  private void reportDroppedSpooled(WriteSpool.Record record, Exception e) {
+    LOG.warn("Dropping spooled " + record + ", it cannot be replayed", e);
+    Status status = Status.RuntimeError("Spooled batch couldn't be replayed: " + e.getMessage());
+    String tabletId = record.tabletId.toString(Charset.defaultCharset());
+    List<ColumnarRowError> rowErrors = new ArrayList<>(record.rowCount);
+    for (int i = 0; i < record.rowCount; i++) {
+      rowErrors.add(new ColumnarRowError(i, status, null, record.tableName, tabletId));
+    }
+    reportSpooledErrors(record, rowErrors);
+  }
+
+  /**
+   * Adds the errors of the rows of a spooled batch to the pending errors, since the rows'
+   * operations were already called back when the batch was spooled.
+   * @param record the spooled batch
+   * @param rowErrors the errors of the batch's rows that failed
+   */
+  private void reportSpooledErrors(WriteSpool.Record record, List<ColumnarRowError> rowErrors) {
+    for (ColumnarRowError rowError : rowErrors) {
+      errorCollector.addSpooledError(rowError);
+    }
+    if (client.isStatisticsEnabled()) {
+      client.getStatistics().getTabletStatistics(record.tableName, record.tabletId)
+          .incrementStatistic(Statistics.Statistic.SPOOL_REPLAY_ERRORS, rowErrors.size());
+    }
+  }
+
+  /**
+   * Tells if a spooled batch that couldn't be replayed is worth trying again, which is only the
+   * case when the client gave up on its own, for example because the tablet stayed unavailable
+   * until the RPC timed out. An error sent by a server, for example because the table was dropped
+   * or altered, or any other exception, would only happen again.
+   * @param e why the batch couldn't be replayed
+   * @return true if the batch can be replayed later
+   */
+  private static boolean canRetrySpooled(Exception e) {
+    if (e instanceof RecoverableException) {
+      return true;
+    }
+    return e.getClass() == NonRecoverableException.class &&
+        !(e.getCause() instanceof KuduServerException);
+  }
+
+  /**
+   * Releases the spool's directory if the session is closed and nothing is left to replay.
+   */
+  private void closeSpoolIfDrained() {
+    WriteSpool currentSpool = spool;
+    if (!closed || currentSpool == null) {
+      return;
+    }
+    for (TabletBuffer buffer : tabletBuffers.values()) {
+      synchronized (buffer) {
+        if (!buffer.spooled.isEmpty()) {
+          return;
+        }
+      }
+    }
+    currentSpool.close();
+  }
+
+  /**
+   * Replays a spooled batch once the table it was written to is opened, unless the table's schema
+   * changed since.
+   */
+  final class OpenSpoolTableCB implements Callback<Void, KuduTable> {
+    private final TabletBuffer buffer;
+    private final WriteSpool.Record record;
+
+    OpenSpoolTableCB(TabletBuffer buffer, WriteSpool.Record record) {
+      this.buffer = buffer;
+      this.record = record;
+    }
+
+    @Override
+    public Void call(KuduTable table) {
+      spoolTables.putIfAbsent(record.tableName, table);
+      synchronized (buffer) {
+        buffer.replayingSpool = false;
+      }
+      replaySpooled(buffer);
+      return null;
+    }
+
+    @Override
+    public String toString() {
+      return "open the table of spooled " + record;
+    }
+  }
+
+  /**
+   * Marks a spooled batch as replayed and reports the rows that failed, then replays the tablet's
+   * next one.
+   */
+  final class SpoolReplayCB implements Callback<Void, ColumnarWriteResponse> {
+    private final TabletBuffer buffer;
+    private final WriteSpool.Record record;
+
+    SpoolReplayCB(TabletBuffer buffer, WriteSpool.Record record) {
+      this.buffer = buffer;
+      this.record = record;
     }
 
+    @Override
+    public Void call(ColumnarWriteResponse response) {
+      if (response.hasRowErrors()) {
+        LOG.warn(response.getRowErrors().size() + " rows of spooled " + record +
+            " couldn't be written, the first one failed with " +
+            response.getRowErrors().get(0).getErrorStatus());
+        reportSpooledErrors(record, response.getRowErrors());
+      }
+      if (response.getWriteTimestamp() != 0) {
+        client.updateLastPropagatedTimestamp(response.getWriteTimestamp());
+      }
+      finishSpooled(buffer, record);
+      return null;
+    }
+
+    @Override
+    public String toString() {
+      return "replayed spooled " + record;
+    }
+  }
+
+  /**
+   * Tries to replay a spooled batch again later, unless it failed in a way that would only happen
+   * again, in which case it's dropped and its rows are reported as failed.
+   */
+  final class SpoolReplayErrback implements Callback<Void, Exception> {
+    private final TabletBuffer buffer;
+    private final WriteSpool.Record record;
+
+    SpoolReplayErrback(TabletBuffer buffer, WriteSpool.Record record) {
+      this.buffer = buffer;
+      this.record = record;
+    }
+
+    @Override
+    public Void call(Exception e) {
+      if (!canRetrySpooled(e)) {
+        dropSpooled(buffer, record, e);
+        return null;
+      }
+      synchronized (buffer) {
+        buffer.replayingSpool = false;
+      }
+      LOG.warn("Couldn't replay spooled " + record + ", trying again in " +
+          SPOOL_RETRY_DELAY_MS + "ms", e);
+      client.newTimeout(new TimerTask() {
+        @Override
+        public void run(Timeout timeout) {
+          replaySpooled(buffer);
+        }
+      }, SPOOL_RETRY_DELAY_MS);
+      return null;
+    }
+
+    @Override
+    public String toString() {
+      return "retry or drop spooled " + record;
+    }
+  }
+
+  /**
+   * Adapts how long the flusher lets a tablet's batch linger once a batch to that tablet
+   * completed while another batch was waiting to be sent, meaning that the tablet is busy. The
+   * linger time is then increased by one flusher tick, up to the flush interval and the tablet's
+   * average RPC latency, so that batches get bigger when operations arrive faster than they're
+   * written. The flusher halves it whenever it sends a batch to an idle tablet.
+   * @param buffer the tablet's buffer
+   * @param latencyNanos how long the batch that completed was in flight
+   */
+  @GuardedBy("buffer")
+  private void updateAdaptiveLinger(TabletBuffer buffer, long latencyNanos) {
+    // Exponentially weighted moving average, recent batches count for a quarter.
+    buffer.latencyNanos = buffer.latencyNanos == 0 ?
+        latencyNanos : (3 * buffer.latencyNanos + latencyNanos) / 4;
+    long maxLingerNanos =
+        Math.min(TimeUnit.MILLISECONDS.toNanos(interval), buffer.latencyNanos);
+    buffer.lingerNanos = Math.min(maxLingerNanos,
+        buffer.lingerNanos + TimeUnit.MILLISECONDS.toNanos(MIN_FLUSHER_TICK_MS));
+  }
+
+  /**
+   * Holds what's buffered and what's in flight for a single tablet. Each buffer is its own lock,
+   * so that threads writing to different tablets never contend with each other.
+   */
+  static final class TabletBuffer {
+    final Slice tablet;
+
+    /**
+     * Where the batching happens, null when nothing is buffered for this tablet.
+     */
+    @GuardedBy("this")
+    Batch batch;
+
+    /**
+     * What's been sent but hasn't come back yet. A batch cannot be both the current batch and in
+     * flight at the same time. A batch cannot be sent if there are already
+     * maxInFlightBatchesPerTablet batches in flight, or if an older batch that's still in flight
+     * may contain some of the same keys. If this happens, and the current batch is full, then we
+     * fail fast and send it back to the client.
+     * The in flight batches are kept in the order they were sent, which is also the order of
+     * their operations' sequence numbers.
+     * This map stores Deferreds because KuduRpc.callback clears out the Deferred it contains
+     * (as a way to reset the RPC), so we want to store the Deferred that's with the RPC that's
+     * sent out.
+     */
+    @GuardedBy("this")
+    final LinkedHashMap<Batch, Deferred<BatchResponse>> inFlight = new LinkedHashMap<>();
+
+    /**
+     * Only used with adaptive flushing: how long a batch stays in the buffer before the flusher
+     * sends it, and the average time the batches sent to this tablet took to complete.
+     */
+    @GuardedBy("this")
+    long lingerNanos;
+    @GuardedBy("this")
+    long latencyNanos;
+
+    /**
+     * Only used with a write spool: the tablet's batches that are in the spool or being written
+     * to it, oldest first, and whether the oldest one is being replayed. No batch is sent to the
+     * tablet while it has batches in the spool, so that its rows are still written in order.
+     */
+    @GuardedBy("this")
+    final ArrayDeque<SpooledEntry> spooled = new ArrayDeque<>();
+    @GuardedBy("this")
+    boolean replayingSpool;
+
+    TabletBuffer(Slice tablet) {
+      this.tablet = tablet;
+    }
+  }
+
+  /**
+   * A batch in a tablet's spool queue, see {@link TabletBuffer#spooled}. Its fields are guarded
+   * by the tablet's buffer. The batch is set until it's written to the spool, from then on only
+   * the record is. A batch that couldn't be written is flagged as not spooled and is sent from
+   * memory once it's the oldest one in the queue.
+   */
+  static final class SpooledEntry {
+    Batch batch;
+    WriteSpool.Record record;
+    boolean notSpooled;
+
+    SpooledEntry(Batch batch) {
+      this.batch = batch;
+    }
+
+    SpooledEntry(WriteSpool.Record record) {
+      this.record = record;
+    }
+  }
+
+  /**
+   * The session's flusher sends the batches that have been buffered for long enough, for all the
+   * tablets that have a batch at once, and schedules itself again for the next batch that will be
+   * due. Batches that are due but have to wait for a batch in flight are sent by
+   * tabletInFlightDone() instead.
+   */
+  class SessionFlusherTask implements TimerTask {
     public void run(final Timeout timeout) {
+      // Reset first so that a batch created while we're looking at the buffers schedules us again.
+      flusherScheduled.set(false);
       // This is a TOCTOU violation, but since {@link #flushTablet} is
       // synchronized internally it is only an optimistic check, and
       // false negatives do not cause thread safety issues.
       if (isClosed()) {
         return; // we ran too late, no-op
       }
-      LOG.trace("Timed flushing: " + Bytes.getString(tabletSlice));
-      flushTablet(this.tabletSlice, this.expectedBatch);
+      long now = System.nanoTime();
+      long nextDueNanos = Long.MAX_VALUE;
+      for (TabletBuffer buffer : buffersWithBatch) {
+        Batch toFlush = null;
+        synchronized (buffer) {
+          Batch batch = buffer.batch;
+          if (batch != null) {
+            long remainingNanos = batch.createdNanos + getLingerNanos(buffer) - now;
+            if (remainingNanos > 0) {
+              nextDueNanos = Math.min(nextDueNanos, remainingNanos);
+            } else if (isDueForFlush(buffer, batch, now)) {
+              if (adaptiveFlushing && buffer.inFlight.isEmpty()) {
+                // The tablet is idle, favor latency.
+                buffer.lingerNanos /= 2;
+              }
+              toFlush = batch;
+            }
+          }
+        }
+        if (toFlush != null) {
+          LOG.trace("Timed flushing: " + Bytes.getString(buffer.tablet));
+          flushTablet(buffer, toFlush);
+        }
+      }
+      if (nextDueNanos != Long.MAX_VALUE) {
+        scheduleFlusher(TimeUnit.NANOSECONDS.toMillis(nextDueNanos) + 1);
+      }
     }
+
     public String toString() {
-      return "flush commits of session " + AsyncKuduSession.this +
-          " for tabletSlice " + Bytes.getString(tabletSlice);
+      return "flush commits of session " + AsyncKuduSession.this;
     }
-  };
+  }
 }
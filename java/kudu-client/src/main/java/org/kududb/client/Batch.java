@@ -18,7 +18,6 @@ package org.kududb.client;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.protobuf.Message;
-import com.google.protobuf.ZeroCopyLiteralByteString;
 
 import org.kududb.WireProtocol;
 import org.kududb.annotations.InterfaceAudience;
@@ -31,9 +30,11 @@ import org.kududb.util.Slice;
 import org.jboss.netty.buffer.ChannelBuffer;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Used internally to batch Operations together before sending to the cluster
@@ -52,10 +53,60 @@ class Batch extends KuduRpc<BatchResponse> implements KuduRpc.HasKey {
 
   final List<Operation> ops;
 
+  // Encoded size of the rows in 'ops', maintained by AsyncKuduSession when it adds operations.
+  long bufferedBytes = 0;
+
+  // When the first operation was added and when the batch was sent, from System.nanoTime(). Used
+  // by AsyncKuduSession to know when to flush the batch.
+  long createdNanos;
+  long sentNanos;
+
+  // Write permits held by the operations in 'ops', given back by AsyncKuduSession once this batch
+  // completes.
+  int permitOperations = 0;
+  long permitBytes = 0;
+
   // Operations can be added out of order to 'ops' if the tablet had to be looked up. We can detect
   // this situation in AsyncKuduSession and set this to true.
   boolean needsSorting = false;
 
+  // Hashes of the primary keys of the rows in 'ops', only maintained by AsyncKuduSession when
+  // more than one batch can be in flight per tablet, see trackKeyHashes(). A batch isn't sent
+  // while an older batch that contains one of its keys is still in flight, so that rows are
+  // applied in order. Sorted by mayOverlap(), once the batch is complete.
+  private int[] keyHashes;
+  private int keyHashCount = 0;
+  private boolean keyHashesSorted = false;
+
+  // Set by AsyncKuduSession to have the operations sent in primary key order, see
+  // SessionConfiguration#setSortByPrimaryKey(boolean).
+  boolean sortByPrimaryKey = false;
+
+  // Set by AsyncKuduSession to only get individual responses for the operations that failed, see
+  // SessionConfiguration#setPerBatchCompletion(boolean).
+  boolean perBatchCompletion = false;
+
+  // Set by AsyncKuduSession so that AsyncKuduClient applies the session's write rate limit and
+  // weight to this batch, null for the batches that don't come from a session.
+  WriteScheduler.Tenant tenant;
+  private boolean sortedByPrimaryKey = false;
+
+  // Index in 'ops' of the latest operation on each primary key, only maintained by AsyncKuduSession
+  // when it coalesces mutations on the same row.
+  Map<Slice, Integer> coalescingIndex;
+
+  // Only set when the operations are encoded as they're added or by encode(), in which case it
+  // holds the rows of 'ops' in the same order. The batch keeps a reference to its buffers until it
+  // completes.
+  private Operation.OperationsEncoder encodedOperations;
+
+  // Time this batch spent waiting for the client's encoder executor and the CPU time it took to
+  // encode it there, or the wall clock time if the CPU time can't be measured, reported to the
+  // client's statistics once it completes.
+  long encodeQueueNanos = 0;
+  long encodeCpuNanos = 0;
+  long encodeWallNanos = 0;
+
   /** See {@link SessionConfiguration#setIgnoreAllDuplicateRows(boolean)} */
   final boolean ignoreAllDuplicateRows;
 
@@ -69,6 +120,142 @@ class Batch extends KuduRpc<BatchResponse> implements KuduRpc.HasKey {
     this.ignoreAllDuplicateRows = ignoreAllDuplicateRows;
   }
 
+  /**
+   * Makes this batch keep the hashes of its rows' primary keys, which are then passed to
+   * {@link #addKeyHash(int)}, so that {@link #mayOverlap(Batch)} can tell the batches that don't
+   * have any key in common apart. Must be called before adding operations.
+   */
+  void trackKeyHashes() {
+    keyHashes = new int[16];
+  }
+
+  /**
+   * Adds the hash of a row's primary key. Does nothing unless {@link #trackKeyHashes()} was
+   * called.
+   * @param keyHash the hash of the encoded primary key
+   */
+  void addKeyHash(int keyHash) {
+    if (keyHashes == null) {
+      return;
+    }
+    if (keyHashCount == keyHashes.length) {
+      keyHashes = Arrays.copyOf(keyHashes, keyHashCount * 2);
+    }
+    keyHashes[keyHashCount++] = keyHash;
+    keyHashesSorted = false;
+  }
+
+  /**
+   * Makes this batch encode the operations as they're passed to {@link #add(Operation)}, so that
+   * serializing it only has to write the RPC's headers. Must be called before adding operations.
+   * The encoded rows start in small segments that grow with the batch, so that the many batches
+   * that can be open at once don't each pin a pooled segment.
+   */
+  void encodeOnAdd() {
+    assert ops.isEmpty();
+    encodedOperations = new Operation.OperationsEncoder();
+  }
+
+  /**
+   * Adds an operation to this batch.
+   * @param operation the operation to add
+   */
+  void add(Operation operation) {
+    ops.add(operation);
+    if (encodedOperations != null) {
+      encodedOperations.appendOperation(operation);
+    }
+  }
+
+  /**
+   * Encodes the operations of this batch ahead of sending it, so that serializing it only has to
+   * write the RPC's headers. Used by AsyncKuduClient to move the encoding off the threads that
+   * flush and send the batch. No operations can be added afterwards.
+   */
+  void encode() {
+    if (encodedOperations != null && !needsSorting) {
+      return;
+    }
+    sortOperations();
+    Operation.OperationsEncoder encoder = new Operation.OperationsEncoder();
+    try {
+      encoder.encodeOperationsToBuffers(ops);
+    } catch (RuntimeException e) {
+      encoder.release();
+      throw e;
+    }
+    // Operations that were encoded as they were added are out of order, drop them.
+    releaseEncodedOperations();
+    encodedOperations = encoder;
+    needsSorting = false;
+  }
+
+  /**
+   * Gets the operations encoded by {@link #encode()}.
+   * @return the encoder that holds this batch's rows, null if the batch isn't encoded
+   */
+  Operation.OperationsEncoder getEncodedOperations() {
+    return needsSorting ? null : encodedOperations;
+  }
+
+  /**
+   * Drops the values of this batch's rows once they're only needed in their encoded form, see
+   * {@link PartialRow#releaseValues()}. This only does something for a batch whose operations
+   * were encoded as they were added and that doesn't need to be sorted, since such a batch is
+   * never encoded again. No operations can be added afterwards.
+   */
+  void releaseRowValues() {
+    if (encodedOperations == null || needsSorting) {
+      return;
+    }
+    for (Operation operation : ops) {
+      operation.getRow().releaseValues();
+    }
+  }
+
+  /**
+   * Gives back the buffers of the operations that were encoded as they were added, if any. This
+   * must be called once, after the batch completed.
+   */
+  void releaseEncodedOperations() {
+    if (encodedOperations != null) {
+      encodedOperations.release();
+    }
+  }
+
+  /**
+   * Tells if this batch contains at least one row whose primary key hash is also found in the
+   * other batch. Hash collisions can make this method return false positives.
+   * @param other a batch that was sent before this one
+   * @return true if this batch has to wait for the other batch to complete
+   */
+  boolean mayOverlap(Batch other) {
+    if (keyHashes == null || other.keyHashes == null) {
+      return true;
+    }
+    sortKeyHashes();
+    other.sortKeyHashes();
+    int i = 0;
+    int j = 0;
+    while (i < keyHashCount && j < other.keyHashCount) {
+      if (keyHashes[i] < other.keyHashes[j]) {
+        i++;
+      } else if (keyHashes[i] > other.keyHashes[j]) {
+        j++;
+      } else {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void sortKeyHashes() {
+    if (!keyHashesSorted) {
+      Arrays.sort(keyHashes, 0, keyHashCount);
+      keyHashesSorted = true;
+    }
+  }
+
   /**
    * Returns the bytes size of this batch's row operations after serialization.
    * @return size in bytes
@@ -81,22 +268,52 @@ class Batch extends KuduRpc<BatchResponse> implements KuduRpc.HasKey {
     return this.rowOperationsSizeBytes;
   }
 
-  @Override
-  ChannelBuffer serialize(Message header) {
-
+  private void sortOperations() {
     // This should only happen if at least one operation triggered a tablet lookup, which is rare
-    // on a long-running client.
-    if (needsSorting) {
+    // on a long-running client. The operations that were encoded as they were added are then out of
+    // order and have to be encoded again.
+    if (needsSorting && !sortedByPrimaryKey) {
       Collections.sort(ops, SEQUENCE_NUMBER_COMPARATOR);
     }
+    // The sort is stable so the operations on the same row stay in sequence number order. It's
+    // only done once in case the batch is sent again.
+    if (sortByPrimaryKey && !sortedByPrimaryKey) {
+      PrimaryKeySorter.sort(ops);
+      sortedByPrimaryKey = true;
+    }
+  }
+
+  @Override
+  ChannelBuffer serialize(Message header) {
+    sortOperations();
+    final boolean alreadyEncoded = encodedOperations != null && !needsSorting;
 
-    final Tserver.WriteRequestPB.Builder builder =
-        Operation.createAndFillWriteRequestPB(ops.toArray(new Operation[ops.size()]));
-    this.rowOperationsSizeBytes = builder.getRowOperations().getRows().size()
-        + builder.getRowOperations().getIndirectData().size();
-    builder.setTabletId(ZeroCopyLiteralByteString.wrap(getTablet().getTabletIdAsBytes()));
-    builder.setExternalConsistencyMode(this.externalConsistencyMode.pbVersion());
-    return toChannelBuffer(header, builder.build());
+    // The rows are encoded only once, into pooled buffers that are handed to Netty as-is. They are
+    // recycled by TabletClient once they've been written out.
+    final Operation.OperationsEncoder encoder;
+    if (alreadyEncoded) {
+      // TabletClient's release after the write matches this, the batch keeps its own reference
+      // in case it has to be sent again.
+      encoder = encodedOperations;
+      encoder.retain();
+    } else {
+      encoder = new Operation.OperationsEncoder();
+    }
+    try {
+      if (!alreadyEncoded) {
+        encoder.encodeOperationsToBuffers(ops);
+      }
+      this.rowOperationsSizeBytes = encoder.getWrittenSizeBytes();
+      final Tserver.WriteRequestPB.Builder builder = Tserver.WriteRequestPB.newBuilder();
+      builder.setExternalConsistencyMode(this.externalConsistencyMode.pbVersion());
+      ChannelBuffer buffer = encoder.toChannelBuffer(header,
+          table.getWriteRequestPrefix(getTablet()), builder);
+      setSerializedBuffers(encoder.getBuffers());
+      return buffer;
+    } catch (RuntimeException e) {
+      encoder.release();
+      throw e;
+    }
   }
 
   @Override
@@ -128,7 +345,7 @@ class Batch extends KuduRpc<BatchResponse> implements KuduRpc.HasKey {
     }
 
     BatchResponse response = new BatchResponse(deadlineTracker.getElapsedMillis(), tsUUID,
-        builder.getTimestamp(), errorsPB, ops);
+        builder.getTimestamp(), errorsPB, ops, perBatchCompletion);
 
     if (injectedError != null) {
       if (injectedlatencyMs > 0) {
@@ -154,22 +371,46 @@ class Batch extends KuduRpc<BatchResponse> implements KuduRpc.HasKey {
     Slice tabletId = this.getTablet().getTabletId();
     String tableName = this.getTable().getName();
     TabletStatistics tabletStatistics = statistics.getTabletStatistics(tableName, tabletId);
+    tabletStatistics.incrementStatistic(Statistic.ENCODE_QUEUE_TIME_NANOS, encodeQueueNanos);
+    tabletStatistics.incrementStatistic(Statistic.ENCODE_CPU_TIME_NANOS, encodeCpuNanos);
+    tabletStatistics.incrementStatistic(Statistic.ENCODE_WALL_TIME_NANOS, encodeWallNanos);
+    // Only reported once, the batch isn't encoded again if it's retried.
+    encodeQueueNanos = 0;
+    encodeCpuNanos = 0;
+    encodeWallNanos = 0;
+    int operations = countOperations();
     if (response == null) {
-      tabletStatistics.incrementStatistic(Statistic.OPS_ERRORS, this.ops.size());
+      tabletStatistics.incrementStatistic(Statistic.OPS_ERRORS, operations);
       tabletStatistics.incrementStatistic(Statistic.RPC_ERRORS, 1);
       return;
     }
     tabletStatistics.incrementStatistic(Statistic.WRITE_RPCS, 1);
+    // With per-batch completion only the operations that failed get a response, so the ones
+    // that succeeded are what's left once the failures are counted.
+    int failures = 0;
     for (OperationResponse opResponse : response.getIndividualResponses()) {
       if (opResponse.hasRowError()) {
-        tabletStatistics.incrementStatistic(Statistic.OPS_ERRORS, 1);
-      } else {
-        tabletStatistics.incrementStatistic(Statistic.WRITE_OPS, 1);
+        failures++;
       }
     }
+    tabletStatistics.incrementStatistic(Statistic.OPS_ERRORS, failures);
+    tabletStatistics.incrementStatistic(Statistic.WRITE_OPS, operations - failures);
     tabletStatistics.incrementStatistic(Statistic.BYTES_WRITTEN, getRowOperationsSizeBytes());
   }
 
+  /**
+   * Counts the operations that were applied to the session for this batch, including the ones
+   * that were coalesced into a single operation.
+   * @return a number of operations
+   */
+  private int countOperations() {
+    int count = 0;
+    for (Operation operation : ops) {
+      count += operation.coalescedOperations == null ? 1 : operation.coalescedOperations.size();
+    }
+    return count;
+  }
+
   public String toDebugString() {
     return "Batch(" + ops.size() + " ops)@" + Integer.toHexString(hashCode());
   }
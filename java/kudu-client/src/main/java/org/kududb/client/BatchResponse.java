@@ -44,14 +44,38 @@ public class BatchResponse extends KuduRpcResponse {
   BatchResponse(long elapsedMillis, String tsUUID, long writeTimestamp,
                 List<Tserver.WriteResponsePB.PerRowErrorPB> errorsPB,
                 List<Operation> operations) {
+    this(elapsedMillis, tsUUID, writeTimestamp, errorsPB, operations, false);
+  }
+
+  /**
+   * Package-private constructor to be used by the RPCs.
+   * @param elapsedMillis time in milliseconds since RPC creation to now
+   * @param writeTimestamp HT's write timestamp
+   * @param errorsPB a list of row errors, can be empty
+   * @param operations the list of operations which created this response
+   * @param failedOperationsOnly if true, only the operations that have a row error get an
+   *                             individual response, see
+   *                             {@link SessionConfiguration#setPerBatchCompletion(boolean)}
+   */
+  BatchResponse(long elapsedMillis, String tsUUID, long writeTimestamp,
+                List<Tserver.WriteResponsePB.PerRowErrorPB> errorsPB,
+                List<Operation> operations, boolean failedOperationsOnly) {
     super(elapsedMillis, tsUUID);
     this.writeTimestamp = writeTimestamp;
-    individualResponses = new ArrayList<>(operations.size());
     if (errorsPB.isEmpty()) {
       rowErrors = Collections.emptyList();
     } else {
       rowErrors = new ArrayList<>(errorsPB.size());
     }
+    if (failedOperationsOnly) {
+      individualResponses = new ArrayList<>(errorsPB.size());
+      for (Tserver.WriteResponsePB.PerRowErrorPB errorPB : errorsPB) {
+        addFailedResponse(tsUUID, writeTimestamp, operations.get(errorPB.getRowIndex()),
+            RowError.fromRowErrorPb(errorPB, operations.get(errorPB.getRowIndex()), tsUUID));
+      }
+      return;
+    }
+    individualResponses = new ArrayList<>(operations.size());
 
     // Populate the list of individual row responses and the list of row errors. Not all the rows
     // maybe have errors, but 'errorsPB' contains them in the same order as the operations that
@@ -65,15 +89,83 @@ public class BatchResponse extends KuduRpcResponse {
           errorsPB.get(currentErrorIndex).getRowIndex() == i) {
         rowError = RowError.fromRowErrorPb(errorsPB.get(currentErrorIndex),
             currentOperation, tsUUID);
-        rowErrors.add(rowError);
+        if (currentOperation.coalescedOperations == null) {
+          rowErrors.add(rowError);
+        }
         currentErrorIndex++;
       }
+      if (currentOperation.coalescedOperations != null) {
+        // The operations that were merged into this one get the same outcome.
+        addCoalescedResponses(tsUUID, writeTimestamp, currentOperation, rowError);
+        continue;
+      }
       individualResponses.add(
           new OperationResponse(currentOperation.deadlineTracker.getElapsedMillis(), tsUUID,
               writeTimestamp, currentOperation, rowError));
     }
-    assert (rowErrors.size() == errorsPB.size());
-    assert (individualResponses.size() == operations.size());
+    assert (individualResponses.size() >= operations.size());
+  }
+
+  /**
+   * Creates the response of a batch that didn't get one from the tablet server, only used with
+   * {@link SessionConfiguration#setPerBatchCompletion(boolean)}. Each operation gets a row error
+   * built from the exception the batch failed with.
+   * @param elapsedMillis time in milliseconds since RPC creation to now
+   * @param operations the operations of the batch
+   * @param e why the batch failed
+   * @return a response that has a row error for each operation
+   */
+  static BatchResponse fromBatchFailure(long elapsedMillis, List<Operation> operations,
+                                        Exception e) {
+    return new BatchResponse(elapsedMillis, operations,
+        Status.RuntimeError(e.getMessage() == null ? e.toString() : e.getMessage()));
+  }
+
+  private BatchResponse(long elapsedMillis, List<Operation> operations, Status status) {
+    super(elapsedMillis, null);
+    this.writeTimestamp = 0;
+    rowErrors = new ArrayList<>(operations.size());
+    individualResponses = new ArrayList<>(operations.size());
+    for (Operation operation : operations) {
+      addFailedResponse(null, 0, operation, new RowError(status, operation, null));
+    }
+  }
+
+  /**
+   * Adds a response for an operation that has a row error, or for each of the operations that
+   * were merged into it.
+   */
+  private void addFailedResponse(String tsUUID, long writeTimestamp, Operation operation,
+                                 RowError rowError) {
+    if (operation.coalescedOperations != null) {
+      addCoalescedResponses(tsUUID, writeTimestamp, operation, rowError);
+      return;
+    }
+    rowErrors.add(rowError);
+    individualResponses.add(
+        new OperationResponse(operation.deadlineTracker.getElapsedMillis(), tsUUID,
+            writeTimestamp, operation, rowError));
+  }
+
+  /**
+   * Adds a response for each of the operations that were merged into one by AsyncKuduSession.
+   * @param tsUUID the UUID of the tablet server that sent the response
+   * @param writeTimestamp HT's write timestamp
+   * @param coalesced the operation that was sent
+   * @param rowError the row error of the operation that was sent, can be null
+   */
+  private void addCoalescedResponses(String tsUUID, long writeTimestamp, Operation coalesced,
+                                     RowError rowError) {
+    for (Operation operation : coalesced.coalescedOperations) {
+      RowError operationRowError = null;
+      if (rowError != null) {
+        operationRowError = new RowError(rowError.getErrorStatus(), operation, tsUUID);
+        rowErrors.add(operationRowError);
+      }
+      individualResponses.add(
+          new OperationResponse(operation.deadlineTracker.getElapsedMillis(), tsUUID,
+              writeTimestamp, operation, operationRowError));
+    }
   }
 
   /**
@@ -0,0 +1,108 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.kududb.client;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import org.kududb.annotations.InterfaceAudience;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of fixed-size byte arrays used as the segments of {@link ChainedBuffer}s. Segments that
+ * are released go back to the pool, up to a maximum number of pooled segments, so that encoding
+ * batches in a steady state doesn't generate garbage. Buffers that are expected to hold less
+ * than a segment, like single operations, start with smaller segments of their own instead.
+ *
+ * This class is thread-safe.
+ */
+@InterfaceAudience.Private
+final class BufferSegmentPool {
+
+  static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+
+  // Keeps up to 16MB of segments around.
+  static final int DEFAULT_MAX_POOLED_SEGMENTS = 256;
+
+  private static final BufferSegmentPool DEFAULT_POOL =
+      new BufferSegmentPool(DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_POOLED_SEGMENTS);
+
+  private final int segmentSize;
+  private final int maxPooledSegments;
+  private final ConcurrentLinkedQueue<byte[]> segments = new ConcurrentLinkedQueue<>();
+  // Tracked separately since ConcurrentLinkedQueue.size() isn't a constant-time operation.
+  private final AtomicInteger pooledSegments = new AtomicInteger();
+
+  /**
+   * Creates a new pool.
+   * @param segmentSize size in bytes of each segment
+   * @param maxPooledSegments how many released segments can be kept around
+   */
+  BufferSegmentPool(int segmentSize, int maxPooledSegments) {
+    Preconditions.checkArgument(segmentSize > 0, "The segment size must be greater than 0");
+    Preconditions.checkArgument(maxPooledSegments >= 0,
+        "The number of pooled segments cannot be negative");
+    this.segmentSize = segmentSize;
+    this.maxPooledSegments = maxPooledSegments;
+  }
+
+  /**
+   * Returns the pool shared by all the clients in this JVM.
+   * @return the default pool
+   */
+  static BufferSegmentPool getDefault() {
+    return DEFAULT_POOL;
+  }
+
+  int getSegmentSize() {
+    return segmentSize;
+  }
+
+  /**
+   * Gets a segment from the pool, or allocates a new one if the pool is empty. The content of the
+   * returned segment is undefined.
+   * @return a segment of {@link #getSegmentSize()} bytes
+   */
+  byte[] acquire() {
+    byte[] segment = segments.poll();
+    if (segment == null) {
+      return new byte[segmentSize];
+    }
+    pooledSegments.decrementAndGet();
+    return segment;
+  }
+
+  /**
+   * Gives a segment back to the pool. It is simply dropped if the pool is already full.
+   * The segment must not be used anymore after calling this method.
+   * @param segment a segment that was obtained via {@link #acquire()}
+   */
+  void release(byte[] segment) {
+    assert segment.length == segmentSize;
+    if (pooledSegments.incrementAndGet() > maxPooledSegments) {
+      pooledSegments.decrementAndGet();
+      return;
+    }
+    segments.offer(segment);
+  }
+
+  @VisibleForTesting
+  int getPooledSegmentsCount() {
+    return pooledSegments.get();
+  }
+}
@@ -0,0 +1,278 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.kududb.client;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.kududb.annotations.InterfaceAudience;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An append-only buffer that chains fixed-size segments taken from a {@link BufferSegmentPool}
+ * instead of growing a single array. The written data is handed to Netty without copying it
+ * via {@link #appendTo(List)}, and the segments go back to the pool with {@link #release()}.
+ * A buffer that's expected to stay small can start with a smaller segment that's allocated for
+ * it, the next segments doubling in size until they reach the pool's segment size, from which
+ * point they come from the pool.
+ * A buffer can be shared by several owners, each calling {@link #retain()} and then
+ * {@link #release()}, in which case the segments are recycled once the last owner is done.
+ *
+ * Multi-byte values are written in little-endian order, like the rest of the row encoding.
+ *
+ * This class isn't thread-safe, except for {@link #retain()} and {@link #release()} which can be
+ * called from any thread once the buffer isn't written to anymore.
+ */
+@InterfaceAudience.Private
+final class ChainedBuffer {
+
+  // Smallest segment a buffer allocates for itself.
+  static final int MIN_SEGMENT_SIZE = 64;
+
+  private final BufferSegmentPool pool;
+  // Size of the next segment, only allocated when it's smaller than the pool's segments.
+  private int nextSegmentSize;
+  private final List<byte[]> segments = new ArrayList<>();
+  // Segment that's currently being written to, null until the first write.
+  private byte[] current;
+  private int positionInCurrent;
+  private long size;
+  // Starts with the reference of whoever created the buffer, reaches 0 when it's fully released.
+  private final AtomicInteger references = new AtomicInteger(1);
+
+  ChainedBuffer(BufferSegmentPool pool) {
+    this(pool, pool.getSegmentSize());
+  }
+
+  /**
+   * Creates a buffer whose first segment has the given size, for example the expected size of
+   * the data, instead of taking a whole segment from the pool.
+   * @param pool the pool the segments come from
+   * @param firstSegmentSize size of the first segment, the pool's segment size at most
+   */
+  ChainedBuffer(BufferSegmentPool pool, int firstSegmentSize) {
+    this.pool = pool;
+    this.nextSegmentSize = Math.min(Math.max(firstSegmentSize, MIN_SEGMENT_SIZE),
+        pool.getSegmentSize());
+  }
+
+  /**
+   * Returns the number of bytes written to this buffer.
+   * @return a size in bytes
+   */
+  long size() {
+    return size;
+  }
+
+  void put(byte b) {
+    ensureWritable();
+    current[positionInCurrent++] = b;
+    size++;
+  }
+
+  void put(byte[] src, int offset, int length) {
+    while (length > 0) {
+      ensureWritable();
+      int toCopy = Math.min(length, current.length - positionInCurrent);
+      System.arraycopy(src, offset, current, positionInCurrent, toCopy);
+      positionInCurrent += toCopy;
+      offset += toCopy;
+      length -= toCopy;
+      size += toCopy;
+    }
+  }
+
+  /**
+   * Copies the remaining bytes of the passed buffer, advancing its position to its limit.
+   * @param src the data to copy, can be a direct buffer
+   */
+  void put(ByteBuffer src) {
+    while (src.hasRemaining()) {
+      ensureWritable();
+      int toCopy = Math.min(src.remaining(), current.length - positionInCurrent);
+      src.get(current, positionInCurrent, toCopy);
+      positionInCurrent += toCopy;
+      size += toCopy;
+    }
+  }
+
+  void putShort(short n) {
+    put((byte) n);
+    put((byte) (n >>> 8));
+  }
+
+  void putInt(int n) {
+    if (current != null && current.length - positionInCurrent >= 4) {
+      Bytes.setInt(current, n, positionInCurrent);
+      positionInCurrent += 4;
+      size += 4;
+      return;
+    }
+    for (int i = 0; i < 4; i++) {
+      put((byte) (n >>> (i * 8)));
+    }
+  }
+
+  void putLong(long n) {
+    if (current != null && current.length - positionInCurrent >= 8) {
+      Bytes.setLong(current, n, positionInCurrent);
+      positionInCurrent += 8;
+      size += 8;
+      return;
+    }
+    for (int i = 0; i < 8; i++) {
+      put((byte) (n >>> (i * 8)));
+    }
+  }
+
+  /**
+   * Writes the bit set in the same format as {@link Bytes#fromBitSet(BitSet, int)} without
+   * allocating an intermediate array.
+   * @param bits the bits to write
+   * @param colCount the number of bits the encoded bit set must be able to hold
+   */
+  void putBitSet(BitSet bits, int colCount) {
+    int bitSetSize = Bytes.getBitSetSize(colCount);
+    for (int i = 0; i < bitSetSize; i++) {
+      int b = 0;
+      int fromBit = i * 8;
+      for (int bit = bits.nextSetBit(fromBit);
+           bit >= 0 && bit < fromBit + 8;
+           bit = bits.nextSetBit(bit + 1)) {
+        b |= 1 << (bit - fromBit);
+      }
+      put((byte) b);
+    }
+  }
+
+  /**
+   * Copies the whole content of this buffer into a new array.
+   * @return a new byte array of {@link #size()} bytes
+   */
+  byte[] toByteArray() {
+    byte[] bytes = new byte[(int) size];
+    int offset = 0;
+    for (byte[] segment : segments) {
+      int length = segment == current ? positionInCurrent : segment.length;
+      System.arraycopy(segment, 0, bytes, offset, length);
+      offset += length;
+    }
+    return bytes;
+  }
+
+  /**
+   * Copies the whole content of this buffer into the passed one, starting at its position.
+   * @param dst the buffer to copy to, its position is advanced by {@link #size()} bytes
+   */
+  void writeTo(ByteBuffer dst) {
+    for (byte[] segment : segments) {
+      int length = segment == current ? positionInCurrent : segment.length;
+      dst.put(segment, 0, length);
+    }
+  }
+
+  /**
+   * Wraps each segment that contains data in a ChannelBuffer, without copying it, and adds them
+   * to the passed list. The wrappers must not be used anymore once this buffer is released.
+   * @param buffers list to add the wrapped segments to
+   */
+  void appendTo(List<ChannelBuffer> buffers) {
+    for (byte[] segment : segments) {
+      int length = segment == current ? positionInCurrent : segment.length;
+      if (length > 0) {
+        buffers.add(ChannelBuffers.wrappedBuffer(segment, 0, length));
+      }
+    }
+  }
+
+  /**
+   * Adds a reference to this buffer, which must be matched by a call to {@link #release()}.
+   * @throws IllegalStateException if the buffer was already fully released
+   */
+  void retain() {
+    while (true) {
+      int refs = references.get();
+      if (refs == 0) {
+        throw new IllegalStateException("This buffer was already released");
+      }
+      if (references.compareAndSet(refs, refs + 1)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Drops a reference to this buffer, giving the segments back to the pool when it was the last
+   * one. Releasing a buffer that was already fully released does nothing, and the buffer cannot be
+   * written to anymore after that.
+   */
+  void release() {
+    while (true) {
+      int refs = references.get();
+      if (refs == 0) {
+        return;
+      }
+      if (references.compareAndSet(refs, refs - 1)) {
+        if (refs > 1) {
+          return;
+        }
+        break;
+      }
+    }
+    for (byte[] segment : segments) {
+      // The segments that were allocated for this buffer are simply dropped.
+      if (segment.length == pool.getSegmentSize()) {
+        pool.release(segment);
+      }
+    }
+    segments.clear();
+    current = null;
+  }
+
+  /**
+   * Releases all the passed buffers, see {@link #release()}.
+   * @param buffers the buffers to release, can be null
+   */
+  static void releaseAll(List<ChainedBuffer> buffers) {
+    if (buffers == null) {
+      return;
+    }
+    for (ChainedBuffer buffer : buffers) {
+      buffer.release();
+    }
+  }
+
+  private void ensureWritable() {
+    if (references.get() == 0) {
+      throw new IllegalStateException("This buffer was already released");
+    }
+    if (current == null || positionInCurrent == current.length) {
+      if (nextSegmentSize < pool.getSegmentSize()) {
+        current = new byte[nextSegmentSize];
+        nextSegmentSize = Math.min(nextSegmentSize * 2, pool.getSegmentSize());
+      } else {
+        current = pool.acquire();
+      }
+      positionInCurrent = 0;
+      segments.add(current);
+    }
+  }
+}
@@ -0,0 +1,143 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.kududb.client;
+
+import com.google.protobuf.Message;
+
+import org.kududb.WireProtocol;
+import org.kududb.annotations.InterfaceAudience;
+import org.kududb.client.Statistics.Statistic;
+import org.kududb.client.Statistics.TabletStatistics;
+import org.kududb.tserver.Tserver;
+import org.kududb.util.Pair;
+import org.kududb.util.Slice;
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Used internally to send the rows of a {@link ColumnarRowBlock} that belong to the same tablet.
+ * The rows are encoded straight from the block every time the RPC is serialized.
+ */
+@InterfaceAudience.Private
+class ColumnarBatch extends KuduRpc<ColumnarWriteResponse> implements KuduRpc.HasKey {
+
+  private final ColumnarRowBlock block;
+  private final int[] rowIndexes;
+  private final byte[] partitionKey;
+
+  /** See {@link SessionConfiguration#setIgnoreAllDuplicateRows(boolean)} */
+  private final boolean ignoreAllDuplicateRows;
+
+  /** Set when serialize is called, it's the size of the encoded rows. */
+  private long rowOperationsSizeBytes = 0;
+
+  /**
+   * Creates a new batch.
+   * @param table the table to insert into
+   * @param block the block the rows come from
+   * @param rowIndexes the indexes of the rows in the block, all for the same tablet
+   * @param partitionKey the partition key of one of the rows, used to find the tablet
+   * @param ignoreAllDuplicateRows whether rows that already exist are reported as errors
+   */
+  ColumnarBatch(KuduTable table, ColumnarRowBlock block, int[] rowIndexes, byte[] partitionKey,
+                boolean ignoreAllDuplicateRows) {
+    super(table);
+    assert rowIndexes.length > 0;
+    this.block = block;
+    this.rowIndexes = rowIndexes;
+    this.partitionKey = partitionKey;
+    this.ignoreAllDuplicateRows = ignoreAllDuplicateRows;
+  }
+
+  @Override
+  ChannelBuffer serialize(Message header) {
+    final Operation.OperationsEncoder encoder = new Operation.OperationsEncoder();
+    try {
+      encoder.encodeColumnarRowsToBuffers(block, rowIndexes);
+      this.rowOperationsSizeBytes = encoder.getWrittenSizeBytes();
+      final Tserver.WriteRequestPB.Builder builder = Tserver.WriteRequestPB.newBuilder();
+      builder.setExternalConsistencyMode(this.externalConsistencyMode.pbVersion());
+      ChannelBuffer buffer = encoder.toChannelBuffer(header,
+          table.getWriteRequestPrefix(getTablet()), builder);
+      setSerializedBuffers(encoder.getBuffers());
+      return buffer;
+    } catch (RuntimeException e) {
+      encoder.release();
+      throw e;
+    }
+  }
+
+  @Override
+  String serviceName() { return TABLET_SERVER_SERVICE_NAME; }
+
+  @Override
+  String method() {
+    return Operation.METHOD;
+  }
+
+  @Override
+  Pair<ColumnarWriteResponse, Object> deserialize(CallResponse callResponse,
+                                                  String tsUUID) throws Exception {
+    Tserver.WriteResponsePB.Builder builder = Tserver.WriteResponsePB.newBuilder();
+    readProtobuf(callResponse.getPBMessage(), builder);
+
+    List<ColumnarRowError> rowErrors;
+    if (builder.getPerRowErrorsCount() == 0) {
+      rowErrors = Collections.emptyList();
+    } else {
+      rowErrors = new ArrayList<>(builder.getPerRowErrorsCount());
+      for (Tserver.WriteResponsePB.PerRowErrorPB errorPB : builder.getPerRowErrorsList()) {
+        if (ignoreAllDuplicateRows &&
+            errorPB.getError().getCode() == WireProtocol.AppStatusPB.ErrorCode.ALREADY_PRESENT) {
+          continue;
+        }
+        // The server indexes the rows in the order they were sent.
+        rowErrors.add(new ColumnarRowError(rowIndexes[errorPB.getRowIndex()],
+            Status.fromPB(errorPB.getError()), tsUUID));
+      }
+    }
+
+    ColumnarWriteResponse response = new ColumnarWriteResponse(builder.getTimestamp(), rowErrors);
+    return new Pair<ColumnarWriteResponse, Object>(
+        response, builder.hasError() ? builder.getError() : null);
+  }
+
+  @Override
+  public byte[] partitionKey() {
+    return partitionKey;
+  }
+
+  @Override
+  void updateStatistics(Statistics statistics, ColumnarWriteResponse response) {
+    Slice tabletId = this.getTablet().getTabletId();
+    String tableName = this.getTable().getName();
+    TabletStatistics tabletStatistics = statistics.getTabletStatistics(tableName, tabletId);
+    if (response == null) {
+      tabletStatistics.incrementStatistic(Statistic.OPS_ERRORS, rowIndexes.length);
+      tabletStatistics.incrementStatistic(Statistic.RPC_ERRORS, 1);
+      return;
+    }
+    int rowErrors = response.getRowErrors().size();
+    tabletStatistics.incrementStatistic(Statistic.WRITE_RPCS, 1);
+    tabletStatistics.incrementStatistic(Statistic.WRITE_OPS, rowIndexes.length - rowErrors);
+    tabletStatistics.incrementStatistic(Statistic.OPS_ERRORS, rowErrors);
+    tabletStatistics.incrementStatistic(Statistic.BYTES_WRITTEN, rowOperationsSizeBytes);
+  }
+}
@@ -0,0 +1,300 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.kududb.client;
+
+import com.google.common.base.Preconditions;
+import org.kududb.ColumnSchema;
+import org.kududb.Schema;
+import org.kududb.Type;
+import org.kududb.annotations.InterfaceAudience;
+import org.kududb.annotations.InterfaceStability;
+
+import java.util.BitSet;
+
+/**
+ * A block of rows to insert, laid out by column: each column is given as a single array that holds
+ * its value for every row of the block. Compared to building one {@link Insert} per row, this
+ * avoids creating and encoding a PartialRow for every row, see
+ * {@link AsyncKuduSession#applyColumnar(KuduTable, ColumnarRowBlock)}.
+ *
+ * The arrays are not copied, so they must not be modified until the block has been applied.
+ * Columns that aren't set are left out of the inserted rows, like when a PartialRow doesn't have
+ * a value for them, but all the primary key columns must be set.
+ *
+ * This class isn't thread-safe.
+ */
+@InterfaceAudience.Public
+@InterfaceStability.Unstable
+public class ColumnarRowBlock {
+
+  private final Schema schema;
+  private final int rowCount;
+  // Indexed like the schema's columns, null for the columns that weren't set.
+  private final Object[] columns;
+  private final BitSet[] nulls;
+  private final BitSet columnsBitSet;
+
+  /**
+   * Creates a new empty block.
+   * @param schema the schema of the table the rows will be inserted into
+   * @param rowCount the number of rows in the block, all the columns must have that many values
+   */
+  public ColumnarRowBlock(Schema schema, int rowCount) {
+    Preconditions.checkArgument(rowCount >= 0, "The row count cannot be negative");
+    this.schema = schema;
+    this.rowCount = rowCount;
+    this.columns = new Object[schema.getColumnCount()];
+    this.nulls = new BitSet[schema.getColumnCount()];
+    this.columnsBitSet = new BitSet(schema.getColumnCount());
+  }
+
+  public Schema getSchema() {
+    return schema;
+  }
+
+  public int getRowCount() {
+    return rowCount;
+  }
+
+  /**
+   * Sets the values of a BOOL column.
+   * @param columnName name of the column
+   * @param values one value per row
+   * @throws IllegalArgumentException if the column doesn't exist, if it isn't a BOOL column, or if
+   * the number of values doesn't match the row count
+   */
+  public void setColumn(String columnName, boolean[] values) {
+    setColumn(columnName, values, values.length, Type.BOOL, null);
+  }
+
+  /**
+   * Sets the values of an INT8 column.
+   * @param columnName name of the column
+   * @param values one value per row
+   * @throws IllegalArgumentException if the column doesn't exist, if it isn't an INT8 column, or
+   * if the number of values doesn't match the row count
+   */
+  public void setColumn(String columnName, byte[] values) {
+    setColumn(columnName, values, values.length, Type.INT8, null);
+  }
+
+  /**
+   * Sets the values of an INT16 column.
+   * @param columnName name of the column
+   * @param values one value per row
+   * @throws IllegalArgumentException if the column doesn't exist, if it isn't an INT16 column, or
+   * if the number of values doesn't match the row count
+   */
+  public void setColumn(String columnName, short[] values) {
+    setColumn(columnName, values, values.length, Type.INT16, null);
+  }
+
+  /**
+   * Sets the values of an INT32 column.
+   * @param columnName name of the column
+   * @param values one value per row
+   * @throws IllegalArgumentException if the column doesn't exist, if it isn't an INT32 column, or
+   * if the number of values doesn't match the row count
+   */
+  public void setColumn(String columnName, int[] values) {
+    setColumn(columnName, values, values.length, Type.INT32, null);
+  }
+
+  /**
+   * Sets the values of an INT64 or TIMESTAMP column. Timestamps are in microseconds since the
+   * epoch, like for {@link PartialRow#addLong(String, long)}.
+   * @param columnName name of the column
+   * @param values one value per row
+   * @throws IllegalArgumentException if the column doesn't exist, if it isn't an INT64 or
+   * TIMESTAMP column, or if the number of values doesn't match the row count
+   */
+  public void setColumn(String columnName, long[] values) {
+    setColumn(columnName, values, values.length, Type.INT64, Type.TIMESTAMP);
+  }
+
+  /**
+   * Sets the values of a FLOAT column.
+   * @param columnName name of the column
+   * @param values one value per row
+   * @throws IllegalArgumentException if the column doesn't exist, if it isn't a FLOAT column, or
+   * if the number of values doesn't match the row count
+   */
+  public void setColumn(String columnName, float[] values) {
+    setColumn(columnName, values, values.length, Type.FLOAT, null);
+  }
+
+  /**
+   * Sets the values of a DOUBLE column.
+   * @param columnName name of the column
+   * @param values one value per row
+   * @throws IllegalArgumentException if the column doesn't exist, if it isn't a DOUBLE column, or
+   * if the number of values doesn't match the row count
+   */
+  public void setColumn(String columnName, double[] values) {
+    setColumn(columnName, values, values.length, Type.DOUBLE, null);
+  }
+
+  /**
+   * Sets the values of a STRING or BINARY column. Strings must be encoded in UTF-8, like for
+   * {@link PartialRow#addStringUtf8(String, byte[])}. A null value is only allowed for the rows
+   * that are marked as null with {@link #setNulls(String, BitSet)}.
+   * @param columnName name of the column
+   * @param values one value per row
+   * @throws IllegalArgumentException if the column doesn't exist, if it isn't a STRING or BINARY
+   * column, or if the number of values doesn't match the row count
+   */
+  public void setColumn(String columnName, byte[][] values) {
+    setColumn(columnName, values, values.length, Type.STRING, Type.BINARY);
+  }
+
+  /**
+   * Marks some of the rows as having a null value for the specified column. The values of the
+   * column must also be set, but the ones of these rows are ignored.
+   * @param columnName name of a nullable column
+   * @param rowsWithNull the indexes of the rows to set to null
+   * @throws IllegalArgumentException if the column doesn't exist, if it isn't nullable, or if a row
+   * index is out of the block
+   */
+  public void setNulls(String columnName, BitSet rowsWithNull) {
+    int index = schema.getColumnIndex(columnName);
+    Preconditions.checkArgument(schema.getColumnByIndex(index).isNullable(),
+        "%s cannot be set to null", columnName);
+    Preconditions.checkArgument(rowsWithNull.length() <= rowCount,
+        "Row %s is out of the block", rowsWithNull.length() - 1);
+    nulls[index] = rowsWithNull;
+  }
+
+  private void setColumn(String columnName, Object values, int length, Type type,
+                         Type otherType) {
+    int index = schema.getColumnIndex(columnName);
+    Type columnType = schema.getColumnByIndex(index).getType();
+    Preconditions.checkArgument(columnType == type || columnType == otherType,
+        "%s isn't %s, it's %s", columnName, type.getName(), columnType.getName());
+    Preconditions.checkArgument(length == rowCount,
+        "%s has %s values but the block has %s rows", columnName, length, rowCount);
+    columns[index] = values;
+    columnsBitSet.set(index);
+  }
+
+  /**
+   * Checks that this block can be applied to the specified table.
+   * @param table the table to insert into
+   * @throws IllegalArgumentException if the block's schema doesn't match the table's, if a key
+   * column wasn't set, or if a STRING or BINARY value is missing
+   */
+  void checkCanApplyTo(KuduTable table) {
+    Preconditions.checkArgument(schema.getColumns().equals(table.getSchema().getColumns()),
+        "This block's schema doesn't match the schema of table %s", table.getName());
+    for (int i = 0; i < schema.getPrimaryKeyColumnCount(); i++) {
+      Preconditions.checkArgument(columns[i] != null, "Primary key column %s is not set",
+          schema.getColumnByIndex(i).getName());
+    }
+    for (int col = columnsBitSet.nextSetBit(0); col >= 0; col = columnsBitSet.nextSetBit(col + 1)) {
+      if (!(columns[col] instanceof byte[][])) {
+        continue;
+      }
+      byte[][] values = (byte[][]) columns[col];
+      for (int row = 0; row < rowCount; row++) {
+        Preconditions.checkArgument(values[row] != null || isNull(col, row),
+            "Row %s has no value for column %s", row, schema.getColumnByIndex(col).getName());
+      }
+    }
+  }
+
+  /**
+   * Returns the columns that were set, indexed like in the schema.
+   * @return a bit set that mustn't be modified
+   */
+  BitSet getColumnsBitSet() {
+    return columnsBitSet;
+  }
+
+  /**
+   * Returns the values of the specified column.
+   * @param columnIndex the column's index in the schema
+   * @return one of the arrays accepted by the setColumn methods, or null if it wasn't set
+   */
+  Object getColumn(int columnIndex) {
+    return columns[columnIndex];
+  }
+
+  boolean isNull(int columnIndex, int row) {
+    return nulls[columnIndex] != null && nulls[columnIndex].get(row);
+  }
+
+  /**
+   * Returns how many bytes every row takes once encoded when none of its cells is null, see
+   * {@link #getEncodedSizeBytes(int, int)}.
+   * @return a size in bytes
+   */
+  int getFixedEncodedSizeBytes() {
+    int columnCount = schema.getColumnCount();
+    int size = 1 + Bytes.getBitSetSize(columnCount);
+    if (schema.hasNullableColumns()) {
+      size += Bytes.getBitSetSize(columnCount);
+    }
+    for (int col = columnsBitSet.nextSetBit(0); col >= 0; col = columnsBitSet.nextSetBit(col + 1)) {
+      size += schema.getColumnByIndex(col).getType().getSize();
+    }
+    return size;
+  }
+
+  /**
+   * Returns how many bytes a row takes once encoded, STRING and BINARY values included.
+   * @param row the index of the row in this block
+   * @param fixedSizeBytes the result of {@link #getFixedEncodedSizeBytes()}
+   * @return a size in bytes
+   */
+  long getEncodedSizeBytes(int row, int fixedSizeBytes) {
+    long size = fixedSizeBytes;
+    for (int col = columnsBitSet.nextSetBit(0); col >= 0; col = columnsBitSet.nextSetBit(col + 1)) {
+      if (isNull(col, row)) {
+        size -= schema.getColumnByIndex(col).getType().getSize();
+      } else if (columns[col] instanceof byte[][]) {
+        size += ((byte[][]) columns[col])[row].length;
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Copies the primary key of the specified row into a PartialRow, which is enough to compute
+   * the row's partition key.
+   * @param row the index of the row in this block
+   * @param keyRow a row of this block's schema, its primary key columns are overwritten
+   */
+  void copyKeyTo(int row, PartialRow keyRow) {
+    for (int col = 0; col < schema.getPrimaryKeyColumnCount(); col++) {
+      ColumnSchema column = schema.getColumnByIndex(col);
+      Object values = columns[col];
+      switch (column.getType()) {
+        case BOOL: keyRow.addBoolean(col, ((boolean[]) values)[row]); break;
+        case INT8: keyRow.addByte(col, ((byte[]) values)[row]); break;
+        case INT16: keyRow.addShort(col, ((short[]) values)[row]); break;
+        case INT32: keyRow.addInt(col, ((int[]) values)[row]); break;
+        case INT64:
+        case TIMESTAMP: keyRow.addLong(col, ((long[]) values)[row]); break;
+        case FLOAT: keyRow.addFloat(col, ((float[]) values)[row]); break;
+        case DOUBLE: keyRow.addDouble(col, ((double[]) values)[row]); break;
+        case STRING: keyRow.addStringUtf8(col, ((byte[][]) values)[row]); break;
+        case BINARY: keyRow.addBinary(col, ((byte[][]) values)[row]); break;
+        default: throw new IllegalArgumentException("Unsupported column type: " +
+            column.getType());
+      }
+    }
+  }
+}
@@ -0,0 +1,96 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.kududb.client;
+
+import org.kududb.annotations.InterfaceAudience;
+import org.kududb.annotations.InterfaceStability;
+
+/**
+ * Error returned by a tablet server for a single row of a {@link ColumnarRowBlock}, or for a
+ * single row of a batch that a session replayed from its write spool, see
+ * {@link SessionConfiguration#setWriteSpool(String, long)}.
+ */
+@InterfaceAudience.Public
+@InterfaceStability.Unstable
+public class ColumnarRowError {
+  private final int rowIndex;
+  private final Status status;
+  private final String tsUUID;
+  private final String tableName;
+  private final String tabletId;
+
+  ColumnarRowError(int rowIndex, Status status, String tsUUID) {
+    this(rowIndex, status, tsUUID, null, null);
+  }
+
+  ColumnarRowError(int rowIndex, Status status, String tsUUID, String tableName,
+                   String tabletId) {
+    this.rowIndex = rowIndex;
+    this.status = status;
+    this.tsUUID = tsUUID;
+    this.tableName = tableName;
+    this.tabletId = tabletId;
+  }
+
+  /**
+   * Get the index of the row that failed in the block that was applied.
+   * @return a row index
+   */
+  public int getRowIndex() {
+    return rowIndex;
+  }
+
+  /**
+   * Get the status code and message of the row error.
+   */
+  public Status getErrorStatus() {
+    return status;
+  }
+
+  /**
+   * Get the identifier of the tablet server that sent the error.
+   * @return A string containing a UUID.
+   */
+  public String getTsUUID() {
+    return tsUUID;
+  }
+
+  /**
+   * Get the name of the table the row was written to. Only set for the rows of spooled batches.
+   * @return a table name, or null
+   */
+  public String getTableName() {
+    return tableName;
+  }
+
+  /**
+   * Get the identifier of the tablet the row was written to. Only set for the rows of spooled
+   * batches.
+   * @return a tablet id, or null
+   */
+  public String getTabletId() {
+    return tabletId;
+  }
+
+  @Override
+  public String toString() {
+    return "Row error for row index=" + rowIndex +
+        (tabletId == null ? "" : ", table=" + tableName + ", tablet=" + tabletId) +
+        ", server=" + tsUUID +
+        ", status=" + status.toString();
+  }
+}
@@ -0,0 +1,83 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.kududb.client;
+
+import org.kududb.annotations.InterfaceAudience;
+import org.kududb.annotations.InterfaceStability;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Response to applying a {@link ColumnarRowBlock}, which gathers the responses of all the tablets
+ * the block's rows were sent to.
+ */
+@InterfaceAudience.Public
+@InterfaceStability.Unstable
+public class ColumnarWriteResponse {
+
+  private final long writeTimestamp;
+  private final List<ColumnarRowError> rowErrors;
+
+  ColumnarWriteResponse(long writeTimestamp, List<ColumnarRowError> rowErrors) {
+    this.writeTimestamp = writeTimestamp;
+    this.rowErrors = rowErrors;
+  }
+
+  /**
+   * Combines the responses of the tablets that received part of a block.
+   * @param responses one response per tablet
+   * @return a response with all the row errors and the latest write timestamp
+   */
+  static ColumnarWriteResponse combine(List<ColumnarWriteResponse> responses) {
+    if (responses.size() == 1) {
+      return responses.get(0);
+    }
+    long writeTimestamp = 0;
+    List<ColumnarRowError> rowErrors = new ArrayList<>();
+    for (ColumnarWriteResponse response : responses) {
+      writeTimestamp = Math.max(writeTimestamp, response.writeTimestamp);
+      rowErrors.addAll(response.rowErrors);
+    }
+    return new ColumnarWriteResponse(writeTimestamp, rowErrors);
+  }
+
+  /**
+   * Gives the latest write timestamp returned by the tablet servers.
+   * @return a timestamp in Hybrid Time, or 0 if none was returned
+   */
+  public long getWriteTimestamp() {
+    return writeTimestamp;
+  }
+
+  /**
+   * Tells if at least one row failed.
+   * @return true if there are row errors
+   */
+  public boolean hasRowErrors() {
+    return !rowErrors.isEmpty();
+  }
+
+  /**
+   * Returns the errors of the rows that failed, the other rows were inserted.
+   * @return a possibly empty list of row errors, which aren't in a particular order
+   */
+  public List<ColumnarRowError> getRowErrors() {
+    return Collections.unmodifiableList(rowErrors);
+  }
+}
@@ -16,22 +16,56 @@
 // under the License.
 package org.kududb.client;
 
+import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import org.kududb.annotations.InterfaceAudience;
 import org.kududb.annotations.InterfaceStability;
+import org.kududb.util.Slice;
 
 import java.util.ArrayDeque;
-import java.util.Queue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Class that helps tracking row errors. All methods are thread-safe.
+ * <p>
+ * Adding an error doesn't take any lock since it's done from the IO threads for every row error:
+ * the errors are kept in a ring buffer where each error claims a slot by incrementing a sequence
+ * number, overwriting the oldest error once the buffer is full. Each slot holds its error along
+ * with its sequence number and is only swapped with a compare-and-set, so a writer that was
+ * descheduled for a whole lap of the ring cannot overwrite the newer error that took its slot in
+ * the meantime. Only the readers synchronize between themselves.
+ * <p>
+ * When aggregating, errors are also counted by tablet and error code, and only the first error of
+ * each tablet and error code is kept in the ring buffer as the exemplar of its aggregate. The
+ * aggregates returned by {@link #getErrors()} may miss the errors that are added while it runs.
  */
 @InterfaceAudience.Private
 @InterfaceStability.Evolving
 public class ErrorCollector {
-  private final Queue<RowError> errorQueue;
   private final int maxCapacity;
-  private boolean overflowed;
+  // The newest error stored in each slot, null until the first lap of the ring completes.
+  private final AtomicReferenceArray<Entry> errors;
+  // Sequence number of the next error to add.
+  private final AtomicLong nextSequence = new AtomicLong();
+  // Sequence number of the next error to return, only moved by the readers. Slots are cleared once
+  // read.
+  private volatile long readSequence = 0;
+  // Errors that were overwritten before being read, reset by getErrors().
+  private final AtomicLong discardedErrors = new AtomicLong();
+
+  // Errors of the rows of spooled batches, which don't have operations. They're only added when
+  // batches are replayed, so they're simply kept under a lock, up to the same capacity.
+  private final ArrayDeque<ColumnarRowError> spooledErrors = new ArrayDeque<>();
+
+  private volatile boolean aggregating = false;
+  private final AtomicReference<ConcurrentHashMap<AggregateKey, RowErrorAggregate>> aggregates =
+      new AtomicReference<>(new ConcurrentHashMap<AggregateKey, RowErrorAggregate>());
 
   /**
    * Create a new error collector with a maximum capacity.
@@ -40,44 +74,212 @@ public class ErrorCollector {
   public ErrorCollector(int maxCapacity) {
     Preconditions.checkArgument(maxCapacity > 0, "Need to be able to store at least one row error");
     this.maxCapacity = maxCapacity;
-    this.errorQueue = new ArrayDeque<>(maxCapacity);
+    this.errors = new AtomicReferenceArray<>(maxCapacity);
+  }
+
+  /**
+   * Sets whether errors are aggregated by tablet and error code.
+   * @param aggregating true to aggregate errors
+   */
+  void setAggregating(boolean aggregating) {
+    this.aggregating = aggregating;
+  }
+
+  /**
+   * Tells if errors are aggregated by tablet and error code.
+   * @return true if errors are aggregated
+   */
+  boolean isAggregating() {
+    return aggregating;
   }
 
   /**
    * Add a new error to this collector. If it is already at max capacity, the oldest error will be
-   * discarded before the new one is added.
+   * discarded before the new one is added. When aggregating, the error is only counted unless
+   * it's the first one of its tablet and error code.
    * @param rowError a row error to collect
    */
-  public synchronized void addError(RowError rowError) {
-    if (errorQueue.size() >= maxCapacity) {
-      errorQueue.poll();
-      overflowed = true;
+  public void addError(RowError rowError) {
+    if (aggregating) {
+      AggregateKey key = new AggregateKey(rowError);
+      ConcurrentHashMap<AggregateKey, RowErrorAggregate> current = aggregates.get();
+      RowErrorAggregate aggregate = current.get(key);
+      if (aggregate == null) {
+        RowErrorAggregate newAggregate = new RowErrorAggregate(key.tabletId == null ?
+            null : rowError.getOperation().getTablet().getTabletIdAsString(), key.errorCode,
+            rowError);
+        aggregate = current.putIfAbsent(key, newAggregate);
+        if (aggregate == null) {
+          newAggregate.increment();
+          store(rowError);
+          return;
+        }
+      }
+      aggregate.increment();
+      return;
     }
-    errorQueue.add(rowError);
+    store(rowError);
   }
 
   /**
-   * Get the current count of collected row errors. Cannot be greater than the max capacity this
-   * instance was configured with.
+   * Add the error of a row of a batch that was replayed from the write spool. If there are
+   * already as many of those as the max capacity, the oldest one is discarded.
+   * @param rowError a row error to collect
+   */
+  void addSpooledError(ColumnarRowError rowError) {
+    synchronized (spooledErrors) {
+      if (spooledErrors.size() == maxCapacity) {
+        spooledErrors.poll();
+        discardedErrors.incrementAndGet();
+      }
+      spooledErrors.add(rowError);
+    }
+  }
+
+  /**
+   * Puts an error in the next slot of the ring buffer.
+   */
+  private void store(RowError rowError) {
+    long sequence = nextSequence.getAndIncrement();
+    int slot = (int) (sequence % maxCapacity);
+    Entry entry = new Entry(sequence, rowError);
+    while (true) {
+      Entry current = errors.get(slot);
+      if (current != null && current.sequence > sequence) {
+        // A writer that's a lap ahead already took the slot, this error is the older one.
+        discardedErrors.incrementAndGet();
+        return;
+      }
+      if (errors.compareAndSet(slot, current, entry)) {
+        if (current != null && current.rowError != null) {
+          // The readers empty the entries they read, so the error that was there was never read.
+          discardedErrors.incrementAndGet();
+        }
+        return;
+      }
+    }
+  }
+
+  /**
+   * Get the current count of collected row errors, including the ones of spooled batches. Cannot
+   * be greater than twice the max capacity this instance was configured with.
    * @return the count of errors
    */
-  public synchronized int countErrors() {
-    return errorQueue.size();
+  public int countErrors() {
+    long pending = nextSequence.get() - readSequence;
+    int spooled;
+    synchronized (spooledErrors) {
+      spooled = spooledErrors.size();
+    }
+    return (int) Math.min(pending, maxCapacity) + spooled;
   }
 
   /**
    * Get all the errors that have been collected and an indication if the list overflowed.
-   * The list of errors cleared and the overflow state is reset.
+   * The list of errors cleared and the overflow state is reset, as are the aggregates.
    * @return an object that contains both the list of row errors and the overflow status
    */
   public synchronized RowErrorsAndOverflowStatus getErrors() {
-    RowError[] returnedErrors = new RowError[errorQueue.size()];
-    errorQueue.toArray(returnedErrors);
-    errorQueue.clear();
-
-    RowErrorsAndOverflowStatus returnObject =
-        new RowErrorsAndOverflowStatus(returnedErrors, overflowed);
-    overflowed = false;
-    return returnObject;
+    List<RowErrorAggregate> returnedAggregates = Collections.emptyList();
+    if (!aggregates.get().isEmpty()) {
+      ConcurrentHashMap<AggregateKey, RowErrorAggregate> previous =
+          aggregates.getAndSet(new ConcurrentHashMap<AggregateKey, RowErrorAggregate>());
+      returnedAggregates = new ArrayList<>(previous.values());
+    }
+
+    long end = nextSequence.get();
+    long start = Math.max(readSequence, end - maxCapacity);
+    List<RowError> returnedErrors = new ArrayList<>((int) (end - start));
+    for (long sequence = start; sequence < end; sequence++) {
+      RowError rowError = read(sequence);
+      if (rowError != null) {
+        returnedErrors.add(rowError);
+      }
+    }
+    readSequence = end;
+
+    List<ColumnarRowError> returnedSpooledErrors = Collections.emptyList();
+    synchronized (spooledErrors) {
+      if (!spooledErrors.isEmpty()) {
+        returnedSpooledErrors = new ArrayList<>(spooledErrors);
+        spooledErrors.clear();
+      }
+    }
+
+    long discarded = discardedErrors.getAndSet(0);
+    return new RowErrorsAndOverflowStatus(
+        returnedErrors.toArray(new RowError[returnedErrors.size()]), discarded > 0, discarded,
+        returnedAggregates, returnedSpooledErrors);
+  }
+
+  /**
+   * Reads the error that has the given sequence number, waiting for it to be stored if the thread
+   * that's adding it didn't yet. That thread only has a compare-and-set left to do, which can
+   * only fail because of newer errors, so this doesn't wait for long.
+   * @return the error, or null if it was already overwritten by a newer one
+   */
+  private RowError read(long sequence) {
+    int slot = (int) (sequence % maxCapacity);
+    while (true) {
+      Entry current = errors.get(slot);
+      if (current != null && current.sequence > sequence) {
+        return null;
+      }
+      if (current != null && current.sequence == sequence) {
+        // Whoever swaps the entry first gets the error: if it's the thread that's reusing the
+        // slot, it counted the error as discarded. The sequence number stays in the slot so
+        // that older writers still see they're late.
+        if (errors.compareAndSet(slot, current, new Entry(sequence, null))) {
+          return current.rowError;
+        }
+      } else {
+        Thread.yield();
+      }
+    }
+  }
+
+  /**
+   * An error along with its sequence number. The error is null once it was read.
+   */
+  private static final class Entry {
+    private final long sequence;
+    private final RowError rowError;
+
+    Entry(long sequence, RowError rowError) {
+      this.sequence = sequence;
+      this.rowError = rowError;
+    }
+  }
+
+  /**
+   * What errors are aggregated by.
+   */
+  private static final class AggregateKey {
+    private final Slice tabletId;
+    private final String errorCode;
+
+    AggregateKey(RowError rowError) {
+      Operation operation = rowError.getOperation();
+      this.tabletId = operation == null || operation.getTablet() == null ?
+          null : operation.getTablet().getTabletId();
+      this.errorCode = rowError.getErrorStatus().getCodeName();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof AggregateKey)) {
+        return false;
+      }
+      AggregateKey that = (AggregateKey) o;
+      return Objects.equal(tabletId, that.tabletId) && errorCode.equals(that.errorCode);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(tabletId, errorCode);
+    }
   }
 }
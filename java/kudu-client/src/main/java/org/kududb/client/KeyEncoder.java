@@ -24,18 +24,40 @@ import org.kududb.Type;
 import org.kududb.annotations.InterfaceAudience;
 import org.kududb.client.PartitionSchema.HashBucketSchema;
 
-import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.List;
 
 /**
  * Utility class for encoding rows into primary and partition keys.
+ *
+ * The key is built in a scratch array that grows as needed and is reused from one key to the
+ * next, so encoding a key only allocates the returned array. An encoder isn't thread-safe, use
+ * {@link #get()} to reuse the current thread's encoder.
  */
 @InterfaceAudience.Private
 class KeyEncoder {
 
-  private final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+  private static final ThreadLocal<KeyEncoder> ENCODERS = new ThreadLocal<KeyEncoder>() {
+    @Override
+    protected KeyEncoder initialValue() {
+      return new KeyEncoder();
+    }
+  };
+
+  private byte[] buf = new byte[64];
+  private int length = 0;
+
+  // Buckets of the hash components of the partition key being encoded.
+  private int[] buckets = new int[4];
+
+  /**
+   * Returns the encoder that belongs to the current thread.
+   * @return an encoder that must not be shared with other threads
+   */
+  static KeyEncoder get() {
+    return ENCODERS.get();
+  }
 
   /**
    * Encodes the primary key of the row.
@@ -44,7 +66,7 @@ class KeyEncoder {
    * @return the encoded primary key of the row
    */
   public byte[] encodePrimaryKey(final PartialRow row) {
-    buf.reset();
+    length = 0;
 
     final Schema schema = row.getSchema();
     for (int columnIdx = 0; columnIdx < schema.getPrimaryKeyColumnCount(); columnIdx++) {
@@ -54,6 +76,29 @@ class KeyEncoder {
     return extractByteArray();
   }
 
+  /**
+   * Hashes the encoded primary key of the row without allocating it. The hash is the same as
+   * {@code Arrays.hashCode(encodePrimaryKey(row))}.
+   *
+   * @param row the row to hash
+   * @return the hash of the row's encoded primary key
+   */
+  int hashPrimaryKey(final PartialRow row) {
+    length = 0;
+
+    final Schema schema = row.getSchema();
+    for (int columnIdx = 0; columnIdx < schema.getPrimaryKeyColumnCount(); columnIdx++) {
+      final boolean isLast = columnIdx + 1 == schema.getPrimaryKeyColumnCount();
+      encodeColumn(row, columnIdx, isLast);
+    }
+    int hash = 1;
+    for (int i = 0; i < length; i++) {
+      hash = 31 * hash + buf[i];
+    }
+    length = 0;
+    return hash;
+  }
+
   /**
    * Encodes the provided row into a partition key according to the partition schema.
    *
@@ -62,29 +107,64 @@ class KeyEncoder {
    * @return an encoded partition key
    */
   public byte[] encodePartitionKey(PartialRow row, PartitionSchema partitionSchema) {
-    buf.reset();
-    if (!partitionSchema.getHashBucketSchemas().isEmpty()) {
-      ByteBuffer bucketBuf = ByteBuffer.allocate(4 * partitionSchema.getHashBucketSchemas().size());
-      bucketBuf.order(ByteOrder.BIG_ENDIAN);
-
-      for (final HashBucketSchema hashBucketSchema : partitionSchema.getHashBucketSchemas()) {
-        encodeColumns(row, hashBucketSchema.getColumnIds());
-        byte[] encodedColumns = extractByteArray();
-        long hash = Murmur2.hash64(encodedColumns,
-                                   encodedColumns.length,
-                                   hashBucketSchema.getSeed());
-        int bucket = (int) UnsignedLongs.remainder(hash, hashBucketSchema.getNumBuckets());
-        bucketBuf.putInt(bucket);
-      }
+    final List<HashBucketSchema> hashBucketSchemas = partitionSchema.getHashBucketSchemas();
+    if (buckets.length < hashBucketSchemas.size()) {
+      buckets = new int[hashBucketSchemas.size()];
+    }
+
+    // The buckets are computed first since hashing uses the scratch array, then they're written
+    // out before the range component.
+    for (int i = 0; i < hashBucketSchemas.size(); i++) {
+      buckets[i] = hashBucket(row, hashBucketSchemas.get(i));
+    }
 
-      assert bucketBuf.arrayOffset() == 0;
-      buf.write(bucketBuf.array(), 0, bucketBuf.position());
+    length = 0;
+    for (int i = 0; i < hashBucketSchemas.size(); i++) {
+      ensureCapacity(4);
+      int bucket = buckets[i];
+      buf[length++] = (byte) (bucket >>> 24);
+      buf[length++] = (byte) (bucket >>> 16);
+      buf[length++] = (byte) (bucket >>> 8);
+      buf[length++] = (byte) bucket;
     }
 
     encodeColumns(row, partitionSchema.getRangeSchema().getColumns());
     return extractByteArray();
   }
 
+  /**
+   * Computes the hash buckets of the row and combines them into a single index, where the bucket
+   * of the first hash component varies the slowest. This is what the partition key would start
+   * with, without encoding the rest of it.
+   *
+   * @param row the row to route
+   * @param partitionSchema the partition schema describing the table's partitioning
+   * @return a number between 0 and the product of the hash components' number of buckets
+   */
+  int getHashBucketsIndex(PartialRow row, PartitionSchema partitionSchema) {
+    final List<HashBucketSchema> hashBucketSchemas = partitionSchema.getHashBucketSchemas();
+    int index = 0;
+    for (int i = 0; i < hashBucketSchemas.size(); i++) {
+      HashBucketSchema hashBucketSchema = hashBucketSchemas.get(i);
+      index = index * hashBucketSchema.getNumBuckets() + hashBucket(row, hashBucketSchema);
+    }
+    return index;
+  }
+
+  /**
+   * Computes the bucket of a row for a hash component. The component is encoded at the start of
+   * the scratch array so that it can be hashed in place, overwriting what was there.
+   * @param row the row to hash
+   * @param hashBucketSchema the hash component
+   * @return the row's bucket
+   */
+  private int hashBucket(PartialRow row, HashBucketSchema hashBucketSchema) {
+    length = 0;
+    encodeColumns(row, hashBucketSchema.getColumnIds());
+    long hash = Murmur2.hash64(buf, length, hashBucketSchema.getSeed());
+    return (int) UnsignedLongs.remainder(hash, hashBucketSchema.getNumBuckets());
+  }
+
   /**
    * Encodes a sequence of columns from the row.
    * @param row the row containing the columns to encode
@@ -129,26 +209,52 @@ class KeyEncoder {
    */
   private void addBinaryComponent(ByteBuffer value, boolean isLast) {
     value.reset();
+    final int start = length;
+    final int valueLength = value.remaining();
+    ensureCapacity(valueLength);
+    // This works for both heap and direct buffers, the position is restored by the next reset().
+    value.get(buf, length, valueLength);
+    length += valueLength;
 
-    // TODO find a way to not have to read byte-by-byte that doesn't require extra copies. This is
-    // especially slow now that users can pass direct byte buffers.
-    while (value.hasRemaining()) {
-      byte currentByte = value.get();
-      buf.write(currentByte);
-      if (!isLast && currentByte == 0x00) {
-        // If we're a middle component of a composite key, we need to add a \x00
-        // at the end in order to separate this component from the next one. However,
-        // if we just did that, we'd have issues where a key that actually has
-        // \x00 in it would compare wrong, so we have to instead add \x00\x00, and
-        // encode \x00 as \x00\x01. -- key_encoder.h
-        buf.write(0x01);
-      }
+    if (!isLast) {
+      // If we're a middle component of a composite key, we need to add a \x00
+      // at the end in order to separate this component from the next one. However,
+      // if we just did that, we'd have issues where a key that actually has
+      // \x00 in it would compare wrong, so we have to instead add \x00\x00, and
+      // encode \x00 as \x00\x01. -- key_encoder.h
+      escapeZeros(start);
+      ensureCapacity(2);
+      buf[length++] = 0x00;
+      buf[length++] = 0x00;
     }
+  }
 
-    if (!isLast) {
-      buf.write(0x00);
-      buf.write(0x00);
+  /**
+   * Replaces each \x00 written since the given position by \x00\x01. The bytes are only moved if
+   * there's at least one \x00, and then only once.
+   * @param start where the value to escape begins in the scratch array
+   */
+  private void escapeZeros(int start) {
+    int zeros = 0;
+    for (int i = start; i < length; i++) {
+      if (buf[i] == 0x00) {
+        zeros++;
+      }
+    }
+    if (zeros == 0) {
+      return;
+    }
+    ensureCapacity(zeros);
+    // Going backwards so that the bytes are shifted in place.
+    int write = length + zeros - 1;
+    for (int read = length - 1; read >= start; read--) {
+      byte currentByte = buf[read];
+      if (currentByte == 0x00) {
+        buf[write--] = 0x01;
+      }
+      buf[write--] = currentByte;
     }
+    length += zeros;
   }
 
   /**
@@ -165,14 +271,11 @@ class KeyEncoder {
       case INT32:
       case INT64:
       case TIMESTAMP:
+        ensureCapacity(len);
         // Picking the first byte because big endian.
-        byte lastByte = value[offset + (len - 1)];
-        lastByte = Bytes.xorLeftMostBit(lastByte);
-        buf.write(lastByte);
-        if (len > 1) {
-          for (int i = len - 2; i >= 0; i--) {
-            buf.write(value[offset + i]);
-          }
+        buf[length++] = Bytes.xorLeftMostBit(value[offset + (len - 1)]);
+        for (int i = len - 2; i >= 0; i--) {
+          buf[length++] = value[offset + i];
         }
         break;
       default:
@@ -181,13 +284,23 @@ class KeyEncoder {
     }
   }
 
+  /**
+   * Makes sure that the given number of bytes can be written after the current end of the key.
+   * @param bytes how many bytes will be written
+   */
+  private void ensureCapacity(int bytes) {
+    if (length + bytes > buf.length) {
+      buf = Arrays.copyOf(buf, Math.max(buf.length * 2, length + bytes));
+    }
+  }
+
   /**
    * Returns the encoded key, and resets the key encoder to be used for another key.
    * @return the encoded key which has been built through calls to {@link #addComponent}
    */
   private byte[] extractByteArray() {
-    byte[] bytes = buf.toByteArray();
-    buf.reset();
+    byte[] bytes = Arrays.copyOf(buf, length);
+    length = 0;
     return bytes;
   }
 }
@@ -0,0 +1,478 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.kududb.client;
+
+import com.google.common.base.Preconditions;
+import com.stumbleupon.async.Callback;
+import org.kududb.annotations.InterfaceAudience;
+import org.kududb.annotations.InterfaceStability;
+import org.kududb.util.Slice;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes a large amount of rows to a table, typically to load it for the first time, without
+ * the restrictions that {@link AsyncKuduSession} has to keep the operations in order.
+ * <p>
+ * The operations are grouped by tablet in batches of {@code maxBatchRows} operations. A full
+ * batch is queued for the tablet server that hosts the leader of its tablet, and each tablet
+ * server has at most {@code maxInFlightBatchesPerServer} batches being written at the same time,
+ * whatever their tablets are. A tablet can have more than one batch in flight, so the operations
+ * on the same row can be applied in any order: this is meant for inserting distinct rows.
+ * <p>
+ * {@link #write(Operation)} blocks when a tablet server already has
+ * {@code maxQueuedBatchesPerServer} batches waiting to be sent, so that a fast producer cannot
+ * buffer more than the cluster can take. It also blocks while it looks up a tablet the client
+ * doesn't know about yet. It must not be called from a callback of the client.
+ * <p>
+ * Row errors, including those of operations whose whole batch failed, are collected and can be
+ * retrieved with {@link #getPendingErrors()}. The operations themselves are never called back.
+ * <p>
+ * This class is thread-safe.
+ */
+@InterfaceAudience.Public
+@InterfaceStability.Unstable
+public class KuduBulkWriter implements AutoCloseable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(KuduBulkWriter.class);
+
+  // Key of the queue of batches whose tablet has no known leader, they're routed when sent.
+  private static final String UNKNOWN_SERVER = "";
+
+  private final AsyncKuduClient client;
+  private final KuduTable table;
+  private final int maxBatchRows;
+  private final int maxInFlightBatchesPerServer;
+  private final int maxQueuedBatchesPerServer;
+  private final long timeoutMs;
+  private final boolean ignoreAllDuplicateRows;
+  private final ErrorCollector errorCollector;
+
+  // The batch being filled for each tablet.
+  @GuardedBy("this")
+  private final Map<Slice, Batch> openBatches = new HashMap<>();
+  private final ConcurrentHashMap<String, ServerQueue> serverQueues = new ConcurrentHashMap<>();
+
+  // Batches that were queued or sent but aren't done, flush() waits on this lock for it to be 0.
+  @GuardedBy("pendingLock")
+  private int pendingBatches = 0;
+  private final Object pendingLock = new Object();
+
+  private final long startNanos = System.nanoTime();
+  private final AtomicLong writtenRows = new AtomicLong();
+  private final AtomicLong writtenBytes = new AtomicLong();
+  // Only set while holding this writer's lock, so that write() can't add to a batch that
+  // close() won't flush. Volatile so that write() can fail fast before looking up the tablet.
+  private volatile boolean closed = false;
+
+  private KuduBulkWriter(KuduBulkWriterBuilder builder) {
+    this.client = builder.client;
+    this.table = builder.table;
+    this.maxBatchRows = builder.maxBatchRows;
+    this.maxInFlightBatchesPerServer = builder.maxInFlightBatchesPerServer;
+    this.maxQueuedBatchesPerServer = builder.maxQueuedBatchesPerServer;
+    this.timeoutMs = builder.timeoutMs;
+    this.ignoreAllDuplicateRows = builder.ignoreAllDuplicateRows;
+    this.errorCollector = new ErrorCollector(builder.maxPendingErrors);
+  }
+
+  /**
+   * Adds an operation to the batch of its tablet, sending the batch if it's full.
+   * @param operation an operation on this writer's table
+   * @throws IllegalArgumentException if the operation isn't on this writer's table
+   * @throws IllegalStateException if this writer is closed
+   * @throws Exception if the tablet couldn't be looked up, or if the producer was interrupted
+   * while waiting for room in its tablet server's queue
+   */
+  public void write(Operation operation) throws Exception {
+    Preconditions.checkArgument(operation.getTable().getTableId().equals(table.getTableId()),
+        "The operation must be on table " + table.getName());
+    if (closed) {
+      throw new IllegalStateException("Cannot write with a closed bulk writer");
+    }
+    operation.getRow().freeze();
+    AsyncKuduClient.RemoteTablet tablet = client.getTabletForRow(table, operation.getRow());
+    if (tablet == null) {
+      client.locateTablet(table, operation.partitionKey()).join(timeoutMs);
+      tablet = client.getTabletForRow(table, operation.getRow());
+      if (tablet == null) {
+        throw new NonRecoverableException("Cannot find the tablet of " + operation);
+      }
+    }
+    operation.setTablet(tablet);
+
+    Batch fullBatch = null;
+    synchronized (this) {
+      if (closed) {
+        throw new IllegalStateException("Cannot write with a closed bulk writer");
+      }
+      Batch batch = openBatches.get(tablet.getTabletId());
+      if (batch == null) {
+        batch = new Batch(table, ignoreAllDuplicateRows, maxBatchRows);
+        // Only the operations that failed get a response.
+        batch.perBatchCompletion = true;
+        openBatches.put(tablet.getTabletId(), batch);
+      }
+      batch.add(operation);
+      batch.bufferedBytes += operation.getEncodedSizeBytes();
+      if (batch.ops.size() >= maxBatchRows) {
+        openBatches.remove(tablet.getTabletId());
+        fullBatch = batch;
+      }
+    }
+    if (fullBatch != null) {
+      enqueue(tablet, fullBatch, true);
+    }
+  }
+
+  /**
+   * Sends the batches that aren't full yet and waits until all the batches are done.
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public void flush() throws InterruptedException {
+    List<Batch> batches;
+    synchronized (this) {
+      batches = new ArrayList<>(openBatches.values());
+      openBatches.clear();
+    }
+    for (Batch batch : batches) {
+      enqueue(batch.ops.get(0).getTablet(), batch, false);
+    }
+    synchronized (pendingLock) {
+      while (pendingBatches > 0) {
+        pendingLock.wait();
+      }
+    }
+  }
+
+  /**
+   * Flushes this writer, after which it cannot be written to.
+   * @throws InterruptedException if interrupted while waiting for the batches
+   */
+  @Override
+  public void close() throws InterruptedException {
+    synchronized (this) {
+      closed = true;
+    }
+    flush();
+  }
+
+  /**
+   * Queues a batch for the tablet server of its tablet, and sends it right away if the server
+   * has room for it.
+   * @param tablet the batch's tablet
+   * @param batch the batch to send
+   * @param blockIfFull whether to wait while the server's queue is full
+   * @throws InterruptedException if interrupted while waiting for room in the queue
+   */
+  private void enqueue(AsyncKuduClient.RemoteTablet tablet, Batch batch, boolean blockIfFull)
+      throws InterruptedException {
+    TabletClient leader = client.clientFor(tablet);
+    String server = leader == null ? UNKNOWN_SERVER : leader.getUuid();
+    ServerQueue queue = serverQueues.get(server);
+    if (queue == null) {
+      ServerQueue newQueue = new ServerQueue(server);
+      queue = serverQueues.putIfAbsent(server, newQueue);
+      if (queue == null) {
+        queue = newQueue;
+      }
+    }
+    synchronized (pendingLock) {
+      pendingBatches++;
+    }
+    Batch toSend = null;
+    synchronized (queue) {
+      while (blockIfFull && queue.queued.size() >= maxQueuedBatchesPerServer) {
+        queue.wait();
+      }
+      if (queue.inFlight < maxInFlightBatchesPerServer) {
+        queue.inFlight++;
+        toSend = batch;
+      } else {
+        queue.queued.add(batch);
+      }
+    }
+    if (toSend != null) {
+      send(queue, toSend);
+    }
+  }
+
+  private void send(ServerQueue queue, Batch batch) {
+    if (timeoutMs != 0) {
+      batch.deadlineTracker.reset();
+      batch.setTimeoutMillis(timeoutMs);
+    }
+    batch.getDeferred().addCallbacks(new BatchCallback(queue, batch),
+        new BatchErrCallback(queue, batch));
+    client.sendBatchToTablet(batch);
+  }
+
+  /**
+   * Collects the errors of a batch that's done and sends the next batch of its server.
+   * @param queue the queue the batch was taken from
+   * @param batch the batch that's done
+   * @param response the batch's response, which only has the operations that failed
+   */
+  private void batchDone(ServerQueue queue, Batch batch, BatchResponse response) {
+    for (OperationResponse operationResponse : response.getIndividualResponses()) {
+      errorCollector.addError(operationResponse.getRowError());
+    }
+    writtenRows.addAndGet(batch.ops.size() - response.getIndividualResponses().size());
+    writtenBytes.addAndGet(batch.bufferedBytes);
+    batch.releaseEncodedOperations();
+
+    Batch next;
+    synchronized (queue) {
+      next = queue.queued.poll();
+      if (next == null) {
+        queue.inFlight--;
+      } else {
+        // A producer may be waiting for room in the queue.
+        queue.notifyAll();
+      }
+    }
+    if (next != null) {
+      send(queue, next);
+    }
+    synchronized (pendingLock) {
+      pendingBatches--;
+      if (pendingBatches == 0) {
+        pendingLock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Return the number of errors which are pending.
+   * @return a count of errors
+   */
+  public int countPendingErrors() {
+    return errorCollector.countErrors();
+  }
+
+  /**
+   * Return any errors from previous calls. If there were more errors than could be held in the
+   * writer's error storage, the overflow state is set to true. Resets the pending errors.
+   * @return an object that contains the errors and the overflow status
+   */
+  public RowErrorsAndOverflowStatus getPendingErrors() {
+    return errorCollector.getErrors();
+  }
+
+  /**
+   * Gets how many rows per second were written since this writer was created. The rows that
+   * failed aren't counted.
+   * @return a number of rows per second
+   */
+  public double getRowsPerSecond() {
+    return perSecond(writtenRows.get());
+  }
+
+  /**
+   * Gets how many bytes per second were written since this writer was created, going by the
+   * encoded size of the batches that completed.
+   * @return a number of bytes per second
+   */
+  public double getBytesPerSecond() {
+    return perSecond(writtenBytes.get());
+  }
+
+  private double perSecond(long count) {
+    long elapsedNanos = Math.max(1, System.nanoTime() - startNanos);
+    return count * 1e9 / elapsedNanos;
+  }
+
+  /**
+   * Gets how many batches are waiting to be sent to each tablet server, not counting the ones
+   * that are in flight. The batches of the tablets that had no known leader when they were queued
+   * are under the empty string.
+   * @return a map from tablet server UUID to a number of batches
+   */
+  public Map<String, Integer> getQueueDepths() {
+    Map<String, Integer> depths = new HashMap<>();
+    for (ServerQueue queue : serverQueues.values()) {
+      synchronized (queue) {
+        depths.put(queue.server, queue.queued.size());
+      }
+    }
+    return depths;
+  }
+
+  /**
+   * The batches of a tablet server, whatever their tablets are.
+   */
+  private static final class ServerQueue {
+    final String server;
+    @GuardedBy("this")
+    final ArrayDeque<Batch> queued = new ArrayDeque<>();
+    @GuardedBy("this")
+    int inFlight = 0;
+
+    ServerQueue(String server) {
+      this.server = server;
+    }
+  }
+
+  final class BatchCallback implements Callback<Void, BatchResponse> {
+    final ServerQueue queue;
+    final Batch batch;
+    BatchCallback(ServerQueue queue, Batch batch) {
+      this.queue = queue;
+      this.batch = batch;
+    }
+    public Void call(final BatchResponse response) {
+      if (response.getWriteTimestamp() != 0) {
+        client.updateLastPropagatedTimestamp(response.getWriteTimestamp());
+      }
+      batchDone(queue, batch, response);
+      return null;
+    }
+    public String toString() {
+      return "bulk writer batch response";
+    }
+  }
+
+  final class BatchErrCallback implements Callback<Void, Exception> {
+    final ServerQueue queue;
+    final Batch batch;
+    BatchErrCallback(ServerQueue queue, Batch batch) {
+      this.queue = queue;
+      this.batch = batch;
+    }
+    public Void call(final Exception e) {
+      LOG.debug("Bulk writer batch {} failed", batch, e);
+      batchDone(queue, batch, BatchResponse.fromBatchFailure(
+          batch.deadlineTracker.getElapsedMillis(), batch.ops, e));
+      return null;
+    }
+    public String toString() {
+      return "bulk writer batch error response";
+    }
+  }
+
+  /**
+   * Builder class to configure and create a {@link KuduBulkWriter}.
+   */
+  @InterfaceAudience.Public
+  @InterfaceStability.Unstable
+  public static final class KuduBulkWriterBuilder {
+    private final AsyncKuduClient client;
+    private final KuduTable table;
+    private int maxBatchRows = 1000;
+    private int maxInFlightBatchesPerServer = 2;
+    private int maxQueuedBatchesPerServer = 4;
+    private int maxPendingErrors = 1000;
+    private long timeoutMs;
+    private boolean ignoreAllDuplicateRows = false;
+
+    KuduBulkWriterBuilder(AsyncKuduClient client, KuduTable table) {
+      this.client = client;
+      this.table = table;
+      this.timeoutMs = client.getDefaultOperationTimeoutMs();
+    }
+
+    /**
+     * Sets how many operations are sent to a tablet in a single batch.
+     * Optional. If not provided, defaults to 1000.
+     * @param maxBatchRows a number of operations
+     * @return this builder
+     */
+    public KuduBulkWriterBuilder maxBatchRows(int maxBatchRows) {
+      Preconditions.checkArgument(maxBatchRows > 0, "The batches must have at least one row");
+      this.maxBatchRows = maxBatchRows;
+      return this;
+    }
+
+    /**
+     * Sets how many batches can be written to the same tablet server at the same time.
+     * Optional. If not provided, defaults to 2.
+     * @param maxInFlightBatchesPerServer a number of batches
+     * @return this builder
+     */
+    public KuduBulkWriterBuilder maxInFlightBatchesPerServer(int maxInFlightBatchesPerServer) {
+      Preconditions.checkArgument(maxInFlightBatchesPerServer > 0,
+          "At least one batch must be in flight per tablet server");
+      this.maxInFlightBatchesPerServer = maxInFlightBatchesPerServer;
+      return this;
+    }
+
+    /**
+     * Sets how many full batches can wait for a tablet server before
+     * {@link KuduBulkWriter#write(Operation)} blocks.
+     * Optional. If not provided, defaults to 4.
+     * @param maxQueuedBatchesPerServer a number of batches
+     * @return this builder
+     */
+    public KuduBulkWriterBuilder maxQueuedBatchesPerServer(int maxQueuedBatchesPerServer) {
+      Preconditions.checkArgument(maxQueuedBatchesPerServer > 0,
+          "At least one batch must be able to wait per tablet server");
+      this.maxQueuedBatchesPerServer = maxQueuedBatchesPerServer;
+      return this;
+    }
+
+    /**
+     * Sets how many row errors are kept until they're retrieved.
+     * Optional. If not provided, defaults to 1000.
+     * @param maxPendingErrors a number of errors
+     * @return this builder
+     */
+    public KuduBulkWriterBuilder maxPendingErrors(int maxPendingErrors) {
+      this.maxPendingErrors = maxPendingErrors;
+      return this;
+    }
+
+    /**
+     * Sets the timeout of each batch, and of the tablet lookups.
+     * Optional. If not provided, defaults to the client's default operation timeout.
+     * @param timeoutMs a timeout in milliseconds
+     * @return this builder
+     */
+    public KuduBulkWriterBuilder timeoutMillis(long timeoutMs) {
+      this.timeoutMs = timeoutMs;
+      return this;
+    }
+
+    /**
+     * Sets whether inserts of rows that already exist are ignored instead of reported as row
+     * errors, see {@link SessionConfiguration#setIgnoreAllDuplicateRows(boolean)}.
+     * Optional. If not provided, defaults to false.
+     * @param ignoreAllDuplicateRows true to ignore duplicate rows
+     * @return this builder
+     */
+    public KuduBulkWriterBuilder ignoreAllDuplicateRows(boolean ignoreAllDuplicateRows) {
+      this.ignoreAllDuplicateRows = ignoreAllDuplicateRows;
+      return this;
+    }
+
+    /**
+     * Creates a new {@link KuduBulkWriter} using the options specified in this builder.
+     * @return a new bulk writer
+     */
+    public KuduBulkWriter build() {
+      return new KuduBulkWriter(this);
+    }
+  }
+}
@@ -194,6 +194,18 @@ public class KuduClient implements AutoCloseable {
     return asyncClient.isStatisticsEnabled();
   }
 
+  /**
+   * Limits how many rows and bytes per second all the sessions of this client can write to a
+   * table.
+   * @param tableName the table's name
+   * @param rowsPerSecond maximum number of rows per second, 0 for no limit
+   * @param bytesPerSecond maximum number of bytes of encoded rows per second, 0 for no limit
+   * @see AsyncKuduClient#setTableWriteRateLimit(String, long, long)
+   */
+  public void setTableWriteRateLimit(String tableName, long rowsPerSecond, long bytesPerSecond) {
+    asyncClient.setTableWriteRateLimit(tableName, rowsPerSecond, bytesPerSecond);
+  }
+
   /**
    * Get the statistics object of this client.
    *
@@ -204,6 +216,37 @@ public class KuduClient implements AutoCloseable {
     return asyncClient.getStatistics();
   }
 
+  /**
+   * Creates a new {@link KuduBulkWriter.KuduBulkWriterBuilder} for a particular table. The
+   * bulk writer's calls are already synchronous.
+   * @param table the table to load
+   * @return a new bulk writer builder for the table
+   */
+  public KuduBulkWriter.KuduBulkWriterBuilder newBulkWriterBuilder(KuduTable table) {
+    return asyncClient.newBulkWriterBuilder(table);
+  }
+
+  /**
+   * Creates a new {@link KuduParallelScanner.KuduParallelScannerBuilder} for a particular table.
+   * The parallel scanner's calls are already synchronous.
+   * @param table the table to scan
+   * @return a new parallel scanner builder for the table
+   */
+  public KuduParallelScanner.KuduParallelScannerBuilder newParallelScannerBuilder(
+      KuduTable table) {
+    return asyncClient.newParallelScannerBuilder(table);
+  }
+
+  /**
+   * Creates a new {@link KuduMergeScanner.KuduMergeScannerBuilder} for a particular table.
+   * The merge scanner's calls are already synchronous.
+   * @param table the table to scan
+   * @return a new merge scanner builder for the table
+   */
+  public KuduMergeScanner.KuduMergeScannerBuilder newMergeScannerBuilder(KuduTable table) {
+    return asyncClient.newMergeScannerBuilder(table);
+  }
+
   /**
    * Creates a new {@link KuduScanner.KuduScannerBuilder} for a particular table.
    * @param table the table you intend to scan.
@@ -379,6 +422,30 @@ public class KuduClient implements AutoCloseable {
       return this;
     }
 
+    /**
+     * Set the executor which will be used to encode the batches of operations written by sessions.
+     * Optional.
+     * If not provided, batches are encoded by the thread that flushes them.
+     * @see AsyncKuduClient.AsyncKuduClientBuilder#encoderExecutor(Executor)
+     */
+    public KuduClientBuilder encoderExecutor(Executor encoderExecutor) {
+      clientBuilder.encoderExecutor(encoderExecutor);
+      return this;
+    }
+
+    /**
+     * Set how many write batches can be in flight to the same tablet server, across all the
+     * sessions of the client.
+     * Optional.
+     * If not provided, or if 0, there's no limit.
+     * @see AsyncKuduClient.AsyncKuduClientBuilder#maxInFlightWriteBatchesPerServer(int)
+     */
+    public KuduClientBuilder maxInFlightWriteBatchesPerServer(
+        int maxInFlightWriteBatchesPerServer) {
+      clientBuilder.maxInFlightWriteBatchesPerServer(maxInFlightWriteBatchesPerServer);
+      return this;
+    }
+
     /**
      * Creates a new client that connects to the masters.
      * Doesn't block and won't throw an exception if the masters don't exist.
@@ -0,0 +1,239 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.kududb.client;
+
+import com.google.common.base.Preconditions;
+import com.stumbleupon.async.Deferred;
+import org.kududb.ColumnSchema;
+import org.kududb.Common;
+import org.kududb.Schema;
+import org.kududb.annotations.InterfaceAudience;
+import org.kududb.annotations.InterfaceStability;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Scans all the tablets of a scan at the same time and returns their rows ordered by primary
+ * key, which {@link AsyncKuduScanner} only does within a tablet, for example to export a hash
+ * partitioned table in order.
+ * <p>
+ * Each tablet gets its own scanner that returns its rows in primary key order, and the rows of
+ * the tablets are merged as they're read: only the current response of each tablet, and what
+ * its scanner prefetches, is held in memory. The keys are compared directly in the rows' data.
+ * <p>
+ * The scan must read at a snapshot and its projection must include all the primary key columns.
+ * If no snapshot timestamp is set, each tablet picks its own snapshot. The limit applies to each
+ * tablet separately. If the scan of a tablet fails, the whole scan fails.
+ * <p>
+ * Like {@link KuduScanner}, this class is not thread-safe.
+ */
+@InterfaceAudience.Public
+@InterfaceStability.Unstable
+public class KuduMergeScanner implements AutoCloseable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(KuduMergeScanner.class);
+
+  private final List<TabletCursor> cursors;
+  private final Schema projectionSchema;
+  private final long timeoutMs;
+
+  // Tablets that have a current row, the lowest one first.
+  private final PriorityQueue<TabletCursor> heap;
+
+  // Tablet of the last row returned by nextRow(), moved to its next row on the next call so
+  // that the returned row stays valid until then.
+  private TabletCursor lastCursor = null;
+
+  private boolean started = false;
+  private boolean closed = false;
+
+  private KuduMergeScanner(List<AsyncKuduScanner> scanners, Schema tableSchema, long timeoutMs) {
+    this.cursors = new ArrayList<>(scanners.size());
+    for (AsyncKuduScanner scanner : scanners) {
+      cursors.add(new TabletCursor(scanner));
+    }
+    this.projectionSchema = scanners.isEmpty() ? tableSchema :
+        scanners.get(0).getProjectionSchema();
+    this.timeoutMs = timeoutMs;
+
+    final int[] keyIndexes = new int[tableSchema.getPrimaryKeyColumnCount()];
+    for (int i = 0; i < keyIndexes.length; i++) {
+      ColumnSchema keyColumn = tableSchema.getColumnByIndex(i);
+      // Throws if the key column isn't projected.
+      keyIndexes[i] = projectionSchema.getColumnIndex(keyColumn.getName());
+    }
+    this.heap = new PriorityQueue<>(Math.max(1, scanners.size()),
+        new Comparator<TabletCursor>() {
+          @Override
+          public int compare(TabletCursor a, TabletCursor b) {
+            return a.row.compareColumns(b.row, keyIndexes);
+          }
+        });
+  }
+
+  /**
+   * Tells if there might be more rows to return.
+   * @return true if there might be more rows, else false
+   */
+  public boolean hasMoreRows() {
+    return !closed && (!started || lastCursor != null || !heap.isEmpty());
+  }
+
+  /**
+   * Returns the row with the lowest primary key that wasn't returned yet, waiting for the
+   * tablets to send more rows if needed. The row is only valid until the next call.
+   * @return a row, or null if all the rows were returned
+   * @throws Exception if the scan of a tablet failed, after which this scanner is unusable
+   */
+  public RowResult nextRow() throws Exception {
+    if (closed) {
+      return null;
+    }
+    if (!started) {
+      start();
+    } else if (lastCursor != null) {
+      if (advance(lastCursor)) {
+        heap.add(lastCursor);
+      }
+      lastCursor = null;
+    }
+    lastCursor = heap.poll();
+    return lastCursor == null ? null : lastCursor.row;
+  }
+
+  /**
+   * Opens the scanners of all the tablets at the same time, then waits for their first rows.
+   */
+  private void start() throws Exception {
+    started = true;
+    for (TabletCursor cursor : cursors) {
+      cursor.pendingRows = cursor.scanner.nextRows();
+    }
+    for (TabletCursor cursor : cursors) {
+      if (advance(cursor)) {
+        heap.add(cursor);
+      }
+    }
+  }
+
+  /**
+   * Moves a tablet to its next row, waiting for its next response if the current one was fully
+   * read.
+   * @return true if the tablet has a current row, false if it was fully scanned
+   */
+  private boolean advance(TabletCursor cursor) throws Exception {
+    while (cursor.rows == null || !cursor.rows.hasNext()) {
+      if (cursor.pendingRows == null) {
+        if (!cursor.scanner.hasMoreRows()) {
+          cursor.rows = null;
+          cursor.row = null;
+          return false;
+        }
+        cursor.pendingRows = cursor.scanner.nextRows();
+      }
+      Deferred<RowResultIterator> d = cursor.pendingRows;
+      cursor.pendingRows = null;
+      cursor.rows = d.join(timeoutMs);
+    }
+    cursor.row = cursor.rows.next();
+    return true;
+  }
+
+  /**
+   * Closes the scanners of all the tablets.
+   * @throws Exception if a scanner couldn't be closed
+   */
+  @Override
+  public void close() throws Exception {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    heap.clear();
+    lastCursor = null;
+    List<Deferred<RowResultIterator>> closing = new ArrayList<>(cursors.size());
+    for (TabletCursor cursor : cursors) {
+      closing.add(cursor.scanner.close());
+    }
+    for (Deferred<RowResultIterator> d : closing) {
+      try {
+        d.join(timeoutMs);
+      } catch (Exception e) {
+        LOG.warn("Failed to close a tablet's scanner", e);
+      }
+    }
+  }
+
+  /**
+   * Returns the projection schema of the rows.
+   * @return the projection schema
+   */
+  public Schema getProjectionSchema() {
+    return projectionSchema;
+  }
+
+  /**
+   * Where the scan of a tablet is.
+   */
+  private static final class TabletCursor {
+    private final AsyncKuduScanner scanner;
+    // Request for the next response, sent but not yet waited for.
+    private Deferred<RowResultIterator> pendingRows;
+    private RowResultIterator rows;
+    private RowResult row;
+
+    TabletCursor(AsyncKuduScanner scanner) {
+      this.scanner = scanner;
+    }
+  }
+
+  /**
+   * A Builder class to build {@link KuduMergeScanner}.
+   * Use {@link AsyncKuduClient#newMergeScannerBuilder} in order to get a builder instance.
+   */
+  @InterfaceAudience.Public
+  @InterfaceStability.Unstable
+  public static class KuduMergeScannerBuilder
+      extends AbstractKuduScannerBuilder<KuduMergeScannerBuilder, KuduMergeScanner> {
+
+    KuduMergeScannerBuilder(AsyncKuduClient client, KuduTable table) {
+      super(client, table);
+      readMode(AsyncKuduScanner.ReadMode.READ_AT_SNAPSHOT);
+      // Fetch each tablet's next response while its current one is being merged.
+      prefetchDepth(1);
+    }
+
+    /**
+     * Builds a {@link KuduMergeScanner} using the passed configurations. This looks up the
+     * tablets of the table.
+     * @return a new {@link KuduMergeScanner}
+     */
+    @Override
+    public KuduMergeScanner build() {
+      Preconditions.checkArgument(readMode == AsyncKuduScanner.ReadMode.READ_AT_SNAPSHOT,
+          "Merging the tablets in primary key order requires the read mode to be set to " +
+          "READ_AT_SNAPSHOT");
+      orderMode = Common.OrderMode.ORDERED;
+      return new KuduMergeScanner(newTabletScanners(), table.getSchema(), scanRequestTimeout);
+    }
+  }
+}
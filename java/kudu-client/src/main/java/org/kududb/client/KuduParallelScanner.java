@@ -0,0 +1,317 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.kududb.client;
+
+import com.google.common.base.Preconditions;
+import com.stumbleupon.async.Callback;
+import org.kududb.annotations.InterfaceAudience;
+import org.kududb.annotations.InterfaceStability;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Scans several tablets of a table at the same time and returns their rows as a single
+ * stream, in no particular order.
+ * <p>
+ * Each tablet, or each scan token, gets its own {@link AsyncKuduScanner}, and up to
+ * {@code maxConcurrentTablets} of them are scanned at the same time. The responses are buffered
+ * until {@link #nextRows()} returns them, and a tablet's scanner only sends a request for more
+ * rows when there's room for its response in the buffer, so that at most
+ * {@code maxBufferedResponses} responses are held at a time.
+ * <p>
+ * The tablets are scanned independently: the requests of each scanner are retried like those of
+ * any scanner, and if a tablet's scan fails anyway the error is thrown by {@link #nextRows()}
+ * once, in place of that tablet's next response, while the other tablets keep being scanned.
+ * Calling {@link #nextRows()} again after that returns the rows of the other tablets.
+ * <p>
+ * When reading at a snapshot without a timestamp, each tablet picks its own snapshot. The limit
+ * applies to each tablet separately.
+ * <p>
+ * This class is thread-safe, but {@link #nextRows()} must not be called from a callback of the
+ * client.
+ */
+@InterfaceAudience.Public
+@InterfaceStability.Unstable
+public class KuduParallelScanner implements AutoCloseable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(KuduParallelScanner.class);
+
+  private final int maxConcurrentTablets;
+  private final int maxBufferedResponses;
+
+  // Scanners of the tablets that weren't started yet.
+  @GuardedBy("this")
+  private final ArrayDeque<AsyncKuduScanner> pendingScanners;
+
+  // Started scanners that have more rows but wait for room in the buffer.
+  @GuardedBy("this")
+  private final ArrayDeque<AsyncKuduScanner> pausedScanners = new ArrayDeque<>();
+
+  // Responses and errors that nextRows() didn't return yet.
+  @GuardedBy("this")
+  private final ArrayDeque<Object> responses = new ArrayDeque<>();
+
+  // Started scanners that aren't done, whether they have a request in flight or are paused.
+  @GuardedBy("this")
+  private int runningScanners = 0;
+
+  @GuardedBy("this")
+  private int inFlightRequests = 0;
+
+  @GuardedBy("this")
+  private boolean closed = false;
+
+  private KuduParallelScanner(List<AsyncKuduScanner> scanners, int maxConcurrentTablets,
+                              int maxBufferedResponses) {
+    this.pendingScanners = new ArrayDeque<>(scanners);
+    this.maxConcurrentTablets = maxConcurrentTablets;
+    this.maxBufferedResponses = maxBufferedResponses;
+    scheduleRequests();
+  }
+
+  /**
+   * Tells if there are rows left to return, either buffered or from tablets that are still
+   * being scanned.
+   * @return true if there might be more data to scan, else false
+   */
+  public synchronized boolean hasMoreRows() {
+    return !responses.isEmpty() || runningScanners > 0 || !pendingScanners.isEmpty();
+  }
+
+  /**
+   * Returns the next response of any of the tablets, waiting for one if none is buffered.
+   * @return the rows of the response, or null if all the tablets were scanned
+   * @throws Exception the error of a tablet whose scan failed
+   */
+  public RowResultIterator nextRows() throws Exception {
+    Object response;
+    synchronized (this) {
+      while (responses.isEmpty() && (runningScanners > 0 || !pendingScanners.isEmpty())) {
+        wait();
+      }
+      response = responses.poll();
+    }
+    // There's room for one more response.
+    scheduleRequests();
+    if (response instanceof Exception) {
+      throw (Exception) response;
+    }
+    return (RowResultIterator) response;
+  }
+
+  /**
+   * Closes the scanners of all the tablets and drops the buffered responses. The scanners that
+   * have a request in flight are closed once it completes.
+   */
+  @Override
+  public void close() {
+    List<AsyncKuduScanner> toClose;
+    synchronized (this) {
+      closed = true;
+      responses.clear();
+      pendingScanners.clear();
+      toClose = new ArrayList<>(pausedScanners);
+      runningScanners -= pausedScanners.size();
+      pausedScanners.clear();
+      notifyAll();
+    }
+    for (AsyncKuduScanner scanner : toClose) {
+      closeQuietly(scanner);
+    }
+  }
+
+  /**
+   * Sends a request for more rows from as many paused scanners, then as many new scanners, as
+   * there's room in the buffer and in the limit of concurrent tablets.
+   */
+  private void scheduleRequests() {
+    List<AsyncKuduScanner> toRequest = new ArrayList<>();
+    synchronized (this) {
+      while (!pausedScanners.isEmpty() && hasRoomForResponse()) {
+        toRequest.add(pausedScanners.poll());
+        inFlightRequests++;
+      }
+      while (!pendingScanners.isEmpty() && runningScanners < maxConcurrentTablets &&
+          hasRoomForResponse()) {
+        toRequest.add(pendingScanners.poll());
+        runningScanners++;
+        inFlightRequests++;
+      }
+    }
+    for (AsyncKuduScanner scanner : toRequest) {
+      scanner.nextRows().addBoth(new ResponseCallback<RowResultIterator>(scanner));
+    }
+  }
+
+  @GuardedBy("this")
+  private boolean hasRoomForResponse() {
+    return responses.size() + inFlightRequests < maxBufferedResponses;
+  }
+
+  /**
+   * Buffers the response of a tablet's scanner, then pauses the scanner if it has more rows.
+   */
+  private void onResponse(AsyncKuduScanner scanner, Object response) {
+    boolean closeScanner = false;
+    synchronized (this) {
+      inFlightRequests--;
+      if (closed) {
+        runningScanners--;
+        closeScanner = true;
+      } else if (response instanceof Exception) {
+        responses.add(response);
+        runningScanners--;
+        closeScanner = true;
+      } else {
+        RowResultIterator rows = (RowResultIterator) response;
+        if (rows != null && rows.getNumRows() > 0) {
+          responses.add(rows);
+        }
+        if (scanner.hasMoreRows()) {
+          pausedScanners.add(scanner);
+        } else {
+          runningScanners--;
+        }
+      }
+      notifyAll();
+    }
+    if (closeScanner) {
+      if (response instanceof Exception) {
+        LOG.warn("Scan of a tablet failed: " + scanner, (Exception) response);
+      }
+      closeQuietly(scanner);
+    }
+    scheduleRequests();
+  }
+
+  private static void closeQuietly(final AsyncKuduScanner scanner) {
+    scanner.close().addErrback(new Callback<Object, Exception>() {
+      @Override
+      public Object call(Exception e) {
+        LOG.debug("Failed to close " + scanner, e);
+        return null;
+      }
+
+      @Override
+      public String toString() {
+        return "close tablet scanner errback";
+      }
+    });
+  }
+
+  /**
+   * Callback and errback for the responses of a tablet's scanner.
+   */
+  private final class ResponseCallback<T> implements Callback<Void, T> {
+    private final AsyncKuduScanner scanner;
+
+    ResponseCallback(AsyncKuduScanner scanner) {
+      this.scanner = scanner;
+    }
+
+    @Override
+    public Void call(T arg) {
+      onResponse(scanner, arg);
+      return null;
+    }
+
+    @Override
+    public String toString() {
+      return "parallel scanner response";
+    }
+  }
+
+  /**
+   * A Builder class to build {@link KuduParallelScanner}.
+   * Use {@link AsyncKuduClient#newParallelScannerBuilder} in order to get a builder instance.
+   */
+  @InterfaceAudience.Public
+  @InterfaceStability.Unstable
+  public static class KuduParallelScannerBuilder
+      extends AbstractKuduScannerBuilder<KuduParallelScannerBuilder, KuduParallelScanner> {
+
+    private int maxConcurrentTablets = 4;
+    private int maxBufferedResponses = -1;
+    private List<KuduScanToken> scanTokens = null;
+
+    KuduParallelScannerBuilder(AsyncKuduClient client, KuduTable table) {
+      super(client, table);
+    }
+
+    /**
+     * Sets how many tablets are scanned at the same time.
+     * Optional. If not provided, defaults to 4.
+     * @param maxConcurrentTablets a number of tablets
+     * @return this builder
+     */
+    public KuduParallelScannerBuilder maxConcurrentTablets(int maxConcurrentTablets) {
+      Preconditions.checkArgument(maxConcurrentTablets > 0,
+          "At least one tablet must be scanned at a time");
+      this.maxConcurrentTablets = maxConcurrentTablets;
+      return this;
+    }
+
+    /**
+     * Sets how many responses can be buffered, including those of the requests in flight.
+     * Optional. If not provided, defaults to twice the number of concurrent tablets.
+     * @param maxBufferedResponses a number of responses
+     * @return this builder
+     */
+    public KuduParallelScannerBuilder maxBufferedResponses(int maxBufferedResponses) {
+      Preconditions.checkArgument(maxBufferedResponses > 0,
+          "At least one response must be buffered");
+      this.maxBufferedResponses = maxBufferedResponses;
+      return this;
+    }
+
+    /**
+     * Sets the scan tokens to scan instead of the tablets of the table, which are then
+     * described by the tokens alone: the other scan options of this builder are ignored.
+     * @param scanTokens scan tokens of this builder's table
+     * @return this builder
+     */
+    public KuduParallelScannerBuilder scanTokens(List<KuduScanToken> scanTokens) {
+      this.scanTokens = scanTokens;
+      return this;
+    }
+
+    /**
+     * Builds a {@link KuduParallelScanner} using the passed configurations. This looks up the
+     * tablets of the table unless scan tokens were given.
+     * @return a new {@link KuduParallelScanner}
+     */
+    @Override
+    public KuduParallelScanner build() {
+      List<AsyncKuduScanner> scanners;
+      if (scanTokens != null) {
+        scanners = new ArrayList<>(scanTokens.size());
+        for (KuduScanToken token : scanTokens) {
+          scanners.add(token.intoAsyncScanner(client, table));
+        }
+      } else {
+        scanners = newTabletScanners();
+      }
+      return new KuduParallelScanner(scanners, maxConcurrentTablets,
+          maxBufferedResponses == -1 ? 2 * maxConcurrentTablets : maxBufferedResponses);
+    }
+  }
+}
@@ -40,6 +40,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.Collection;
+import java.util.List;
 
 import static org.kududb.client.ExternalConsistencyMode.CLIENT_PROPAGATED;
 
@@ -95,6 +96,13 @@ public abstract class KuduRpc<R> {
   protected long propagatedTimestamp = -1;
   protected ExternalConsistencyMode externalConsistencyMode = CLIENT_PROPAGATED;
 
+  /**
+   * Pooled buffers that back the ChannelBuffer returned by the last call to {@link #serialize}.
+   * TabletClient takes them right after serializing so that they can be recycled once Netty is
+   * done writing them out. Only set by RPCs that serialize into pooled buffers.
+   */
+  private List<ChainedBuffer> serializedBuffers;
+
   /**
    * How many times have we retried this RPC?.
    * Proper synchronization is required, although in practice most of the code
@@ -222,6 +230,39 @@ public abstract class KuduRpc<R> {
     return deferred;
   }
 
+  /**
+   * Called by {@link #serialize} implementations that encode into pooled buffers.
+   * @param buffers the buffers backing the serialized RPC
+   */
+  void setSerializedBuffers(List<ChainedBuffer> buffers) {
+    this.serializedBuffers = buffers;
+  }
+
+  /**
+   * Returns the pooled buffers set by the last call to {@link #serialize} and forgets about them.
+   * The caller becomes responsible for releasing them.
+   * @return a list of buffers, or null if this RPC didn't use pooled buffers
+   */
+  List<ChainedBuffer> takeSerializedBuffers() {
+    List<ChainedBuffer> buffers = serializedBuffers;
+    serializedBuffers = null;
+    return buffers;
+  }
+
+  /**
+   * Puts this RPC back in the state it was in when it was created, so that it can be reused.
+   * Must only be called once the RPC completed.
+   */
+  void resetForReuse() {
+    assert deferred == null;
+    tablet = null;
+    attempt = 0;
+    propagatedTimestamp = -1;
+    externalConsistencyMode = CLIENT_PROPAGATED;
+    serializedBuffers = null;
+    deadlineTracker.reset();
+  }
+
   AsyncKuduClient.RemoteTablet getTablet() {
     return this.tablet;
   }
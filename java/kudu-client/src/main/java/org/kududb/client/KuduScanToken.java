@@ -103,15 +103,38 @@ public class KuduScanToken implements Comparable<KuduScanToken> {
     return pbIntoScanner(ScanTokenPB.parseFrom(CodedInputStream.newInstance(buf)), client);
   }
 
+  /**
+   * Creates an {@link AsyncKuduScanner} from this scan token.
+   * @param client a Kudu client for the cluster
+   * @param table the table of the scan token, already opened
+   * @return a scanner for the scan token
+   */
+  AsyncKuduScanner intoAsyncScanner(AsyncKuduClient client, KuduTable table) {
+    Preconditions.checkArgument(message.getTableName().equals(table.getName()),
+        "The scan token is for table %s", message.getTableName());
+    checkFeatures(message);
+    AsyncKuduScanner.AsyncKuduScannerBuilder builder = client.newScannerBuilder(table);
+    pbIntoScannerBuilder(message, table, builder);
+    return builder.build();
+  }
+
   private static KuduScanner pbIntoScanner(ScanTokenPB message,
                                            KuduClient client) throws Exception {
+    checkFeatures(message);
+    KuduTable table = client.openTable(message.getTableName());
+    KuduScanner.KuduScannerBuilder builder = client.newScannerBuilder(table);
+    pbIntoScannerBuilder(message, table, builder);
+    return builder.build();
+  }
+
+  private static void checkFeatures(ScanTokenPB message) {
     Preconditions.checkArgument(
         !message.getFeatureFlagsList().contains(ScanTokenPB.Feature.Unknown),
         "Scan token requires an unsupported feature. This Kudu client must be updated.");
+  }
 
-    KuduTable table = client.openTable(message.getTableName());
-    KuduScanner.KuduScannerBuilder builder = client.newScannerBuilder(table);
-
+  private static void pbIntoScannerBuilder(ScanTokenPB message, KuduTable table,
+                                           AbstractKuduScannerBuilder<?, ?> builder) {
     List<Integer> columns = new ArrayList<>(message.getProjectedColumnsCount());
     for (Common.ColumnSchemaPB column : message.getProjectedColumnsList()) {
       int columnIdx = table.getSchema().getColumnIndex(column.getName());
@@ -173,8 +196,6 @@ public class KuduScanToken implements Comparable<KuduScanToken> {
     if (message.hasCacheBlocks()) {
       builder.cacheBlocks(message.getCacheBlocks());
     }
-
-    return builder.build();
   }
 
   @Override
@@ -57,7 +57,8 @@ public class KuduSession implements SessionConfiguration {
    * This call should normally perform only fast in-memory operations but
    * it may have to wait when the buffer is full and there's another buffer being flushed. Row
    * errors can be checked by calling {@link #countPendingErrors()} and can be retrieved by calling
-   * {@link #getPendingErrors()}.
+   * {@link #getPendingErrors()}. With {@link #setBlockingBackpressure(int, long)}, the call
+   * waits until the session has room for the operation.
    * <li>MANUAL_FLUSH: the call returns when the operation has been added to the buffer,
    * else it throws an exception such as a NonRecoverableException if the buffer is full.
    * </ul>
@@ -67,6 +68,15 @@ public class KuduSession implements SessionConfiguration {
    * @throws Exception if anything went wrong
    */
   public OperationResponse apply(Operation operation) throws Exception {
+    Deferred<Void> permit = session.acquireWritePermit(operation);
+    if (permit != null) {
+      try {
+        permit.join(getTimeoutMillis());
+      } catch (Exception e) {
+        session.cancelWritePermit(operation, permit);
+        throw e;
+      }
+    }
     while (true) {
       try {
         Deferred<OperationResponse> d = session.apply(operation);
@@ -89,6 +99,20 @@ public class KuduSession implements SessionConfiguration {
     return null;
   }
 
+  /**
+   * Blocking call that inserts all the rows of a columnar block, see
+   * {@link AsyncKuduSession#applyColumnar(KuduTable, ColumnarRowBlock)}.
+   * @param table the table to insert into
+   * @param block the rows to insert
+   * @return a response that contains the errors of the rows that couldn't be inserted
+   * @throws Exception if anything went wrong. If it's an issue with some or all batches,
+   * it will be of type DeferredGroupException.
+   */
+  public ColumnarWriteResponse applyColumnar(KuduTable table, ColumnarRowBlock block)
+      throws Exception {
+    return session.applyColumnar(table, block).join(getTimeoutMillis());
+  }
+
   /**
    * Blocking call that force flushes this session's buffers. Data is persisted when this call
    * returns, else it will throw an exception.
@@ -125,11 +149,91 @@ public class KuduSession implements SessionConfiguration {
     session.setMutationBufferSpace(size);
   }
 
+  @Override
+  public void setMutationBufferSpaceBytes(long size) {
+    session.setMutationBufferSpaceBytes(size);
+  }
+
+  @Override
+  public void setMaxInFlightBatchesPerTablet(int maxInFlightBatches) {
+    session.setMaxInFlightBatchesPerTablet(maxInFlightBatches);
+  }
+
+  @Override
+  public boolean isEncodeOnApply() {
+    return session.isEncodeOnApply();
+  }
+
+  @Override
+  public void setEncodeOnApply(boolean encodeOnApply) {
+    session.setEncodeOnApply(encodeOnApply);
+  }
+
+  @Override
+  public boolean isAdaptiveFlushing() {
+    return session.isAdaptiveFlushing();
+  }
+
+  @Override
+  public void setAdaptiveFlushing(boolean adaptiveFlushing) {
+    session.setAdaptiveFlushing(adaptiveFlushing);
+  }
+
+  @Override
+  public boolean isSortByPrimaryKey() {
+    return session.isSortByPrimaryKey();
+  }
+
+  @Override
+  public void setSortByPrimaryKey(boolean sortByPrimaryKey) {
+    session.setSortByPrimaryKey(sortByPrimaryKey);
+  }
+
+  @Override
+  public boolean isPerBatchCompletion() {
+    return session.isPerBatchCompletion();
+  }
+
+  @Override
+  public void setPerBatchCompletion(boolean perBatchCompletion) {
+    session.setPerBatchCompletion(perBatchCompletion);
+  }
+
+  @Override
+  public String getWriteSpoolDirectory() {
+    return session.getWriteSpoolDirectory();
+  }
+
+  @Override
+  public void setWriteSpool(String directory, long maxDiskBytes) {
+    session.setWriteSpool(directory, maxDiskBytes);
+  }
+
+  @Override
+  public boolean isCoalesceMutations() {
+    return session.isCoalesceMutations();
+  }
+
+  @Override
+  public void setCoalesceMutations(boolean coalesceMutations) {
+    session.setCoalesceMutations(coalesceMutations);
+  }
+
   @Override
   public void setMutationBufferLowWatermark(float mutationBufferLowWatermarkPercentage) {
     session.setMutationBufferLowWatermark(mutationBufferLowWatermarkPercentage);
   }
 
+  @Override
+  public boolean isBlockingBackpressure() {
+    return session.isBlockingBackpressure();
+  }
+
+  @Override
+  public void setBlockingBackpressure(int maxPendingOperations, long maxPendingBytes) {
+    session.setBlockingBackpressure(maxPendingOperations, maxPendingBytes);
+  }
+
   @Override
   public void setFlushInterval(int interval) {
     session.setFlushInterval(interval);
@@ -179,4 +283,39 @@ public class KuduSession implements SessionConfiguration {
   public RowErrorsAndOverflowStatus getPendingErrors() {
     return session.getPendingErrors();
   }
+
+  @Override
+  public long getWriteRateLimitRowsPerSecond() {
+    return session.getWriteRateLimitRowsPerSecond();
+  }
+
+  @Override
+  public long getWriteRateLimitBytesPerSecond() {
+    return session.getWriteRateLimitBytesPerSecond();
+  }
+
+  @Override
+  public void setWriteRateLimit(long rowsPerSecond, long bytesPerSecond) {
+    session.setWriteRateLimit(rowsPerSecond, bytesPerSecond);
+  }
+
+  @Override
+  public int getWriteWeight() {
+    return session.getWriteWeight();
+  }
+
+  @Override
+  public void setWriteWeight(int weight) {
+    session.setWriteWeight(weight);
+  }
+
+  @Override
+  public boolean isAggregateErrors() {
+    return session.isAggregateErrors();
+  }
+
+  @Override
+  public void setAggregateErrors(boolean aggregateErrors) {
+    session.setAggregateErrors(aggregateErrors);
+  }
 }
@@ -16,13 +16,18 @@
 // under the License.
 package org.kududb.client;
 
+import org.kududb.Common;
 import org.kududb.Schema;
 import org.kududb.annotations.InterfaceAudience;
 import org.kududb.annotations.InterfaceStability;
+import org.kududb.tserver.Tserver;
+import org.kududb.util.Slice;
 
+import com.google.protobuf.ZeroCopyLiteralByteString;
 import com.stumbleupon.async.Deferred;
 
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A KuduTable represents a table on a particular cluster. It holds the current
@@ -44,6 +49,13 @@ public class KuduTable {
   private final String name;
   private final String tableId;
 
+  // The schema never changes for a given instance, so its protobuf is only built once. Building it
+  // concurrently more than once is harmless.
+  private volatile Common.SchemaPB schemaPb;
+
+  // Serialized start of the write requests sent to each tablet, keyed by tablet ID.
+  private final ConcurrentHashMap<Slice, byte[]> writeRequestPrefixes = new ConcurrentHashMap<>();
+
   /**
    * Package-private constructor, use {@link KuduClient#openTable(String)} to get an instance.
    * @param client the client this instance belongs to
@@ -80,6 +92,39 @@ public class KuduTable {
     return partitionSchema;
   }
 
+  /**
+   * Get this table's schema as a protobuf. The returned message is shared and immutable.
+   * @return this table's schema
+   */
+  Common.SchemaPB getSchemaPb() {
+    Common.SchemaPB pb = schemaPb;
+    if (pb == null) {
+      pb = ProtobufHelper.schemaToPb(schema);
+      schemaPb = pb;
+    }
+    return pb;
+  }
+
+  /**
+   * Gets the serialized tablet ID and schema fields of a WriteRequestPB for the given tablet.
+   * These fields are the same in every write sent to the tablet, so they're only serialized once
+   * and then copied as-is into each request.
+   * @param tablet a tablet of this table
+   * @return the serialized fields, which must not be modified
+   */
+  byte[] getWriteRequestPrefix(AsyncKuduClient.RemoteTablet tablet) {
+    byte[] prefix = writeRequestPrefixes.get(tablet.getTabletId());
+    if (prefix == null) {
+      prefix = Tserver.WriteRequestPB.newBuilder()
+          .setTabletId(ZeroCopyLiteralByteString.wrap(tablet.getTabletIdAsBytes()))
+          .setSchema(getSchemaPb())
+          .build()
+          .toByteArray();
+      writeRequestPrefixes.putIfAbsent(tablet.getTabletId(), prefix);
+    }
+    return prefix;
+  }
+
   /**
    * Get this table's name.
    * @return this table's name
@@ -136,6 +181,17 @@ public class KuduTable {
     return new Upsert(this);
   }
 
+  /**
+   * Get a new pool of reusable operations configured with this table's schema. Operations taken
+   * from the pool are put back in it once they succeeded when the session completes them per
+   * batch, or else by {@link OperationPool#recycle(Operation)}, see {@link OperationPool}.
+   * @param maxPooledOperations how many operations of each type the pool can keep
+   * @return a new operation pool for this table
+   */
+  public OperationPool newOperationPool(int maxPooledOperations) {
+    return new OperationPool(this, maxPooledOperations);
+  }
+
   /**
    * Get all the tablets for this table. This may query the master multiple times if there
    * are a lot of tablets.
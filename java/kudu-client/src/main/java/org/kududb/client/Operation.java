@@ -16,8 +16,9 @@
 // under the License.
 package org.kududb.client;
 
-import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.Message;
+import com.google.protobuf.WireFormat;
 import com.google.protobuf.ZeroCopyLiteralByteString;
 
 import org.kududb.ColumnSchema;
@@ -33,10 +34,15 @@ import org.kududb.tserver.Tserver;
 import org.kududb.util.Pair;
 import org.kududb.util.Slice;
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 
+import javax.annotation.concurrent.GuardedBy;
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -82,6 +88,26 @@ public abstract class Operation extends KuduRpc<OperationResponse> implements Ku
   /** See {@link SessionConfiguration#setIgnoreAllDuplicateRows(boolean)} */
   boolean ignoreAllDuplicateRows = false;
 
+  /** The pool this operation goes back to once it succeeded, null if it wasn't pooled. */
+  OperationPool pool;
+
+  /** True while this operation is in its pool, or was recycled while the pool was full. */
+  @GuardedBy("this")
+  boolean inPool = false;
+
+  /**
+   * Only set on the operations that AsyncKuduSession creates when it coalesces mutations on the
+   * same row: the operations that were applied by the user and that this one replaces, in the
+   * order they were applied. Each of them gets its own response once this one completes.
+   */
+  List<Operation> coalescedOperations;
+
+  /**
+   * True once the session gave this operation its write permits and until they're handed over to
+   * its batch, see {@link SessionConfiguration#setBlockingBackpressure(int, long)}.
+   */
+  boolean holdsWritePermit = false;
+
   /**
    * Package-private constructor. Subclasses need to be instantiated via AsyncKuduSession
    * @param table table with the schema to use for this operation
@@ -96,6 +122,75 @@ public abstract class Operation extends KuduRpc<OperationResponse> implements Ku
     this.ignoreAllDuplicateRows = ignoreAllDuplicateRows;
   }
 
+  /**
+   * Clears this operation's row and state so that it can be used again, see {@link OperationPool}.
+   */
+  void reset() {
+    resetForReuse();
+    row.reset();
+    sequenceNumber = -1;
+    rowOperationSizeBytes = 0;
+    ignoreAllDuplicateRows = false;
+    holdsWritePermit = false;
+  }
+
+  /**
+   * Merges two operations on the same row that were applied one after the other into a single
+   * operation that has the same effect on the tablet, so that only that one is sent. Only these
+   * pairs are merged, the later operation's values winning over the earlier one's:
+   * <ul>
+   * <li>UPSERT then UPSERT or UPDATE: an UPSERT of the columns set by either.
+   * <li>UPDATE then UPDATE: an UPDATE of the columns set by either.
+   * <li>UPDATE then DELETE: a DELETE.
+   * </ul>
+   * Other pairs, for example an INSERT followed by an UPDATE, are not merged since the outcome
+   * could differ when the row already exists or doesn't exist.
+   * @param previous the operation that was applied first, possibly one returned by this method
+   * @param next the operation that was applied just after it
+   * @return the merged operation, which may be 'previous' if it was returned by this method, or
+   * null if the operations cannot be merged
+   */
+  static Operation coalesce(Operation previous, Operation next) {
+    ChangeType previousType = previous.getChangeType();
+    ChangeType nextType = next.getChangeType();
+    ChangeType type;
+    if (previousType == ChangeType.UPSERT &&
+        (nextType == ChangeType.UPSERT || nextType == ChangeType.UPDATE)) {
+      type = ChangeType.UPSERT;
+    } else if (previousType == ChangeType.UPDATE && nextType == ChangeType.UPDATE) {
+      type = ChangeType.UPDATE;
+    } else if (previousType == ChangeType.UPDATE && nextType == ChangeType.DELETE) {
+      type = ChangeType.DELETE;
+    } else {
+      return null;
+    }
+
+    Operation merged;
+    if (previous.coalescedOperations != null && type == previousType) {
+      merged = previous;
+    } else {
+      switch (type) {
+        case UPSERT: merged = new Upsert(previous.getTable()); break;
+        case UPDATE: merged = new Update(previous.getTable()); break;
+        default: merged = new Delete(previous.getTable()); break;
+      }
+      if (type != ChangeType.DELETE) {
+        merged.row.setColumnsFrom(previous.row);
+      }
+      if (previous.coalescedOperations != null) {
+        merged.coalescedOperations = previous.coalescedOperations;
+      } else {
+        merged.coalescedOperations = new ArrayList<>();
+        merged.coalescedOperations.add(previous);
+      }
+      merged.setSequenceNumber(previous.getSequenceNumber());
+      merged.setTablet(previous.getTablet());
+    }
+    merged.row.setColumnsFrom(next.row);
+    merged.coalescedOperations.add(next);
+    return merged;
+  }
+
   /**
    * Classes extending Operation need to have a specific ChangeType
    * @return Operation's ChangeType
@@ -121,6 +216,16 @@ public abstract class Operation extends KuduRpc<OperationResponse> implements Ku
     return this.sequenceNumber;
   }
 
+  /**
+   * Returns the number of bytes this operation's row will take once encoded in a RowOperationsPB,
+   * including its indirect data. Unlike {@link #getRowOperationSizeBytes()}, this doesn't require
+   * the operation to have been serialized.
+   * @return size in bytes
+   */
+  long getEncodedSizeBytes() {
+    return OperationsEncoder.getEncodedSizeBytes(row);
+  }
+
   /**
    * Returns the size in bytes of this operation's row after serialization.
    * @return size in bytes
@@ -143,15 +248,23 @@ public abstract class Operation extends KuduRpc<OperationResponse> implements Ku
 
   @Override
   ChannelBuffer serialize(Message header) {
-    final Tserver.WriteRequestPB.Builder builder = createAndFillWriteRequestPB(this);
-    this.rowOperationSizeBytes = builder.getRowOperations().getRows().size()
-        + builder.getRowOperations().getIndirectData().size();
-    builder.setTabletId(ZeroCopyLiteralByteString.wrap(getTablet().getTabletIdAsBytes()));
-    builder.setExternalConsistencyMode(this.externalConsistencyMode.pbVersion());
-    if (this.propagatedTimestamp != AsyncKuduClient.NO_TIMESTAMP) {
-      builder.setPropagatedTimestamp(this.propagatedTimestamp);
+    final OperationsEncoder encoder = new OperationsEncoder();
+    try {
+      encoder.encodeOperationsToBuffers(Collections.<Operation>singletonList(this));
+      this.rowOperationSizeBytes = encoder.getWrittenSizeBytes();
+      final Tserver.WriteRequestPB.Builder builder = Tserver.WriteRequestPB.newBuilder();
+      builder.setExternalConsistencyMode(this.externalConsistencyMode.pbVersion());
+      if (this.propagatedTimestamp != AsyncKuduClient.NO_TIMESTAMP) {
+        builder.setPropagatedTimestamp(this.propagatedTimestamp);
+      }
+      ChannelBuffer buffer = encoder.toChannelBuffer(header,
+          table.getWriteRequestPrefix(getTablet()), builder);
+      setSerializedBuffers(encoder.getBuffers());
+      return buffer;
+    } catch (RuntimeException e) {
+      encoder.release();
+      throw e;
     }
-    return toChannelBuffer(header, builder.build());
   }
 
   @Override
@@ -234,72 +347,97 @@ public abstract class Operation extends KuduRpc<OperationResponse> implements Ku
   }
 
   static class OperationsEncoder {
+    private static final byte[] NO_REQUEST_PREFIX = new byte[0];
+
     private Schema schema;
-    private ByteBuffer rows;
-    // We're filling this list as we go through the operations in encodeRow() and at the same time
-    // compute the total size, which will be used to right-size the array in toPB().
-    private List<ByteBuffer> indirect;
-    private long indirectWrittenBytes;
+    // Both buffers are backed by pooled segments, which avoids sizing a single buffer for the worst
+    // case and lets us hand the encoded data to Netty without copying it. Small encodings start
+    // with smaller segments of their own, see ChainedBuffer.
+    private ChainedBuffer rows;
+    private ChainedBuffer indirect;
 
     /**
-     * Initializes the state of the encoder based on the schema and number of operations to encode.
+     * Initializes the state of the encoder based on the schema of the operations to encode.
      *
      * @param schema the schema of the table which the operations belong to.
-     * @param numOperations the number of operations.
      */
-    private void init(Schema schema, int numOperations) {
+    private void init(Schema schema) {
       this.schema = schema;
+      this.rows = new ChainedBuffer(BufferSegmentPool.getDefault());
+      this.indirect = new ChainedBuffer(BufferSegmentPool.getDefault());
+    }
 
-      // Set up the encoded data.
-      // Estimate a maximum size for the data. This is conservative, but avoids
-      // having to loop through all the operations twice.
-      final int columnBitSetSize = Bytes.getBitSetSize(schema.getColumnCount());
-      int sizePerRow = 1 /* for the op type */ + schema.getRowSize() + columnBitSetSize;
-      if (schema.hasNullableColumns()) {
-        // nullsBitSet is the same size as the columnBitSet
-        sizePerRow += columnBitSetSize;
-      }
-
-      // TODO: would be more efficient to use a buffer which "chains" smaller allocations
-      // instead of a doubling buffer like BAOS.
-      this.rows = ByteBuffer.allocate(sizePerRow * numOperations)
-                            .order(ByteOrder.LITTLE_ENDIAN);
-      this.indirect = new ArrayList<>(schema.getVarLengthColumnCount() * numOperations);
+    /**
+     * Like {@link #init(Schema)}, for when the size of the rows is known ahead: small rows get
+     * segments of their size instead of whole pooled segments.
+     * @param schema the schema of the table which the operations belong to
+     * @param encodedSizeBytes how many bytes the rows take once encoded, indirect data included
+     */
+    private void init(Schema schema, long encodedSizeBytes) {
+      this.schema = schema;
+      int firstSegmentSize = (int) Math.min(encodedSizeBytes, Integer.MAX_VALUE);
+      this.rows = new ChainedBuffer(BufferSegmentPool.getDefault(), firstSegmentSize);
+      this.indirect = new ChainedBuffer(BufferSegmentPool.getDefault(), firstSegmentSize);
     }
 
     /**
-     * Builds the row operations protobuf message with encoded operations.
+     * Builds the row operations protobuf message with encoded operations. This copies the encoded
+     * data and releases the encoder's buffers.
      * @return the row operations protobuf message.
      */
     private RowOperationsPB toPB() {
       RowOperationsPB.Builder rowOpsBuilder = RowOperationsPB.newBuilder();
-
-      // TODO: we could implement a ZeroCopy approach here by subclassing LiteralByteString.
-      // We have ZeroCopyLiteralByteString, but that only supports an entire array. Here
-      // we've only partially filled in rows.array(), so we have to make the extra copy.
-      rows.limit(rows.position());
-      rows.flip();
-      rowOpsBuilder.setRows(ByteString.copyFrom(rows));
-      if (indirect.size() > 0) {
-        // TODO: same as above, we could avoid a copy here by using an implementation that allows
-        // zero-copy on a slice of an array.
-        byte[] indirectData = new byte[(int)indirectWrittenBytes];
-        int offset = 0;
-        for (ByteBuffer bb : indirect) {
-          int bbSize = bb.remaining();
-          bb.get(indirectData, offset, bbSize);
-          offset += bbSize;
+      try {
+        rowOpsBuilder.setRows(ZeroCopyLiteralByteString.wrap(rows.toByteArray()));
+        if (indirect.size() > 0) {
+          rowOpsBuilder.setIndirectData(ZeroCopyLiteralByteString.wrap(indirect.toByteArray()));
         }
-        rowOpsBuilder.setIndirectData(ZeroCopyLiteralByteString.wrap(indirectData));
+      } finally {
+        release();
       }
       return rowOpsBuilder.build();
     }
 
+    /**
+     * Computes how many bytes {@link #encodeRow} writes for the given row, counting the indirect
+     * data of the string and binary cells.
+     * @param row the row to measure
+     * @return the encoded size of the row, in bytes
+     */
+    static long getEncodedSizeBytes(PartialRow row) {
+      Schema schema = row.getSchema();
+      int columnBitSetSize = Bytes.getBitSetSize(schema.getColumnCount());
+      long size = 1 /* for the op type */ + columnBitSetSize;
+      if (schema.hasNullableColumns()) {
+        size += columnBitSetSize;
+      }
+      BitSet columnsBitSet = row.getColumnsBitSet();
+      for (int colIdx = columnsBitSet.nextSetBit(0);
+           colIdx >= 0;
+           colIdx = columnsBitSet.nextSetBit(colIdx + 1)) {
+        if (row.isSetToNull(colIdx)) {
+          continue;
+        }
+        Type type = schema.getColumnByIndex(colIdx).getType();
+        // For strings and binaries this is the size of the offset and length pair.
+        size += type.getSize();
+        if (type == Type.STRING || type == Type.BINARY) {
+          ByteBuffer varLengthData = row.getVarLengthData().get(colIdx);
+          varLengthData.reset();
+          size += varLengthData.remaining();
+        }
+      }
+      return size;
+    }
+
     private void encodeRow(PartialRow row, ChangeType type) {
+      if (row.areValuesReleased()) {
+        throw new IllegalStateException("The row's values were released once it was encoded");
+      }
       rows.put(type.toEncodedByte());
-      rows.put(Bytes.fromBitSet(row.getColumnsBitSet(), schema.getColumnCount()));
+      rows.putBitSet(row.getColumnsBitSet(), schema.getColumnCount());
       if (schema.hasNullableColumns()) {
-        rows.put(Bytes.fromBitSet(row.getNullsBitSet(), schema.getColumnCount()));
+        rows.putBitSet(row.getNullsBitSet(), schema.getColumnCount());
       }
       int colIdx = 0;
       byte[] rowData = row.getRowAlloc();
@@ -310,11 +448,9 @@ public abstract class Operation extends KuduRpc<OperationResponse> implements Ku
           if (col.getType() == Type.STRING || col.getType() == Type.BINARY) {
             ByteBuffer varLengthData = row.getVarLengthData().get(colIdx);
             varLengthData.reset();
-            rows.putLong(indirectWrittenBytes);
-            int bbSize = varLengthData.remaining();
-            rows.putLong(bbSize);
-            indirect.add(varLengthData);
-            indirectWrittenBytes += bbSize;
+            rows.putLong(indirect.size());
+            rows.putLong(varLengthData.remaining());
+            indirect.put(varLengthData);
           } else {
             // This is for cols other than strings
             rows.put(rowData, currentRowOffset, col.getType().getSize());
@@ -327,7 +463,7 @@ public abstract class Operation extends KuduRpc<OperationResponse> implements Ku
 
     public RowOperationsPB encodeOperations(Operation... operations) {
       if (operations == null || operations.length == 0) return null;
-      init(operations[0].table.getSchema(), operations.length);
+      init(operations[0].table.getSchema());
       for (Operation operation : operations) {
         encodeRow(operation.row, operation.getChangeType());
       }
@@ -336,11 +472,237 @@ public abstract class Operation extends KuduRpc<OperationResponse> implements Ku
 
     public RowOperationsPB encodeSplitRows(List<PartialRow> rows) {
       if (rows == null || rows.isEmpty()) return null;
-      init(rows.get(0).getSchema(), rows.size());
+      init(rows.get(0).getSchema());
       for (PartialRow row : rows) {
         encodeRow(row, ChangeType.SPLIT_ROWS);
       }
       return toPB();
     }
+
+    /**
+     * Encodes the operations into this encoder's pooled buffers instead of a protobuf. Use
+     * {@link #toChannelBuffer} to send them and {@link #release()} to recycle the buffers.
+     * @param operations the operations to encode, they must all be for the same table
+     */
+    void encodeOperationsToBuffers(List<Operation> operations) {
+      assert !operations.isEmpty();
+      if (operations.size() == 1) {
+        // Single operations are sent on their own in AUTO_FLUSH_SYNC, they're usually far
+        // smaller than a pooled segment.
+        Operation operation = operations.get(0);
+        init(operation.table.getSchema(), operation.getEncodedSizeBytes());
+      } else {
+        init(operations.get(0).table.getSchema());
+      }
+      for (Operation operation : operations) {
+        encodeRow(operation.row, operation.getChangeType());
+      }
+    }
+
+    /**
+     * Fills this encoder's buffers with rows that were encoded by another encoder, for example
+     * one whose buffers were written to disk.
+     * @param encodedRows the encoded rows, as found in the other encoder's first buffer
+     * @param encodedIndirect the indirect data the rows point to, as found in its second buffer
+     */
+    void putEncodedRows(ByteBuffer encodedRows, ByteBuffer encodedIndirect) {
+      rows = new ChainedBuffer(BufferSegmentPool.getDefault(), encodedRows.remaining());
+      indirect = new ChainedBuffer(BufferSegmentPool.getDefault(), encodedIndirect.remaining());
+      rows.put(encodedRows);
+      indirect.put(encodedIndirect);
+    }
+
+    /**
+     * Returns the size of the data written by {@link #encodeOperationsToBuffers}, including the
+     * indirect data.
+     * @return size in bytes
+     */
+    long getWrittenSizeBytes() {
+      return rows.size() + indirect.size();
+    }
+
+    /**
+     * Returns the buffers the operations were encoded into, so that they can be released once
+     * the ChannelBuffer returned by {@link #toChannelBuffer} has been written out.
+     * @return this encoder's buffers
+     */
+    List<ChainedBuffer> getBuffers() {
+      return Arrays.asList(rows, indirect);
+    }
+
+    /**
+     * Appends a single operation to this encoder's buffers. Unlike
+     * {@link #encodeOperationsToBuffers}, this can be called repeatedly to build a batch as its
+     * operations come in. The buffers start with segments sized for the first operation and
+     * grow as more are appended, so that a batch that stays small doesn't hold whole pooled
+     * segments.
+     * @param operation the operation to encode, all the operations must be for the same table
+     */
+    void appendOperation(Operation operation) {
+      if (rows == null) {
+        init(operation.table.getSchema(), operation.getEncodedSizeBytes());
+      }
+      encodeRow(operation.row, operation.getChangeType());
+    }
+
+    /**
+     * Encodes rows of a columnar block as inserts into this encoder's pooled buffers. The result is
+     * the same as encoding the equivalent {@link Insert}s, but the cells are read straight from
+     * the block's arrays instead of going through a PartialRow.
+     * @param block the block to read the rows from
+     * @param rowIndexes the indexes of the rows to encode, in the order they must be sent
+     */
+    void encodeColumnarRowsToBuffers(ColumnarRowBlock block, int[] rowIndexes) {
+      init(block.getSchema());
+      BitSet columnsBitSet = block.getColumnsBitSet();
+      int columnCount = schema.getColumnCount();
+      BitSet rowNulls = schema.hasNullableColumns() ? new BitSet(columnCount) : null;
+      byte insertType = ChangeType.INSERT.toEncodedByte();
+      for (int row : rowIndexes) {
+        rows.put(insertType);
+        rows.putBitSet(columnsBitSet, columnCount);
+        if (rowNulls != null) {
+          rowNulls.clear();
+          for (int col = columnsBitSet.nextSetBit(0);
+               col >= 0;
+               col = columnsBitSet.nextSetBit(col + 1)) {
+            if (block.isNull(col, row)) {
+              rowNulls.set(col);
+            }
+          }
+          rows.putBitSet(rowNulls, columnCount);
+        }
+        for (int col = columnsBitSet.nextSetBit(0);
+             col >= 0;
+             col = columnsBitSet.nextSetBit(col + 1)) {
+          if (!block.isNull(col, row)) {
+            encodeColumnarCell(schema.getColumnByIndex(col).getType(), block.getColumn(col), row);
+          }
+        }
+      }
+    }
+
+    private void encodeColumnarCell(Type type, Object values, int row) {
+      switch (type) {
+        case BOOL: rows.put((byte) (((boolean[]) values)[row] ? 1 : 0)); break;
+        case INT8: rows.put(((byte[]) values)[row]); break;
+        case INT16: rows.putShort(((short[]) values)[row]); break;
+        case INT32: rows.putInt(((int[]) values)[row]); break;
+        case INT64:
+        case TIMESTAMP: rows.putLong(((long[]) values)[row]); break;
+        case FLOAT: rows.putInt(Float.floatToIntBits(((float[]) values)[row])); break;
+        case DOUBLE: rows.putLong(Double.doubleToLongBits(((double[]) values)[row])); break;
+        case STRING:
+        case BINARY:
+          byte[] data = ((byte[][]) values)[row];
+          rows.putLong(indirect.size());
+          rows.putLong(data.length);
+          indirect.put(data, 0, data.length);
+          break;
+        default: throw new IllegalArgumentException("Unsupported column type: " + type);
+      }
+    }
+
+    /**
+     * Adds a reference to this encoder's buffers, which must be matched by a call to
+     * {@link #release()} or by releasing the buffers returned by {@link #getBuffers()}.
+     */
+    void retain() {
+      rows.retain();
+      indirect.retain();
+    }
+
+    void release() {
+      rows.release();
+      indirect.release();
+    }
+
+    /**
+     * Serializes an RPC carrying the passed write request to which the encoded operations are
+     * added as its row_operations field. This is equivalent to setting a RowOperationsPB on the
+     * request and calling {@link KuduRpc#toChannelBuffer}, but the encoded rows and indirect data
+     * aren't copied: the returned buffer is a composite that points to this encoder's segments.
+     * @param header the RPC header
+     * @param requestBuilder the write request, without row operations
+     * @return a buffer ready to be sent to a tablet server
+     */
+    ChannelBuffer toChannelBuffer(Message header, Tserver.WriteRequestPB.Builder requestBuilder) {
+      return toChannelBuffer(header, NO_REQUEST_PREFIX, requestBuilder);
+    }
+
+    /**
+     * Like {@link #toChannelBuffer(Message, Tserver.WriteRequestPB.Builder)}, but the request
+     * starts with fields that were already serialized, see
+     * {@link KuduTable#getWriteRequestPrefix(AsyncKuduClient.RemoteTablet)}.
+     * @param header the RPC header
+     * @param requestPrefix serialized fields of the write request, copied as-is
+     * @param requestBuilder the rest of the write request, without row operations
+     * @return a buffer ready to be sent to a tablet server
+     */
+    ChannelBuffer toChannelBuffer(Message header, byte[] requestPrefix,
+                                  Tserver.WriteRequestPB.Builder requestBuilder) {
+      final Tserver.WriteRequestPB request = requestBuilder.build();
+      final int rowsSize = (int) rows.size();
+      final int indirectSize = (int) indirect.size();
+
+      int rowOpsSize = CodedOutputStream.computeTagSize(RowOperationsPB.ROWS_FIELD_NUMBER) +
+          CodedOutputStream.computeRawVarint32Size(rowsSize) + rowsSize;
+      int indirectPrefixSize = 0;
+      if (indirectSize > 0) {
+        indirectPrefixSize =
+            CodedOutputStream.computeTagSize(RowOperationsPB.INDIRECT_DATA_FIELD_NUMBER) +
+            CodedOutputStream.computeRawVarint32Size(indirectSize);
+        rowOpsSize += indirectPrefixSize + indirectSize;
+      }
+      final int requestSize = requestPrefix.length + request.getSerializedSize() +
+          CodedOutputStream.computeTagSize(Tserver.WriteRequestPB.ROW_OPERATIONS_FIELD_NUMBER) +
+          CodedOutputStream.computeRawVarint32Size(rowOpsSize) + rowOpsSize;
+      final int headerSize = header.getSerializedSize();
+      final int totalSize = CodedOutputStream.computeRawVarint32Size(headerSize) + headerSize +
+          CodedOutputStream.computeRawVarint32Size(requestSize) + requestSize;
+
+      // Everything up to the rows' data goes in a single array, followed by the rows' segments,
+      // then the indirect data's own field prefix and segments.
+      final int preambleSize = 4 + totalSize - rowsSize - indirectPrefixSize - indirectSize;
+      final byte[] preamble = new byte[preambleSize];
+      final ChannelBuffer preambleBuf = ChannelBuffers.wrappedBuffer(preamble);
+      preambleBuf.clear();
+      preambleBuf.writeInt(totalSize);
+      final CodedOutputStream out = CodedOutputStream.newInstance(preamble, 4, preambleSize - 4);
+      final byte[] indirectPrefix = new byte[indirectPrefixSize];
+      try {
+        out.writeRawVarint32(headerSize);
+        header.writeTo(out);
+        out.writeRawVarint32(requestSize);
+        out.writeRawBytes(requestPrefix);
+        request.writeTo(out);
+        out.writeTag(Tserver.WriteRequestPB.ROW_OPERATIONS_FIELD_NUMBER,
+            WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        out.writeRawVarint32(rowOpsSize);
+        out.writeTag(RowOperationsPB.ROWS_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        out.writeRawVarint32(rowsSize);
+        out.checkNoSpaceLeft();
+
+        if (indirectSize > 0) {
+          final CodedOutputStream indirectOut = CodedOutputStream.newInstance(indirectPrefix);
+          indirectOut.writeTag(RowOperationsPB.INDIRECT_DATA_FIELD_NUMBER,
+              WireFormat.WIRETYPE_LENGTH_DELIMITED);
+          indirectOut.writeRawVarint32(indirectSize);
+          indirectOut.checkNoSpaceLeft();
+        }
+      } catch (IOException e) {
+        throw new NonRecoverableException("Cannot serialize the following message " + request, e);
+      }
+      preambleBuf.writerIndex(preamble.length);
+
+      List<ChannelBuffer> buffers = new ArrayList<>();
+      buffers.add(preambleBuf);
+      rows.appendTo(buffers);
+      if (indirectSize > 0) {
+        buffers.add(ChannelBuffers.wrappedBuffer(indirectPrefix));
+        indirect.appendTo(buffers);
+      }
+      return ChannelBuffers.wrappedBuffer(buffers.toArray(new ChannelBuffer[buffers.size()]));
+    }
   }
 }
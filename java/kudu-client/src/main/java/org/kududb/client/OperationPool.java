@@ -0,0 +1,177 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.kududb.client;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import org.kududb.annotations.InterfaceAudience;
+import org.kududb.annotations.InterfaceStability;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A pool of reusable operations for a single table, obtained via
+ * {@link KuduTable#newOperationPool(int)}. Creating a new operation for each row allocates the
+ * operation itself along with its row's arrays and bit sets, getting operations from a pool
+ * instead lets a steady stream of writes reuse the same objects.<p>
+ *
+ * When applied to a session that completes operations per batch, see
+ * {@link SessionConfiguration#setPerBatchCompletion(boolean)}, a pooled operation goes back to its
+ * pool on its own once it succeeded, since no response refers to it. The caller must not keep a
+ * reference to it past that point. Operations that got a row error aren't reused since the
+ * errors refer to them. Otherwise the responses returned by the operations' Deferreds and by
+ * {@link AsyncKuduSession#flush()} refer to the operations, so they're only given back with
+ * {@link #recycle(Operation)}, once the caller is done with their responses.<p>
+ *
+ * This class is thread-safe.
+ */
+@InterfaceAudience.Public
+@InterfaceStability.Unstable
+public class OperationPool {
+
+  private final KuduTable table;
+  // Bounded queues don't allocate when operations are added, unlike linked queues.
+  private final ArrayBlockingQueue<Insert> inserts;
+  private final ArrayBlockingQueue<Update> updates;
+  private final ArrayBlockingQueue<Delete> deletes;
+  private final ArrayBlockingQueue<Upsert> upserts;
+
+  /**
+   * Package-private constructor, use {@link KuduTable#newOperationPool(int)} to get an instance.
+   * @param table the table the operations are for
+   * @param maxPooledOperations how many operations of each type can be kept
+   */
+  OperationPool(KuduTable table, int maxPooledOperations) {
+    Preconditions.checkArgument(maxPooledOperations > 0,
+        "The number of pooled operations must be greater than 0");
+    this.table = table;
+    this.inserts = new ArrayBlockingQueue<>(maxPooledOperations);
+    this.updates = new ArrayBlockingQueue<>(maxPooledOperations);
+    this.deletes = new ArrayBlockingQueue<>(maxPooledOperations);
+    this.upserts = new ArrayBlockingQueue<>(maxPooledOperations);
+  }
+
+  /**
+   * Get an insert from the pool, or a new one if the pool doesn't have any.
+   * @return an insert with this table's schema and no columns set
+   */
+  public Insert newInsert() {
+    Insert insert = inserts.poll();
+    if (insert == null) {
+      insert = new Insert(table);
+      insert.pool = this;
+    } else {
+      takeFromPool(insert);
+    }
+    return insert;
+  }
+
+  /**
+   * Get an update from the pool, or a new one if the pool doesn't have any.
+   * @return an update with this table's schema and no columns set
+   */
+  public Update newUpdate() {
+    Update update = updates.poll();
+    if (update == null) {
+      update = new Update(table);
+      update.pool = this;
+    } else {
+      takeFromPool(update);
+    }
+    return update;
+  }
+
+  /**
+   * Get a delete from the pool, or a new one if the pool doesn't have any.
+   * @return a delete with this table's schema and no columns set
+   */
+  public Delete newDelete() {
+    Delete delete = deletes.poll();
+    if (delete == null) {
+      delete = new Delete(table);
+      delete.pool = this;
+    } else {
+      takeFromPool(delete);
+    }
+    return delete;
+  }
+
+  /**
+   * Get an upsert from the pool, or a new one if the pool doesn't have any.
+   * @return an upsert with this table's schema and no columns set
+   */
+  public Upsert newUpsert() {
+    Upsert upsert = upserts.poll();
+    if (upsert == null) {
+      upsert = new Upsert(table);
+      upsert.pool = this;
+    } else {
+      takeFromPool(upsert);
+    }
+    return upsert;
+  }
+
+  /**
+   * Gives an operation back to the pool so that it can be reused. It must not be in flight, and
+   * must not be used by the caller anymore. The operation is dropped if the pool is full.
+   * @param operation an operation that was taken from this pool
+   * @throws IllegalArgumentException if the operation doesn't come from this pool
+   * @throws IllegalStateException if the operation was already recycled
+   */
+  public void recycle(Operation operation) {
+    Preconditions.checkArgument(operation.pool == this,
+        "The operation doesn't come from this pool");
+    synchronized (operation) {
+      // Two owners would get the same operation if it was queued twice.
+      Preconditions.checkState(!operation.inPool, "The operation was already recycled");
+      operation.inPool = true;
+    }
+    operation.reset();
+    switch (operation.getChangeType()) {
+      case INSERT:
+        inserts.offer((Insert) operation);
+        break;
+      case UPDATE:
+        updates.offer((Update) operation);
+        break;
+      case DELETE:
+        deletes.offer((Delete) operation);
+        break;
+      case UPSERT:
+        upserts.offer((Upsert) operation);
+        break;
+      default:
+        throw new IllegalArgumentException("Unexpected operation type " +
+            operation.getChangeType());
+    }
+  }
+
+  private static void takeFromPool(Operation operation) {
+    synchronized (operation) {
+      operation.inPool = false;
+    }
+  }
+
+  /**
+   * Returns how many operations are waiting to be reused.
+   * @return the number of pooled operations, all types included
+   */
+  @VisibleForTesting
+  int getPooledOperationsCount() {
+    return inserts.size() + updates.size() + deletes.size() + upserts.size();
+  }
+}
@@ -19,6 +19,7 @@ package org.kududb.client;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.BitSet;
+import java.util.Collections;
 import java.util.List;
 
 import com.google.common.base.Preconditions;
@@ -56,6 +57,8 @@ public class PartialRow {
   private final BitSet nullsBitSet;
 
   private boolean frozen = false;
+  // Set once the values of the non-key columns were dropped, see releaseValues().
+  private boolean valuesReleased = false;
 
   /**
    * This is not a stable API, prefer using {@link Schema#newPartialRow()}
@@ -98,6 +101,7 @@ public class PartialRow {
     this.rowAlloc = row.rowAlloc.clone();
     this.columnsBitSet = (BitSet) row.columnsBitSet.clone();
     this.nullsBitSet = row.nullsBitSet == null ? null : (BitSet) row.nullsBitSet.clone();
+    this.valuesReleased = row.valuesReleased;
   }
 
   /**
@@ -484,6 +488,37 @@ public class PartialRow {
     return schema.getColumnOffset(columnIndex);
   }
 
+  /**
+   * Sets all the columns that are set in the other row to the same values, leaving the other
+   * columns as they are. Variable length values are shared with the other row, not copied.
+   * @param other a row with the same schema
+   * @throws IllegalStateException if this row was already applied
+   */
+  void setColumnsFrom(PartialRow other) {
+    checkNotFrozen();
+    assert schema == other.schema;
+    for (int i = other.columnsBitSet.nextSetBit(0); i >= 0;
+         i = other.columnsBitSet.nextSetBit(i + 1)) {
+      columnsBitSet.set(i);
+      if (other.isSetToNull(i)) {
+        nullsBitSet.set(i);
+        continue;
+      }
+      if (nullsBitSet != null) {
+        nullsBitSet.clear(i);
+      }
+      Type type = schema.getColumnByIndex(i).getType();
+      if (type == Type.STRING || type == Type.BINARY) {
+        ByteBuffer value = other.varLengthData.get(i);
+        value.reset();
+        addVarLengthData(i, value);
+      } else {
+        int offset = schema.getColumnOffset(i);
+        System.arraycopy(other.rowAlloc, offset, rowAlloc, offset, type.getSize());
+      }
+    }
+  }
+
   /**
    * Tells if the specified column was set by the user
    * @param column column's index in the schema
@@ -510,7 +545,7 @@ public class PartialRow {
    * @return a byte array containing an encoded primary key
    */
   public byte[] encodePrimaryKey() {
-    return new KeyEncoder().encodePrimaryKey(this);
+    return KeyEncoder.get().encodePrimaryKey(this);
   }
 
   /**
@@ -617,6 +652,41 @@ public class PartialRow {
     return nullsBitSet;
   }
 
+  /**
+   * Clears all the cells of this row and makes it modifiable again so that it can be reused, see
+   * {@link OperationPool}. The row's backing arrays are kept, nothing is allocated.
+   */
+  void reset() {
+    columnsBitSet.clear();
+    if (nullsBitSet != null) {
+      nullsBitSet.clear();
+    }
+    Collections.fill(varLengthData, null);
+    frozen = false;
+    valuesReleased = false;
+  }
+
+  /**
+   * Drops the variable length cells of the columns that aren't part of the primary key, so that
+   * a row that was encoded and won't be encoded again doesn't keep them alive. The primary key,
+   * and so the partition key, can still be read but the row cannot be encoded anymore.
+   */
+  void releaseValues() {
+    assert frozen;
+    for (int i = schema.getPrimaryKeyColumnCount(); i < varLengthData.size(); i++) {
+      varLengthData.set(i, null);
+    }
+    valuesReleased = true;
+  }
+
+  /**
+   * Tells if {@link #releaseValues()} was called since this row was created or reset.
+   * @return true if only the primary key of this row can be read
+   */
+  boolean areValuesReleased() {
+    return valuesReleased;
+  }
+
   /**
    * Prevents this PartialRow from being modified again. Can be called multiple times.
    */
@@ -0,0 +1,131 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.kududb.client;
+
+import org.kududb.annotations.InterfaceAudience;
+
+import java.util.List;
+
+/**
+ * Sorts operations by their encoded primary keys so that tablet servers apply them in key order.
+ * It's a most significant byte first radix sort over the key bytes that moves indexes around in an
+ * int array, falling back to an insertion sort for small ranges. The sort is stable, so that
+ * operations on the same row stay in the order they were in.
+ */
+@InterfaceAudience.Private
+final class PrimaryKeySorter {
+
+  // Ranges this small are faster to sort by comparing keys.
+  private static final int INSERTION_SORT_THRESHOLD = 16;
+  // One bucket per byte value, plus one for the keys that end at the current depth which sort
+  // first, plus one so that the counts can be turned into offsets in place.
+  private static final int BUCKETS = 256 + 2;
+
+  private PrimaryKeySorter() {
+  }
+
+  /**
+   * Sorts the operations by primary key, keeping the operations on the same row in the order they
+   * were in.
+   * @param ops operations on the same table
+   */
+  static void sort(List<Operation> ops) {
+    int count = ops.size();
+    if (count < 2) {
+      return;
+    }
+    byte[][] keys = new byte[count][];
+    int[] order = new int[count];
+    for (int i = 0; i < count; i++) {
+      keys[i] = ops.get(i).getRow().encodePrimaryKey();
+      order[i] = i;
+    }
+    sort(keys, order);
+    Operation[] copy = ops.toArray(new Operation[count]);
+    for (int i = 0; i < count; i++) {
+      ops.set(i, copy[order[i]]);
+    }
+  }
+
+  /**
+   * Sorts indexes into an array of keys by the keys they point to, compared as unsigned bytes.
+   * @param keys the keys to sort
+   * @param order the indexes of the keys, sorted in place
+   */
+  static void sort(byte[][] keys, int[] order) {
+    sort(keys, order, new int[order.length], 0, order.length, 0);
+  }
+
+  private static void sort(byte[][] keys, int[] order, int[] scratch, int from, int to,
+                           int depth) {
+    if (to - from <= INSERTION_SORT_THRESHOLD) {
+      insertionSort(keys, order, from, to, depth);
+      return;
+    }
+    int[] offsets = new int[BUCKETS];
+    for (int i = from; i < to; i++) {
+      offsets[byteAt(keys[order[i]], depth) + 2]++;
+    }
+    for (int bucket = 1; bucket < BUCKETS; bucket++) {
+      offsets[bucket] += offsets[bucket - 1];
+    }
+    // Going through the indexes in order is what makes this stable.
+    for (int i = from; i < to; i++) {
+      int index = order[i];
+      scratch[from + offsets[byteAt(keys[index], depth) + 1]++] = index;
+    }
+    System.arraycopy(scratch, from, order, from, to - from);
+    // The keys that ended are all equal, only the ones in the byte buckets need more sorting.
+    for (int bucket = 1; bucket < BUCKETS - 1; bucket++) {
+      int bucketFrom = from + offsets[bucket - 1];
+      int bucketTo = from + offsets[bucket];
+      if (bucketTo - bucketFrom > 1) {
+        sort(keys, order, scratch, bucketFrom, bucketTo, depth + 1);
+      }
+    }
+  }
+
+  private static void insertionSort(byte[][] keys, int[] order, int from, int to, int depth) {
+    for (int i = from + 1; i < to; i++) {
+      int index = order[i];
+      int j = i - 1;
+      while (j >= from && compare(keys[order[j]], keys[index], depth) > 0) {
+        order[j + 1] = order[j];
+        j--;
+      }
+      order[j + 1] = index;
+    }
+  }
+
+  private static int compare(byte[] a, byte[] b, int depth) {
+    int length = Math.min(a.length, b.length);
+    for (int i = depth; i < length; i++) {
+      int diff = (a[i] & 0xff) - (b[i] & 0xff);
+      if (diff != 0) {
+        return diff;
+      }
+    }
+    return a.length - b.length;
+  }
+
+  /**
+   * @return the unsigned byte at the given depth, or -1 if the key is shorter than that
+   */
+  private static int byteAt(byte[] key, int depth) {
+    return depth < key.length ? key[depth] & 0xff : -1;
+  }
+}
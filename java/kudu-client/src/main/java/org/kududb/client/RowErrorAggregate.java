@@ -0,0 +1,84 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.kududb.client;
+
+import org.kududb.annotations.InterfaceAudience;
+import org.kududb.annotations.InterfaceStability;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Count of the row errors a session got for the same tablet and error code, along with the first
+ * of these errors. Only returned when errors are aggregated, see
+ * {@link SessionConfiguration#setAggregateErrors(boolean)}.
+ */
+@InterfaceAudience.Public
+@InterfaceStability.Evolving
+public class RowErrorAggregate {
+  private final String tabletId;
+  private final String errorCode;
+  private final RowError exemplar;
+  private final AtomicLong count = new AtomicLong();
+
+  RowErrorAggregate(String tabletId, String errorCode, RowError exemplar) {
+    this.tabletId = tabletId;
+    this.errorCode = errorCode;
+    this.exemplar = exemplar;
+  }
+
+  void increment() {
+    count.incrementAndGet();
+  }
+
+  /**
+   * Get the ID of the tablet the errors are for.
+   * @return the tablet's ID, or null if the tablet of the operations wasn't known
+   */
+  public String getTabletId() {
+    return tabletId;
+  }
+
+  /**
+   * Get the error code of the errors.
+   * @return the name of the error code, such as ALREADY_PRESENT
+   */
+  public String getErrorCode() {
+    return errorCode;
+  }
+
+  /**
+   * Get the first of the errors, which is also returned with the other pending errors.
+   * @return a row error
+   */
+  public RowError getExemplar() {
+    return exemplar;
+  }
+
+  /**
+   * Get how many errors there were for this tablet and error code, including the exemplar.
+   * @return a count of errors
+   */
+  public long getCount() {
+    return count.get();
+  }
+
+  @Override
+  public String toString() {
+    return "RowErrorAggregate(tablet=" + tabletId + ", errorCode=" + errorCode +
+        ", count=" + getCount() + ", exemplar=" + exemplar + ")";
+  }
+}
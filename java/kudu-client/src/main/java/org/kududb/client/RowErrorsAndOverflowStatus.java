@@ -19,6 +19,8 @@ package org.kududb.client;
 import org.kududb.annotations.InterfaceAudience;
 import org.kududb.annotations.InterfaceStability;
 
+import java.util.List;
+
 /**
  * Container class used as a response when retrieving pending row errors.
  */
@@ -27,10 +29,18 @@ import org.kududb.annotations.InterfaceStability;
 public class RowErrorsAndOverflowStatus {
   private final RowError[] rowErrors;
   private final boolean overflowed;
+  private final long discardedErrorCount;
+  private final List<RowErrorAggregate> aggregates;
+  private final List<ColumnarRowError> spooledRowErrors;
 
-  RowErrorsAndOverflowStatus(RowError[] rowErrors, boolean overflowed) {
+  RowErrorsAndOverflowStatus(RowError[] rowErrors, boolean overflowed, long discardedErrorCount,
+                             List<RowErrorAggregate> aggregates,
+                             List<ColumnarRowError> spooledRowErrors) {
     this.rowErrors = rowErrors;
     this.overflowed = overflowed;
+    this.discardedErrorCount = discardedErrorCount;
+    this.aggregates = aggregates;
+    this.spooledRowErrors = spooledRowErrors;
   }
 
   /**
@@ -48,4 +58,33 @@ public class RowErrorsAndOverflowStatus {
   public boolean isOverflowed() {
     return overflowed;
   }
+
+  /**
+   * Get how many row errors were discarded because the error collector was full.
+   * @return a count of errors, 0 if there was no overflow
+   */
+  public long getDiscardedErrorCount() {
+    return discardedErrorCount;
+  }
+
+  /**
+   * Get the count of errors for each tablet and error code, only returned when errors are
+   * aggregated, see {@link SessionConfiguration#setAggregateErrors(boolean)}.
+   * @return a list of aggregates, may be empty
+   */
+  public List<RowErrorAggregate> getAggregates() {
+    return aggregates;
+  }
+
+  /**
+   * Get the errors of the rows that failed once their batch was replayed from the write spool,
+   * or whose batch couldn't be replayed at all, see
+   * {@link SessionConfiguration#setWriteSpool(String, long)}. Their operations were already
+   * called back when their batch was spooled, so they're only reported here. The row indexes are
+   * relative to the spooled batch.
+   * @return a list of row errors, may be empty
+   */
+  public List<ColumnarRowError> getSpooledRowErrors() {
+    return spooledRowErrors;
+  }
 }
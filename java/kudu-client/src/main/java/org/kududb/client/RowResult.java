@@ -26,7 +26,6 @@ import org.kududb.util.Slice;
 import java.nio.ByteBuffer;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
-import java.util.BitSet;
 import java.util.Date;
 import java.util.TimeZone;
 
@@ -46,7 +45,8 @@ public class RowResult {
   private static final long US_IN_S = 1000L * 1000L;
   private int index = INDEX_RESET_LOCATION;
   private int offset;
-  private BitSet nullsBitSet;
+  // Offset of the current row's null bitmap in rowData's raw array, -1 if there's none.
+  private int nullsBitmapOffset = -1;
   private final int rowSize;
   private final int[] columnOffsets;
   private final Schema schema;
@@ -100,11 +100,12 @@ public class RowResult {
     this.index = rowIndex;
     this.offset = this.rowSize * this.index;
     if (schema.hasNullableColumns() && this.index != INDEX_RESET_LOCATION) {
-      this.nullsBitSet = Bytes.toBitSet(
-          this.rowData.getRawArray(),
-          this.rowData.getRawOffset()
-          + getCurrentRowDataOffsetForColumn(schema.getColumnCount()),
-          schema.getColumnCount());
+      // The bits are read from the row data when needed, so that moving to the next row doesn't
+      // allocate anything.
+      this.nullsBitmapOffset = this.rowData.getRawOffset()
+          + getCurrentRowDataOffsetForColumn(schema.getColumnCount());
+    } else {
+      this.nullsBitmapOffset = -1;
     }
   }
 
@@ -112,6 +113,16 @@ public class RowResult {
     return this.offset + this.columnOffsets[columnIndex];
   }
 
+  /**
+   * Get where a column starts in a row, the null bitmap being at the offset of the column that
+   * follows the last one.
+   * @param columnIndex Column index in the schema
+   * @return the offset of the column from the beginning of a row
+   */
+  int getColumnOffset(int columnIndex) {
+    return this.columnOffsets[columnIndex];
+  }
+
   /**
    * Get the specified column's integer
    * @param columnName name of the column to get data for
@@ -428,11 +439,12 @@ public class RowResult {
    */
   public boolean isNull(int columnIndex) {
     checkValidColumn(columnIndex);
-    if (nullsBitSet == null) {
+    if (nullsBitmapOffset == -1) {
       return false;
     }
     return schema.getColumnByIndex(columnIndex).isNullable()
-        && nullsBitSet.get(columnIndex);
+        && (rowData.getRawArray()[nullsBitmapOffset + (columnIndex >> 3)] &
+            (1 << (columnIndex & 7))) != 0;
   }
 
   /**
@@ -496,6 +508,89 @@ public class RowResult {
     }
   }
 
+  /**
+   * Compares the values of some columns of the current row with those of the current row of
+   * another result that has the same schema, without copying them. Strings and binaries are
+   * compared byte by byte, like the primary keys are ordered. The columns must not be null.
+   * @param other the other result
+   * @param columnIndexes the columns to compare, in order
+   * @return a negative number, zero, or a positive number if this row's values are lower than,
+   * equal to, or greater than the other row's
+   */
+  int compareColumns(RowResult other, int[] columnIndexes) {
+    byte[] data = this.rowData.getRawArray();
+    byte[] otherData = other.rowData.getRawArray();
+    for (int columnIndex : columnIndexes) {
+      int position = this.rowData.getRawOffset() + getCurrentRowDataOffsetForColumn(columnIndex);
+      int otherPosition =
+          other.rowData.getRawOffset() + other.getCurrentRowDataOffsetForColumn(columnIndex);
+      int cmp;
+      switch (schema.getColumnByIndex(columnIndex).getType()) {
+        case BOOL:
+        case INT8:
+          cmp = Byte.compare(data[position], otherData[otherPosition]);
+          break;
+        case INT16:
+          cmp = Short.compare(Bytes.getShort(data, position),
+                              Bytes.getShort(otherData, otherPosition));
+          break;
+        case INT32:
+          cmp = Integer.compare(Bytes.getInt(data, position),
+                                Bytes.getInt(otherData, otherPosition));
+          break;
+        case INT64:
+        case TIMESTAMP:
+          cmp = Long.compare(Bytes.getLong(data, position),
+                             Bytes.getLong(otherData, otherPosition));
+          break;
+        case FLOAT:
+          cmp = Float.compare(Bytes.getFloat(data, position),
+                              Bytes.getFloat(otherData, otherPosition));
+          break;
+        case DOUBLE:
+          cmp = Double.compare(Bytes.getDouble(data, position),
+                               Bytes.getDouble(otherData, otherPosition));
+          break;
+        case STRING:
+        case BINARY:
+          cmp = compareIndirectData(data, position, other, otherData, otherPosition);
+          break;
+        default:
+          throw new IllegalArgumentException("Cannot compare column " +
+              schema.getColumnByIndex(columnIndex).getName());
+      }
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Compares the strings or binaries that are at the given positions of the row data as unsigned
+   * bytes, the shortest being lower if it's a prefix of the other.
+   */
+  private int compareIndirectData(byte[] data, int position,
+                                  RowResult other, byte[] otherData, int otherPosition) {
+    // Like in getString(), the offsets and lengths are longs but we only support ints.
+    int offset = indirectData.getRawOffset() + (int) Bytes.getLong(data, position);
+    int length = (int) Bytes.getLong(data, position + 8);
+    int otherOffset =
+        other.indirectData.getRawOffset() + (int) Bytes.getLong(otherData, otherPosition);
+    int otherLength = (int) Bytes.getLong(otherData, otherPosition + 8);
+    byte[] indirect = indirectData.getRawArray();
+    byte[] otherIndirect = other.indirectData.getRawArray();
+    int minLength = Math.min(length, otherLength);
+    for (int i = 0; i < minLength; i++) {
+      byte b = indirect[offset + i];
+      byte otherB = otherIndirect[otherOffset + i];
+      if (b != otherB) {
+        return (b & 0xFF) - (otherB & 0xFF);
+      }
+    }
+    return length - otherLength;
+  }
+
   @Override
   public String toString() {
     return "RowResult index: " + this.index + ", size: " + this.rowSize + ", " +
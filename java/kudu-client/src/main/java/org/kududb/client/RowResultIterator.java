@@ -16,8 +16,11 @@
 // under the License.
 package org.kududb.client;
 
+import java.nio.ByteBuffer;
 import java.util.Iterator;
+import org.kududb.ColumnSchema;
 import org.kududb.Schema;
+import org.kududb.Type;
 import org.kududb.WireProtocol;
 import org.kududb.annotations.InterfaceAudience;
 import org.kududb.annotations.InterfaceStability;
@@ -26,6 +29,11 @@ import org.kududb.util.Slice;
 /**
  * Class that contains the rows sent by a tablet server, exhausting this iterator only means
  * that all the rows from the last server response were read.
+ * <p>
+ * Besides iterating over the rows, all the values of a column can be copied at once into an
+ * array with methods like {@link #getLongs(int, long[])}. The column is only checked once per
+ * call instead of once per cell, and the arrays are filled regardless of where the iterator is.
+ * The values of the null cells are undefined, use {@link #getNulls(int, boolean[])} to find them.
  */
 @InterfaceAudience.Public
 @InterfaceStability.Evolving
@@ -36,6 +44,7 @@ public class RowResultIterator extends KuduRpcResponse implements Iterator<RowRe
   private final Slice bs;
   private final Slice indirectBs;
   private final int numRows;
+  private final int rowSize;
   private final RowResult rowResult;
   private int currentRow = 0;
 
@@ -52,6 +61,7 @@ public class RowResultIterator extends KuduRpcResponse implements Iterator<RowRe
                     final CallResponse callResponse) {
     super(ellapsedMillis, tsUUID);
     this.schema = schema;
+    this.rowSize = schema.getRowSize();
     if (data == null || data.getNumRows() == 0) {
       this.bs = this.indirectBs = null;
       this.rowResult = null;
@@ -63,7 +73,6 @@ public class RowResultIterator extends KuduRpcResponse implements Iterator<RowRe
     this.numRows = data.getNumRows();
 
     // Integrity check
-    int rowSize = schema.getRowSize();
     int expectedSize = numRows * rowSize;
     if (expectedSize != bs.length()) {
       throw new NonRecoverableException("RowResult block has " + bs.length() + " bytes of data " +
@@ -99,6 +108,228 @@ public class RowResultIterator extends KuduRpcResponse implements Iterator<RowRe
     return this.numRows;
   }
 
+  /**
+   * Copy the values of a BOOL column into an array.
+   * @param columnIndex Column index in the schema
+   * @param dst array to fill, at least {@link #getNumRows()} long
+   * @throws IndexOutOfBoundsException if the column doesn't exist
+   * @throws IllegalArgumentException if the column has another type or the array is too short
+   */
+  public void getBooleans(int columnIndex, boolean[] dst) {
+    int position = checkColumn(columnIndex, dst.length, Type.BOOL, null);
+    byte[] data = getRawArray();
+    for (int i = 0; i < numRows; i++) {
+      dst[i] = data[position] == 1;
+      position += rowSize;
+    }
+  }
+
+  /**
+   * Copy the values of an INT8 column into an array.
+   * @param columnIndex Column index in the schema
+   * @param dst array to fill, at least {@link #getNumRows()} long
+   * @throws IndexOutOfBoundsException if the column doesn't exist
+   * @throws IllegalArgumentException if the column has another type or the array is too short
+   */
+  public void getBytes(int columnIndex, byte[] dst) {
+    int position = checkColumn(columnIndex, dst.length, Type.INT8, null);
+    byte[] data = getRawArray();
+    for (int i = 0; i < numRows; i++) {
+      dst[i] = data[position];
+      position += rowSize;
+    }
+  }
+
+  /**
+   * Copy the values of an INT16 column into an array.
+   * @param columnIndex Column index in the schema
+   * @param dst array to fill, at least {@link #getNumRows()} long
+   * @throws IndexOutOfBoundsException if the column doesn't exist
+   * @throws IllegalArgumentException if the column has another type or the array is too short
+   */
+  public void getShorts(int columnIndex, short[] dst) {
+    int position = checkColumn(columnIndex, dst.length, Type.INT16, null);
+    byte[] data = getRawArray();
+    for (int i = 0; i < numRows; i++) {
+      dst[i] = Bytes.getShort(data, position);
+      position += rowSize;
+    }
+  }
+
+  /**
+   * Copy the values of an INT32 column into an array.
+   * @param columnIndex Column index in the schema
+   * @param dst array to fill, at least {@link #getNumRows()} long
+   * @throws IndexOutOfBoundsException if the column doesn't exist
+   * @throws IllegalArgumentException if the column has another type or the array is too short
+   */
+  public void getInts(int columnIndex, int[] dst) {
+    int position = checkColumn(columnIndex, dst.length, Type.INT32, null);
+    byte[] data = getRawArray();
+    for (int i = 0; i < numRows; i++) {
+      dst[i] = Bytes.getInt(data, position);
+      position += rowSize;
+    }
+  }
+
+  /**
+   * Copy the values of an INT64 or TIMESTAMP column into an array. Timestamps are in
+   * microseconds since midnight, January 1, 1970 UTC.
+   * @param columnIndex Column index in the schema
+   * @param dst array to fill, at least {@link #getNumRows()} long
+   * @throws IndexOutOfBoundsException if the column doesn't exist
+   * @throws IllegalArgumentException if the column has another type or the array is too short
+   */
+  public void getLongs(int columnIndex, long[] dst) {
+    int position = checkColumn(columnIndex, dst.length, Type.INT64, Type.TIMESTAMP);
+    byte[] data = getRawArray();
+    for (int i = 0; i < numRows; i++) {
+      dst[i] = Bytes.getLong(data, position);
+      position += rowSize;
+    }
+  }
+
+  /**
+   * Copy the values of a FLOAT column into an array.
+   * @param columnIndex Column index in the schema
+   * @param dst array to fill, at least {@link #getNumRows()} long
+   * @throws IndexOutOfBoundsException if the column doesn't exist
+   * @throws IllegalArgumentException if the column has another type or the array is too short
+   */
+  public void getFloats(int columnIndex, float[] dst) {
+    int position = checkColumn(columnIndex, dst.length, Type.FLOAT, null);
+    byte[] data = getRawArray();
+    for (int i = 0; i < numRows; i++) {
+      dst[i] = Bytes.getFloat(data, position);
+      position += rowSize;
+    }
+  }
+
+  /**
+   * Copy the values of a DOUBLE column into an array.
+   * @param columnIndex Column index in the schema
+   * @param dst array to fill, at least {@link #getNumRows()} long
+   * @throws IndexOutOfBoundsException if the column doesn't exist
+   * @throws IllegalArgumentException if the column has another type or the array is too short
+   */
+  public void getDoubles(int columnIndex, double[] dst) {
+    int position = checkColumn(columnIndex, dst.length, Type.DOUBLE, null);
+    byte[] data = getRawArray();
+    for (int i = 0; i < numRows; i++) {
+      dst[i] = Bytes.getDouble(data, position);
+      position += rowSize;
+    }
+  }
+
+  /**
+   * Copy where the values of a STRING or BINARY column are in {@link #getVarLengthData()}. The
+   * values aren't copied, strings can be decoded from the buffer as UTF-8.
+   * @param columnIndex Column index in the schema
+   * @param offsets array to fill with the offsets of the values in the buffer, at least
+   *                {@link #getNumRows()} long
+   * @param lengths array to fill with the lengths of the values, at least
+   *                {@link #getNumRows()} long
+   * @throws IndexOutOfBoundsException if the column doesn't exist
+   * @throws IllegalArgumentException if the column has another type or an array is too short
+   */
+  public void getVarLengthOffsets(int columnIndex, int[] offsets, int[] lengths) {
+    int position = checkColumn(columnIndex, Math.min(offsets.length, lengths.length),
+        Type.STRING, Type.BINARY);
+    byte[] data = getRawArray();
+    for (int i = 0; i < numRows; i++) {
+      // Like in RowResult, the offset and length are longs but we only support ints.
+      offsets[i] = (int) Bytes.getLong(data, position);
+      lengths[i] = (int) Bytes.getLong(data, position + 8);
+      position += rowSize;
+    }
+  }
+
+  /**
+   * Get the data that the STRING and BINARY values point to, see
+   * {@link #getVarLengthOffsets(int, int[], int[])}. The buffer isn't a copy, don't modify it.
+   * @return a buffer that starts at the beginning of the data, empty if there are no rows
+   */
+  public ByteBuffer getVarLengthData() {
+    if (indirectBs == null) {
+      return ByteBuffer.allocate(0);
+    }
+    return ByteBuffer.wrap(indirectBs.getRawArray(), indirectBs.getRawOffset(),
+        indirectBs.length()).slice();
+  }
+
+  /**
+   * Copy which cells of a column are null into an array. If the column isn't nullable, the
+   * array is filled with false.
+   * @param columnIndex Column index in the schema
+   * @param dst array to fill, at least {@link #getNumRows()} long
+   * @throws IndexOutOfBoundsException if the column doesn't exist
+   * @throws IllegalArgumentException if the array is too short
+   */
+  public void getNulls(int columnIndex, boolean[] dst) {
+    checkColumn(columnIndex, dst.length, null, null);
+    if (numRows == 0) {
+      return;
+    }
+    if (!schema.getColumnByIndex(columnIndex).isNullable()) {
+      for (int i = 0; i < numRows; i++) {
+        dst[i] = false;
+      }
+      return;
+    }
+    byte[] data = getRawArray();
+    int position = bs.getRawOffset() + rowResult.getColumnOffset(schema.getColumnCount())
+        + (columnIndex >> 3);
+    int mask = 1 << (columnIndex & 7);
+    for (int i = 0; i < numRows; i++) {
+      dst[i] = (data[position] & mask) != 0;
+      position += rowSize;
+    }
+  }
+
+  private byte[] getRawArray() {
+    return bs == null ? null : bs.getRawArray();
+  }
+
+  /**
+   * Checks that the column can be read into an array.
+   * @param expectedType type the column must have, null if it can have any type
+   * @param otherExpectedType other type the column can have, null if there's only one
+   * @return position of the column's value of the first row in the raw array, or -1 if there
+   * are no rows
+   * @throws IndexOutOfBoundsException if the column doesn't exist
+   * @throws IllegalArgumentException if the column has another type or the array is too short
+   */
+  private int checkColumn(int columnIndex, int dstLength, Type expectedType,
+                          Type otherExpectedType) {
+    if (columnIndex < 0 || columnIndex >= schema.getColumnCount()) {
+      throw new IndexOutOfBoundsException("Requested column is out of range, " +
+          columnIndex + " out of " + schema.getColumnCount());
+    }
+    ColumnSchema columnSchema = schema.getColumnByIndex(columnIndex);
+    Type columnType = columnSchema.getType();
+    if (expectedType != null && columnType != expectedType && columnType != otherExpectedType) {
+      throw new IllegalArgumentException("Column (name: " + columnSchema.getName() +
+          ", index: " + columnIndex + ") is of type " + columnType.getName() +
+          " but was requested as a type " + expectedType.getName());
+    }
+    if (dstLength < numRows) {
+      throw new IllegalArgumentException("Array of length " + dstLength + " is too short for " +
+          numRows + " rows");
+    }
+    if (numRows == 0) {
+      return -1;
+    }
+    return bs.getRawOffset() + rowResult.getColumnOffset(columnIndex);
+  }
+
+  /**
+   * Get how many bytes of row data and indirect data this iterator holds.
+   * @return the size of the data
+   */
+  int getDataSizeBytes() {
+    return bs == null ? 0 : bs.length() + indirectBs.length();
+  }
+
   @Override
   public String toString() {
     return "RowResultIterator for " + this.numRows + " rows";
@@ -74,6 +74,140 @@ public interface SessionConfiguration {
    */
   void setMutationBufferSpace(int size);
 
+  /**
+   * Set the number of bytes of encoded row data that can be buffered per tablet. When set, this
+   * replaces the operation count configured with {@link #setMutationBufferSpace(int)} as the
+   * buffer's high watermark, so that batches are flushed once they reach a predictable RPC size
+   * regardless of how wide the rows are. A batch always accepts at least one operation, even if
+   * that operation alone is bigger than the configured size.
+   * The low watermark set via {@link #setMutationBufferLowWatermark(float)} is then also computed
+   * in bytes.
+   * @param size number of bytes, 0 (the default) goes back to counting operations
+   * @throws IllegalArgumentException if the buffer isn't empty or if the size is negative
+   */
+  void setMutationBufferSpaceBytes(long size);
+
+  /**
+   * Set how many batches can be in flight at the same time for a single tablet when using
+   * background or manual flushing. The default of 1 means that a tablet's next batch is only sent
+   * once the previous one completes, which caps the throughput to each tablet at one batch per
+   * round trip. Raising it lets batches be pipelined on high latency links. A batch that may
+   * contain the same rows as an older batch still in flight for its tablet waits for that batch
+   * to complete so that operations on the same row are still applied in the order they were
+   * applied to the session.
+   * @param maxInFlightBatches number of batches, must be at least 1
+   * @throws IllegalArgumentException if the buffer isn't empty or if the number is lower than 1
+   */
+  void setMaxInFlightBatchesPerTablet(int maxInFlightBatches);
+
+  /**
+   * Tells if operations are encoded as soon as they are applied.
+   * @return true if operations are encoded when they are applied, false if they are encoded
+   * when they are flushed
+   */
+  boolean isEncodeOnApply();
+
+  /**
+   * Set whether operations are encoded into their tablet's batch as soon as they are applied,
+   * instead of when the batch is flushed. This only has an effect with background and manual
+   * flushing. Encoding on apply spreads the encoding cost over the calls to apply and makes
+   * flushes take almost the same time regardless of how many operations are buffered, at the
+   * cost of a little more work in apply. The operations still have to be kept until their
+   * responses are delivered, since the responses and row errors refer to them, but once their
+   * batch is sent their rows only keep their primary key: the string and binary values of the
+   * other columns are dropped since the batch holds them encoded.
+   * @param encodeOnApply true to encode operations when they are applied
+   * @throws IllegalArgumentException if the buffer isn't empty, or if mutations are coalesced or
+   * sorted by primary key
+   */
+  void setEncodeOnApply(boolean encodeOnApply);
+
+  /**
+   * Tells if the time batches are buffered adapts to the load of their tablet.
+   * @return true if adaptive flushing is enabled
+   */
+  boolean isAdaptiveFlushing();
+
+  /**
+   * Set whether the time a tablet's batch is buffered adapts to how busy that tablet is when
+   * using background flushing, instead of always being the flush interval. A batch is sent on the
+   * session flusher's next tick to a tablet that has nothing in flight, and while a tablet is busy
+   * the operations
+   * accumulate until its previous batch completes, so that batches are small and fast when the
+   * session is idle and get bigger under load. The flush interval stays the longest time an
+   * operation can be buffered.
+   * This is disabled by default.
+   * @param adaptiveFlushing true to enable adaptive flushing
+   * @throws IllegalArgumentException if the buffer isn't empty.
+   */
+  void setAdaptiveFlushing(boolean adaptiveFlushing);
+
+  /**
+   * Tells if the operations of each batch are sent in primary key order.
+   * @return true if batches are sorted by primary key
+   */
+  boolean isSortByPrimaryKey();
+
+  /**
+   * Set whether the operations of each batch are sorted by primary key before being sent, instead
+   * of being sent in the order they were applied. Tablet servers apply the rows of a batch in the
+   * order they're received, so sorted batches of random keys make for cheaper inserts and key
+   * lookups on the server. Operations on the same row are still sent in the order they were
+   * applied. This only has an effect with background and manual flushing, and costs a sort of
+   * every batch on the client.
+   * This is disabled by default, and cannot be combined with {@link #setEncodeOnApply(boolean)}.
+   * @param sortByPrimaryKey true to sort batches by primary key
+   * @throws IllegalArgumentException if the buffer isn't empty or if operations are encoded on
+   * apply
+   */
+  void setSortByPrimaryKey(boolean sortByPrimaryKey);
+
+  /**
+   * Tells if mutations on the same row are merged before being sent.
+   * @return true if mutations are coalesced
+   */
+  boolean isCoalesceMutations();
+
+  /**
+   * Set whether mutations on the same row that end up in the same batch are merged into a single
+   * operation when that doesn't change the outcome, which saves bytes on the wire and work on the
+   * tablet servers when the same rows are updated often. This only has an effect with background
+   * and manual flushing. An UPSERT followed by an UPSERT or an UPDATE becomes a single UPSERT, two
+   * UPDATEs become a single UPDATE, and an UPDATE followed by a DELETE becomes a DELETE. The
+   * values of the later operation win. Other sequences are sent as they were applied.
+   * <p>
+   * Each merged operation still gets its own response, all of them completing at the same time
+   * with the same outcome. A row error refers to the operation it's given to, but its status
+   * comes from the merged operation.
+   * This is disabled by default, and cannot be combined with {@link #setEncodeOnApply(boolean)}.
+   * @param coalesceMutations true to merge mutations on the same row
+   * @throws IllegalArgumentException if the buffer isn't empty or if operations are encoded on
+   * apply
+   */
+  void setCoalesceMutations(boolean coalesceMutations);
+
+  /**
+   * Tells if buffered operations are only completed through their batch.
+   * @return true if per-batch completion is enabled
+   */
+  boolean isPerBatchCompletion();
+
+  /**
+   * Set whether buffered operations are completed once per batch instead of one by one, which
+   * saves a Deferred and an OperationResponse for every operation that succeeds. This only has an
+   * effect with background and manual flushing.
+   * <p>
+   * When enabled, {@link AsyncKuduSession#apply(Operation)} returns null and the operations'
+   * Deferreds are never called back. The Deferred returned by {@link AsyncKuduSession#flush()}
+   * only gets the responses of the operations that failed. In both flush modes the row errors are
+   * added to the pending errors, see {@link #getPendingErrors()}, including those of operations
+   * that failed because their whole batch or their tablet lookup failed.
+   * This is disabled by default.
+   * @param perBatchCompletion true to only complete operations through their batch
+   * @throws IllegalArgumentException if the buffer isn't empty
+   */
+  void setPerBatchCompletion(boolean perBatchCompletion);
+
   /**
    * Set the low watermark for this session. The default is set to half the mutation buffer space.
    * For example, a buffer space of 1000 with a low watermark set to 50% (0.5) will start randomly
@@ -87,6 +221,67 @@ public interface SessionConfiguration {
    */
   void setMutationBufferLowWatermark(float mutationBufferLowWatermarkPercentage);
 
+  /**
+   * Tells if apply() waits for room in the session instead of throwing PleaseThrottleException.
+   * @return true if blocking backpressure is enabled
+   */
+  boolean isBlockingBackpressure();
+
+  /**
+   * Limit the operations that can be pending in the session when using background flushing, and
+   * make apply() wait until there's room for the next operation instead of throwing
+   * PleaseThrottleException. An operation is pending from the time it's applied until its batch
+   * completes. Operations that have to wait are given room in the order they were applied,
+   * whatever thread they were applied from. The randomized low watermark isn't used in this mode.
+   * <p>
+   * With {@link AsyncKuduSession}, apply() returns a Deferred that's only called back once the
+   * operation could be buffered and then written. With {@link KuduSession}, apply() blocks the
+   * calling thread until the operation can be buffered, up to the session's timeout.
+   * <p>
+   * An operation is always let in when nothing is pending, even if it's bigger than the byte limit.
+   * @param maxPendingOperations maximum number of pending operations, 0 for no limit
+   * @param maxPendingBytes maximum encoded size of the pending operations, 0 for no limit. Setting
+   *                        both limits to 0 disables blocking backpressure, which is the default
+   * @throws IllegalArgumentException if the buffer isn't empty, if a limit is negative or if a
+   * write spool is used
+   */
+  void setBlockingBackpressure(int maxPendingOperations, long maxPendingBytes);
+
+  /**
+   * Gets the directory the session spools batches to.
+   * @return the spool's directory, null if the spool is disabled
+   */
+  String getWriteSpoolDirectory();
+
+  /**
+   * Set a directory on local disk where the session writes the batches it cannot send when
+   * using background flushing, instead of throwing PleaseThrottleException, for example while a
+   * tablet elects a new leader. A tablet's spooled batches are replayed in order as soon as it
+   * accepts writes again, and the tablet's newer batches are spooled after them in the meantime.
+   * A batch whose replay timed out is tried again later. A batch that the servers reject, for
+   * example because its table was dropped, or whose table's schema changed since it was spooled,
+   * is dropped.
+   * <p>
+   * The operations of a spooled batch are called back once the batch is on disk, with responses
+   * that don't have a write timestamp: a successful response only means that the operation was
+   * durably queued, not that it was written. The rows that fail once they're replayed, and all
+   * the rows of the batches that are dropped, are added to the pending errors, see
+   * {@link RowErrorsAndOverflowStatus#getSpooledRowErrors()}, and counted by the
+   * {@link Statistics.Statistic#SPOOL_REPLAY_ERRORS} statistic.
+   * <p>
+   * Batches are only spooled while the spool's files use less than the given space. The spool is
+   * kept across restarts: a session that uses the same directory replays what the previous one
+   * didn't, which means that a batch can be written twice if the process stopped while it was
+   * being replayed. A directory can only be used by one session at a time.
+   * This is disabled by default, and cannot be combined with blocking backpressure.
+   * @param directory the spool's directory, created if needed, or null to disable the spool
+   * @param maxDiskBytes how much disk space the spool can use
+   * @throws IllegalArgumentException if the buffer isn't empty, if blocking backpressure is
+   * enabled or if the disk space isn't positive
+   * @throws NonRecoverableException if the directory cannot be used
+   */
+  void setWriteSpool(String directory, long maxDiskBytes);
+
   /**
    * Set the flush interval, which will be used for the next scheduling decision.
    * @param interval interval in milliseconds.
@@ -155,4 +350,64 @@ public interface SessionConfiguration {
    * @return an object that contains the errors and the overflow status
    */
   RowErrorsAndOverflowStatus getPendingErrors();
+
+  /**
+   * Get the maximum number of rows per second this session can write.
+   * @return a number of rows per second, 0 if there's no limit
+   */
+  long getWriteRateLimitRowsPerSecond();
+
+  /**
+   * Get the maximum number of bytes of encoded rows per second this session can write.
+   * @return a number of bytes per second, 0 if there's no limit
+   */
+  long getWriteRateLimitBytesPerSecond();
+
+  /**
+   * Set how many rows and bytes per second this session can write. The batches that go over the
+   * limit are delayed before being sent, which delays their operations and, once the buffers are
+   * full, the application. A session can burst up to a second worth of rows after being idle.
+   * This applies on top of the table's limit, see
+   * {@link AsyncKuduClient#setTableWriteRateLimit(String, long, long)}, and can be changed at any
+   * time. There is no limit by default.
+   * @param rowsPerSecond maximum number of rows per second, 0 for no limit
+   * @param bytesPerSecond maximum number of bytes of encoded rows per second, 0 for no limit
+   * @throws IllegalArgumentException if a limit is negative
+   */
+  void setWriteRateLimit(long rowsPerSecond, long bytesPerSecond);
+
+  /**
+   * Get the weight of this session's batches when they wait for a tablet server.
+   * @return the weight
+   */
+  int getWriteWeight();
+
+  /**
+   * Set how many batches in a row this session can send to a tablet server when it's its turn,
+   * compared to the other sessions that have batches waiting for the same server. This only has
+   * an effect when the client limits the batches in flight per server, see
+   * {@link AsyncKuduClient.AsyncKuduClientBuilder#maxInFlightWriteBatchesPerServer(int)}, and can
+   * be changed at any time. The default weight is 1.
+   * @param weight a positive weight
+   * @throws IllegalArgumentException if the weight isn't positive
+   */
+  void setWriteWeight(int weight);
+
+  /**
+   * Tells if the pending errors are aggregated by tablet and error code.
+   * @return true if errors are aggregated
+   */
+  boolean isAggregateErrors();
+
+  /**
+   * Set whether the pending errors are aggregated by tablet and error code. When enabled, only
+   * the first error of each tablet and error code is kept with the pending errors, the other ones
+   * are only counted, see {@link RowErrorsAndOverflowStatus#getAggregates()}. This keeps a storm
+   * of errors, like all the rows of a table being rejected, from filling the pending errors with
+   * the same error over and over again.
+   * This is disabled by default.
+   * @param aggregateErrors true to aggregate errors by tablet and error code
+   * @throws IllegalArgumentException if the buffer isn't empty
+   */
+  void setAggregateErrors(boolean aggregateErrors);
 }
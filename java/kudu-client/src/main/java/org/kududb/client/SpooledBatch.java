@@ -0,0 +1,132 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.kududb.client;
+
+import com.google.protobuf.Message;
+
+import org.kududb.WireProtocol;
+import org.kududb.annotations.InterfaceAudience;
+import org.kududb.client.Statistics.Statistic;
+import org.kududb.client.Statistics.TabletStatistics;
+import org.kududb.tserver.Tserver;
+import org.kududb.util.Pair;
+import org.kududb.util.Slice;
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Used internally to replay a batch that AsyncKuduSession wrote to its {@link WriteSpool}. The
+ * rows are read back from the spool every time the RPC is serialized.
+ */
+@InterfaceAudience.Private
+class SpooledBatch extends KuduRpc<ColumnarWriteResponse> implements KuduRpc.HasKey {
+
+  private final WriteSpool spool;
+  private final WriteSpool.Record record;
+
+  /** Set when serialize is called, it's the size of the encoded rows. */
+  private long rowOperationsSizeBytes = 0;
+
+  /**
+   * Creates a new batch.
+   * @param table the table the rows were written to
+   * @param spool the spool holding the rows
+   * @param record the spooled batch
+   */
+  SpooledBatch(KuduTable table, WriteSpool spool, WriteSpool.Record record) {
+    super(table);
+    this.spool = spool;
+    this.record = record;
+  }
+
+  @Override
+  ChannelBuffer serialize(Message header) {
+    final Operation.OperationsEncoder encoder = spool.read(record);
+    try {
+      this.rowOperationsSizeBytes = encoder.getWrittenSizeBytes();
+      final Tserver.WriteRequestPB.Builder builder = Tserver.WriteRequestPB.newBuilder();
+      builder.setExternalConsistencyMode(this.externalConsistencyMode.pbVersion());
+      ChannelBuffer buffer = encoder.toChannelBuffer(header,
+          table.getWriteRequestPrefix(getTablet()), builder);
+      setSerializedBuffers(encoder.getBuffers());
+      return buffer;
+    } catch (RuntimeException e) {
+      encoder.release();
+      throw e;
+    }
+  }
+
+  @Override
+  String serviceName() { return TABLET_SERVER_SERVICE_NAME; }
+
+  @Override
+  String method() {
+    return Operation.METHOD;
+  }
+
+  @Override
+  Pair<ColumnarWriteResponse, Object> deserialize(CallResponse callResponse,
+                                                  String tsUUID) throws Exception {
+    Tserver.WriteResponsePB.Builder builder = Tserver.WriteResponsePB.newBuilder();
+    readProtobuf(callResponse.getPBMessage(), builder);
+
+    List<ColumnarRowError> rowErrors;
+    if (builder.getPerRowErrorsCount() == 0) {
+      rowErrors = Collections.emptyList();
+    } else {
+      rowErrors = new ArrayList<>(builder.getPerRowErrorsCount());
+      for (Tserver.WriteResponsePB.PerRowErrorPB errorPB : builder.getPerRowErrorsList()) {
+        if (record.ignoreAllDuplicateRows &&
+            errorPB.getError().getCode() == WireProtocol.AppStatusPB.ErrorCode.ALREADY_PRESENT) {
+          continue;
+        }
+        rowErrors.add(new ColumnarRowError(errorPB.getRowIndex(),
+            Status.fromPB(errorPB.getError()), tsUUID, record.tableName,
+            getTablet().getTabletIdAsString()));
+      }
+    }
+
+    ColumnarWriteResponse response = new ColumnarWriteResponse(builder.getTimestamp(), rowErrors);
+    return new Pair<ColumnarWriteResponse, Object>(
+        response, builder.hasError() ? builder.getError() : null);
+  }
+
+  @Override
+  public byte[] partitionKey() {
+    return record.partitionKey;
+  }
+
+  @Override
+  void updateStatistics(Statistics statistics, ColumnarWriteResponse response) {
+    Slice tabletId = this.getTablet().getTabletId();
+    String tableName = this.getTable().getName();
+    TabletStatistics tabletStatistics = statistics.getTabletStatistics(tableName, tabletId);
+    if (response == null) {
+      tabletStatistics.incrementStatistic(Statistic.OPS_ERRORS, record.rowCount);
+      tabletStatistics.incrementStatistic(Statistic.RPC_ERRORS, 1);
+      return;
+    }
+    int rowErrors = response.getRowErrors().size();
+    tabletStatistics.incrementStatistic(Statistic.WRITE_RPCS, 1);
+    tabletStatistics.incrementStatistic(Statistic.WRITE_OPS, record.rowCount - rowErrors);
+    tabletStatistics.incrementStatistic(Statistic.OPS_ERRORS, rowErrors);
+    tabletStatistics.incrementStatistic(Statistic.BYTES_WRITTEN, rowOperationsSizeBytes);
+  }
+}
@@ -75,7 +75,55 @@ public class Statistics {
     /**
      * How many rpcs have been sent to server but failed.
      */
-    RPC_ERRORS(4);
+    RPC_ERRORS(4),
+    /**
+     * How long, in nanoseconds, batches waited for the encoder executor before being encoded.
+     * Only updated when the client was built with an encoder executor.
+     */
+    ENCODE_QUEUE_TIME_NANOS(5),
+    /**
+     * How much CPU time, in nanoseconds, the encoder executor spent encoding batches. Not updated
+     * if the JVM can't measure the CPU time of threads, see {@link #ENCODE_WALL_TIME_NANOS}.
+     */
+    ENCODE_CPU_TIME_NANOS(6),
+    /**
+     * How many operations have been written to a session's spool instead of being sent, see
+     * {@link SessionConfiguration#setWriteSpool(String, long)}. They're counted again when
+     * they're replayed.
+     */
+    SPOOLED_OPS(7),
+    /**
+     * How many bytes of encoded operations have been written to a session's spool.
+     */
+    SPOOLED_BYTES(8),
+    /**
+     * How many batches were delayed by a write rate limit, see
+     * {@link SessionConfiguration#setWriteRateLimit(long, long)} and
+     * {@link AsyncKuduClient#setTableWriteRateLimit(String, long, long)}.
+     */
+    THROTTLED_BATCHES(9),
+    /**
+     * How long, in nanoseconds, batches were delayed by the write rate limits.
+     */
+    THROTTLE_TIME_NANOS(10),
+    /**
+     * How many batches had to wait for their tablet server because it already had the maximum
+     * number of batches in flight, see
+     * {@link AsyncKuduClient.AsyncKuduClientBuilder#maxInFlightWriteBatchesPerServer(int)}.
+     */
+    SERVER_QUEUED_BATCHES(11),
+    /**
+     * How many operations of spooled batches failed once they were replayed, including the ones
+     * of the batches that were dropped because they couldn't be replayed at all. They're also
+     * in the session's pending errors.
+     */
+    SPOOL_REPLAY_ERRORS(12),
+    /**
+     * How long, in nanoseconds, the encoder executor spent encoding batches by the wall clock.
+     * Only updated instead of {@link #ENCODE_CPU_TIME_NANOS} when the JVM can't measure the CPU
+     * time of threads.
+     */
+    ENCODE_WALL_TIME_NANOS(13);
 
     Statistic(int idx) {
       this.idx = idx;
@@ -214,6 +262,24 @@ public class Statistics {
     buf.append(getClientStatistic(Statistic.WRITE_OPS));
     buf.append(", operation errors:");
     buf.append(getClientStatistic(Statistic.OPS_ERRORS));
+    buf.append(", encode queue time ns:");
+    buf.append(getClientStatistic(Statistic.ENCODE_QUEUE_TIME_NANOS));
+    buf.append(", encode cpu time ns:");
+    buf.append(getClientStatistic(Statistic.ENCODE_CPU_TIME_NANOS));
+    buf.append(", spooled operations:");
+    buf.append(getClientStatistic(Statistic.SPOOLED_OPS));
+    buf.append(", spooled bytes:");
+    buf.append(getClientStatistic(Statistic.SPOOLED_BYTES));
+    buf.append(", throttled batches:");
+    buf.append(getClientStatistic(Statistic.THROTTLED_BATCHES));
+    buf.append(", throttle time ns:");
+    buf.append(getClientStatistic(Statistic.THROTTLE_TIME_NANOS));
+    buf.append(", server queued batches:");
+    buf.append(getClientStatistic(Statistic.SERVER_QUEUED_BATCHES));
+    buf.append(", spool replay errors:");
+    buf.append(getClientStatistic(Statistic.SPOOL_REPLAY_ERRORS));
+    buf.append(", encode wall time ns:");
+    buf.append(getClientStatistic(Statistic.ENCODE_WALL_TIME_NANOS));
     return buf.toString();
   }
 
@@ -252,6 +318,24 @@ public class Statistics {
       buf.append(getStatistic(Statistic.WRITE_OPS));
       buf.append(", operation errors:");
       buf.append(getStatistic(Statistic.OPS_ERRORS));
+      buf.append(", encode queue time ns:");
+      buf.append(getStatistic(Statistic.ENCODE_QUEUE_TIME_NANOS));
+      buf.append(", encode cpu time ns:");
+      buf.append(getStatistic(Statistic.ENCODE_CPU_TIME_NANOS));
+      buf.append(", spooled operations:");
+      buf.append(getStatistic(Statistic.SPOOLED_OPS));
+      buf.append(", spooled bytes:");
+      buf.append(getStatistic(Statistic.SPOOLED_BYTES));
+      buf.append(", throttled batches:");
+      buf.append(getStatistic(Statistic.THROTTLED_BATCHES));
+      buf.append(", throttle time ns:");
+      buf.append(getStatistic(Statistic.THROTTLE_TIME_NANOS));
+      buf.append(", server queued batches:");
+      buf.append(getStatistic(Statistic.SERVER_QUEUED_BATCHES));
+      buf.append(", spool replay errors:");
+      buf.append(getStatistic(Statistic.SPOOL_REPLAY_ERRORS));
+      buf.append(", encode wall time ns:");
+      buf.append(getStatistic(Statistic.ENCODE_WALL_TIME_NANOS));
       return buf.toString();
     }
   }
@@ -57,6 +57,7 @@ import javax.security.sasl.SaslException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -167,12 +168,23 @@ public class TabletClient extends ReplayingDecoder<VoidEnum> {
       if (serialized == null) {  // Error during encoding.
         return;  // Stop here.  RPC has been failed already.
       }
+      // Some RPCs serialize into pooled buffers, they can only be recycled once written out.
+      final List<ChainedBuffer> pooledBuffers = rpc.takeSerializedBuffers();
 
       final Channel chan = this.chan;  // Volatile read.
       if (chan != null) {  // Double check if we disconnected during encode().
-        Channels.write(chan, serialized);
+        ChannelFuture writeFuture = Channels.write(chan, serialized);
+        if (pooledBuffers != null) {
+          writeFuture.addListener(new ChannelFutureListener() {
+            public void operationComplete(final ChannelFuture future) {
+              // Whether the write succeeded or not, Netty is done with the buffers.
+              ChainedBuffer.releaseAll(pooledBuffers);
+            }
+          });
+        }
         return;
       }
+      ChainedBuffer.releaseAll(pooledBuffers);
     }
     boolean tryAgain = false; // True when we notice we are about to get connected to the TS.
     boolean failRpc = false; // True when the connection was closed while encoding.
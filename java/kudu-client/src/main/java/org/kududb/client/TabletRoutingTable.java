@@ -0,0 +1,99 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.kududb.client;
+
+import org.kududb.annotations.InterfaceAudience;
+import org.kududb.client.AsyncKuduClient.RemoteTablet;
+import org.kududb.client.PartitionSchema.HashBucketSchema;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Maps the hash buckets of a row straight to its tablet, for the tables that are hash partitioned
+ * and have a single range partition. Their tablets are only distinguished by their hash buckets,
+ * so they can be kept in an array indexed by {@link KeyEncoder#getHashBucketsIndex}, which avoids
+ * encoding the whole partition key and searching for it in the tablets cache.
+ *
+ * A routing table is immutable and only contains the tablets that were known when it was built,
+ * it has to be rebuilt when tablets are discovered.
+ */
+@InterfaceAudience.Private
+final class TabletRoutingTable {
+
+  /** Used for the tables that can't be routed this way. */
+  static final TabletRoutingTable NOT_ROUTABLE = new TabletRoutingTable(null);
+
+  // Past this many combinations of buckets the table is routed through the tablets cache.
+  private static final int MAX_ROUTABLE_TABLETS = 1 << 16;
+
+  private final RemoteTablet[] tablets;
+
+  private TabletRoutingTable(RemoteTablet[] tablets) {
+    this.tablets = tablets;
+  }
+
+  /**
+   * Builds the routing table of a table.
+   * @param partitionSchema the table's partition schema
+   * @param knownTablets the tablets of the table that are currently cached
+   * @return a new routing table, or {@link #NOT_ROUTABLE} if the table doesn't have hash
+   * partitions or if it has more than one range partition
+   */
+  static TabletRoutingTable build(PartitionSchema partitionSchema,
+                                  Collection<RemoteTablet> knownTablets) {
+    List<HashBucketSchema> hashBucketSchemas = partitionSchema.getHashBucketSchemas();
+    if (hashBucketSchemas.isEmpty()) {
+      return NOT_ROUTABLE;
+    }
+    long tabletsCount = 1;
+    for (HashBucketSchema hashBucketSchema : hashBucketSchemas) {
+      tabletsCount *= hashBucketSchema.getNumBuckets();
+      if (tabletsCount > MAX_ROUTABLE_TABLETS) {
+        return NOT_ROUTABLE;
+      }
+    }
+
+    RemoteTablet[] tablets = new RemoteTablet[(int) tabletsCount];
+    for (RemoteTablet tablet : knownTablets) {
+      Partition partition = tablet.getPartition();
+      if (partition.getRangeKeyStart().length > 0 || partition.getRangeKeyEnd().length > 0) {
+        return NOT_ROUTABLE;
+      }
+      int index = 0;
+      List<Integer> hashBuckets = partition.getHashBuckets();
+      for (int i = 0; i < hashBucketSchemas.size(); i++) {
+        index = index * hashBucketSchemas.get(i).getNumBuckets() + hashBuckets.get(i);
+      }
+      tablets[index] = tablet;
+    }
+    return new TabletRoutingTable(tablets);
+  }
+
+  boolean isRoutable() {
+    return tablets != null;
+  }
+
+  /**
+   * Gets the tablet for a combination of hash buckets.
+   * @param hashBucketsIndex the index computed by {@link KeyEncoder#getHashBucketsIndex}
+   * @return the tablet, or null if it wasn't known when this routing table was built
+   */
+  RemoteTablet getTablet(int hashBucketsIndex) {
+    return tablets[hashBucketsIndex];
+  }
+}
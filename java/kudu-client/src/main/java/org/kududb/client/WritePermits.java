@@ -0,0 +1,196 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.kududb.client;
+
+import com.google.common.base.Preconditions;
+import com.stumbleupon.async.Deferred;
+import org.kududb.annotations.InterfaceAudience;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Limits how many operations, and how many bytes of encoded rows, a session can have between the
+ * time they're applied and the time their batch completes. An operation first has to acquire its
+ * permits, and when there aren't enough of them it waits in line behind the operations that came
+ * before it until enough permits are released, which makes it fair between the threads applying
+ * operations to the same session.
+ *
+ * An operation is always let through when no permits are held, even if it alone is bigger than
+ * the byte limit, so that a single big row can't block a session forever.
+ *
+ * This class is thread-safe.
+ */
+@InterfaceAudience.Private
+final class WritePermits {
+
+  private final int maxOperations;
+  private final long maxBytes;
+
+  @GuardedBy("this")
+  private int usedOperations;
+  @GuardedBy("this")
+  private long usedBytes;
+
+  /**
+   * Operations waiting for permits, in the order they asked for them.
+   */
+  @GuardedBy("this")
+  private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+
+  /**
+   * Creates the permits.
+   * @param maxOperations maximum number of operations, 0 for no limit
+   * @param maxBytes maximum number of bytes, 0 for no limit
+   */
+  WritePermits(int maxOperations, long maxBytes) {
+    Preconditions.checkArgument(maxOperations >= 0, "The number of operations cannot be negative");
+    Preconditions.checkArgument(maxBytes >= 0, "The number of bytes cannot be negative");
+    this.maxOperations = maxOperations;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Acquires the permits for a single operation.
+   * @param bytes encoded size of the operation
+   * @return null if the permits were acquired right away, else a Deferred that's called back once
+   * they are acquired
+   */
+  Deferred<Void> acquire(long bytes) {
+    synchronized (this) {
+      if (waiters.isEmpty() && fits(bytes)) {
+        usedOperations++;
+        usedBytes += bytes;
+        return null;
+      }
+      Waiter waiter = new Waiter(bytes);
+      waiters.add(waiter);
+      return waiter.deferred;
+    }
+  }
+
+  /**
+   * Gives back the permits of operations, and hands them to the operations that were waiting for
+   * them. The waiting operations' Deferreds are called back from this thread.
+   * @param operations number of operations
+   * @param bytes encoded size of those operations
+   */
+  void release(int operations, long bytes) {
+    if (operations == 0) {
+      return;
+    }
+    List<Deferred<Void>> acquired;
+    synchronized (this) {
+      usedOperations -= operations;
+      usedBytes -= bytes;
+      assert (usedOperations >= 0 && usedBytes >= 0);
+      acquired = grantWaiters();
+    }
+    callback(acquired);
+  }
+
+  /**
+   * Stops waiting for permits, for example after a timeout. If the permits were acquired in the
+   * meantime, they're released.
+   * @param d the Deferred returned by {@link #acquire(long)}
+   * @param bytes the size that was passed to {@link #acquire(long)}
+   */
+  void cancel(Deferred<Void> d, long bytes) {
+    List<Deferred<Void>> acquired = null;
+    boolean waiting = false;
+    synchronized (this) {
+      Iterator<Waiter> it = waiters.iterator();
+      while (it.hasNext()) {
+        if (it.next().deferred == d) {
+          it.remove();
+          waiting = true;
+          // The operations that were waiting behind this one may fit now.
+          acquired = grantWaiters();
+          break;
+        }
+      }
+    }
+    if (waiting) {
+      callback(acquired);
+      return;
+    }
+    release(1, bytes);
+  }
+
+  /**
+   * Tells if some permits are held or are being waited on.
+   * @return true if operations are in the session or about to be
+   */
+  synchronized boolean isInUse() {
+    return usedOperations > 0 || !waiters.isEmpty();
+  }
+
+  /**
+   * Hands the permits to the operations at the head of the line, in order, for as long as they
+   * fit.
+   * @return the Deferreds of the operations that acquired their permits, null if none did
+   */
+  @GuardedBy("this")
+  private List<Deferred<Void>> grantWaiters() {
+    List<Deferred<Void>> acquired = null;
+    Waiter waiter;
+    while ((waiter = waiters.peek()) != null && fits(waiter.bytes)) {
+      waiters.poll();
+      usedOperations++;
+      usedBytes += waiter.bytes;
+      if (acquired == null) {
+        acquired = new ArrayList<>();
+      }
+      acquired.add(waiter.deferred);
+    }
+    return acquired;
+  }
+
+  /**
+   * Calls back the Deferreds returned by {@link #grantWaiters()}. Must be called outside the lock
+   * since they'll go on applying their operations.
+   * @param acquired the Deferreds to call back, can be null
+   */
+  private static void callback(List<Deferred<Void>> acquired) {
+    if (acquired != null) {
+      for (Deferred<Void> d : acquired) {
+        d.callback(null);
+      }
+    }
+  }
+
+  @GuardedBy("this")
+  private boolean fits(long bytes) {
+    if (usedOperations == 0) {
+      return true;
+    }
+    return (maxOperations == 0 || usedOperations < maxOperations) &&
+        (maxBytes == 0 || usedBytes + bytes <= maxBytes);
+  }
+
+  private static final class Waiter {
+    final long bytes;
+    final Deferred<Void> deferred = new Deferred<>();
+
+    Waiter(long bytes) {
+      this.bytes = bytes;
+    }
+  }
+}
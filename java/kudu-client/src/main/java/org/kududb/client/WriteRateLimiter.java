@@ -0,0 +1,112 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.kududb.client;
+
+import com.google.common.base.Preconditions;
+import org.kududb.annotations.InterfaceAudience;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token buckets that limit how many rows and how many bytes of encoded rows per second can be
+ * written. Each bucket holds up to a second worth of tokens, so a writer that was idle can burst
+ * that much.
+ *
+ * A batch always takes its tokens, even when that leaves a bucket in debt, and gets back how long
+ * it has to wait for the debt to be paid back. This way the batches are let through in the order
+ * they asked, and a batch that's bigger than the limit isn't blocked forever.
+ *
+ * This class is thread-safe.
+ */
+@InterfaceAudience.Private
+final class WriteRateLimiter {
+
+  private final long rowsPerSecond;
+  private final long bytesPerSecond;
+
+  @GuardedBy("this")
+  private double rowTokens;
+  @GuardedBy("this")
+  private double byteTokens;
+  @GuardedBy("this")
+  private long lastRefillNanos;
+
+  /**
+   * Creates the buckets, full.
+   * @param rowsPerSecond maximum number of rows per second, 0 for no limit
+   * @param bytesPerSecond maximum number of bytes per second, 0 for no limit
+   */
+  WriteRateLimiter(long rowsPerSecond, long bytesPerSecond) {
+    Preconditions.checkArgument(rowsPerSecond >= 0, "The rows per second cannot be negative");
+    Preconditions.checkArgument(bytesPerSecond >= 0, "The bytes per second cannot be negative");
+    this.rowsPerSecond = rowsPerSecond;
+    this.bytesPerSecond = bytesPerSecond;
+    this.rowTokens = rowsPerSecond;
+    this.byteTokens = bytesPerSecond;
+    this.lastRefillNanos = System.nanoTime();
+  }
+
+  long getRowsPerSecond() {
+    return rowsPerSecond;
+  }
+
+  long getBytesPerSecond() {
+    return bytesPerSecond;
+  }
+
+  /**
+   * Takes the tokens of a batch.
+   * @param rows number of rows in the batch
+   * @param bytes encoded size of the batch's rows
+   * @return how many nanoseconds the batch has to wait before being sent, 0 if it can be sent
+   * right away
+   */
+  synchronized long reserve(long rows, long bytes) {
+    long now = System.nanoTime();
+    double elapsedSeconds = (now - lastRefillNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+    lastRefillNanos = now;
+    long delayNanos = 0;
+    if (rowsPerSecond > 0) {
+      rowTokens = Math.min(rowsPerSecond, rowTokens + elapsedSeconds * rowsPerSecond) - rows;
+      delayNanos = Math.max(delayNanos, debtNanos(rowTokens, rowsPerSecond));
+    }
+    if (bytesPerSecond > 0) {
+      byteTokens = Math.min(bytesPerSecond, byteTokens + elapsedSeconds * bytesPerSecond) - bytes;
+      delayNanos = Math.max(delayNanos, debtNanos(byteTokens, bytesPerSecond));
+    }
+    return delayNanos;
+  }
+
+  /**
+   * Gives back the tokens of a batch that won't be sent after all.
+   * @param rows number of rows the batch reserved
+   * @param bytes number of bytes the batch reserved
+   */
+  synchronized void refund(long rows, long bytes) {
+    if (rowsPerSecond > 0) {
+      rowTokens = Math.min(rowsPerSecond, rowTokens + rows);
+    }
+    if (bytesPerSecond > 0) {
+      byteTokens = Math.min(bytesPerSecond, byteTokens + bytes);
+    }
+  }
+
+  private static long debtNanos(double tokens, long perSecond) {
+    return tokens >= 0 ? 0 : (long) (-tokens * TimeUnit.SECONDS.toNanos(1) / perSecond);
+  }
+}
@@ -0,0 +1,226 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.kududb.client;
+
+import com.google.common.base.Preconditions;
+import org.kududb.annotations.InterfaceAudience;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Limits how many write batches each tablet server has in flight, and picks the next batch to
+ * send to a server in weighted round-robin between the writers that have batches waiting for it.
+ * A writer with a weight of 3 gets to send up to 3 batches in a row before the next writer's turn,
+ * so a writer that queues a lot of batches cannot starve the others.
+ *
+ * The caller that's told it can send a batch must call {@link #release(String)} once the batch is
+ * done, which may hand it the next batch to send for that server.
+ *
+ * This class is thread-safe.
+ */
+@InterfaceAudience.Private
+final class WriteScheduler {
+
+  /**
+   * A writer whose batches are scheduled together, one per session. Its settings can change at
+   * any time and apply to the batches that are sent afterwards.
+   */
+  static final class Tenant {
+    private volatile int weight = 1;
+    private volatile WriteRateLimiter rateLimiter;
+
+    int getWeight() {
+      return weight;
+    }
+
+    void setWeight(int weight) {
+      Preconditions.checkArgument(weight > 0, "The weight must be positive");
+      this.weight = weight;
+    }
+
+    /**
+     * @return the tenant's rate limiter, null if it has none
+     */
+    WriteRateLimiter getRateLimiter() {
+      return rateLimiter;
+    }
+
+    void setRateLimiter(WriteRateLimiter rateLimiter) {
+      this.rateLimiter = rateLimiter;
+    }
+  }
+
+  private final int maxInFlightPerServer;
+  // Used for the batches that don't come from a session.
+  private final Tenant defaultTenant = new Tenant();
+  private final ConcurrentHashMap<String, ServerQueue> queues = new ConcurrentHashMap<>();
+
+  /**
+   * @param maxInFlightPerServer how many batches each server can have in flight
+   */
+  WriteScheduler(int maxInFlightPerServer) {
+    Preconditions.checkArgument(maxInFlightPerServer > 0,
+        "At least one batch must be in flight per tablet server");
+    this.maxInFlightPerServer = maxInFlightPerServer;
+  }
+
+  /**
+   * Tells if a batch can be sent to a server right away, else queues it.
+   * @param server the UUID of the server
+   * @param batch the batch to send
+   * @return true if the batch can be sent, false if it was queued
+   */
+  boolean tryAcquire(String server, Batch batch) {
+    ServerQueue queue = getQueue(server);
+    synchronized (queue) {
+      if (queue.inFlight < maxInFlightPerServer) {
+        queue.inFlight++;
+        return true;
+      }
+      Tenant tenant = batch.tenant == null ? defaultTenant : batch.tenant;
+      ArrayDeque<Batch> batches = queue.waiting.get(tenant);
+      if (batches == null) {
+        batches = new ArrayDeque<>();
+        queue.waiting.put(tenant, batches);
+        queue.turns.add(tenant);
+      }
+      batches.add(batch);
+      return false;
+    }
+  }
+
+  /**
+   * Called once a batch that was allowed to be sent to a server is done.
+   * @param server the UUID of the server
+   * @return the next batch to send to the server, or null if none is waiting
+   */
+  Batch release(String server) {
+    ServerQueue queue = getQueue(server);
+    synchronized (queue) {
+      Batch next = queue.next();
+      if (next == null) {
+        queue.inFlight--;
+      }
+      return next;
+    }
+  }
+
+  /**
+   * Takes a batch out of the queue of a server, for example because it timed out while waiting.
+   * @param server the UUID of the server
+   * @param batch the batch that was queued
+   * @return true if the batch was still waiting, false if it was already handed out
+   */
+  boolean remove(String server, Batch batch) {
+    ServerQueue queue = queues.get(server);
+    if (queue == null) {
+      return false;
+    }
+    synchronized (queue) {
+      return queue.remove(batch.tenant == null ? defaultTenant : batch.tenant, batch);
+    }
+  }
+
+  /**
+   * Counts the batches that are waiting for a server.
+   * @param server the UUID of the server
+   * @return a number of batches
+   */
+  int countWaiting(String server) {
+    ServerQueue queue = queues.get(server);
+    if (queue == null) {
+      return 0;
+    }
+    synchronized (queue) {
+      int count = 0;
+      for (ArrayDeque<Batch> batches : queue.waiting.values()) {
+        count += batches.size();
+      }
+      return count;
+    }
+  }
+
+  private ServerQueue getQueue(String server) {
+    ServerQueue queue = queues.get(server);
+    if (queue == null) {
+      ServerQueue newQueue = new ServerQueue();
+      queue = queues.putIfAbsent(server, newQueue);
+      if (queue == null) {
+        queue = newQueue;
+      }
+    }
+    return queue;
+  }
+
+  /**
+   * The batches waiting for a server, by tenant.
+   */
+  private static final class ServerQueue {
+    @GuardedBy("this")
+    int inFlight = 0;
+    @GuardedBy("this")
+    final Map<Tenant, ArrayDeque<Batch>> waiting = new HashMap<>();
+    // The tenants that have batches waiting, the first one is the one whose turn it is.
+    @GuardedBy("this")
+    final ArrayDeque<Tenant> turns = new ArrayDeque<>();
+    // How many more batches the first tenant of 'turns' can send before its turn is over.
+    @GuardedBy("this")
+    int credit = 0;
+
+    @GuardedBy("this")
+    Batch next() {
+      Tenant tenant = turns.peek();
+      if (tenant == null) {
+        return null;
+      }
+      if (credit == 0) {
+        credit = tenant.getWeight();
+      }
+      ArrayDeque<Batch> batches = waiting.get(tenant);
+      Batch batch = batches.poll();
+      credit--;
+      if (batches.isEmpty()) {
+        waiting.remove(tenant);
+        turns.poll();
+        credit = 0;
+      } else if (credit == 0) {
+        turns.add(turns.poll());
+      }
+      return batch;
+    }
+
+    @GuardedBy("this")
+    boolean remove(Tenant tenant, Batch batch) {
+      ArrayDeque<Batch> batches = waiting.get(tenant);
+      if (batches == null || !batches.remove(batch)) {
+        return false;
+      }
+      if (batches.isEmpty()) {
+        waiting.remove(tenant);
+        if (turns.peek() == tenant) {
+          credit = 0;
+        }
+        turns.remove(tenant);
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,611 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.kududb.client;
+
+import com.google.common.base.Charsets;
+import org.kududb.Schema;
+import org.kududb.annotations.InterfaceAudience;
+import org.kududb.util.Slice;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A bounded queue of encoded batches kept on local disk, used by AsyncKuduSession to hold on to
+ * the batches it cannot send while tablets are unavailable, see
+ * {@link SessionConfiguration#setWriteSpool(String, long)}.
+ *
+ * The batches are appended as records to memory-mapped segment files. The header of a segment
+ * tells how much of it holds complete records, and is only updated once a record was fully
+ * written and its checksum computed, so the records that were spooled before a crash are found
+ * again by the next spool that opens the directory. A record is flagged in place once it was
+ * replayed, and a segment is deleted once all of its records were. Replaying is at-least-once:
+ * a record replayed right before a crash may be sent again.
+ *
+ * The rows are encoded against the table's schema at the time they were spooled, so a record
+ * also keeps the IDs of that schema's columns: a record cannot be replayed once its table was
+ * altered, see {@link Record#matchesSchema(Schema)}.
+ *
+ * This class is thread-safe.
+ */
+@InterfaceAudience.Private
+final class WriteSpool {
+
+  private static final Logger LOG = LoggerFactory.getLogger(WriteSpool.class);
+
+  static final int DEFAULT_SEGMENT_SIZE_BYTES = 16 * 1024 * 1024;
+
+  private static final String LOCK_FILE_NAME = "LOCK";
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_SUFFIX = ".spool";
+
+  // Segment header: magic, version, end of the last complete record, unused.
+  private static final int SEGMENT_MAGIC = 0x4b535031; // "KSP1"
+  // Version 1 records don't have column IDs.
+  private static final int SEGMENT_VERSION = 2;
+  private static final int SEGMENT_HEADER_SIZE = 16;
+  private static final int COMMITTED_END_OFFSET = 8;
+
+  // Record header: payload length, payload CRC32, state, padding.
+  private static final int RECORD_HEADER_SIZE = 12;
+  private static final int RECORD_STATE_OFFSET = 8;
+  private static final byte RECORD_PENDING = 0;
+  private static final byte RECORD_REPLAYED = 1;
+
+  private static final byte FLAG_IGNORE_ALL_DUPLICATE_ROWS = 1;
+
+  // Written instead of the column count when the schema doesn't have column IDs.
+  private static final int NO_COLUMN_IDS = -1;
+
+  // Room kept for what a record has besides its rows when checking if a batch would fit.
+  private static final int ESTIMATED_RECORD_METADATA_BYTES = 128;
+
+  private final File directory;
+  private final long maxDiskBytes;
+  private final int segmentSizeBytes;
+  private final RandomAccessFile lockFile;
+  private final FileLock lock;
+  private final byte[] checksumScratch = new byte[8192];
+
+  private final List<Segment> segments = new ArrayList<>();
+  // Segment the records are appended to, null until the first append.
+  private Segment current;
+  private long nextSegmentId = 0;
+  private long diskUsageBytes = 0;
+  private List<Record> recoveredRecords = new ArrayList<>();
+  private boolean closed = false;
+
+  private WriteSpool(File directory, long maxDiskBytes, int segmentSizeBytes,
+                     RandomAccessFile lockFile, FileLock lock) {
+    this.directory = directory;
+    this.maxDiskBytes = maxDiskBytes;
+    this.segmentSizeBytes = segmentSizeBytes;
+    this.lockFile = lockFile;
+    this.lock = lock;
+  }
+
+  /**
+   * Opens the spool in the given directory, creating it if needed, and finds the records that
+   * weren't replayed by the spool that used it before. Only one spool can use a directory at a
+   * time.
+   * @param directory where to put the segment files
+   * @param maxDiskBytes how much disk space the segment files can use
+   * @param segmentSizeBytes size of the segment files, a record that doesn't fit in a segment
+   *                         gets one of its own
+   * @return a new spool
+   * @throws IOException if the directory cannot be used
+   */
+  static WriteSpool open(File directory, long maxDiskBytes, int segmentSizeBytes)
+      throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create the spool directory " + directory);
+    }
+    RandomAccessFile lockFile = new RandomAccessFile(new File(directory, LOCK_FILE_NAME), "rw");
+    FileLock lock;
+    try {
+      lock = lockFile.getChannel().tryLock();
+    } catch (OverlappingFileLockException e) {
+      // Already locked by this process.
+      lock = null;
+    } catch (IOException e) {
+      lockFile.close();
+      throw e;
+    }
+    if (lock == null) {
+      lockFile.close();
+      throw new IOException("The spool directory " + directory + " is already in use");
+    }
+    WriteSpool spool = new WriteSpool(directory, maxDiskBytes,
+        (int) Math.min(segmentSizeBytes, maxDiskBytes), lockFile, lock);
+    try {
+      spool.recover();
+    } catch (IOException e) {
+      spool.close();
+      throw e;
+    }
+    return spool;
+  }
+
+  /**
+   * Gets the records found when the spool was opened, in the order they were appended. This can
+   * only be called once.
+   * @return the records that still have to be replayed
+   */
+  synchronized List<Record> takeRecoveredRecords() {
+    List<Record> records = recoveredRecords;
+    recoveredRecords = null;
+    return records;
+  }
+
+  /**
+   * Tells if a batch would fit in the spool right now. This is only an estimate, appends can take
+   * the room in the meantime.
+   * @param rowsSizeBytes the encoded size of the batch's rows
+   * @return true if the batch is expected to fit
+   */
+  synchronized boolean hasRoomFor(long rowsSizeBytes) {
+    if (closed) {
+      return false;
+    }
+    long recordSize = RECORD_HEADER_SIZE + ESTIMATED_RECORD_METADATA_BYTES + rowsSizeBytes;
+    if (current != null && current.buffer.capacity() - current.writeOffset >= recordSize) {
+      return true;
+    }
+    return diskUsageBytes + Math.max(segmentSizeBytes, SEGMENT_HEADER_SIZE + recordSize) <=
+        maxDiskBytes;
+  }
+
+  /**
+   * Appends an encoded batch to the spool. The record is only durable once it was passed to
+   * {@link #sync(Record)}, which is done separately so that the disk isn't waited on while
+   * holding the spool's lock.
+   * @param tableName name of the batch's table
+   * @param schema schema the batch's rows were encoded with
+   * @param tabletId the tablet the batch was meant for
+   * @param partitionKey partition key of one of the batch's rows, used to find its tablet again
+   * @param ignoreAllDuplicateRows see {@link SessionConfiguration#setIgnoreAllDuplicateRows}
+   * @param rowCount how many rows the batch has
+   * @param encoder holds the batch's encoded rows
+   * @return the appended record, or null if the spool doesn't have enough room for it
+   * @throws IOException if a segment couldn't be created
+   */
+  synchronized Record append(String tableName, Schema schema, Slice tabletId,
+                             byte[] partitionKey, boolean ignoreAllDuplicateRows, int rowCount,
+                             Operation.OperationsEncoder encoder) throws IOException {
+    checkNotClosed();
+    ChainedBuffer rows = encoder.getBuffers().get(0);
+    ChainedBuffer indirect = encoder.getBuffers().get(1);
+    byte[] tableNameBytes = tableName.getBytes(Charsets.UTF_8);
+    byte[] tabletIdBytes = tabletId.getBytes();
+    int[] columnIds = getColumnIds(schema);
+    long payloadSize = 2 + tableNameBytes.length + 4 + 4 * (columnIds == null ? 0 :
+        columnIds.length) + 2 + tabletIdBytes.length + 2 + partitionKey.length + 1 + 4 + 4 +
+        rows.size() + 4 + indirect.size();
+    long recordSize = RECORD_HEADER_SIZE + payloadSize;
+    if (SEGMENT_HEADER_SIZE + recordSize > Integer.MAX_VALUE) {
+      return null;
+    }
+    if (current == null || current.buffer.capacity() - current.writeOffset < recordSize) {
+      int size = (int) Math.max(segmentSizeBytes, SEGMENT_HEADER_SIZE + recordSize);
+      if (diskUsageBytes + size > maxDiskBytes) {
+        return null;
+      }
+      Segment previous = current;
+      current = createSegment(size);
+      if (previous != null && previous.liveRecords == 0) {
+        deleteSegment(previous);
+      }
+    }
+
+    Segment segment = current;
+    int offset = segment.writeOffset;
+    ByteBuffer out = segment.buffer.duplicate();
+    out.position(offset + RECORD_HEADER_SIZE);
+    putBytes(out, tableNameBytes);
+    if (columnIds == null) {
+      out.putInt(NO_COLUMN_IDS);
+    } else {
+      out.putInt(columnIds.length);
+      for (int columnId : columnIds) {
+        out.putInt(columnId);
+      }
+    }
+    putBytes(out, tabletIdBytes);
+    putBytes(out, partitionKey);
+    out.put(ignoreAllDuplicateRows ? FLAG_IGNORE_ALL_DUPLICATE_ROWS : 0);
+    out.putInt(rowCount);
+    out.putInt((int) rows.size());
+    int rowsOffset = out.position();
+    rows.writeTo(out);
+    out.putInt((int) indirect.size());
+    int indirectOffset = out.position();
+    indirect.writeTo(out);
+
+    int payloadOffset = offset + RECORD_HEADER_SIZE;
+    segment.buffer.putInt(offset, (int) payloadSize);
+    segment.buffer.putInt(offset + 4,
+        checksum(segment.buffer, payloadOffset, (int) payloadSize));
+    segment.buffer.put(offset + RECORD_STATE_OFFSET, RECORD_PENDING);
+    segment.writeOffset = (int) (offset + recordSize);
+    // The record is only part of the segment once this is written.
+    segment.buffer.putInt(COMMITTED_END_OFFSET, segment.writeOffset);
+    segment.liveRecords++;
+    return new Record(segment, offset, tableName, columnIds, tabletId, partitionKey,
+        ignoreAllDuplicateRows, rowCount, rowsOffset, (int) rows.size(), indirectOffset,
+        (int) indirect.size());
+  }
+
+  /**
+   * Makes sure an appended record is on disk. Threads that sync at the same time share the same
+   * force of the segment: whoever forces it covers all the records that were appended before,
+   * and the records it covered don't have to be forced again.
+   * @param record a record returned by {@link #append}
+   */
+  void sync(Record record) {
+    Segment segment = record.segment;
+    synchronized (segment.syncLock) {
+      if (segment.syncedEnd >= record.getEnd()) {
+        return;
+      }
+      int end;
+      synchronized (this) {
+        end = segment.writeOffset;
+      }
+      segment.buffer.force();
+      segment.syncedEnd = end;
+    }
+  }
+
+  /**
+   * Gets the IDs of the schema's columns, in index order.
+   * @return the column IDs, or null if the schema doesn't have any
+   */
+  private static int[] getColumnIds(Schema schema) {
+    if (!schema.hasColumnIds()) {
+      return null;
+    }
+    int[] columnIds = new int[schema.getColumnCount()];
+    for (int i = 0; i < columnIds.length; i++) {
+      columnIds[i] = schema.getColumnId(i);
+    }
+    return columnIds;
+  }
+
+  /**
+   * Reads the rows of a record back into an encoder, so that they can be sent.
+   * @param record a record that wasn't replayed yet
+   * @return an encoder holding the record's rows, which must be released
+   */
+  synchronized Operation.OperationsEncoder read(Record record) {
+    checkNotClosed();
+    ByteBuffer rows = record.segment.buffer.duplicate();
+    rows.limit(record.rowsOffset + record.rowsLength).position(record.rowsOffset);
+    ByteBuffer indirect = record.segment.buffer.duplicate();
+    indirect.limit(record.indirectOffset + record.indirectLength).position(record.indirectOffset);
+    Operation.OperationsEncoder encoder = new Operation.OperationsEncoder();
+    encoder.putEncodedRows(rows, indirect);
+    return encoder;
+  }
+
+  /**
+   * Flags a record as replayed, or as dropped since it cannot be replayed, and deletes its
+   * segment if it was the last record of the segment that had to be replayed.
+   * @param record the record that was replayed
+   */
+  synchronized void markReplayed(Record record) {
+    if (closed) {
+      return;
+    }
+    Segment segment = record.segment;
+    segment.buffer.put(record.offset + RECORD_STATE_OFFSET, RECORD_REPLAYED);
+    segment.liveRecords--;
+    if (segment.liveRecords == 0 && segment != current) {
+      deleteSegment(segment);
+    }
+  }
+
+  /**
+   * Gets how much disk space the segment files use.
+   * @return a size in bytes
+   */
+  synchronized long getDiskUsageBytes() {
+    return diskUsageBytes;
+  }
+
+  /**
+   * Gets the directory this spool uses.
+   * @return the spool's directory
+   */
+  File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Releases the spool's directory. The records that weren't replayed stay on disk, for the next
+   * spool that uses the directory.
+   */
+  synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (current != null && current.liveRecords == 0) {
+      deleteSegment(current);
+    }
+    try {
+      lock.release();
+      lockFile.close();
+    } catch (IOException e) {
+      LOG.warn("Couldn't release the spool directory " + directory, e);
+    }
+  }
+
+  private void checkNotClosed() {
+    if (closed) {
+      throw new IllegalStateException("The spool in " + directory + " was closed");
+    }
+  }
+
+  /**
+   * Looks for the records that weren't replayed in the segments that are already in the
+   * directory, deleting the segments that don't have any.
+   */
+  private void recover() throws IOException {
+    String[] names = directory.list(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+      }
+    });
+    if (names == null) {
+      throw new IOException("Cannot list the spool directory " + directory);
+    }
+    // The names have fixed-width ids, so this is also the order the segments were created in.
+    Arrays.sort(names);
+    for (String name : names) {
+      File file = new File(directory, name);
+      long id;
+      try {
+        id = Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+            name.length() - SEGMENT_SUFFIX.length()));
+      } catch (NumberFormatException e) {
+        continue;
+      }
+      nextSegmentId = Math.max(nextSegmentId, id + 1);
+      Segment segment = new Segment(file, map(file, file.length()));
+      segments.add(segment);
+      diskUsageBytes += segment.buffer.capacity();
+      recoverRecords(segment);
+      if (segment.liveRecords == 0) {
+        deleteSegment(segment);
+      }
+    }
+  }
+
+  private void recoverRecords(Segment segment) {
+    MappedByteBuffer buffer = segment.buffer;
+    if (buffer.capacity() < SEGMENT_HEADER_SIZE || buffer.getInt(0) != SEGMENT_MAGIC ||
+        buffer.getInt(4) < 1 || buffer.getInt(4) > SEGMENT_VERSION) {
+      // Crashed before the header was written, or written by a newer client.
+      LOG.warn("Ignoring spool segment {} which doesn't have a valid header", segment.file);
+      return;
+    }
+    int version = buffer.getInt(4);
+    int committedEnd = Math.min(buffer.getInt(COMMITTED_END_OFFSET), buffer.capacity());
+    int offset = SEGMENT_HEADER_SIZE;
+    while (offset + RECORD_HEADER_SIZE <= committedEnd) {
+      int payloadSize = buffer.getInt(offset);
+      int payloadOffset = offset + RECORD_HEADER_SIZE;
+      if (payloadSize < 0 || payloadSize > committedEnd - payloadOffset ||
+          buffer.getInt(offset + 4) != checksum(buffer, payloadOffset, payloadSize)) {
+        LOG.warn("Spool segment {} is corrupted at offset {}, skipping the rest of it",
+            segment.file, offset);
+        break;
+      }
+      if (buffer.get(offset + RECORD_STATE_OFFSET) == RECORD_PENDING) {
+        recoveredRecords.add(readRecord(segment, offset, version));
+        segment.liveRecords++;
+      }
+      offset = payloadOffset + payloadSize;
+    }
+    segment.writeOffset = offset;
+  }
+
+  private Record readRecord(Segment segment, int offset, int version) {
+    ByteBuffer in = segment.buffer.duplicate();
+    in.position(offset + RECORD_HEADER_SIZE);
+    String tableName = new String(getBytes(in), Charsets.UTF_8);
+    int[] columnIds = null;
+    int columnCount = version == 1 ? NO_COLUMN_IDS : in.getInt();
+    if (columnCount != NO_COLUMN_IDS) {
+      columnIds = new int[columnCount];
+      for (int i = 0; i < columnCount; i++) {
+        columnIds[i] = in.getInt();
+      }
+    }
+    Slice tabletId = new Slice(getBytes(in));
+    byte[] partitionKey = getBytes(in);
+    boolean ignoreAllDuplicateRows = (in.get() & FLAG_IGNORE_ALL_DUPLICATE_ROWS) != 0;
+    int rowCount = in.getInt();
+    int rowsLength = in.getInt();
+    int rowsOffset = in.position();
+    in.position(rowsOffset + rowsLength);
+    int indirectLength = in.getInt();
+    int indirectOffset = in.position();
+    return new Record(segment, offset, tableName, columnIds, tabletId, partitionKey,
+        ignoreAllDuplicateRows, rowCount, rowsOffset, rowsLength, indirectOffset, indirectLength);
+  }
+
+  private Segment createSegment(int size) throws IOException {
+    File file = new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, nextSegmentId++,
+        SEGMENT_SUFFIX));
+    MappedByteBuffer buffer = map(file, size);
+    buffer.putInt(0, SEGMENT_MAGIC);
+    buffer.putInt(4, SEGMENT_VERSION);
+    buffer.putInt(COMMITTED_END_OFFSET, SEGMENT_HEADER_SIZE);
+    buffer.force();
+    Segment segment = new Segment(file, buffer);
+    segment.writeOffset = SEGMENT_HEADER_SIZE;
+    segments.add(segment);
+    diskUsageBytes += size;
+    return segment;
+  }
+
+  private void deleteSegment(Segment segment) {
+    segments.remove(segment);
+    diskUsageBytes -= segment.buffer.capacity();
+    if (segment == current) {
+      current = null;
+    }
+    // The mapping itself goes away once the buffer is garbage collected.
+    if (!segment.file.delete()) {
+      LOG.warn("Couldn't delete spool segment {}", segment.file);
+    }
+  }
+
+  private static MappedByteBuffer map(File file, long size) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(size);
+      // The mapping stays valid once the file is closed.
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+  }
+
+  private int checksum(ByteBuffer buffer, int offset, int length) {
+    CRC32 crc = new CRC32();
+    ByteBuffer in = buffer.duplicate();
+    in.position(offset);
+    while (length > 0) {
+      int toRead = Math.min(length, checksumScratch.length);
+      in.get(checksumScratch, 0, toRead);
+      crc.update(checksumScratch, 0, toRead);
+      length -= toRead;
+    }
+    return (int) crc.getValue();
+  }
+
+  private static void putBytes(ByteBuffer out, byte[] bytes) {
+    out.putShort((short) bytes.length);
+    out.put(bytes);
+  }
+
+  private static byte[] getBytes(ByteBuffer in) {
+    byte[] bytes = new byte[in.getShort() & 0xffff];
+    in.get(bytes);
+    return bytes;
+  }
+
+  private static final class Segment {
+    final File file;
+    final MappedByteBuffer buffer;
+    // Where the next record goes.
+    int writeOffset;
+    // How many records weren't replayed yet.
+    int liveRecords;
+    // Serializes the forces of the segment, see sync(Record).
+    final Object syncLock = new Object();
+    // End of the records that are known to be on disk.
+    @GuardedBy("syncLock")
+    int syncedEnd;
+
+    Segment(File file, MappedByteBuffer buffer) {
+      this.file = file;
+      this.buffer = buffer;
+    }
+  }
+
+  /**
+   * An encoded batch that was appended to the spool. The rows stay on disk, only what's needed
+   * to send them is kept in memory.
+   */
+  static final class Record {
+    private final Segment segment;
+    private final int offset;
+    final String tableName;
+    // IDs of the columns the rows were encoded with, null if they're not known.
+    private final int[] columnIds;
+    final Slice tabletId;
+    final byte[] partitionKey;
+    final boolean ignoreAllDuplicateRows;
+    final int rowCount;
+    private final int rowsOffset;
+    private final int rowsLength;
+    private final int indirectOffset;
+    private final int indirectLength;
+
+    private Record(Segment segment, int offset, String tableName, int[] columnIds,
+                   Slice tabletId, byte[] partitionKey, boolean ignoreAllDuplicateRows,
+                   int rowCount, int rowsOffset, int rowsLength, int indirectOffset,
+                   int indirectLength) {
+      this.segment = segment;
+      this.offset = offset;
+      this.tableName = tableName;
+      this.columnIds = columnIds;
+      this.tabletId = tabletId;
+      this.partitionKey = partitionKey;
+      this.ignoreAllDuplicateRows = ignoreAllDuplicateRows;
+      this.rowCount = rowCount;
+      this.rowsOffset = rowsOffset;
+      this.rowsLength = rowsLength;
+      this.indirectOffset = indirectOffset;
+      this.indirectLength = indirectLength;
+    }
+
+    /**
+     * Gets the size of the record's encoded rows.
+     * @return a size in bytes
+     */
+    long getRowsSizeBytes() {
+      return rowsLength + indirectLength;
+    }
+
+    private int getEnd() {
+      return indirectOffset + indirectLength;
+    }
+
+    /**
+     * Tells if the record's rows can be sent with the given schema, which is the case if it has
+     * the same columns as the schema the rows were encoded with. Records whose column IDs aren't
+     * known, because they were spooled by an older client, are only checked by the tablet server.
+     * @param schema the table's current schema
+     * @return true if the rows can be replayed with the schema
+     */
+    boolean matchesSchema(Schema schema) {
+      return columnIds == null || Arrays.equals(columnIds, getColumnIds(schema));
+    }
+
+    @Override
+    public String toString() {
+      return "Record(" + rowCount + " rows for " + tableName + " in " + segment.file.getName() +
+          "@" + offset + ")";
+    }
+  }
+}
@@ -27,9 +27,21 @@ import com.stumbleupon.async.TimeoutException;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.List;
 
 import static org.junit.Assert.*;
@@ -368,6 +380,588 @@ public class TestAsyncKuduSession extends BaseKuduTest {
     assertTrue(gotException);
   }
 
+  @Test(timeout = 100000)
+  public void testMutationBufferSpaceBytes() throws Exception {
+    AsyncKuduSession session = client.newSession();
+    session.setFlushMode(AsyncKuduSession.FlushMode.MANUAL_FLUSH);
+    long rowSize = createInsert(0).getEncodedSizeBytes();
+    // Room for 10 rows, the count limit shouldn't be hit.
+    session.setMutationBufferSpaceBytes(10 * rowSize);
+    session.setMutationBufferSpace(1);
+
+    for (int i = 200; i < 210; i++) {
+      session.apply(createInsert(i));
+    }
+    assertEquals(10 * rowSize, session.getBufferedBytes());
+    try {
+      session.apply(createInsert(210));
+      fail("The buffer should be full");
+    } catch (NonRecoverableException ex) {
+      // Expected.
+    }
+
+    session.flush().join(DEFAULT_SLEEP);
+    assertEquals(0, session.getBufferedBytes());
+    assertEquals(10, countInRange(200, 211));
+
+    // Going back to counting operations.
+    try {
+      session.setMutationBufferSpaceBytes(-1);
+      fail("The buffer size cannot be negative");
+    } catch (IllegalArgumentException ex) {
+      // Expected.
+    }
+    session.setMutationBufferSpaceBytes(0);
+    session.apply(createInsert(210));
+    try {
+      session.apply(createInsert(211));
+      fail("The buffer should be full");
+    } catch (NonRecoverableException ex) {
+      // Expected.
+    }
+    session.flush().join(DEFAULT_SLEEP);
+    assertEquals(11, countInRange(200, 211));
+  }
+
+  @Test(timeout = 100000)
+  public void testMaxInFlightBatchesPerTablet() throws Exception {
+    AsyncKuduSession session = client.newSession();
+    try {
+      session.setMaxInFlightBatchesPerTablet(0);
+      fail("There must be at least one batch in flight");
+    } catch (IllegalArgumentException ex) {
+      // Expected.
+    }
+    session.setFlushMode(AsyncKuduSession.FlushMode.AUTO_FLUSH_BACKGROUND);
+    session.setMutationBufferLowWatermark(1f);
+    // One operation per batch, so that every operation on the same row ends up in a different
+    // batch that has to be applied in order.
+    session.setMutationBufferSpace(1);
+    session.setMaxInFlightBatchesPerTablet(4);
+
+    for (int i = 300; i < 310; i++) {
+      applyUntilBuffered(session, createInsert(i));
+      applyUntilBuffered(session, createDelete(i));
+      applyUntilBuffered(session, createInsert(i));
+    }
+    session.flush().join(DEFAULT_SLEEP);
+    assertFalse(session.hasPendingOperations());
+    assertEquals(0, session.countPendingErrors());
+    assertEquals(10, countInRange(300, 310));
+  }
+
+  @Test(timeout = 100000)
+  public void testEncodeOnApply() throws Exception {
+    AsyncKuduSession session = client.newSession();
+    session.setFlushMode(AsyncKuduSession.FlushMode.MANUAL_FLUSH);
+    session.setEncodeOnApply(true);
+    assertTrue(session.isEncodeOnApply());
+
+    List<Deferred<OperationResponse>> responses = new ArrayList<>();
+    for (int i = 250; i < 260; i++) {
+      responses.add(session.apply(i % 2 == 0 ? createInsert(i) : createInsertWithNull(i)));
+    }
+    try {
+      session.setEncodeOnApply(false);
+      fail("Cannot change the encoding when operations are buffered");
+    } catch (IllegalArgumentException ex) {
+      // Expected.
+    }
+    session.flush().join(DEFAULT_SLEEP);
+    for (Deferred<OperationResponse> response : responses) {
+      assertFalse(response.join(DEFAULT_SLEEP).hasRowError());
+    }
+    assertEquals(10, countInRange(250, 260));
+
+    // Deleting the same rows in a second batch.
+    for (int i = 250; i < 260; i++) {
+      session.apply(createDelete(i));
+    }
+    session.flush().join(DEFAULT_SLEEP);
+    assertEquals(0, countInRange(250, 260));
+  }
+
+  @Test(timeout = 100000)
+  public void testConcurrentApply() throws Exception {
+    final AsyncKuduSession session = client.newSession();
+    session.setFlushMode(AsyncKuduSession.FlushMode.AUTO_FLUSH_BACKGROUND);
+    session.setMutationBufferSpace(50);
+    final int threadsCount = 8;
+    final int rowsPerThread = 100;
+    final int firstKey = 400;
+    final AtomicReference<Exception> failure = new AtomicReference<>();
+    Thread[] threads = new Thread[threadsCount];
+    for (int i = 0; i < threadsCount; i++) {
+      final int threadFirstKey = firstKey + i * rowsPerThread;
+      threads[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int key = threadFirstKey; key < threadFirstKey + rowsPerThread; key++) {
+              applyUntilBuffered(session, createInsert(key));
+            }
+          } catch (Exception e) {
+            failure.compareAndSet(null, e);
+          }
+        }
+      });
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertNull(failure.get());
+    session.flush().join(DEFAULT_SLEEP);
+    assertFalse(session.hasPendingOperations());
+    assertEquals(0, session.getBufferedBytes());
+    assertEquals(0, session.countPendingErrors());
+    assertEquals(threadsCount * rowsPerThread,
+        countInRange(firstKey, firstKey + threadsCount * rowsPerThread));
+  }
+
+  @Test(timeout = 100000)
+  public void testBlockingBackpressure() throws Exception {
+    final AsyncKuduSession session = client.newSession();
+    session.setFlushMode(AsyncKuduSession.FlushMode.AUTO_FLUSH_BACKGROUND);
+    session.setMutationBufferSpace(10);
+    session.setBlockingBackpressure(25, 0);
+    assertTrue(session.isBlockingBackpressure());
+    final int threadsCount = 4;
+    final int rowsPerThread = 50;
+    final int firstKey = 1400;
+    final List<Deferred<OperationResponse>> responses =
+        Collections.synchronizedList(new ArrayList<Deferred<OperationResponse>>());
+    final AtomicReference<Exception> failure = new AtomicReference<>();
+    Thread[] threads = new Thread[threadsCount];
+    for (int i = 0; i < threadsCount; i++) {
+      final int threadFirstKey = firstKey + i * rowsPerThread;
+      threads[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            // Never throws PleaseThrottleException, the operations wait for room instead.
+            for (int key = threadFirstKey; key < threadFirstKey + rowsPerThread; key++) {
+              responses.add(session.apply(createInsert(key)));
+            }
+          } catch (Exception e) {
+            failure.compareAndSet(null, e);
+          }
+        }
+      });
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertNull(failure.get());
+    for (Deferred<OperationResponse> response : responses) {
+      assertFalse(response.join(DEFAULT_SLEEP).hasRowError());
+    }
+    assertFalse(session.hasPendingOperations());
+    assertEquals(threadsCount * rowsPerThread,
+        countInRange(firstKey, firstKey + threadsCount * rowsPerThread));
+
+    // The synchronous session waits in apply() instead.
+    KuduSession syncSession = new KuduSession(session);
+    int syncFirstKey = firstKey + threadsCount * rowsPerThread;
+    for (int key = syncFirstKey; key < syncFirstKey + rowsPerThread; key++) {
+      syncSession.apply(createInsert(key));
+    }
+    syncSession.flush();
+    assertFalse(session.hasPendingOperations());
+    assertEquals(rowsPerThread, countInRange(syncFirstKey, syncFirstKey + rowsPerThread));
+  }
+
+  @Test(timeout = 100000)
+  public void testAdaptiveFlushing() throws Exception {
+    AsyncKuduSession session = client.newSession();
+    session.setFlushMode(AsyncKuduSession.FlushMode.AUTO_FLUSH_BACKGROUND);
+    // Operations would otherwise stay buffered for longer than we wait for them.
+    session.setFlushInterval(DEFAULT_SLEEP * 10);
+    session.setAdaptiveFlushing(true);
+    assertTrue(session.isAdaptiveFlushing());
+
+    // Sent right away since the tablet is idle.
+    assertFalse(session.apply(createInsert(1700)).join(DEFAULT_SLEEP).hasRowError());
+
+    // Busy tablets still get all their operations, without waiting for the flush interval. The
+    // operations wait for room instead of getting a PleaseThrottleException.
+    session.setMutationBufferSpace(50);
+    session.setBlockingBackpressure(100, 0);
+    Deferred<OperationResponse> last = null;
+    for (int key = 1701; key < 2000; key++) {
+      last = session.apply(createInsert(key));
+    }
+    assertFalse(last.join(DEFAULT_SLEEP).hasRowError());
+    assertEquals(300, countInRange(1700, 2000));
+  }
+
+  @Test(timeout = 100000)
+  public void testCoalesceMutations() throws Exception {
+    AsyncKuduSession session = client.newSession();
+    session.apply(createInsert(2000)).join(DEFAULT_SLEEP);
+    session.apply(createInsert(2001)).join(DEFAULT_SLEEP);
+
+    session.setFlushMode(AsyncKuduSession.FlushMode.MANUAL_FLUSH);
+    session.setCoalesceMutations(true);
+    assertTrue(session.isCoalesceMutations());
+    List<Deferred<OperationResponse>> responses = new ArrayList<>();
+    // Merged into a single update.
+    Update update = createUpdate(2000);
+    update.getRow().setNull(3);
+    responses.add(session.apply(update));
+    update = createUpdate(2000);
+    update.getRow().addInt(1, 5);
+    responses.add(session.apply(update));
+    // Merged into a delete.
+    update = createUpdate(2001);
+    update.getRow().addInt(1, 5);
+    responses.add(session.apply(update));
+    responses.add(session.apply(createDelete(2001)));
+    // Merged into a single upsert that inserts the row.
+    Upsert upsert = table.newUpsert();
+    upsert.getRow().addInt(0, 2002);
+    upsert.getRow().addInt(1, 1);
+    upsert.getRow().addInt(2, 2);
+    upsert.getRow().addBoolean(4, true);
+    responses.add(session.apply(upsert));
+    update = createUpdate(2002);
+    update.getRow().setNull(3);
+    responses.add(session.apply(update));
+    session.flush().join(DEFAULT_SLEEP);
+
+    for (Deferred<OperationResponse> response : responses) {
+      assertFalse(response.join(DEFAULT_SLEEP).hasRowError());
+    }
+    assertTrue(exists(2000));
+    assertFalse(exists(2001));
+    assertTrue(exists(2002));
+    assertEquals(2, countNullColumns(2000, 2003));
+
+    // Both updates get the row error of the update they were merged into.
+    Update missing = createUpdate(2003);
+    missing.getRow().addInt(1, 1);
+    Deferred<OperationResponse> first = session.apply(missing);
+    missing = createUpdate(2003);
+    missing.getRow().addInt(2, 2);
+    Deferred<OperationResponse> second = session.apply(missing);
+    session.flush().join(DEFAULT_SLEEP);
+    OperationResponse response = first.join(DEFAULT_SLEEP);
+    assertTrue(response.getRowError().getErrorStatus().isNotFound());
+    assertNotSame(response.getOperation(), missing);
+    response = second.join(DEFAULT_SLEEP);
+    assertTrue(response.getRowError().getErrorStatus().isNotFound());
+    assertSame(response.getOperation(), missing);
+  }
+
+  @Test(timeout = 100000)
+  public void testSortByPrimaryKey() throws Exception {
+    AsyncKuduSession session = client.newSession();
+    session.setFlushMode(AsyncKuduSession.FlushMode.MANUAL_FLUSH);
+    session.setSortByPrimaryKey(true);
+    assertTrue(session.isSortByPrimaryKey());
+    List<Integer> keys = new ArrayList<>();
+    for (int key = 2100; key < 2300; key++) {
+      keys.add(key);
+    }
+    Collections.shuffle(keys);
+    List<Deferred<OperationResponse>> responses = new ArrayList<>();
+    for (int key : keys) {
+      responses.add(session.apply(createInsert(key)));
+    }
+    // The operations on the same row must still be applied in order.
+    responses.add(session.apply(createDelete(keys.get(0))));
+    responses.add(session.apply(createInsert(keys.get(0))));
+    session.flush().join(DEFAULT_SLEEP);
+    for (Deferred<OperationResponse> response : responses) {
+      assertFalse(response.join(DEFAULT_SLEEP).hasRowError());
+    }
+    assertEquals(200, countInRange(2100, 2300));
+  }
+
+  @Test(timeout = 100000)
+  public void testEncoderExecutor() throws Exception {
+    final ExecutorService encoderExecutor = Executors.newFixedThreadPool(2);
+    // Records the threads that the client's tasks run on, each task encodes and sends a batch.
+    final AtomicInteger encoderTasks = new AtomicInteger();
+    final Set<Thread> encoderThreads =
+        Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+    Executor recordingExecutor = new Executor() {
+      @Override
+      public void execute(final Runnable command) {
+        encoderExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            encoderThreads.add(Thread.currentThread());
+            encoderTasks.incrementAndGet();
+            command.run();
+          }
+        });
+      }
+    };
+    AsyncKuduClient encodingClient = new AsyncKuduClient.AsyncKuduClientBuilder(masterAddresses)
+        .encoderExecutor(recordingExecutor)
+        .build();
+    try {
+      KuduTable encodingTable = encodingClient.openTable(TABLE_NAME).join(DEFAULT_SLEEP);
+      AsyncKuduSession session = encodingClient.newSession();
+      session.setFlushMode(AsyncKuduSession.FlushMode.MANUAL_FLUSH);
+      List<Deferred<OperationResponse>> responses = new ArrayList<>();
+      for (int key = 2400; key < 2500; key++) {
+        responses.add(session.apply(createBasicSchemaInsert(encodingTable, key)));
+        if (key % 10 == 9) {
+          session.flush().join(DEFAULT_SLEEP);
+        }
+      }
+      for (Deferred<OperationResponse> response : responses) {
+        assertFalse(response.join(DEFAULT_SLEEP).hasRowError());
+      }
+      assertEquals(100, countInRange(2400, 2500));
+
+      Statistics statistics = encodingClient.getStatistics();
+      assertEquals(100, statistics.getClientStatistic(Statistics.Statistic.WRITE_OPS));
+      // Every batch went through the executor and was encoded on one of its threads.
+      assertTrue(encoderTasks.get() >=
+          statistics.getClientStatistic(Statistics.Statistic.WRITE_RPCS));
+      assertFalse(encoderThreads.isEmpty());
+      assertFalse(encoderThreads.contains(Thread.currentThread()));
+      assertTrue(statistics.getClientStatistic(Statistics.Statistic.ENCODE_QUEUE_TIME_NANOS) > 0);
+      long cpuNanos = statistics.getClientStatistic(Statistics.Statistic.ENCODE_CPU_TIME_NANOS);
+      long wallNanos = statistics.getClientStatistic(Statistics.Statistic.ENCODE_WALL_TIME_NANOS);
+      ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+      if (threadMXBean.isCurrentThreadCpuTimeSupported() && threadMXBean.isThreadCpuTimeEnabled()) {
+        assertTrue(cpuNanos > 0);
+        assertEquals(0, wallNanos);
+      } else {
+        assertEquals(0, cpuNanos);
+        assertTrue(wallNanos > 0);
+      }
+    } finally {
+      encodingClient.shutdown().join(DEFAULT_SLEEP);
+      encoderExecutor.shutdown();
+    }
+  }
+
+  @Test(timeout = 100000)
+  public void testWriteSpool() throws Exception {
+    File spoolDirectory = Files.createTempDirectory("kudu-spool").toFile();
+    AsyncKuduSession session = client.newSession();
+    session.setFlushMode(AsyncKuduSession.FlushMode.AUTO_FLUSH_BACKGROUND);
+    session.setMutationBufferSpace(10);
+    session.setWriteSpool(spoolDirectory.getPath(), 64 * 1024 * 1024);
+    assertEquals(spoolDirectory.getPath(), session.getWriteSpoolDirectory());
+    try {
+      session.setBlockingBackpressure(10, 0);
+      fail("Blocking backpressure cannot be used with a spool");
+    } catch (IllegalArgumentException ex) {
+      // Expected.
+    }
+    long spooledOps = client.getStatistics().getClientStatistic(Statistics.Statistic.SPOOLED_OPS);
+
+    // Batches that cannot be sent right away are spooled instead of throwing
+    // PleaseThrottleException.
+    List<Deferred<OperationResponse>> responses = new ArrayList<>();
+    for (int key = 2500; key < 3000; key++) {
+      responses.add(session.apply(createInsert(key)));
+    }
+    session.flush().join(DEFAULT_SLEEP);
+    for (Deferred<OperationResponse> response : responses) {
+      assertFalse(response.join(DEFAULT_SLEEP).hasRowError());
+    }
+    assertTrue(client.getStatistics().getClientStatistic(Statistics.Statistic.SPOOLED_OPS) >
+        spooledOps);
+    while (session.hasPendingOperations()) {
+      Thread.sleep(50);
+    }
+    assertEquals(500, countInRange(2500, 3000));
+    session.close().join(DEFAULT_SLEEP);
+
+    // The directory is released once everything was replayed.
+    AsyncKuduSession newSession = client.newSession();
+    newSession.setWriteSpool(spoolDirectory.getPath(), 64 * 1024 * 1024);
+    newSession.setWriteSpool(null, 0);
+    assertNull(newSession.getWriteSpoolDirectory());
+  }
+
+  @Test(timeout = 100000)
+  public void testPerBatchCompletion() throws Exception {
+    Statistics statistics = client.getStatistics();
+    long writeOps = statistics.getClientStatistic(Statistics.Statistic.WRITE_OPS);
+    long opsErrors = statistics.getClientStatistic(Statistics.Statistic.OPS_ERRORS);
+    AsyncKuduSession session = client.newSession();
+    session.setFlushMode(AsyncKuduSession.FlushMode.MANUAL_FLUSH);
+    session.setPerBatchCompletion(true);
+    assertTrue(session.isPerBatchCompletion());
+    for (int key = 3000; key < 3100; key++) {
+      assertNull(session.apply(createInsert(key)));
+    }
+    // Only the failed operations get a response.
+    assertTrue(session.flush().join(DEFAULT_SLEEP).isEmpty());
+    assertEquals(100, countInRange(3000, 3100));
+
+    Insert duplicate = createInsert(3000);
+    assertNull(session.apply(duplicate));
+    assertNull(session.apply(createDelete(3099)));
+    List<OperationResponse> responses = session.flush().join(DEFAULT_SLEEP);
+    assertEquals(1, responses.size());
+    assertSame(duplicate, responses.get(0).getOperation());
+    assertTrue(responses.get(0).getRowError().getErrorStatus().isAlreadyPresent());
+    // The row errors are also collected in manual flush mode.
+    assertEquals(1, session.countPendingErrors());
+    assertSame(duplicate, session.getPendingErrors().getRowErrors()[0].getOperation());
+    assertEquals(99, countInRange(3000, 3100));
+
+    // The operations that succeeded are counted even though they didn't get a response.
+    assertEquals(writeOps + 101, statistics.getClientStatistic(Statistics.Statistic.WRITE_OPS));
+    assertEquals(opsErrors + 1, statistics.getClientStatistic(Statistics.Statistic.OPS_ERRORS));
+  }
+
+  @Test(timeout = 100000)
+  public void testWriteRateLimit() throws Exception {
+    AsyncKuduClient limitedClient = new AsyncKuduClient.AsyncKuduClientBuilder(masterAddresses)
+        .maxInFlightWriteBatchesPerServer(1)
+        .build();
+    try {
+      KuduTable limitedTable = limitedClient.openTable(TABLE_NAME).join(DEFAULT_SLEEP);
+      limitedClient.setTableWriteRateLimit(TABLE_NAME, 0, 1024 * 1024 * 1024);
+      AsyncKuduSession session = limitedClient.newSession();
+      session.setFlushMode(AsyncKuduSession.FlushMode.MANUAL_FLUSH);
+      session.setWriteRateLimit(100, 0);
+      session.setWriteWeight(2);
+      assertEquals(100, session.getWriteRateLimitRowsPerSecond());
+      assertEquals(0, session.getWriteRateLimitBytesPerSecond());
+      assertEquals(2, session.getWriteWeight());
+
+      // The first 100 rows go through right away, the other ones are delayed.
+      List<Deferred<OperationResponse>> responses = new ArrayList<>();
+      for (int key = 3100; key < 3300; key++) {
+        responses.add(session.apply(createBasicSchemaInsert(limitedTable, key)));
+        if (key % 50 == 49) {
+          session.flush();
+        }
+      }
+      session.flush().join(DEFAULT_SLEEP);
+      for (Deferred<OperationResponse> response : responses) {
+        assertFalse(response.join(DEFAULT_SLEEP).hasRowError());
+      }
+      assertEquals(200, countInRange(3100, 3300));
+
+      Statistics statistics = limitedClient.getStatistics();
+      assertTrue(statistics.getClientStatistic(Statistics.Statistic.THROTTLED_BATCHES) > 0);
+      assertTrue(statistics.getClientStatistic(Statistics.Statistic.THROTTLE_TIME_NANOS) > 0);
+
+      session.setWriteRateLimit(0, 0);
+      assertEquals(0, session.getWriteRateLimitRowsPerSecond());
+    } finally {
+      limitedClient.shutdown().join(DEFAULT_SLEEP);
+    }
+  }
+
+  @Test(timeout = 100000)
+  public void testThrottledBatchTimeout() throws Exception {
+    AsyncKuduSession session = client.newSession();
+    session.setFlushMode(AsyncKuduSession.FlushMode.MANUAL_FLUSH);
+    session.setTimeoutMillis(1000);
+    // The bucket holds 10 rows, so a batch of 50 rows would wait 4 seconds for the other 40.
+    session.setWriteRateLimit(10, 0);
+    List<Deferred<OperationResponse>> responses = new ArrayList<>();
+    for (int key = 3400; key < 3450; key++) {
+      responses.add(session.apply(createInsert(key)));
+    }
+    session.flush();
+    for (Deferred<OperationResponse> response : responses) {
+      try {
+        response.join(DEFAULT_SLEEP);
+        fail("The batch should fail before its delay is over");
+      } catch (NonRecoverableException ex) {
+        assertTrue(ex.getMessage().contains("timeout"));
+      }
+    }
+    assertEquals(0, countInRange(3400, 3450));
+
+    // The batch gave its tokens back, so a batch that fits in the bucket isn't delayed.
+    for (int key = 3450; key < 3460; key++) {
+      session.apply(createInsert(key));
+    }
+    session.flush().join(DEFAULT_SLEEP);
+    assertEquals(10, countInRange(3450, 3460));
+  }
+
+  @Test(timeout = 100000)
+  public void testApplyColumnar() throws Exception {
+    AsyncKuduSession session = client.newSession();
+    // The rows are sent right away even if the session buffers operations.
+    session.setFlushMode(AsyncKuduSession.FlushMode.MANUAL_FLUSH);
+    int rowCount = 10;
+    ColumnarRowBlock block = new ColumnarRowBlock(table.getSchema(), rowCount);
+    int[] keys = new int[rowCount];
+    int[] ints = new int[rowCount];
+    byte[][] strings = new byte[rowCount][];
+    boolean[] booleans = new boolean[rowCount];
+    BitSet nulls = new BitSet();
+    for (int i = 0; i < rowCount; i++) {
+      keys[i] = 1300 + i;
+      ints[i] = i;
+      strings[i] = Bytes.fromString("a string");
+      booleans[i] = i % 2 == 0;
+      if (i % 3 == 0) {
+        nulls.set(i);
+      }
+    }
+    block.setColumn("key", keys);
+    block.setColumn("column1_i", ints);
+    block.setColumn("column2_i", ints);
+    block.setColumn("column3_s", strings);
+    block.setNulls("column3_s", nulls);
+    block.setColumn("column4_b", booleans);
+    ColumnarWriteResponse response = session.applyColumnar(table, block).join(DEFAULT_SLEEP);
+    assertFalse(response.hasRowErrors());
+    assertEquals(rowCount, countInRange(1300, 1310));
+
+    // The row that already exists is reported with its index in the new block.
+    ColumnarRowBlock secondBlock = new ColumnarRowBlock(table.getSchema(), 2);
+    secondBlock.setColumn("key", new int[] { 1310, 1305 });
+    secondBlock.setColumn("column1_i", new int[] { 1, 1 });
+    secondBlock.setColumn("column2_i", new int[] { 2, 2 });
+    secondBlock.setColumn("column4_b", new boolean[] { true, true });
+    response = session.applyColumnar(table, secondBlock).join(DEFAULT_SLEEP);
+    assertEquals(1, response.getRowErrors().size());
+    assertEquals(1, response.getRowErrors().get(0).getRowIndex());
+    assertTrue(response.getRowErrors().get(0).getErrorStatus().isAlreadyPresent());
+    assertEquals(rowCount + 1, countInRange(1300, 1311));
+    assertFalse(session.hasPendingOperations());
+
+    // A tablet's rows are split in batches of at most mutationBufferSpace rows, and the row
+    // indexes are still those of the block.
+    AsyncKuduSession smallBatchesSession = client.newSession();
+    smallBatchesSession.setMutationBufferSpace(3);
+    rowCount = 10;
+    ColumnarRowBlock thirdBlock = new ColumnarRowBlock(table.getSchema(), rowCount);
+    for (int i = 0; i < rowCount; i++) {
+      keys[i] = i == 7 ? 1300 : 3300 + i;
+    }
+    thirdBlock.setColumn("key", keys);
+    thirdBlock.setColumn("column1_i", ints);
+    thirdBlock.setColumn("column2_i", ints);
+    thirdBlock.setColumn("column4_b", booleans);
+    response = smallBatchesSession.applyColumnar(table, thirdBlock).join(DEFAULT_SLEEP);
+    assertEquals(1, response.getRowErrors().size());
+    assertEquals(7, response.getRowErrors().get(0).getRowIndex());
+    assertEquals(rowCount - 1, countInRange(3300, 3310));
+  }
+
+  private void applyUntilBuffered(AsyncKuduSession session, Operation operation)
+      throws Exception {
+    while (true) {
+      try {
+        session.apply(operation);
+        return;
+      } catch (PleaseThrottleException ex) {
+        ex.getDeferred().join(DEFAULT_SLEEP);
+      }
+    }
+  }
+
   private Insert createInsert(int key) {
     return createBasicSchemaInsert(table, key);
   }
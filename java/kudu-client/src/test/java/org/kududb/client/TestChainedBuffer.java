@@ -0,0 +1,153 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.kududb.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+public class TestChainedBuffer {
+
+  @Test
+  public void testWritesSpanningSegments() {
+    BufferSegmentPool pool = new BufferSegmentPool(8, 10);
+    ChainedBuffer buffer = new ChainedBuffer(pool);
+
+    byte[] expected = new byte[1 + 8 + 20 + 5 + 2];
+    buffer.put((byte) 1);
+    expected[0] = 1;
+    // This long is split between the first two segments.
+    buffer.putLong(0x0102030405060708L);
+    Bytes.setLong(expected, 0x0102030405060708L, 1);
+    byte[] array = new byte[20];
+    for (int i = 0; i < array.length; i++) {
+      array[i] = (byte) i;
+    }
+    buffer.put(array, 0, array.length);
+    System.arraycopy(array, 0, expected, 9, array.length);
+    ByteBuffer direct = ByteBuffer.allocateDirect(5);
+    direct.put(new byte[] { 9, 8, 7, 6, 5 });
+    direct.flip();
+    buffer.put(direct);
+    System.arraycopy(new byte[] { 9, 8, 7, 6, 5 }, 0, expected, 29, 5);
+    BitSet bits = new BitSet();
+    bits.set(0);
+    bits.set(9);
+    buffer.putBitSet(bits, 10);
+    System.arraycopy(Bytes.fromBitSet(bits, 10), 0, expected, 34, 2);
+
+    assertEquals(expected.length, buffer.size());
+    assertArrayEquals(expected, buffer.toByteArray());
+
+    List<ChannelBuffer> buffers = new ArrayList<>();
+    buffer.appendTo(buffers);
+    assertEquals(5, buffers.size());
+    ChannelBuffer composite =
+        ChannelBuffers.wrappedBuffer(buffers.toArray(new ChannelBuffer[buffers.size()]));
+    byte[] actual = new byte[composite.readableBytes()];
+    composite.readBytes(actual);
+    assertArrayEquals(expected, actual);
+  }
+
+  @Test
+  public void testSegmentsAreRecycled() {
+    BufferSegmentPool pool = new BufferSegmentPool(8, 3);
+    ChainedBuffer buffer = new ChainedBuffer(pool);
+    buffer.put(new byte[40], 0, 40);
+    assertEquals(0, pool.getPooledSegmentsCount());
+
+    buffer.release();
+    // Only 3 of the 5 segments are kept.
+    assertEquals(3, pool.getPooledSegmentsCount());
+    // Releasing twice is a no-op.
+    buffer.release();
+    assertEquals(3, pool.getPooledSegmentsCount());
+    try {
+      buffer.put((byte) 1);
+      fail("Should not be able to write to a released buffer");
+    } catch (IllegalStateException ex) {
+      // Expected.
+    }
+
+    ChainedBuffer other = new ChainedBuffer(pool);
+    other.putLong(1);
+    assertEquals(2, pool.getPooledSegmentsCount());
+    other.release();
+    assertEquals(3, pool.getPooledSegmentsCount());
+  }
+
+  @Test
+  public void testSizedFirstSegment() {
+    BufferSegmentPool pool = new BufferSegmentPool(1024, 10);
+    pool.release(new byte[1024]);
+    ChainedBuffer buffer = new ChainedBuffer(pool, 100);
+    byte[] expected = new byte[2000];
+    for (int i = 0; i < expected.length; i++) {
+      expected[i] = (byte) i;
+    }
+    buffer.put(expected, 0, 100);
+    // The first segment was allocated with the expected size, the pool wasn't touched.
+    assertEquals(1, pool.getPooledSegmentsCount());
+    List<ChannelBuffer> buffers = new ArrayList<>();
+    buffer.appendTo(buffers);
+    assertEquals(1, buffers.size());
+
+    // The next segments double in size until they reach the pool's segment size:
+    // 100 + 200 + 400 + 800 bytes, then a pooled segment.
+    buffer.put(expected, 100, 1900);
+    assertEquals(0, pool.getPooledSegmentsCount());
+    assertArrayEquals(expected, buffer.toByteArray());
+    buffers.clear();
+    buffer.appendTo(buffers);
+    assertEquals(5, buffers.size());
+
+    // Only the pooled segment goes back to the pool.
+    buffer.release();
+    assertEquals(1, pool.getPooledSegmentsCount());
+  }
+
+  @Test
+  public void testSharedBuffer() {
+    BufferSegmentPool pool = new BufferSegmentPool(8, 10);
+    ChainedBuffer buffer = new ChainedBuffer(pool);
+    buffer.putLong(1);
+    buffer.retain();
+
+    // The segments stay in use until every owner released the buffer.
+    buffer.release();
+    assertEquals(0, pool.getPooledSegmentsCount());
+    assertEquals(8, buffer.toByteArray().length);
+    buffer.release();
+    assertEquals(1, pool.getPooledSegmentsCount());
+
+    try {
+      buffer.retain();
+      fail("Should not be able to retain a released buffer");
+    } catch (IllegalStateException ex) {
+      // Expected.
+    }
+  }
+}
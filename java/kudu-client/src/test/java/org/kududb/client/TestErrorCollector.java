@@ -76,6 +76,153 @@ public class TestErrorCollector {
     Assert.assertEquals(countToTest - 1, reos.getRowErrors()[9].getErrorStatus().getPosixCode());
   }
 
+  @Test
+  public void testDiscardedErrorCount() {
+    ErrorCollector collector = new ErrorCollector(10);
+    fillCollectorWith(collector, 25);
+    RowErrorsAndOverflowStatus reos = collector.getErrors();
+    Assert.assertTrue(reos.isOverflowed());
+    Assert.assertEquals(15, reos.getDiscardedErrorCount());
+    Assert.assertEquals(15, reos.getRowErrors()[0].getErrorStatus().getPosixCode());
+
+    // The errors that were read don't count as discarded once they're overwritten.
+    fillCollectorWith(collector, 10);
+    reos = collector.getErrors();
+    Assert.assertFalse(reos.isOverflowed());
+    Assert.assertEquals(0, reos.getDiscardedErrorCount());
+    Assert.assertEquals(10, reos.getRowErrors().length);
+  }
+
+  @Test(timeout = 100000)
+  public void testConcurrentErrors() throws Exception {
+    final int maxErrors = 100;
+    final int errorsPerThread = 10000;
+    final ErrorCollector collector = new ErrorCollector(maxErrors);
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          fillCollectorWith(collector, errorsPerThread);
+        }
+      });
+      threads[i].start();
+    }
+    long collected = 0;
+    long discarded = 0;
+    for (Thread thread : threads) {
+      while (thread.isAlive()) {
+        RowErrorsAndOverflowStatus reos = collector.getErrors();
+        collected += reos.getRowErrors().length;
+        discarded += reos.getDiscardedErrorCount();
+        thread.join(1);
+      }
+    }
+    RowErrorsAndOverflowStatus reos = collector.getErrors();
+    collected += reos.getRowErrors().length;
+    discarded += reos.getDiscardedErrorCount();
+    for (RowError rowError : reos.getRowErrors()) {
+      Assert.assertNotNull(rowError);
+    }
+    Assert.assertEquals(threads.length * errorsPerThread, collected + discarded);
+    Assert.assertEquals(0, collector.countErrors());
+  }
+
+  /**
+   * With a couple of slots and more writers than slots, writers that are a lap apart keep racing
+   * for the same slot while errors are read. Reading must not get stuck on a slot that an older
+   * writer would have overwritten, and every error must be either collected or discarded.
+   */
+  @Test(timeout = 100000)
+  public void testConcurrentWrapAround() throws Exception {
+    final ErrorCollector collector = new ErrorCollector(2);
+    final int errorsPerThread = 20000;
+    Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          fillCollectorWith(collector, errorsPerThread);
+        }
+      });
+      threads[i].start();
+    }
+    long collected = 0;
+    long discarded = 0;
+    boolean writing = true;
+    while (writing) {
+      writing = false;
+      for (Thread thread : threads) {
+        writing |= thread.isAlive();
+      }
+      RowErrorsAndOverflowStatus reos = collector.getErrors();
+      Assert.assertTrue(reos.getRowErrors().length <= 2);
+      for (RowError rowError : reos.getRowErrors()) {
+        Assert.assertNotNull(rowError);
+      }
+      collected += reos.getRowErrors().length;
+      discarded += reos.getDiscardedErrorCount();
+    }
+    Assert.assertEquals(threads.length * errorsPerThread, collected + discarded);
+    Assert.assertEquals(0, collector.countErrors());
+  }
+
+  @Test
+  public void testAggregation() {
+    ErrorCollector collector = new ErrorCollector(10);
+    collector.setAggregating(true);
+    fillCollectorWith(collector, 50);
+    for (int i = 0; i < 5; i++) {
+      collector.addError(new RowError(Status.NotFound("test", i), null, "test"));
+    }
+
+    // Only the first error of each error code is kept.
+    Assert.assertEquals(2, collector.countErrors());
+    RowErrorsAndOverflowStatus reos = collector.getErrors();
+    Assert.assertFalse(reos.isOverflowed());
+    Assert.assertEquals(2, reos.getRowErrors().length);
+    Assert.assertEquals(2, reos.getAggregates().size());
+    for (RowErrorAggregate aggregate : reos.getAggregates()) {
+      Assert.assertNull(aggregate.getTabletId());
+      Assert.assertEquals(0, aggregate.getExemplar().getErrorStatus().getPosixCode());
+      if (aggregate.getExemplar().getErrorStatus().isNotAuthorized()) {
+        Assert.assertEquals("NOT_AUTHORIZED", aggregate.getErrorCode());
+        Assert.assertEquals(50, aggregate.getCount());
+      } else {
+        Assert.assertEquals("NOT_FOUND", aggregate.getErrorCode());
+        Assert.assertEquals(5, aggregate.getCount());
+      }
+    }
+
+    // The aggregates start over once they were returned.
+    collector.addError(createRowError(7));
+    reos = collector.getErrors();
+    Assert.assertEquals(1, reos.getAggregates().size());
+    Assert.assertEquals(1, reos.getAggregates().get(0).getCount());
+    Assert.assertEquals(7, reos.getRowErrors()[0].getErrorStatus().getPosixCode());
+  }
+
+  @Test
+  public void testSpooledErrors() {
+    ErrorCollector collector = new ErrorCollector(10);
+    collector.addError(createRowError(0));
+    for (int i = 0; i < 15; i++) {
+      collector.addSpooledError(new ColumnarRowError(i, Status.NotFound("test", i), "test",
+          "table", "tablet"));
+    }
+    Assert.assertEquals(11, collector.countErrors());
+    RowErrorsAndOverflowStatus reos = collector.getErrors();
+    Assert.assertEquals(0, collector.countErrors());
+    Assert.assertTrue(reos.isOverflowed());
+    Assert.assertEquals(5, reos.getDiscardedErrorCount());
+    Assert.assertEquals(1, reos.getRowErrors().length);
+    Assert.assertEquals(10, reos.getSpooledRowErrors().size());
+    // The oldest ones were discarded.
+    Assert.assertEquals(5, reos.getSpooledRowErrors().get(0).getRowIndex());
+    Assert.assertEquals("tablet", reos.getSpooledRowErrors().get(0).getTabletId());
+    Assert.assertTrue(collector.getErrors().getSpooledRowErrors().isEmpty());
+  }
+
   private void fillCollectorWith(ErrorCollector collector, int errorsToAdd) {
     for (int i = 0; i < errorsToAdd; i++) {
       collector.addError(createRowError(i));
@@ -30,7 +30,9 @@ import org.kududb.Type;
 import org.kududb.client.PartitionSchema.HashBucketSchema;
 import org.kududb.client.PartitionSchema.RangeSchema;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class TestKeyEncoding {
@@ -269,4 +271,52 @@ public class TestKeyEncoding {
                           'c'                   // b = "c"
                       });
   }
+
+  @Test
+  public void testEncoderReuse() {
+    KeyEncoder encoder = new KeyEncoder();
+    Schema schema = buildSchema(
+        new ColumnSchemaBuilder("a", Type.BINARY).key(true),
+        new ColumnSchemaBuilder("b", Type.INT16).key(true));
+
+    // Longer than the encoder's initial scratch array, with zeros to escape, given as a direct
+    // buffer.
+    byte[] value = new byte[100];
+    value[0] = 1;
+    value[50] = 2;
+    value[99] = 3;
+    ByteBuffer direct = ByteBuffer.allocateDirect(value.length);
+    direct.put(value);
+    direct.flip();
+    PartialRow longRow = schema.newPartialRow();
+    longRow.addBinary("a", direct);
+    longRow.addShort("b", (short) 1);
+
+    // 97 escaped zeros, the separator and the INT16.
+    byte[] expected = new byte[value.length + 97 + 2 + 2];
+    int offset = 0;
+    for (byte b : value) {
+      expected[offset++] = b;
+      if (b == 0) {
+        expected[offset++] = 1;
+      }
+    }
+    expected[offset++] = 0;
+    expected[offset++] = 0;
+    expected[offset++] = (byte) 0x80;
+    expected[offset++] = 1;
+    assertEquals(expected.length, offset);
+    assertBytesEquals(encoder.encodePrimaryKey(longRow), expected);
+    // The buffer can be encoded again.
+    assertBytesEquals(encoder.encodePrimaryKey(longRow), expected);
+    // Hashing the key in place gives the hash of the encoded key, and leaves the encoder usable.
+    assertEquals(Arrays.hashCode(expected), encoder.hashPrimaryKey(longRow));
+    assertBytesEquals(encoder.encodePrimaryKey(longRow), expected);
+
+    PartialRow shortRow = schema.newPartialRow();
+    shortRow.addBinary("a", new byte[] { 'x' });
+    shortRow.addShort("b", (short) -1);
+    assertBytesEquals(encoder.encodePrimaryKey(shortRow),
+                      new byte[] { 'x', 0, 0, 0x7f, (byte) 0xff });
+  }
 }
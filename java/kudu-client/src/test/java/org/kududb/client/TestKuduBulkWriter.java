@@ -0,0 +1,117 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.kududb.client;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TestKuduBulkWriter extends BaseKuduTest {
+  private static final Logger LOG = LoggerFactory.getLogger(TestKuduBulkWriter.class);
+
+  // Generate a unique table name
+  private static final String TABLE_NAME_PREFIX =
+      TestKuduBulkWriter.class.getName() + "-" + System.currentTimeMillis();
+
+  private static final int ROWS = 50000;
+  private static final int TABLETS = 8;
+
+  private static KuduTable createSplitTable(String tableName) throws Exception {
+    CreateTableOptions options = getBasicCreateTableOptions();
+    for (int i = 1; i < TABLETS; i++) {
+      PartialRow splitRow = basicSchema.newPartialRow();
+      splitRow.addInt(0, i * ROWS / TABLETS);
+      options.addSplitRow(splitRow);
+    }
+    return createTable(tableName, basicSchema, options);
+  }
+
+  /**
+   * Interleaves the keys across the tablets, like an unsorted input would.
+   */
+  private static int keyOf(int i) {
+    return (i % TABLETS) * (ROWS / TABLETS) + i / TABLETS;
+  }
+
+  @Test(timeout = 100000)
+  public void testBulkWrite() throws Exception {
+    KuduTable table = createSplitTable(TABLE_NAME_PREFIX + "-testBulkWrite");
+    KuduBulkWriter writer = syncClient.newBulkWriterBuilder(table)
+        .maxBatchRows(500)
+        .maxInFlightBatchesPerServer(2)
+        .maxQueuedBatchesPerServer(2)
+        .build();
+    long start = System.nanoTime();
+    for (int i = 0; i < ROWS; i++) {
+      writer.write(createBasicSchemaInsert(table, keyOf(i)));
+    }
+    writer.flush();
+    long elapsedMs = (System.nanoTime() - start) / 1000000;
+    LOG.info("Bulk writer loaded {} rows in {} ms: {} rows/s, {} bytes/s", ROWS, elapsedMs,
+        (long) writer.getRowsPerSecond(), (long) writer.getBytesPerSecond());
+
+    assertEquals(0, writer.countPendingErrors());
+    assertEquals(ROWS, countRowsInScan(client.newScannerBuilder(table).build()));
+    assertTrue(writer.getRowsPerSecond() > 0);
+    assertTrue(writer.getBytesPerSecond() > 0);
+    assertFalse(writer.getQueueDepths().isEmpty());
+    for (Map.Entry<String, Integer> depth : writer.getQueueDepths().entrySet()) {
+      assertEquals(0, depth.getValue().intValue());
+    }
+
+    // Duplicate rows are reported as row errors.
+    for (int key = 0; key < 10; key++) {
+      writer.write(createBasicSchemaInsert(table, key));
+    }
+    writer.close();
+    RowErrorsAndOverflowStatus errors = writer.getPendingErrors();
+    assertEquals(10, errors.getRowErrors().length);
+    for (RowError rowError : errors.getRowErrors()) {
+      assertTrue(rowError.getErrorStatus().isAlreadyPresent());
+    }
+    try {
+      writer.write(createBasicSchemaInsert(table, ROWS));
+      fail("Cannot write once closed");
+    } catch (IllegalStateException ex) {
+      // Expected.
+    }
+  }
+
+  /**
+   * Loads the same rows with a session to compare its throughput with the bulk writer's.
+   */
+  @Test(timeout = 100000)
+  public void testSessionComparison() throws Exception {
+    KuduTable table = createSplitTable(TABLE_NAME_PREFIX + "-testSessionComparison");
+    KuduSession session = syncClient.newSession();
+    session.setFlushMode(SessionConfiguration.FlushMode.AUTO_FLUSH_BACKGROUND);
+    long start = System.nanoTime();
+    for (int i = 0; i < ROWS; i++) {
+      session.apply(createBasicSchemaInsert(table, keyOf(i)));
+    }
+    session.flush();
+    long elapsedMs = Math.max(1, (System.nanoTime() - start) / 1000000);
+    LOG.info("Session loaded {} rows in {} ms: {} rows/s", ROWS, elapsedMs,
+        ROWS * 1000L / elapsedMs);
+    assertEquals(0, session.countPendingErrors());
+    assertEquals(ROWS, countRowsInScan(client.newScannerBuilder(table).build()));
+  }
+}
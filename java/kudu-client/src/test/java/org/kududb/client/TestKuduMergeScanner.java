@@ -0,0 +1,182 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.kududb.client;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.kududb.ColumnSchema;
+import org.kududb.Schema;
+import org.kududb.Type;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestKuduMergeScanner extends BaseKuduTest {
+  // Generate a unique table name
+  private static final String TABLE_NAME =
+      TestKuduMergeScanner.class.getName() + "-" + System.currentTimeMillis();
+
+  // Includes strings that sort after 'z' as bytes, and prefixes of other strings.
+  private static final String[] KEY2_VALUES = new String[] {
+      "", "a", "ab", "b", "k1", "k10", "k2", "z", "\u00e9", "\u00e9t\u00e9", "\u4e2d"};
+
+  private static Schema schema;
+  private static KuduTable table;
+  private static List<Key> keys = new ArrayList<>();
+
+  @BeforeClass
+  public static void setUpBeforeClass() throws Exception {
+    BaseKuduTest.setUpBeforeClass();
+    List<ColumnSchema> columns = new ArrayList<>();
+    columns.add(new ColumnSchema.ColumnSchemaBuilder("key1", Type.INT32).key(true).build());
+    columns.add(new ColumnSchema.ColumnSchemaBuilder("key2", Type.STRING).key(true).build());
+    columns.add(new ColumnSchema.ColumnSchemaBuilder("val", Type.INT32).build());
+    schema = new Schema(columns);
+    CreateTableOptions options = new CreateTableOptions()
+        .addHashPartitions(ImmutableList.of("key1", "key2"), 4)
+        .setRangePartitionColumns(ImmutableList.<String>of());
+    table = createTable(TABLE_NAME, schema, options);
+
+    KuduSession session = syncClient.newSession();
+    session.setFlushMode(SessionConfiguration.FlushMode.AUTO_FLUSH_BACKGROUND);
+    for (int key1 = -10; key1 < 10; key1++) {
+      for (String key2 : KEY2_VALUES) {
+        Insert insert = table.newInsert();
+        PartialRow row = insert.getRow();
+        row.addInt(0, key1);
+        row.addString(1, key2);
+        row.addInt(2, keys.size());
+        session.apply(insert);
+        keys.add(new Key(key1, key2));
+      }
+    }
+    session.flush();
+    assertEquals(0, session.countPendingErrors());
+
+    // Primary key order: signed integers, then strings as unsigned bytes.
+    Collections.sort(keys, new Comparator<Key>() {
+      @Override
+      public int compare(Key a, Key b) {
+        if (a.key1 != b.key1) {
+          return a.key1 < b.key1 ? -1 : 1;
+        }
+        return Bytes.memcmp(a.key2.getBytes(StandardCharsets.UTF_8),
+            b.key2.getBytes(StandardCharsets.UTF_8));
+      }
+    });
+  }
+
+  @Test(timeout = 100000)
+  public void testMergeScan() throws Exception {
+    // Small batches so that each tablet sends many responses.
+    for (int batchSizeBytes : new int[] { 1, 100, 1024 * 1024 }) {
+      KuduMergeScanner scanner = syncClient.newMergeScannerBuilder(table)
+          .batchSizeBytes(batchSizeBytes)
+          .build();
+      assertEquals(keys, scan(scanner));
+    }
+
+    // With a projection that has the keys last, and a prefetch depth.
+    KuduMergeScanner scanner = syncClient.newMergeScannerBuilder(table)
+        .setProjectedColumnNames(ImmutableList.of("val", "key2", "key1"))
+        .prefetchDepth(3)
+        .batchSizeBytes(100)
+        .build();
+    List<Key> scanned = new ArrayList<>();
+    while (scanner.hasMoreRows()) {
+      RowResult row = scanner.nextRow();
+      if (row == null) {
+        break;
+      }
+      scanned.add(new Key(row.getInt(2), row.getString(1)));
+    }
+    scanner.close();
+    assertEquals(keys, scanned);
+
+    // Closing before the end.
+    scanner = syncClient.newMergeScannerBuilder(table).batchSizeBytes(100).build();
+    assertNotNull(scanner.nextRow());
+    scanner.close();
+    assertFalse(scanner.hasMoreRows());
+    assertNull(scanner.nextRow());
+  }
+
+  @Test(timeout = 100000)
+  public void testInvalidMergeScan() throws Exception {
+    try {
+      syncClient.newMergeScannerBuilder(table)
+          .setProjectedColumnNames(ImmutableList.of("key1", "val"))
+          .build();
+      fail("Should not be able to merge without all the key columns");
+    } catch (IllegalArgumentException ex) {
+      // Expected.
+    }
+    try {
+      syncClient.newMergeScannerBuilder(table)
+          .readMode(AsyncKuduScanner.ReadMode.READ_LATEST)
+          .build();
+      fail("Should not be able to merge without reading at a snapshot");
+    } catch (IllegalArgumentException ex) {
+      // Expected.
+    }
+  }
+
+  private static List<Key> scan(KuduMergeScanner scanner) throws Exception {
+    List<Key> scanned = new ArrayList<>();
+    for (RowResult row = scanner.nextRow(); row != null; row = scanner.nextRow()) {
+      scanned.add(new Key(row.getInt(0), row.getString(1)));
+    }
+    assertFalse(scanner.hasMoreRows());
+    scanner.close();
+    return scanned;
+  }
+
+  private static final class Key {
+    private final int key1;
+    private final String key2;
+
+    Key(int key1, String key2) {
+      this.key1 = key1;
+      this.key2 = key2;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return key1 == other.key1 && key2.equals(other.key2);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * key1 + key2.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return key1 + "/" + key2;
+    }
+  }
+}
@@ -16,21 +16,36 @@
 // under the License.
 package org.kududb.client;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
 
 import org.junit.Test;
 import org.kududb.ColumnSchema;
 import org.kududb.Schema;
 import org.kududb.Type;
 import org.kududb.WireProtocol.RowOperationsPB;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.kududb.client.Operation.ChangeType;
+import org.kududb.rpc.RpcHeader;
+import org.kududb.tserver.Tserver;
 import org.kududb.tserver.Tserver.WriteRequestPBOrBuilder;
 import org.mockito.Mockito;
 
 import com.google.common.primitives.Longs;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
 
 /**
  * Unit tests for Operation
@@ -119,6 +134,323 @@ public class TestOperation {
     }
   }
 
+  @Test
+  public void testEncodedSize() {
+    KuduTable table = Mockito.mock(KuduTable.class);
+    Mockito.doReturn(createManyStringsSchema()).when(table).getSchema();
+    Insert insert = new Insert(table);
+    PartialRow row = insert.getRow();
+    row.addString("c0", "c0_val");
+    row.addString("c1", "c1_value");
+    row.setNull("c3");
+
+    RowOperationsPB rowOps = Operation.createAndFillWriteRequestPB(insert).getRowOperations();
+    assertEquals(rowOps.getRows().size() + rowOps.getIndirectData().size(),
+        insert.getEncodedSizeBytes());
+    // 1 byte for the type, 2 bitsets, 2 offset/length pairs and the strings themselves.
+    assertEquals(1 + 1 + 1 + 2 * 16 + 6 + 8, insert.getEncodedSizeBytes());
+  }
+
+  @Test
+  public void testReleaseRowValues() {
+    KuduTable table = Mockito.mock(KuduTable.class);
+    Mockito.doReturn(createManyStringsSchema()).when(table).getSchema();
+    Batch batch = new Batch(table, false);
+    batch.encodeOnAdd();
+    List<Operation> operations = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      Insert insert = new Insert(table);
+      PartialRow row = insert.getRow();
+      row.addString("c0", "c0_val_" + i);
+      row.addString("c1", "c1_val");
+      row.addString("c4", "c4_val");
+      row.freeze();
+      batch.add(insert);
+      operations.add(insert);
+    }
+    RowOperationsPB expected = new Operation.OperationsEncoder().encodeOperations(
+        operations.toArray(new Operation[operations.size()]));
+
+    // The encoded rows are unchanged, only the rows' key is kept.
+    batch.releaseRowValues();
+    List<ChainedBuffer> buffers = batch.getEncodedOperations().getBuffers();
+    assertArrayEquals(expected.getRows().toByteArray(), buffers.get(0).toByteArray());
+    assertArrayEquals(expected.getIndirectData().toByteArray(), buffers.get(1).toByteArray());
+    PartialRow row = operations.get(0).getRow();
+    assertEquals("(string c0=c0_val_0)", row.stringifyRowKey());
+    assertNull(row.getVarLengthData().get(1));
+    assertNull(row.getVarLengthData().get(4));
+    try {
+      new Operation.OperationsEncoder().encodeOperations(operations.get(0));
+      fail("A row whose values were released cannot be encoded again");
+    } catch (IllegalStateException ex) {
+      // Expected.
+    }
+    batch.releaseEncodedOperations();
+
+    // Recycled rows can be written to and encoded again.
+    row.reset();
+    row.addString("c0", "c0_val");
+    assertFalse(row.areValuesReleased());
+  }
+
+  @Test
+  public void testEncodeToChannelBuffer() throws Exception {
+    KuduTable table = Mockito.mock(KuduTable.class);
+    Mockito.doReturn(createManyStringsSchema()).when(table).getSchema();
+    List<Operation> operations = new ArrayList<>();
+    // Enough data to span multiple segments.
+    for (int i = 0; i < 10000; i++) {
+      Insert insert = new Insert(table);
+      PartialRow row = insert.getRow();
+      row.addString("c0", "c0_val_" + i);
+      row.addString("c1", "c1_val");
+      row.addString("c2", "c2_val");
+      if (i % 2 == 0) {
+        row.setNull("c3");
+      }
+      operations.add(insert);
+    }
+
+    Operation.OperationsEncoder encoder = new Operation.OperationsEncoder();
+    encoder.encodeOperationsToBuffers(operations);
+    RpcHeader.RequestHeader header = RpcHeader.RequestHeader.newBuilder().setCallId(42).build();
+    Tserver.WriteRequestPB.Builder builder = Tserver.WriteRequestPB.newBuilder()
+        .setTabletId(ByteString.copyFromUtf8("tablet"));
+    ChannelBuffer buffer = encoder.toChannelBuffer(header, builder);
+    byte[] bytes = new byte[buffer.readableBytes()];
+    buffer.readBytes(bytes);
+    encoder.release();
+
+    assertEquals(bytes.length - 4, ChannelBuffers.wrappedBuffer(bytes).readInt());
+    CodedInputStream in = CodedInputStream.newInstance(bytes, 4, bytes.length - 4);
+    assertEquals(header, RpcHeader.RequestHeader.parseFrom(in.readRawBytes(in.readRawVarint32())));
+    Tserver.WriteRequestPB request =
+        Tserver.WriteRequestPB.parseFrom(in.readRawBytes(in.readRawVarint32()));
+    assertTrue(in.isAtEnd());
+
+    RowOperationsPB expected = new Operation.OperationsEncoder().encodeOperations(
+        operations.toArray(new Operation[operations.size()]));
+    assertEquals("tablet", request.getTabletId().toStringUtf8());
+    assertEquals(expected, request.getRowOperations());
+    assertEquals(expected.getRows().size() + expected.getIndirectData().size(),
+        encoder.getWrittenSizeBytes());
+  }
+
+  @Test
+  public void testEncodeWithRequestPrefix() throws Exception {
+    Schema schema = createManyStringsSchema();
+    KuduTable table = Mockito.mock(KuduTable.class);
+    Mockito.doReturn(schema).when(table).getSchema();
+    Insert insert = new Insert(table);
+    insert.getRow().addString("c0", "c0_val");
+
+    Operation.OperationsEncoder encoder = new Operation.OperationsEncoder();
+    encoder.encodeOperationsToBuffers(Collections.<Operation>singletonList(insert));
+    RpcHeader.RequestHeader header = RpcHeader.RequestHeader.newBuilder().setCallId(42).build();
+    byte[] prefix = Tserver.WriteRequestPB.newBuilder()
+        .setTabletId(ByteString.copyFromUtf8("tablet"))
+        .setSchema(ProtobufHelper.schemaToPb(schema))
+        .build()
+        .toByteArray();
+    Tserver.WriteRequestPB.Builder builder = Tserver.WriteRequestPB.newBuilder()
+        .setPropagatedTimestamp(1234);
+    ChannelBuffer buffer = encoder.toChannelBuffer(header, prefix, builder);
+    byte[] bytes = new byte[buffer.readableBytes()];
+    buffer.readBytes(bytes);
+    encoder.release();
+
+    CodedInputStream in = CodedInputStream.newInstance(bytes, 4, bytes.length - 4);
+    in.readRawBytes(in.readRawVarint32());
+    Tserver.WriteRequestPB request =
+        Tserver.WriteRequestPB.parseFrom(in.readRawBytes(in.readRawVarint32()));
+    assertTrue(in.isAtEnd());
+
+    Tserver.WriteRequestPB expected = Operation.createAndFillWriteRequestPB(insert)
+        .setTabletId(ByteString.copyFromUtf8("tablet"))
+        .setPropagatedTimestamp(1234)
+        .build();
+    assertEquals(expected, request);
+  }
+
+  @Test
+  public void testEncodeColumnarRows() {
+    ArrayList<ColumnSchema> columns = new ArrayList<ColumnSchema>(10);
+    columns.add(new ColumnSchema.ColumnSchemaBuilder("key", Type.INT32).key(true).build());
+    columns.add(new ColumnSchema.ColumnSchemaBuilder("c1", Type.BOOL).build());
+    columns.add(new ColumnSchema.ColumnSchemaBuilder("c2", Type.INT8).build());
+    columns.add(new ColumnSchema.ColumnSchemaBuilder("c3", Type.INT16).build());
+    columns.add(new ColumnSchema.ColumnSchemaBuilder("c4", Type.TIMESTAMP).build());
+    columns.add(new ColumnSchema.ColumnSchemaBuilder("c5", Type.FLOAT).build());
+    columns.add(new ColumnSchema.ColumnSchemaBuilder("c6", Type.DOUBLE).nullable(true).build());
+    columns.add(new ColumnSchema.ColumnSchemaBuilder("c7", Type.STRING).nullable(true).build());
+    columns.add(new ColumnSchema.ColumnSchemaBuilder("c8", Type.BINARY).build());
+    columns.add(new ColumnSchema.ColumnSchemaBuilder("c9", Type.INT64).nullable(true).build());
+    Schema schema = new Schema(columns);
+    KuduTable table = Mockito.mock(KuduTable.class);
+    Mockito.doReturn(schema).when(table).getSchema();
+
+    int rowCount = 4;
+    ColumnarRowBlock block = new ColumnarRowBlock(schema, rowCount);
+    block.setColumn("key", new int[] { 0, 1, 2, 3 });
+    block.setColumn("c1", new boolean[] { true, false, true, false });
+    block.setColumn("c2", new byte[] { 1, -1, 2, -2 });
+    block.setColumn("c3", new short[] { 10, -10, 20, -20 });
+    block.setColumn("c4", new long[] { 100, -100, 200, -200 });
+    block.setColumn("c5", new float[] { 1.5f, -1.5f, 2.5f, -2.5f });
+    block.setColumn("c6", new double[] { 3.5, -3.5, 4.5, -4.5 });
+    block.setColumn("c7", new byte[][] { Bytes.fromString("a"), null, Bytes.fromString("ccc"),
+        Bytes.fromString("") });
+    block.setColumn("c8", new byte[][] { Bytes.fromString("w"), Bytes.fromString("xx"),
+        Bytes.fromString("yyy"), Bytes.fromString("zzzz") });
+    BitSet nulls = new BitSet();
+    nulls.set(1);
+    block.setNulls("c6", nulls);
+    block.setNulls("c7", nulls);
+    // c9 is left out of the rows.
+    block.checkCanApplyTo(table);
+
+    // The rows don't have to be sent in the block's order.
+    int[] rowIndexes = { 3, 1, 0 };
+    List<Operation> inserts = new ArrayList<>();
+    for (int i : rowIndexes) {
+      Insert insert = new Insert(table);
+      PartialRow row = insert.getRow();
+      row.addInt("key", ((int[]) block.getColumn(0))[i]);
+      row.addBoolean("c1", ((boolean[]) block.getColumn(1))[i]);
+      row.addByte("c2", ((byte[]) block.getColumn(2))[i]);
+      row.addShort("c3", ((short[]) block.getColumn(3))[i]);
+      row.addLong("c4", ((long[]) block.getColumn(4))[i]);
+      row.addFloat("c5", ((float[]) block.getColumn(5))[i]);
+      if (nulls.get(i)) {
+        row.setNull("c6");
+        row.setNull("c7");
+      } else {
+        row.addDouble("c6", ((double[]) block.getColumn(6))[i]);
+        row.addStringUtf8("c7", ((byte[][]) block.getColumn(7))[i]);
+      }
+      row.addBinary("c8", ((byte[][]) block.getColumn(8))[i]);
+      inserts.add(insert);
+    }
+
+    Operation.OperationsEncoder encoder = new Operation.OperationsEncoder();
+    encoder.encodeColumnarRowsToBuffers(block, rowIndexes);
+    RowOperationsPB expected = new Operation.OperationsEncoder().encodeOperations(
+        inserts.toArray(new Operation[inserts.size()]));
+    List<ChainedBuffer> buffers = encoder.getBuffers();
+    assertArrayEquals(expected.getRows().toByteArray(), buffers.get(0).toByteArray());
+    assertArrayEquals(expected.getIndirectData().toByteArray(), buffers.get(1).toByteArray());
+
+    // The sizes that are used to split the rows in batches match what's encoded.
+    long encodedSize = 0;
+    int fixedSizeBytes = block.getFixedEncodedSizeBytes();
+    for (int i : rowIndexes) {
+      encodedSize += block.getEncodedSizeBytes(i, fixedSizeBytes);
+    }
+    assertEquals(encoder.getWrittenSizeBytes(), encodedSize);
+    encoder.release();
+  }
+
+  @Test
+  public void testColumnarRowBlockChecks() {
+    Schema schema = createManyStringsSchema();
+    KuduTable table = Mockito.mock(KuduTable.class);
+    Mockito.doReturn(schema).when(table).getSchema();
+    ColumnarRowBlock block = new ColumnarRowBlock(schema, 2);
+    try {
+      block.setColumn("c0", new int[] { 1, 2 });
+      fail("Should not be able to set a STRING column with ints");
+    } catch (IllegalArgumentException ex) {
+      // Expected.
+    }
+    try {
+      block.setColumn("c0", new byte[][] { Bytes.fromString("a") });
+      fail("Should not be able to set fewer values than rows");
+    } catch (IllegalArgumentException ex) {
+      // Expected.
+    }
+    try {
+      block.setNulls("c1", new BitSet());
+      fail("Should not be able to set nulls in a non-nullable column");
+    } catch (IllegalArgumentException ex) {
+      // Expected.
+    }
+    try {
+      block.checkCanApplyTo(table);
+      fail("Should not be able to apply a block without its key");
+    } catch (IllegalArgumentException ex) {
+      // Expected.
+    }
+    block.setColumn("c0", new byte[][] { Bytes.fromString("a"), Bytes.fromString("b") });
+    block.setColumn("c3", new byte[][] { Bytes.fromString("a"), null });
+    try {
+      block.checkCanApplyTo(table);
+      fail("Should not be able to apply a block with a missing value");
+    } catch (IllegalArgumentException ex) {
+      // Expected.
+    }
+    BitSet nulls = new BitSet();
+    nulls.set(1);
+    block.setNulls("c3", nulls);
+    block.checkCanApplyTo(table);
+  }
+
+  @Test
+  public void testCoalesce() {
+    KuduTable table = Mockito.mock(KuduTable.class);
+    Mockito.doReturn(createManyStringsSchema()).when(table).getSchema();
+    Upsert upsert = new Upsert(table);
+    upsert.getRow().addString("c0", "k");
+    upsert.getRow().addString("c1", "a");
+    upsert.getRow().addString("c3", "x");
+    Update update = new Update(table);
+    update.getRow().addString("c0", "k");
+    update.getRow().addString("c2", "b");
+    update.getRow().setNull("c3");
+
+    Operation merged = Operation.coalesce(upsert, update);
+    assertEquals(ChangeType.UPSERT, merged.getChangeType());
+    assertEquals(Arrays.<Operation>asList(upsert, update), merged.coalescedOperations);
+    RowOperationsPB rowOps = Operation.createAndFillWriteRequestPB(merged).getRowOperations();
+    assertEquals("kab", rowOps.getIndirectData().toStringUtf8());
+    byte[] rows = rowOps.getRows().toByteArray();
+    // c0 to c3 are set, c3 is null.
+    assertEquals(0x0f, rows[1]);
+    assertEquals(0x08, rows[2]);
+    // The user's rows are left untouched.
+    assertFalse(upsert.getRow().isSetToNull(3));
+    assertFalse(update.getRow().isSet(1));
+
+    // Deleting a row that may have been inserted by the upsert isn't the same as a single delete.
+    Delete delete = new Delete(table);
+    delete.getRow().addString("c0", "k");
+    assertNull(Operation.coalesce(merged, delete));
+
+    Insert insert = new Insert(table);
+    insert.getRow().addString("c0", "k");
+    assertNull(Operation.coalesce(insert, update));
+
+    Update secondUpdate = new Update(table);
+    secondUpdate.getRow().addString("c0", "k");
+    secondUpdate.getRow().addString("c1", "c");
+    Operation mergedUpdates = Operation.coalesce(update, secondUpdate);
+    assertEquals(ChangeType.UPDATE, mergedUpdates.getChangeType());
+    // Merging into an operation that was already merged reuses it.
+    Update thirdUpdate = new Update(table);
+    thirdUpdate.getRow().addString("c0", "k");
+    thirdUpdate.getRow().addString("c1", "d");
+    assertSame(mergedUpdates, Operation.coalesce(mergedUpdates, thirdUpdate));
+    rowOps = Operation.createAndFillWriteRequestPB(mergedUpdates).getRowOperations();
+    assertEquals("kdb", rowOps.getIndirectData().toStringUtf8());
+
+    Operation mergedDelete = Operation.coalesce(mergedUpdates, delete);
+    assertEquals(ChangeType.DELETE, mergedDelete.getChangeType());
+    assertEquals(Arrays.<Operation>asList(update, secondUpdate, thirdUpdate, delete),
+        mergedDelete.coalescedOperations);
+    rowOps = Operation.createAndFillWriteRequestPB(mergedDelete).getRowOperations();
+    assertEquals("k", rowOps.getIndirectData().toStringUtf8());
+  }
+
   private Schema createAllTypesKeySchema() {
     ArrayList<ColumnSchema> columns = new ArrayList<ColumnSchema>(7);
     columns.add(new ColumnSchema.ColumnSchemaBuilder("c0", Type.INT8).key(true).build());
@@ -0,0 +1,125 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.kududb.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+import org.kududb.ColumnSchema;
+import org.kududb.Schema;
+import org.kududb.Type;
+import org.mockito.Mockito;
+
+/**
+ * Unit tests for OperationPool
+ */
+public class TestOperationPool {
+
+  private KuduTable createTable() {
+    ArrayList<ColumnSchema> columns = new ArrayList<ColumnSchema>(3);
+    columns.add(new ColumnSchema.ColumnSchemaBuilder("key", Type.INT32).key(true).build());
+    columns.add(new ColumnSchema.ColumnSchemaBuilder("s", Type.STRING).nullable(true).build());
+    columns.add(new ColumnSchema.ColumnSchemaBuilder("i", Type.INT64).build());
+    KuduTable table = Mockito.mock(KuduTable.class);
+    Mockito.doReturn(new Schema(columns)).when(table).getSchema();
+    return table;
+  }
+
+  @Test
+  public void testRecycle() {
+    KuduTable table = createTable();
+    OperationPool pool = new OperationPool(table, 1);
+    Insert insert = pool.newInsert();
+    PartialRow row = insert.getRow();
+    row.addInt("key", 1);
+    row.addString("s", "a string");
+    row.setNull("s");
+    row.addLong("i", 2);
+    row.freeze();
+    insert.setSequenceNumber(10);
+    insert.setTimeoutMillis(1000);
+    long emptyRowSize = insert.getEncodedSizeBytes();
+
+    pool.recycle(insert);
+    assertEquals(1, pool.getPooledOperationsCount());
+    Insert reused = pool.newInsert();
+    assertSame(insert, reused);
+    assertEquals(0, pool.getPooledOperationsCount());
+
+    // The row is empty and can be modified again.
+    for (int i = 0; i < 3; i++) {
+      assertFalse(reused.getRow().isSet(i));
+    }
+    assertEquals(-1, reused.getSequenceNumber());
+    assertFalse(reused.deadlineTracker.hasDeadline());
+    reused.getRow().addInt("key", 3);
+    assertEquals(emptyRowSize - 8, reused.getEncodedSizeBytes());
+
+    // The pool only keeps one operation of each type.
+    Insert other = pool.newInsert();
+    assertNotSame(reused, other);
+    pool.recycle(reused);
+    pool.recycle(other);
+    assertEquals(1, pool.getPooledOperationsCount());
+    pool.recycle(pool.newDelete());
+    assertEquals(2, pool.getPooledOperationsCount());
+  }
+
+  @Test
+  public void testRecycleTwice() {
+    KuduTable table = createTable();
+    OperationPool pool = new OperationPool(table, 10);
+    Insert insert = pool.newInsert();
+    pool.recycle(insert);
+    try {
+      pool.recycle(insert);
+      fail("An operation cannot be recycled twice");
+    } catch (IllegalStateException ex) {
+      // Expected.
+    }
+    assertEquals(1, pool.getPooledOperationsCount());
+
+    // Once taken again, it can be recycled again.
+    assertSame(insert, pool.newInsert());
+    pool.recycle(insert);
+    assertEquals(1, pool.getPooledOperationsCount());
+  }
+
+  @Test
+  public void testRecycleForeignOperation() {
+    KuduTable table = createTable();
+    OperationPool pool = new OperationPool(table, 10);
+    try {
+      pool.recycle(new Insert(table));
+      fail("Operations that don't come from the pool cannot be recycled");
+    } catch (IllegalArgumentException ex) {
+      // Expected.
+    }
+    try {
+      pool.recycle(new OperationPool(table, 10).newUpdate());
+      fail("Operations that come from another pool cannot be recycled");
+    } catch (IllegalArgumentException ex) {
+      // Expected.
+    }
+  }
+}
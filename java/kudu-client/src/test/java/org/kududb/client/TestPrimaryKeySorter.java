@@ -0,0 +1,76 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.kududb.client;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TestPrimaryKeySorter {
+
+  @Test
+  public void testSort() {
+    Random random = new Random();
+    long seed = random.nextLong();
+    random.setSeed(seed);
+    // Enough keys to go through the radix sort a few levels deep, with keys that are prefixes of
+    // other keys and duplicates.
+    int count = 5000;
+    final byte[][] keys = new byte[count][];
+    for (int i = 0; i < count; i++) {
+      keys[i] = new byte[random.nextInt(4)];
+      for (int j = 0; j < keys[i].length; j++) {
+        // Few distinct values, including negative ones that must sort after the positive ones.
+        keys[i][j] = (byte) (random.nextInt(6) * 60 - 120);
+      }
+    }
+    int[] order = new int[count];
+    List<Integer> expected = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      order[i] = i;
+      expected.add(i);
+    }
+
+    PrimaryKeySorter.sort(keys, order);
+
+    // Collections.sort is stable too.
+    Collections.sort(expected, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return Bytes.memcmp(keys[a], keys[b]);
+      }
+    });
+    for (int i = 0; i < count; i++) {
+      assertEquals("seed " + seed, expected.get(i).intValue(), order[i]);
+    }
+  }
+
+  @Test
+  public void testSmallSort() {
+    byte[][] keys = { { 2 }, { 1, 0 }, { 1 }, { 2 }, { } };
+    int[] order = { 0, 1, 2, 3, 4 };
+    PrimaryKeySorter.sort(keys, order);
+    assertArrayEquals(new int[] { 4, 2, 1, 0, 3 }, order);
+  }
+}
@@ -18,13 +18,21 @@ package org.kududb.client;
 
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.kududb.ColumnSchema;
+import org.kududb.Schema;
 import org.kududb.Type;
+import org.kududb.util.Slice;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class TestRowResult extends BaseKuduTest {
 
@@ -126,4 +134,166 @@ public class TestRowResult extends BaseKuduTest {
       assertEquals(Type.TIMESTAMP, rr.getColumnType(11));
     }
   }
+
+  /**
+   * Reads the null bitmap of rows laid out by hand, with more columns than fit in a byte.
+   */
+  @Test
+  public void testNullBitmap() {
+    List<ColumnSchema> columns = new ArrayList<>();
+    columns.add(new ColumnSchema.ColumnSchemaBuilder("key", Type.INT8).key(true).build());
+    for (int i = 1; i < 10; i++) {
+      columns.add(new ColumnSchema.ColumnSchemaBuilder("c" + i, Type.INT8).nullable(true).build());
+    }
+    Schema schema = new Schema(columns);
+    int rowSize = schema.getRowSize();
+    assertEquals(12, rowSize);
+
+    // Three rows after some padding: no nulls, every other nullable column null, all of them null.
+    int padding = 5;
+    byte[] data = new byte[padding + 3 * rowSize];
+    for (int row = 0; row < 3; row++) {
+      int rowOffset = padding + row * rowSize;
+      for (int column = 0; column < 10; column++) {
+        data[rowOffset + column] = (byte) (row * 10 + column);
+        boolean isNull = column > 0 && (row == 2 || (row == 1 && column % 2 == 1));
+        if (isNull) {
+          data[rowOffset + 10 + column / 8] |= 1 << (column % 8);
+        }
+      }
+    }
+    RowResult result =
+        new RowResult(schema, new Slice(data, padding, data.length - padding), new Slice(0));
+
+    for (int row = 0; row < 3; row++) {
+      result.advancePointer();
+      for (int column = 0; column < 10; column++) {
+        boolean isNull = column > 0 && (row == 2 || (row == 1 && column % 2 == 1));
+        assertEquals(isNull, result.isNull(column));
+        if (!isNull) {
+          assertEquals(row * 10 + column, result.getByte(column));
+        }
+      }
+    }
+
+    // The bitmap isn't read when the pointer was reset.
+    result.resetPointer();
+    assertFalse(result.isNull(9));
+  }
+
+  /**
+   * Reads the columns of scanned rows as arrays and checks that they match what the rows return.
+   */
+  @Test(timeout = 100000)
+  public void testColumnar() throws Exception {
+    String tableName = TABLE_NAME + "-columnar";
+    createTable(tableName, allTypesSchema, getAllTypesCreateTableOptions());
+    KuduTable columnarTable = openTable(tableName);
+    KuduSession session = syncClient.newSession();
+    session.setFlushMode(SessionConfiguration.FlushMode.AUTO_FLUSH_BACKGROUND);
+    int numRows = 100;
+    for (int i = 0; i < numRows; i++) {
+      Insert insert = columnarTable.newInsert();
+      PartialRow row = insert.getRow();
+      row.addByte(0, (byte) i);
+      row.addShort(1, (short) (i * 2));
+      row.addInt(2, i * 3);
+      row.addLong(3, i * 4L);
+      row.addBoolean(4, i % 3 == 0);
+      row.addFloat(5, i * 5.5f);
+      row.addDouble(6, i * 6.5);
+      row.addString(7, "string-" + i);
+      row.addBinary(8, ("binary-" + i).getBytes());
+      row.addBinary(9, new byte[i % 4]);
+      if (i % 2 == 0) {
+        row.setNull(10);
+      } else {
+        row.addString(10, "not-null-" + i);
+      }
+      row.addLong(11, i * 11L);
+      session.apply(insert);
+    }
+    session.flush();
+
+    KuduScanner scanner = syncClient.newScannerBuilder(columnarTable).build();
+    int rowsRead = 0;
+    while (scanner.hasMoreRows()) {
+      RowResultIterator it = scanner.nextRows();
+      int n = it.getNumRows();
+      byte[] bytes = new byte[n];
+      short[] shorts = new short[n];
+      int[] ints = new int[n];
+      long[] longs = new long[n];
+      boolean[] booleans = new boolean[n];
+      float[] floats = new float[n];
+      double[] doubles = new double[n];
+      int[] offsets = new int[n];
+      int[] lengths = new int[n];
+      boolean[] nulls = new boolean[n];
+      long[] timestamps = new long[n];
+      it.getBytes(0, bytes);
+      it.getShorts(1, shorts);
+      it.getInts(2, ints);
+      it.getLongs(3, longs);
+      it.getBooleans(4, booleans);
+      it.getFloats(5, floats);
+      it.getDoubles(6, doubles);
+      it.getVarLengthOffsets(7, offsets, lengths);
+      it.getLongs(11, timestamps);
+      ByteBuffer varLengthData = it.getVarLengthData();
+
+      for (int i = 0; i < n; i++) {
+        RowResult rr = it.next();
+        assertEquals(rr.getByte(0), bytes[i]);
+        assertEquals(rr.getShort(1), shorts[i]);
+        assertEquals(rr.getInt(2), ints[i]);
+        assertEquals(rr.getLong(3), longs[i]);
+        assertEquals(rr.getBoolean(4), booleans[i]);
+        assertEquals(rr.getFloat(5), floats[i], 0.0f);
+        assertEquals(rr.getDouble(6), doubles[i], 0.0);
+        assertEquals(rr.getString(7), new String(varLengthData.array(),
+            varLengthData.arrayOffset() + offsets[i], lengths[i], StandardCharsets.UTF_8));
+        assertEquals(rr.getLong(11), timestamps[i]);
+      }
+      assertFalse(it.hasNext());
+
+      // The arrays can be filled again after the rows were read.
+      it.getVarLengthOffsets(8, offsets, lengths);
+      it.getNulls(9, nulls);
+      for (int i = 0; i < n; i++) {
+        assertFalse(nulls[i]);
+      }
+      it.getNulls(10, nulls);
+      for (int i = 0; i < n; i++) {
+        assertEquals(bytes[i] % 2 == 0, nulls[i]);
+        ByteBuffer binary = varLengthData.duplicate();
+        binary.position(offsets[i]);
+        binary.limit(offsets[i] + lengths[i]);
+        assertEquals(ByteBuffer.wrap(("binary-" + bytes[i]).getBytes()), binary);
+      }
+
+      if (n > 0) {
+        try {
+          it.getInts(3, ints);
+          fail("Should not be able to read an INT64 column as ints");
+        } catch (IllegalArgumentException ex) {
+          // Expected.
+        }
+        try {
+          it.getLongs(3, new long[n - 1]);
+          fail("Should not be able to read the column into a short array");
+        } catch (IllegalArgumentException ex) {
+          // Expected.
+        }
+      }
+      try {
+        it.getNulls(12, nulls);
+        fail("Should not be able to read a column that doesn't exist");
+      } catch (IndexOutOfBoundsException ex) {
+        // Expected.
+      }
+      rowsRead += n;
+    }
+    assertEquals(numRows, rowsRead);
+  }
 }
@@ -25,7 +25,9 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.List;
 
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.kududb.Type.STRING;
 import static org.junit.Assert.assertEquals;
@@ -113,6 +115,107 @@ public class TestScannerMultiTablet extends BaseKuduTest {
     assertNull(rri);
   }
 
+  // Test prefetching across the tablets, one row per response so that the scanner has to buffer.
+  @Test(timeout = 100000)
+  public void testPrefetching() throws Exception {
+    for (int depth = 1; depth <= 4; depth++) {
+      assertEquals(9, countRowsInScan(client.newScannerBuilder(table)
+          .batchSizeBytes(1).prefetchDepth(depth).build()));
+      assertEquals(4, countRowsInScan(getPrefetchingScannerBuilder(depth)
+          .lowerBound(getKey("1", "2"))
+          .exclusiveUpperBound(getKey("2", "3"))
+          .build()));
+    }
+    // The byte bound stops the prefetching before the depth does.
+    assertEquals(9, countRowsInScan(getPrefetchingScannerBuilder(4).prefetchMaxBytes(1).build()));
+    assertEquals(9, countRowsInScan(client.newScannerBuilder(table).prefetching(true).build()));
+
+    // Each response comes back in order, even when the scanner was already done.
+    AsyncKuduScanner scanner = getPrefetchingScannerBuilder(9).build();
+    List<String> keys = new ArrayList<>();
+    while (scanner.hasMoreRows()) {
+      RowResultIterator rri = scanner.nextRows().join(DEFAULT_SLEEP);
+      if (rri == null) {
+        continue;
+      }
+      for (RowResult row : rri) {
+        keys.add(row.getString(0) + row.getString(1));
+      }
+    }
+    assertEquals(ImmutableList.of("11", "12", "13", "21", "22", "23", "31", "32", "33"), keys);
+    assertNull(scanner.nextRows().join(DEFAULT_SLEEP));
+
+    // Closing while the scanner is prefetching, starting on the 2nd tablet.
+    scanner = getPrefetchingScannerBuilder(2).lowerBound(getKey("1", "")).build();
+    assertEquals(1, scanner.nextRows().join(DEFAULT_SLEEP).getNumRows());
+    scanner.close().join(DEFAULT_SLEEP);
+    assertNull(scanner.nextRows().join(DEFAULT_SLEEP));
+  }
+
+  private AsyncKuduScanner.AsyncKuduScannerBuilder getPrefetchingScannerBuilder(int depth) {
+    return client.newScannerBuilder(table)
+        .readMode(AsyncKuduScanner.ReadMode.READ_AT_SNAPSHOT)
+        .sortResultsByPrimaryKey()
+        .batchSizeBytes(1)
+        .prefetchDepth(depth);
+  }
+
+  private PartialRow getKey(String keyOne, String keyTwo) {
+    PartialRow row = schema.newPartialRow();
+    row.addString(0, keyOne);
+    row.addString(1, keyTwo);
+    return row;
+  }
+
+  // Test scanning the tablets in parallel, from the table and from scan tokens.
+  @Test(timeout = 100000)
+  public void testParallelScanner() throws Exception {
+    for (int concurrency = 1; concurrency <= 4; concurrency++) {
+      for (int buffered = 1; buffered <= 3; buffered++) {
+        KuduParallelScanner scanner = syncClient.newParallelScannerBuilder(table)
+            .maxConcurrentTablets(concurrency)
+            .maxBufferedResponses(buffered)
+            .batchSizeBytes(1)
+            .build();
+        assertEquals(9, countRowsInParallelScan(scanner));
+      }
+    }
+
+    KuduParallelScanner scanner = syncClient.newParallelScannerBuilder(table)
+        .lowerBound(getKey("1", "2"))
+        .exclusiveUpperBound(getKey("2", "3"))
+        .build();
+    assertEquals(4, countRowsInParallelScan(scanner));
+
+    List<KuduScanToken> tokens = syncClient.newScanTokenBuilder(table).build();
+    assertEquals(4, tokens.size());
+    scanner = syncClient.newParallelScannerBuilder(table).scanTokens(tokens).build();
+    assertEquals(9, countRowsInParallelScan(scanner));
+
+    // Closing before all the tablets were scanned.
+    scanner = syncClient.newParallelScannerBuilder(table)
+        .maxConcurrentTablets(1)
+        .maxBufferedResponses(1)
+        .batchSizeBytes(1)
+        .build();
+    assertEquals(1, scanner.nextRows().getNumRows());
+    scanner.close();
+    assertNull(scanner.nextRows());
+    assertFalse(scanner.hasMoreRows());
+  }
+
+  private static int countRowsInParallelScan(KuduParallelScanner scanner) throws Exception {
+    int count = 0;
+    while (scanner.hasMoreRows()) {
+      RowResultIterator rri = scanner.nextRows();
+      if (rri != null) {
+        count += rri.getNumRows();
+      }
+    }
+    scanner.close();
+    return count;
+  }
+
   // Test mixing start/end row keys with predicates.
   @Test(timeout = 100000)
   public void testKeysAndPredicates() throws Exception {
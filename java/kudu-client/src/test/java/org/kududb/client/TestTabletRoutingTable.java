@@ -0,0 +1,113 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.kududb.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+import org.kududb.ColumnSchema;
+import org.kududb.Schema;
+import org.kududb.Type;
+import org.kududb.client.AsyncKuduClient.RemoteTablet;
+import org.kududb.client.PartitionSchema.HashBucketSchema;
+import org.kududb.client.PartitionSchema.RangeSchema;
+import org.mockito.Mockito;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestTabletRoutingTable {
+
+  private final Schema schema = new Schema(ImmutableList.of(
+      new ColumnSchema.ColumnSchemaBuilder("a", Type.INT32).key(true).build(),
+      new ColumnSchema.ColumnSchemaBuilder("b", Type.INT32).key(true).build()),
+      ImmutableList.of(0, 1));
+
+  private final PartitionSchema partitionSchema = new PartitionSchema(
+      new RangeSchema(ImmutableList.<Integer>of()),
+      ImmutableList.of(new HashBucketSchema(ImmutableList.of(0), 2, 0),
+                       new HashBucketSchema(ImmutableList.of(1), 3, 0)),
+      schema);
+
+  private static RemoteTablet mockTablet(byte[] rangeKeyStart, int... buckets) {
+    byte[] partitionKeyStart = new byte[buckets.length * 4 + rangeKeyStart.length];
+    List<Integer> hashBuckets = new ArrayList<>();
+    for (int i = 0; i < buckets.length; i++) {
+      Bytes.setInt(partitionKeyStart, Integer.reverseBytes(buckets[i]), i * 4);
+      hashBuckets.add(buckets[i]);
+    }
+    System.arraycopy(rangeKeyStart, 0, partitionKeyStart, buckets.length * 4,
+        rangeKeyStart.length);
+    RemoteTablet tablet = Mockito.mock(RemoteTablet.class);
+    Mockito.doReturn(new Partition(partitionKeyStart, new byte[0], hashBuckets))
+        .when(tablet).getPartition();
+    return tablet;
+  }
+
+  @Test
+  public void testRouting() {
+    List<RemoteTablet> tablets = new ArrayList<>();
+    for (int a = 0; a < 2; a++) {
+      for (int b = 0; b < 3; b++) {
+        // The last tablet isn't known yet.
+        if (a == 1 && b == 2) {
+          continue;
+        }
+        tablets.add(mockTablet(new byte[0], a, b));
+      }
+    }
+    TabletRoutingTable routingTable = TabletRoutingTable.build(partitionSchema, tablets);
+    assertTrue(routingTable.isRoutable());
+
+    KeyEncoder encoder = new KeyEncoder();
+    for (int key = 0; key < 100; key++) {
+      PartialRow row = schema.newPartialRow();
+      row.addInt("a", key);
+      row.addInt("b", key * 7);
+      RemoteTablet tablet =
+          routingTable.getTablet(encoder.getHashBucketsIndex(row, partitionSchema));
+      byte[] partitionKey = encoder.encodePartitionKey(row, partitionSchema);
+      ByteBuffer encodedBuckets = ByteBuffer.wrap(partitionKey);
+      List<Integer> buckets =
+          ImmutableList.of(encodedBuckets.getInt(0), encodedBuckets.getInt(4));
+      if (buckets.equals(ImmutableList.of(1, 2))) {
+        assertNull(tablet);
+      } else {
+        assertEquals(buckets, tablet.getPartition().getHashBuckets());
+      }
+    }
+  }
+
+  @Test
+  public void testNotRoutable() {
+    // No hash partitioning.
+    PartitionSchema rangeOnly = new PartitionSchema(
+        new RangeSchema(ImmutableList.of(0, 1)), ImmutableList.<HashBucketSchema>of(), schema);
+    assertFalse(TabletRoutingTable.build(rangeOnly, ImmutableList.<RemoteTablet>of())
+        .isRoutable());
+
+    // More than one range partition.
+    List<RemoteTablet> tablets = ImmutableList.of(mockTablet(new byte[0], 0, 0),
+                                                  mockTablet(new byte[] { 1 }, 0, 0));
+    assertFalse(TabletRoutingTable.build(partitionSchema, tablets).isRoutable());
+  }
+}
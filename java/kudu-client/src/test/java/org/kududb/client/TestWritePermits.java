@@ -0,0 +1,126 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.kududb.client;
+
+import com.stumbleupon.async.Deferred;
+import com.stumbleupon.async.TimeoutException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class TestWritePermits {
+
+  @Test
+  public void testFifoOrder() throws Exception {
+    WritePermits permits = new WritePermits(2, 100);
+    assertFalse(permits.isInUse());
+    assertNull(permits.acquire(40));
+    assertNull(permits.acquire(40));
+
+    // Over the operations limit.
+    Deferred<Void> first = permits.acquire(10);
+    assertNotNull(first);
+    // There's room for this one, but it has to wait behind the first one.
+    Deferred<Void> second = permits.acquire(10);
+    assertNotNull(second);
+
+    permits.release(1, 40);
+    first.join(1);
+    assertWaiting(second);
+
+    permits.release(1, 40);
+    second.join(1);
+
+    // Over the bytes limit.
+    Deferred<Void> third = permits.acquire(95);
+    assertNotNull(third);
+    permits.release(1, 10);
+    assertWaiting(third);
+    permits.release(1, 10);
+    third.join(1);
+
+    permits.release(1, 95);
+    assertFalse(permits.isInUse());
+  }
+
+  @Test
+  public void testBigOperation() throws Exception {
+    WritePermits permits = new WritePermits(0, 100);
+    // Let through since nothing else is pending.
+    assertNull(permits.acquire(500));
+    Deferred<Void> d = permits.acquire(500);
+    assertNotNull(d);
+    permits.release(1, 500);
+    d.join(1);
+    permits.release(1, 500);
+    assertFalse(permits.isInUse());
+  }
+
+  @Test
+  public void testCancel() throws Exception {
+    WritePermits permits = new WritePermits(1, 0);
+    assertNull(permits.acquire(10));
+    Deferred<Void> waiting = permits.acquire(10);
+    Deferred<Void> next = permits.acquire(10);
+
+    // Cancelling a waiter lets the next one go first.
+    permits.cancel(waiting, 10);
+    permits.release(1, 10);
+    next.join(1);
+    assertWaiting(waiting);
+
+    // Cancelling permits that were acquired gives them back.
+    Deferred<Void> last = permits.acquire(10);
+    permits.release(1, 10);
+    last.join(1);
+    permits.cancel(last, 10);
+    assertFalse(permits.isInUse());
+  }
+
+  @Test
+  public void testCancelBlockedHead() throws Exception {
+    WritePermits permits = new WritePermits(0, 100);
+    assertNull(permits.acquire(60));
+    // Too big to fit while the first operation holds its permits.
+    Deferred<Void> big = permits.acquire(60);
+    assertNotNull(big);
+    // This one fits but has to wait behind the big one.
+    Deferred<Void> small = permits.acquire(30);
+    assertWaiting(small);
+
+    // Once the big one gives up, the small one gets its permits without any release.
+    permits.cancel(big, 60);
+    small.join(1);
+    assertWaiting(big);
+
+    permits.release(1, 60);
+    permits.release(1, 30);
+    assertFalse(permits.isInUse());
+  }
+
+  private static void assertWaiting(Deferred<Void> d) throws Exception {
+    try {
+      d.join(10);
+      fail("The permits shouldn't have been acquired");
+    } catch (TimeoutException e) {
+      // Expected.
+    }
+  }
+}
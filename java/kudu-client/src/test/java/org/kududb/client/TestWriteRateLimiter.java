@@ -0,0 +1,82 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.kududb.client;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestWriteRateLimiter {
+
+  @Test
+  public void testRowsPerSecond() {
+    WriteRateLimiter limiter = new WriteRateLimiter(1000, 0);
+    // The bucket starts full.
+    assertEquals(0, limiter.reserve(600, 1000000));
+    assertEquals(0, limiter.reserve(400, 1000000));
+    // Goes 500 rows in debt, which takes half a second to pay back.
+    long delayNanos = limiter.reserve(500, 0);
+    assertTrue(delayNanos > TimeUnit.MILLISECONDS.toNanos(400));
+    assertTrue(delayNanos <= TimeUnit.MILLISECONDS.toNanos(500));
+    // The next batch waits behind the debt.
+    assertTrue(limiter.reserve(1, 0) > delayNanos - TimeUnit.MILLISECONDS.toNanos(100));
+  }
+
+  @Test
+  public void testBytesPerSecond() {
+    WriteRateLimiter limiter = new WriteRateLimiter(0, 100);
+    assertEquals(0, limiter.reserve(1000000, 100));
+    // A batch that's bigger than the limit is let through after a delay.
+    long delayNanos = limiter.reserve(1, 300);
+    assertTrue(delayNanos > TimeUnit.MILLISECONDS.toNanos(2900));
+    assertTrue(delayNanos <= TimeUnit.SECONDS.toNanos(3));
+  }
+
+  @Test
+  public void testRefill() throws Exception {
+    WriteRateLimiter limiter = new WriteRateLimiter(100, 0);
+    assertEquals(0, limiter.reserve(100, 0));
+    Thread.sleep(200);
+    // About 20 rows were refilled.
+    assertEquals(0, limiter.reserve(15, 0));
+    assertTrue(limiter.reserve(15, 0) > 0);
+  }
+
+  @Test
+  public void testRefund() {
+    WriteRateLimiter limiter = new WriteRateLimiter(100, 0);
+    assertTrue(limiter.reserve(300, 0) > 0);
+    limiter.refund(300, 0);
+    // Back to a full bucket, but not more.
+    assertEquals(0, limiter.reserve(100, 0));
+    assertTrue(limiter.reserve(10, 0) > 0);
+  }
+
+  @Test
+  public void testNegativeLimit() {
+    try {
+      new WriteRateLimiter(-1, 0);
+      fail("The limits cannot be negative");
+    } catch (IllegalArgumentException ex) {
+      // Expected.
+    }
+  }
+}
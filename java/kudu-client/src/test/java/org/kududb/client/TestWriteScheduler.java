@@ -0,0 +1,109 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.kududb.client;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestWriteScheduler {
+
+  private static Batch newBatch(WriteScheduler.Tenant tenant) {
+    Batch batch = new Batch(null, false);
+    batch.tenant = tenant;
+    return batch;
+  }
+
+  @Test
+  public void testMaxInFlight() {
+    WriteScheduler scheduler = new WriteScheduler(2);
+    assertTrue(scheduler.tryAcquire("a", newBatch(null)));
+    assertTrue(scheduler.tryAcquire("a", newBatch(null)));
+    // The servers are limited separately.
+    assertTrue(scheduler.tryAcquire("b", newBatch(null)));
+
+    Batch waiting = newBatch(null);
+    assertFalse(scheduler.tryAcquire("a", waiting));
+    assertEquals(1, scheduler.countWaiting("a"));
+    assertEquals(0, scheduler.countWaiting("b"));
+
+    // The waiting batch takes the slot of the batch that's done.
+    assertSame(waiting, scheduler.release("a"));
+    assertEquals(0, scheduler.countWaiting("a"));
+    assertNull(scheduler.release("a"));
+    assertNull(scheduler.release("a"));
+    assertTrue(scheduler.tryAcquire("a", newBatch(null)));
+  }
+
+  @Test
+  public void testWeightedRoundRobin() {
+    WriteScheduler scheduler = new WriteScheduler(1);
+    WriteScheduler.Tenant heavy = new WriteScheduler.Tenant();
+    WriteScheduler.Tenant light = new WriteScheduler.Tenant();
+    heavy.setWeight(2);
+    assertTrue(scheduler.tryAcquire("a", newBatch(heavy)));
+
+    // The heavy tenant queues a lot of batches before the light one queues any.
+    Batch[] heavyBatches = new Batch[6];
+    for (int i = 0; i < heavyBatches.length; i++) {
+      heavyBatches[i] = newBatch(heavy);
+      assertFalse(scheduler.tryAcquire("a", heavyBatches[i]));
+    }
+    Batch[] lightBatches = new Batch[2];
+    for (int i = 0; i < lightBatches.length; i++) {
+      lightBatches[i] = newBatch(light);
+      assertFalse(scheduler.tryAcquire("a", lightBatches[i]));
+    }
+
+    // Two heavy batches for each light one, each tenant's batches in order.
+    Batch[] expected = new Batch[] {
+        heavyBatches[0], heavyBatches[1], lightBatches[0],
+        heavyBatches[2], heavyBatches[3], lightBatches[1],
+        heavyBatches[4], heavyBatches[5] };
+    for (Batch batch : expected) {
+      assertSame(batch, scheduler.release("a"));
+    }
+    assertNull(scheduler.release("a"));
+    assertEquals(0, scheduler.countWaiting("a"));
+  }
+
+  @Test
+  public void testRemove() {
+    WriteScheduler scheduler = new WriteScheduler(1);
+    WriteScheduler.Tenant first = new WriteScheduler.Tenant();
+    WriteScheduler.Tenant second = new WriteScheduler.Tenant();
+    assertFalse(scheduler.remove("a", newBatch(first)));
+    assertTrue(scheduler.tryAcquire("a", newBatch(first)));
+
+    Batch timedOut = newBatch(first);
+    Batch next = newBatch(second);
+    assertFalse(scheduler.tryAcquire("a", timedOut));
+    assertFalse(scheduler.tryAcquire("a", next));
+    assertTrue(scheduler.remove("a", timedOut));
+    assertFalse(scheduler.remove("a", timedOut));
+    assertEquals(1, scheduler.countWaiting("a"));
+
+    // The tenant that has nothing waiting anymore lost its turn.
+    assertSame(next, scheduler.release("a"));
+    assertFalse(scheduler.remove("a", next));
+    assertNull(scheduler.release("a"));
+  }
+}
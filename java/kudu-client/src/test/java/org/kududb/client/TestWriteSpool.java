@@ -0,0 +1,191 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.kududb.client;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kududb.ColumnSchema;
+import org.kududb.Schema;
+import org.kududb.Type;
+import org.kududb.util.Slice;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestWriteSpool {
+
+  private static final Schema SCHEMA = schema(ImmutableList.of(0, 1));
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testAppendAndRecover() throws Exception {
+    File directory = folder.newFolder("spool");
+    WriteSpool spool = WriteSpool.open(directory, 1024 * 1024, 256);
+    assertTrue(spool.takeRecoveredRecords().isEmpty());
+    WriteSpool.Record first = append(spool, "tablet-1", "first", "a");
+    WriteSpool.Record second = append(spool, "tablet-2", "second", "");
+    // Doesn't fit in the first segment.
+    WriteSpool.Record big = append(spool, "tablet-1", new String(new byte[300]), "big");
+    assertEquals("first/a", read(spool, first));
+    assertEquals("second/", read(spool, second));
+    assertEquals(3, directory.list().length);
+
+    spool.markReplayed(first);
+    spool.close();
+
+    spool = WriteSpool.open(directory, 1024 * 1024, 256);
+    List<WriteSpool.Record> recovered = spool.takeRecoveredRecords();
+    assertEquals(2, recovered.size());
+    second = recovered.get(0);
+    assertEquals("table", second.tableName);
+    assertEquals(new Slice("tablet-2".getBytes(Charsets.UTF_8)), second.tabletId);
+    assertArrayEquals(new byte[] { 2 }, second.partitionKey);
+    assertTrue(second.ignoreAllDuplicateRows);
+    assertEquals(3, second.rowCount);
+    assertEquals("second/", read(spool, second));
+    assertTrue(second.matchesSchema(SCHEMA));
+    // The column was dropped and added back.
+    assertFalse(second.matchesSchema(schema(ImmutableList.of(0, 2))));
+    assertEquals(big.getRowsSizeBytes(), recovered.get(1).getRowsSizeBytes());
+
+    // Segments are deleted once all of their records were replayed.
+    long diskUsage = spool.getDiskUsageBytes();
+    spool.markReplayed(second);
+    assertTrue(spool.getDiskUsageBytes() < diskUsage);
+    spool.markReplayed(recovered.get(1));
+    assertEquals(0, spool.getDiskUsageBytes());
+    spool.close();
+    assertEquals(1, directory.list().length);
+  }
+
+  @Test
+  public void testFull() throws Exception {
+    WriteSpool spool = WriteSpool.open(folder.newFolder("spool"), 512, 256);
+    assertTrue(spool.hasRoomFor(50));
+    int appended = 0;
+    while (spool.append("table", SCHEMA, new Slice(new byte[] { 1 }), new byte[] { 1 }, false, 1,
+        encoder(new String(new byte[50]), "")) != null) {
+      appended++;
+    }
+    assertTrue(appended > 2);
+    assertTrue(spool.getDiskUsageBytes() <= 512);
+    assertFalse(spool.hasRoomFor(50));
+    spool.close();
+    assertFalse(spool.hasRoomFor(0));
+  }
+
+  @Test
+  public void testLocked() throws Exception {
+    File directory = folder.newFolder("spool");
+    WriteSpool spool = WriteSpool.open(directory, 1024, 256);
+    try {
+      WriteSpool.open(directory, 1024, 256);
+      fail("The directory should be locked");
+    } catch (IOException e) {
+      // Expected.
+    }
+    spool.close();
+    WriteSpool.open(directory, 1024, 256).close();
+  }
+
+  @Test
+  public void testCorruptedRecord() throws Exception {
+    File directory = folder.newFolder("spool");
+    WriteSpool spool = WriteSpool.open(directory, 1024, 1024);
+    append(spool, "tablet-1", "first", "a");
+    append(spool, "tablet-1", "second", "b");
+    spool.close();
+
+    // Flip the last byte of the last record, as if it only partly made it to disk.
+    File segment = null;
+    for (File file : directory.listFiles()) {
+      if (file.getName().endsWith(".spool")) {
+        segment = file;
+      }
+    }
+    assertNotNull(segment);
+    try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+      raf.seek(8);
+      long lastByte = raf.readInt() - 1;
+      raf.seek(lastByte);
+      byte b = raf.readByte();
+      raf.seek(lastByte);
+      raf.writeByte(b ^ 1);
+    }
+
+    spool = WriteSpool.open(directory, 1024, 1024);
+    List<WriteSpool.Record> recovered = spool.takeRecoveredRecords();
+    assertEquals(1, recovered.size());
+    assertEquals("first/a", read(spool, recovered.get(0)));
+    assertNull(spool.takeRecoveredRecords());
+    assertFalse(recovered.get(0).ignoreAllDuplicateRows);
+    spool.close();
+  }
+
+  private static WriteSpool.Record append(WriteSpool spool, String tablet, String rows,
+                                          String indirect) throws IOException {
+    boolean ignoreAllDuplicateRows = tablet.equals("tablet-2");
+    WriteSpool.Record record = spool.append("table", SCHEMA,
+        new Slice(tablet.getBytes(Charsets.UTF_8)),
+        new byte[] { (byte) (tablet.charAt(tablet.length() - 1) - '0') }, ignoreAllDuplicateRows, 3,
+        encoder(rows, indirect));
+    assertNotNull(record);
+    spool.sync(record);
+    // Already covered by the force above.
+    spool.sync(record);
+    return record;
+  }
+
+  private static Schema schema(List<Integer> columnIds) {
+    return new Schema(ImmutableList.of(
+        new ColumnSchema.ColumnSchemaBuilder("key", Type.INT32).key(true).build(),
+        new ColumnSchema.ColumnSchemaBuilder("value", Type.STRING).build()), columnIds);
+  }
+
+  private static Operation.OperationsEncoder encoder(String rows, String indirect) {
+    Operation.OperationsEncoder encoder = new Operation.OperationsEncoder();
+    encoder.putEncodedRows(ByteBuffer.wrap(rows.getBytes(Charsets.UTF_8)),
+        ByteBuffer.wrap(indirect.getBytes(Charsets.UTF_8)));
+    return encoder;
+  }
+
+  private static String read(WriteSpool spool, WriteSpool.Record record) {
+    Operation.OperationsEncoder encoder = spool.read(record);
+    try {
+      return new String(encoder.getBuffers().get(0).toByteArray(), Charsets.UTF_8) + "/" +
+          new String(encoder.getBuffers().get(1).toByteArray(), Charsets.UTF_8);
+    } finally {
+      encoder.release();
+    }
+  }
+}